@@ -3,14 +3,19 @@
  */
 package fr.ans.afas.fhir.servlet;
 
+import fr.ans.afas.audit.AuditUtils;
 import fr.ans.afas.configuration.AfasConfiguration;
 import fr.ans.afas.exception.BadSelectExpression;
 import fr.ans.afas.exception.ForbiddenException;
+import fr.ans.afas.fhir.servlet.compression.CompressingAsyncContext;
+import fr.ans.afas.fhir.servlet.compression.CompressingHttpServletResponse;
+import fr.ans.afas.fhir.servlet.compression.ResponseCompression;
 import fr.ans.afas.fhir.servlet.create.PostParams;
 import fr.ans.afas.fhir.servlet.create.PostResourceReadListener;
 import fr.ans.afas.fhir.servlet.delete.DeleteParams;
 import fr.ans.afas.fhir.servlet.delete.DeleteResourceReadListener;
 import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhir.servlet.metadata.CapabilityStatementCache;
 import fr.ans.afas.fhir.servlet.metadata.CapabilityStatementReadListener;
 import fr.ans.afas.fhir.servlet.put.PutParams;
 import fr.ans.afas.fhir.servlet.put.PutResourceReadListener;
@@ -18,9 +23,15 @@ import fr.ans.afas.fhir.servlet.read.ReadResourceReadListener;
 import fr.ans.afas.fhir.servlet.read.ReadSearchParams;
 import fr.ans.afas.fhir.servlet.search.bundle.FhirQueryFirstPageReadListener;
 import fr.ans.afas.fhir.servlet.search.bundle.FhirQueryNextPageReadListener;
+import fr.ans.afas.fhir.servlet.servletutils.RequestAdmission;
+import fr.ans.afas.fhir.servlet.servletutils.RequestDeadlineListener;
 import fr.ans.afas.fhir.servlet.service.FhirOperationFactory;
 import fr.ans.afas.fhir.servlet.transaction.TransactionReadListener;
+import fr.ans.afas.fhirserver.http.FhirRequestParser;
+import fr.ans.afas.fhirserver.http.FhirRoute;
 import fr.ans.afas.fhirserver.service.FhirServerContext;
+import fr.ans.afas.fhirserver.service.admission.OperationClass;
+import fr.ans.afas.utils.RequestDeadline;
 import fr.ans.afas.utils.TenantUtil;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletInputStream;
@@ -46,6 +57,11 @@ import java.util.Optional;
 public class FhirResourceServlet<T> extends HttpServlet {
 
     public static final String REQUEST_AFAS_TENANT_ATTRIBUTE = "afas_tenant";
+    public static final String REQUEST_AFAS_MAX_BODY_SIZE_ATTRIBUTE = "afas_max_body_size";
+    public static final String REQUEST_AFAS_AUDIT_ATTRIBUTE = "afas_audit";
+    public static final String REQUEST_AFAS_STORAGE_EXECUTOR_ATTRIBUTE = "afas_storage_executor";
+    public static final String REQUEST_AFAS_DEADLINE_ATTRIBUTE = "afas_deadline";
+    public static final String REQUEST_AFAS_ADMISSION_ATTRIBUTE = "afas_admission";
     private static final String FHIR_CONTENT_TYPE = "application/fhir+json;charset=UTF-8";
     public static final String APPLICATION_X_WWW_FORM_URLENCODED = "application/x-www-form-urlencoded";
 
@@ -54,6 +70,16 @@ public class FhirResourceServlet<T> extends HttpServlet {
     private final FhirOperationFactory fhirOperationFactory;
     private final MessageSource messageSource;
 
+    /**
+     * The compression of responses, created from the configuration on the first request
+     */
+    private ResponseCompression responseCompression;
+
+    /**
+     * The capability statements rendered
+     */
+    private final CapabilityStatementCache capabilityStatements = new CapabilityStatementCache();
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) {
         processRequest(request, response, HttpMethod.GET);
@@ -79,34 +105,54 @@ public class FhirResourceServlet<T> extends HttpServlet {
      * @param response
      * @param method
      */
-    private void processRequest(HttpServletRequest request, HttpServletResponse response, HttpMethod method) {
+    private void processRequest(HttpServletRequest request, HttpServletResponse originalResponse, HttpMethod method) {
         AsyncContext context = null;
         try {
-            context = initAsyncContext(request);
+            var response = getResponseCompression().wrap(request, originalResponse);
+            context = initAsyncContext(request, response);
             ServletInputStream input = request.getInputStream();
             response.setContentType(FHIR_CONTENT_TYPE);
-            String fhirPath = extractFhirPath(request);
-            String fullPath = getFullPath(request, fhirPath);
+            FhirRoute route = route(request);
+            String fullPath = getFullPath(request, route.getFhirPath());
+
+            var admissionController = fhirServerContext.getAdmissionController();
+            var operationClass = operationClass(request, method, route);
+            var asyncContext = context;
+            if (admissionController == null || operationClass == null) {
+                dispatch(request, response, asyncContext, input, route, fullPath, method);
+            } else {
+                // the request waits for a slot of the tenant:
+                RequestAdmission.submit(admissionController, operationClass, context, () -> dispatch(request, response, asyncContext, input, route, fullPath, method));
+            }
+
+        } catch (Exception e) {
+            handleError(context, e, HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
 
+    /**
+     * Handle the request
+     */
+    private void dispatch(HttpServletRequest request, HttpServletResponse response, AsyncContext context, ServletInputStream input, FhirRoute route, String fullPath, HttpMethod method) {
+        try {
             switch (method) {
                 case GET:
-                    handleGetRequest(request, response, context, input, fhirPath, fullPath);
+                    handleGetRequest(request, response, context, input, route, fullPath);
                     break;
                 case POST:
-                    handlePostRequest(request, response, context, input, fhirPath);
+                    handlePostRequest(request, response, context, input, route);
                     break;
                 case PUT:
                     fhirServerContext.getSecurityService().canWriteResource(request);
-                    handlePutRequest(response, context, input, fhirPath);
+                    handlePutRequest(response, context, input, route);
                     break;
                 case DELETE:
                     fhirServerContext.getSecurityService().canWriteResource(request);
-                    handleDeleteRequest(response, context, input, fhirPath);
+                    handleDeleteRequest(response, context, input, route);
                     break;
                 default:
                     throw new UnsupportedOperationException(messageSource.getMessage("error.http.not.supported", null, Locale.getDefault()));
             }
-
         } catch (ForbiddenException e1){
             handleError(context, e1, HttpServletResponse.SC_FORBIDDEN);
         } catch (Exception e) {
@@ -114,29 +160,52 @@ public class FhirResourceServlet<T> extends HttpServlet {
         }
     }
 
+    /**
+     * Get the class of the operation for the admission control
+     *
+     * @param request the request
+     * @param method  the http method
+     * @param route   the route
+     * @return the class or null if the request is not limited (metadata, status of operations)
+     */
+    private OperationClass operationClass(HttpServletRequest request, HttpMethod method, FhirRoute route) {
+        if (method != HttpMethod.GET && !(method == HttpMethod.POST && APPLICATION_X_WWW_FORM_URLENCODED.equals(request.getContentType()))) {
+            return OperationClass.WRITE;
+        }
+        return switch (route.getKind()) {
+            case METADATA -> null;
+            case OPERATION -> "$index".equals(route.getFhirPath()) ? OperationClass.INDEX : null;
+            case READ -> OperationClass.READ;
+            case PAGE -> OperationClass.SEARCH;
+            default -> isCountOnly(request.getQueryString()) ? OperationClass.COUNT : OperationClass.SEARCH;
+        };
+    }
+
+    private static boolean isCountOnly(String queryString) {
+        if (StringUtils.isBlank(queryString)) {
+            return false;
+        }
+        return FhirRequestParser.parseParameters(queryString).stream().anyMatch(p -> !p.getParamValues().isEmpty()
+                && ("_summary".equals(p.getParamName()) && "count".equals(p.getParamValues().get(0))
+                || "_count".equals(p.getParamName()) && "0".equals(p.getParamValues().get(0))));
+    }
+
     /**
      * @param request
      * @param response
      * @param context
      * @param input
-     * @param fhirPath
+     * @param route
      * @param fullPath
      * @throws BadSelectExpression
      */
-    private void handleGetRequest(HttpServletRequest request, HttpServletResponse response, AsyncContext context, ServletInputStream input, String fhirPath, String fullPath) throws BadSelectExpression {
-        if (fhirPath.startsWith("_page")) {
-            searchNextPage(request, response, context, input);
-        } else if (fhirPath.startsWith("metadata")) {
-            getCapabilityStatement(response, context, input);
-        } else if (fhirPath.startsWith("$")) {
-            startOperation(fhirPath, context);
-        } else {
-            String[] parts = fhirPath.split("/");
-            if (parts.length == 2 && !parts[1].startsWith("_")) {
-                read(response, context, input, ReadSearchParams.builder().resource(parts[0]).id(parts[1]).build());
-            } else {
-                searchFirstPage(response, context, input, fullPath);
-            }
+    private void handleGetRequest(HttpServletRequest request, HttpServletResponse response, AsyncContext context, ServletInputStream input, FhirRoute route, String fullPath) throws BadSelectExpression {
+        switch (route.getKind()) {
+            case PAGE -> searchNextPage(request, response, context, input);
+            case METADATA -> getCapabilityStatement(response, context, input);
+            case OPERATION -> startOperation(route.getFhirPath(), context);
+            case READ -> read(response, context, input, ReadSearchParams.builder().resource(route.getResourceType()).id(route.getId()).build());
+            default -> searchFirstPage(response, context, input, fullPath);
         }
     }
 
@@ -145,17 +214,16 @@ public class FhirResourceServlet<T> extends HttpServlet {
      * @param response
      * @param context
      * @param input
-     * @param fhirPath
+     * @param route
      */
-    private void handlePostRequest(HttpServletRequest request, HttpServletResponse response, AsyncContext context, ServletInputStream input, String fhirPath) {
+    private void handlePostRequest(HttpServletRequest request, HttpServletResponse response, AsyncContext context, ServletInputStream input, FhirRoute route) {
         try {
-            String[] parts = fhirPath.split("/");
             if(APPLICATION_X_WWW_FORM_URLENCODED.equals(request.getContentType())) {
-                handleGetRequest(request, response, context, input, fhirPath, fhirPath);
+                handleGetRequest(request, response, context, input, route, route.getFhirPath());
             }
-            else if (parts.length == 1 && !parts[0].isEmpty()) {
+            else if (route.getSegmentCount() == 1 && !route.getResourceType().isEmpty()) {
                 fhirServerContext.getSecurityService().canWriteResource(request);
-                PostParams params = PostParams.builder().resource(parts[0]).build();
+                PostParams params = PostParams.builder().resource(route.getResourceType()).build();
                 write(response, context, input, params);
             }
             else {
@@ -173,12 +241,11 @@ public class FhirResourceServlet<T> extends HttpServlet {
      * @param response
      * @param context
      * @param input
-     * @param fhirPath
+     * @param route
      */
-    private void handlePutRequest(HttpServletResponse response, AsyncContext context, ServletInputStream input, String fhirPath) {
-        String[] parts = fhirPath.split("/");
-        if (parts.length == 2 && !parts[1].startsWith("_")) {
-            writeWithId(response, context, input, PutParams.builder().resource(parts[0]).id(parts[1]).build());
+    private void handlePutRequest(HttpServletResponse response, AsyncContext context, ServletInputStream input, FhirRoute route) {
+        if (route.getId() != null) {
+            writeWithId(response, context, input, PutParams.builder().resource(route.getResourceType()).id(route.getId()).build());
         }
         else {
             handleError(context, new BadSelectExpression(messageSource.getMessage("error.invalid.put.path", null, Locale.getDefault())), HttpServletResponse.SC_NOT_FOUND);
@@ -189,13 +256,12 @@ public class FhirResourceServlet<T> extends HttpServlet {
      * @param response
      * @param context
      * @param input
-     * @param fhirPath
+     * @param route
      */
-    private void handleDeleteRequest(HttpServletResponse response, AsyncContext context, ServletInputStream input, String fhirPath) {
+    private void handleDeleteRequest(HttpServletResponse response, AsyncContext context, ServletInputStream input, FhirRoute route) {
 
-        String[] parts = fhirPath.split("/");
-        if (parts.length == 2 && !parts[1].startsWith("_")) {
-            DeleteParams params = DeleteParams.builder().resource(parts[0]).id(parts[1]).build();
+        if (route.getId() != null) {
+            DeleteParams params = DeleteParams.builder().resource(route.getResourceType()).id(route.getId()).build();
             delete(response, context, input, params);
         } else {
             handleError(context, new BadSelectExpression(messageSource.getMessage("error.invalid.delete.path", null, Locale.getDefault())), HttpServletResponse.SC_NOT_FOUND);
@@ -203,24 +269,73 @@ public class FhirResourceServlet<T> extends HttpServlet {
 
     }
 
+    /**
+     * @return the compression of responses
+     */
+    private ResponseCompression getResponseCompression() {
+        if (responseCompression == null) {
+            responseCompression = ResponseCompression.of(Optional.ofNullable(afasConfiguration.getFhir()).map(AfasConfiguration.Fhir::getCompression).orElse(null));
+        }
+        return responseCompression;
+    }
+
     /**
      * @param request
+     * @param response the response (compressed or not)
      * @return
      */
-    private AsyncContext initAsyncContext(HttpServletRequest request) {
-        AsyncContext context = request.startAsync();
+    private AsyncContext initAsyncContext(HttpServletRequest request, HttpServletResponse response) {
+        AsyncContext context = response instanceof CompressingHttpServletResponse compressed
+                ? new CompressingAsyncContext(request.startAsync(request, compressed), compressed)
+                : request.startAsync();
         context.getRequest().setAttribute(REQUEST_AFAS_TENANT_ATTRIBUTE, TenantUtil.getCurrentTenant());
+        Optional.ofNullable(afasConfiguration.getFhir()).ifPresent(fhir -> context.getRequest().setAttribute(REQUEST_AFAS_MAX_BODY_SIZE_ATTRIBUTE, fhir.getInput().getMaxBodySize()));
+        // listeners may run in other threads:
+        context.getRequest().setAttribute(REQUEST_AFAS_AUDIT_ATTRIBUTE, AuditUtils.get());
+        Optional.ofNullable(fhirServerContext.getStorageExecutor()).ifPresent(executor -> context.getRequest().setAttribute(REQUEST_AFAS_STORAGE_EXECUTOR_ATTRIBUTE, executor));
         context.setTimeout(afasConfiguration.getServletTimeout());
+        var budget = deadlineBudget(request);
+        if (budget > 0) {
+            var deadline = RequestDeadline.in(budget);
+            context.getRequest().setAttribute(REQUEST_AFAS_DEADLINE_ATTRIBUTE, deadline);
+            context.addListener(new RequestDeadlineListener(deadline));
+        }
         return context;
     }
 
     /**
-     * @param request
-     * @return
+     * Get the time given to the request: the configured budget (or the timeout of the servlet), shortened by the
+     * client with a header
+     *
+     * @param request the request
+     * @return the time (ms), 0 or less for no deadline
      */
-    private String extractFhirPath(HttpServletRequest request) {
-        String fhirPath = request.getRequestURI().replaceAll(request.getServletPath(), "");
-        return fhirPath.startsWith("/") ? fhirPath.substring(1) : fhirPath;
+    private long deadlineBudget(HttpServletRequest request) {
+        var config = Optional.ofNullable(afasConfiguration.getFhir()).map(AfasConfiguration.Fhir::getDeadline);
+        long budget = config.map(AfasConfiguration.Deadline::getBudget).filter(b -> b > 0).orElse((long) afasConfiguration.getServletTimeout());
+        var header = config.map(AfasConfiguration.Deadline::getHeader).map(request::getHeader).orElse(null);
+        if (StringUtils.isNumeric(header)) {
+            var requested = Long.parseLong(header);
+            if (requested > 0 && (budget <= 0 || requested < budget)) {
+                budget = requested;
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Get the route of the request, resolved by the tenant filter or from the path after the servlet path
+     *
+     * @param request the request
+     * @return the route
+     */
+    private FhirRoute route(HttpServletRequest request) {
+        if (request.getAttribute(FhirRoute.REQUEST_ATTRIBUTE) instanceof FhirRoute route) {
+            return route;
+        }
+        var uri = request.getRequestURI();
+        var servletPath = request.getServletPath();
+        return FhirRoute.parse(uri, servletPath != null && uri.startsWith(servletPath) ? servletPath.length() : 0);
     }
 
     /**
@@ -247,7 +362,7 @@ public class FhirResourceServlet<T> extends HttpServlet {
      * @param input
      */
     private void getCapabilityStatement(HttpServletResponse response, AsyncContext context, ServletInputStream input) {
-        var readListener = new CapabilityStatementReadListener<>(fhirServerContext, response, context);
+        var readListener = new CapabilityStatementReadListener<>(fhirServerContext, capabilityStatements, response, context);
         input.setReadListener(readListener);
     }
 
@@ -0,0 +1,109 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+
+/**
+ * An async context of a compressed response. The end of the compressed body is written before the completion of the
+ * context.
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class CompressingAsyncContext implements AsyncContext {
+
+    private final AsyncContext delegate;
+    private final CompressingHttpServletResponse response;
+
+    /**
+     * Create the context
+     *
+     * @param delegate the context started with the compressed response
+     * @param response the compressed response
+     */
+    public CompressingAsyncContext(AsyncContext delegate, CompressingHttpServletResponse response) {
+        this.delegate = delegate;
+        this.response = response;
+    }
+
+    @Override
+    public void complete() {
+        try {
+            response.finish(delegate::complete);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Error writing the end of the compressed response", e);
+            delegate.complete();
+        }
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return delegate.getRequest();
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return delegate.getResponse();
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return delegate.hasOriginalRequestAndResponse();
+    }
+
+    @Override
+    public void dispatch() {
+        delegate.dispatch();
+    }
+
+    @Override
+    public void dispatch(String path) {
+        delegate.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        delegate.dispatch(context, path);
+    }
+
+    @Override
+    public void start(Runnable run) {
+        delegate.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        delegate.addListener(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        delegate.addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        return delegate.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        delegate.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+        return delegate.getTimeout();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response compressed with a codec negotiated with the Accept-Encoding header of the request (see
+ * {@link ResponseCompression}).
+ * <p>
+ * The Content-Encoding header is set when the compression starts (the body is bigger than the min size). The content
+ * length set by the application is ignored because the size of the compressed body is not known.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class CompressingHttpServletResponse extends HttpServletResponseWrapper {
+
+    private final CompressionCodec codec;
+    private final int level;
+    private final int minSize;
+
+    private CompressingServletOutputStream output;
+
+    private PrintWriter writer;
+
+    /**
+     * Create the response
+     *
+     * @param response the response
+     * @param codec    the codec negotiated
+     * @param level    the compression level
+     * @param minSize  the min size of bodies to compress
+     */
+    public CompressingHttpServletResponse(HttpServletResponse response, CompressionCodec codec, int level, int minSize) {
+        super(response);
+        this.codec = codec;
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        if (output == null) {
+            output = new CompressingServletOutputStream(super.getOutputStream(), this, codec, level, minSize);
+        }
+        return output;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // the size of the compressed body is not known
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        // the size of the compressed body is not known
+    }
+
+    /**
+     * Write the end of the response then run the completion
+     *
+     * @param completion the completion
+     * @throws IOException if an error occurs writing the response
+     */
+    public void finish(Runnable completion) throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (output == null) {
+            completion.run();
+        } else {
+            output.finish(completion);
+        }
+    }
+
+    /**
+     * @return the name of the coding used
+     */
+    public String getEncoding() {
+        return codec.getEncoding();
+    }
+
+    /**
+     * @return the codec used
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the stream to write a body already encoded with the codec (e.g. a precompressed body). The body written
+     * in this stream is not compressed again. {@link #setEncodedContentLength(int)} must be called before writing.
+     *
+     * @return the stream
+     * @throws IOException if an error occurs getting the stream
+     */
+    public ServletOutputStream getEncodedOutputStream() throws IOException {
+        return super.getOutputStream();
+    }
+
+    /**
+     * Set the headers of a body already encoded with the codec
+     *
+     * @param length the size of the encoded body
+     */
+    public void setEncodedContentLength(int length) {
+        startCompression();
+        super.setContentLength(length);
+    }
+
+    void startCompression() {
+        super.setHeader("Content-Encoding", codec.getEncoding());
+    }
+
+    void setRawContentLength(int length) {
+        if (!isCommitted()) {
+            super.setContentLength(length);
+        }
+    }
+}
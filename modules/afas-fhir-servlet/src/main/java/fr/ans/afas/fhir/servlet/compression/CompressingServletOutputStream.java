@@ -0,0 +1,208 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A servlet output stream that compresses the response.
+ * <p>
+ * The first bytes are kept until the min size is reached: small responses are not compressed. Then each write is
+ * compressed in memory and the compressed bytes are written to the response with at most one write, so the non
+ * blocking semantic of the stream is kept: {@link #isReady()} and the {@link WriteListener} are the ones of the
+ * response.
+ * </p>
+ * <p>
+ * The end of the compressed data is written when the response is complete (see {@link #finish(Runnable)}). If the
+ * response is not ready, it's written on the next {@link WriteListener#onWritePossible()} and the response is
+ * completed after.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class CompressingServletOutputStream extends ServletOutputStream {
+
+    private final ServletOutputStream delegate;
+    private final CompressingHttpServletResponse response;
+    private final CompressionCodec codec;
+    private final int level;
+    private final int minSize;
+
+    /**
+     * Bytes not compressed, until the min size is reached
+     */
+    private Buffer pending = new Buffer();
+
+    /**
+     * Compressed bytes not written to the response
+     */
+    private final Buffer compressed = new Buffer();
+
+    /**
+     * The compressing stream, null while the min size is not reached
+     */
+    private OutputStream compressor;
+
+    /**
+     * True if a write listener is set (non blocking mode)
+     */
+    private boolean nonBlocking;
+
+    private boolean finished;
+
+    /**
+     * The completion to run when the end of the response is written
+     */
+    private volatile Runnable pendingCompletion;
+
+    CompressingServletOutputStream(ServletOutputStream delegate, CompressingHttpServletResponse response, CompressionCodec codec, int level, int minSize) {
+        this.delegate = delegate;
+        this.response = response;
+        this.codec = codec;
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        nonBlocking = true;
+        delegate.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+                if (pendingCompletion != null) {
+                    writeEnd();
+                } else {
+                    writeListener.onWritePossible();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                writeListener.onError(throwable);
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("The response is complete");
+        }
+        if (compressor == null) {
+            pending.write(b, off, len);
+            if (pending.size() < minSize) {
+                return;
+            }
+            startCompression();
+        } else {
+            compressor.write(b, off, len);
+        }
+        drain();
+    }
+
+    /**
+     * Write compressed data. Bytes kept while the min size is not reached are not written
+     *
+     * @throws IOException if an error occurs writing the response
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (compressor != null && !finished) {
+            compressor.flush();
+            drain();
+        }
+    }
+
+    /**
+     * Write the end of the response and close the response
+     *
+     * @throws IOException if an error occurs writing the response
+     */
+    @Override
+    public void close() throws IOException {
+        finish(() -> {
+        });
+        delegate.close();
+    }
+
+    /**
+     * Write the end of the response (the bytes kept or the end of the compressed data) then run the completion. The
+     * completion is delayed if the response is not ready
+     *
+     * @param completion the completion (e.g. the completion of the async context)
+     * @throws IOException if an error occurs writing the response
+     */
+    public synchronized void finish(Runnable completion) throws IOException {
+        if (finished) {
+            completion.run();
+            return;
+        }
+        finished = true;
+        if (compressor == null) {
+            // small response, not compressed:
+            pending.writeTo(compressed);
+            response.setRawContentLength(pending.size());
+        } else {
+            compressor.close();
+        }
+        pending = null;
+        pendingCompletion = completion;
+        if (!nonBlocking || delegate.isReady()) {
+            writeEnd();
+        }
+    }
+
+    private synchronized void writeEnd() throws IOException {
+        var completion = pendingCompletion;
+        pendingCompletion = null;
+        drain();
+        completion.run();
+    }
+
+    private void startCompression() throws IOException {
+        response.startCompression();
+        compressor = codec.compress(compressed, level);
+        compressor.write(pending.array(), 0, pending.size());
+        pending = null;
+    }
+
+    /**
+     * Write the compressed bytes with one write
+     */
+    private void drain() throws IOException {
+        if (compressed.size() > 0) {
+            delegate.write(compressed.array(), 0, compressed.size());
+            compressed.reset();
+        }
+    }
+
+    /**
+     * A growable buffer with access to its array
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(8192);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
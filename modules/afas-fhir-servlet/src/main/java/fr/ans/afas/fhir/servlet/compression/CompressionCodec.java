@@ -0,0 +1,36 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A content coding of http responses (gzip, deflate...).
+ * <p>
+ * Other codings (br, zstd...) can be added with a library: implementations are loaded with the {@link java.util.ServiceLoader}
+ * (file <code>META-INF/services/fr.ans.afas.fhir.servlet.compression.CompressionCodec</code>).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the name of the coding used in Accept-Encoding and Content-Encoding headers
+     */
+    String getEncoding();
+
+    /**
+     * Create a compressing stream. The stream must write all data when flushed and the end of the compressed data
+     * (trailer) when closed.
+     *
+     * @param target the stream where compressed data are written
+     * @param level  the compression level (-1 for the default level of the codec)
+     * @return the compressing stream
+     * @throws IOException if the stream can't be created
+     */
+    OutputStream compress(OutputStream target, int level) throws IOException;
+}
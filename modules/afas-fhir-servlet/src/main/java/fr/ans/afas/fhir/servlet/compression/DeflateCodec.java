@@ -0,0 +1,41 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The deflate coding (zlib format, see RFC 9110)
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    public static final String ENCODING = "deflate";
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream target, int level) {
+        var deflater = new Deflater(level);
+        return new DeflaterOutputStream(target, deflater, 8192, true) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // the deflater is not released by the stream when it's not the default one:
+                    deflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The gzip coding
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class GzipCodec implements CompressionCodec {
+
+    public static final String ENCODING = "gzip";
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream target, int level) throws IOException {
+        return new GZIPOutputStream(target, 8192, true) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
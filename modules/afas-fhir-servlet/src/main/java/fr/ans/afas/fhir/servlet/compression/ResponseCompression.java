@@ -0,0 +1,140 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.ServiceLoader;
+
+/**
+ * Negotiate the compression of responses with the Accept-Encoding header of requests.
+ * <p>
+ * Codecs found with the {@link ServiceLoader} are preferred, then gzip and deflate. The codec with the highest quality
+ * in the header is used. When qualities are equal, the order of codecs is used.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class ResponseCompression {
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    /**
+     * No compression
+     */
+    public static final ResponseCompression DISABLED = new ResponseCompression(List.of(), 0, -1);
+
+    private final List<CompressionCodec> codecs;
+    private final int minSize;
+    private final int level;
+
+    /**
+     * Create the negotiation
+     *
+     * @param codecs  the codecs in the order of preference
+     * @param minSize the min size of bodies to compress (bytes)
+     * @param level   the compression level
+     */
+    public ResponseCompression(List<CompressionCodec> codecs, int minSize, int level) {
+        this.codecs = List.copyOf(codecs);
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    /**
+     * Create the negotiation from the configuration
+     *
+     * @param compression the configuration (null to disable the compression)
+     * @return the negotiation
+     */
+    public static ResponseCompression of(AfasConfiguration.Compression compression) {
+        if (compression == null || !compression.isEnabled()) {
+            return DISABLED;
+        }
+        var codecs = new ArrayList<CompressionCodec>();
+        ServiceLoader.load(CompressionCodec.class).forEach(codecs::add);
+        codecs.add(new GzipCodec());
+        codecs.add(new DeflateCodec());
+        return new ResponseCompression(codecs, compression.getMinSize(), compression.getLevel());
+    }
+
+    /**
+     * Wrap the response in a compressed response if the client accept a coding
+     *
+     * @param request  the request
+     * @param response the response
+     * @return the compressed response or the response
+     */
+    public HttpServletResponse wrap(HttpServletRequest request, HttpServletResponse response) {
+        if (codecs.isEmpty()) {
+            return response;
+        }
+        response.addHeader("Vary", ACCEPT_ENCODING);
+        return negotiate(request.getHeader(ACCEPT_ENCODING))
+                .<HttpServletResponse>map(codec -> new CompressingHttpServletResponse(response, codec, level, minSize))
+                .orElse(response);
+    }
+
+    /**
+     * Select the codec to use
+     *
+     * @param acceptEncoding the Accept-Encoding header
+     * @return the codec or empty if no codec is accepted
+     */
+    public Optional<CompressionCodec> negotiate(String acceptEncoding) {
+        if (StringUtils.isBlank(acceptEncoding)) {
+            return Optional.empty();
+        }
+        CompressionCodec selected = null;
+        var selectedQuality = 0.0;
+        for (var codec : codecs) {
+            var quality = quality(acceptEncoding, codec.getEncoding());
+            if (quality > selectedQuality) {
+                selected = codec;
+                selectedQuality = quality;
+            }
+        }
+        return Optional.ofNullable(selected);
+    }
+
+    /**
+     * Get the quality of a coding in the Accept-Encoding header
+     *
+     * @param acceptEncoding the header
+     * @param encoding       the coding
+     * @return the quality, 0 if the coding is not accepted
+     */
+    static double quality(String acceptEncoding, String encoding) {
+        Double wildcard = null;
+        for (var part : acceptEncoding.split(",")) {
+            var elements = part.split(";");
+            var name = elements[0].trim().toLowerCase(Locale.ROOT);
+            var quality = 1.0;
+            for (var i = 1; i < elements.length; i++) {
+                var param = elements[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals(encoding)) {
+                return quality;
+            } else if (name.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard == null ? 0 : wildcard;
+    }
+}
@@ -25,7 +25,6 @@ import org.springframework.context.MessageSource;
 import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 /**
@@ -84,12 +83,7 @@ public class PostResourceReadListener<T> extends DefaultReadListener {
     @Override
     public void onAllDataReadInTenant() throws IOException {
         try {
-            if (queue.isEmpty()) {
-                throw new DataFormatFhirException(messageSource.getMessage("error.body.empty", null, Locale.getDefault()));
-            }
-
-            var requestContent = queue.stream().collect(Collectors.joining());
-            if (requestContent.isEmpty()) {
+            if (body.isEmpty()) {
                 throw new DataFormatFhirException(messageSource.getMessage("error.body.empty", null, Locale.getDefault()));
             }
 
@@ -98,8 +92,7 @@ public class PostResourceReadListener<T> extends DefaultReadListener {
             var lastModified = HttpUtils.lastModifiedFromDate(now);
 
             var output = response.getOutputStream();
-            var parser = fhirServerContext.getFhirContext().newJsonParser();
-            var fhirResource = (DomainResource) parser.parseResource(requestContent);
+            var fhirResource = (DomainResource) fhirServerContext.getParserPool().parseResource(body.getReader());
             fhirResource.setId((UUID.randomUUID().toString()));
             fhirResource.getMeta().setLastUpdated(Date.from(now.toInstant()));
 
@@ -4,8 +4,8 @@
 package fr.ans.afas.fhir.servlet.error;
 
 import ca.uhn.fhir.context.ConfigurationException;
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
 import fr.ans.afas.fhirserver.service.exception.PublicException;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletResponse;
@@ -45,7 +45,7 @@ public class ErrorWriter {
 
         try {
             var writer = new PrintWriter(response.getOutputStream());
-            FhirContext.forR4().newJsonParser().encodeResourceToWriter(operationOutcome, writer);
+            FhirParserPool.forR4().encodeResourceToWriter(operationOutcome, writer);
         } catch (IOException ex) {
             log.debug("Error writing the error", ex);
         }
@@ -0,0 +1,13 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.exception;
+
+import fr.ans.afas.fhirserver.service.exception.PublicException;
+
+public class PayloadTooLargeException extends RuntimeException implements PublicException {
+
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+}
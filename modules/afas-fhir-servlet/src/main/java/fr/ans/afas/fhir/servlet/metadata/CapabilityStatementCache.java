@@ -0,0 +1,237 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.metadata;
+
+import fr.ans.afas.fhir.servlet.compression.CompressionCodec;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.fhirserver.service.FhirServerContext;
+import fr.ans.afas.utils.TenantUtil;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The capability statements of tenants, rendered once.
+ * <p>
+ * The capability statement of a tenant is rendered to bytes on the first request of the tenant and rendered again only
+ * when the search configuration of the tenant changes (reload). Compressed variants are computed once per coding and
+ * have their own entity tag (the tag of the json with the coding as suffix), as their bytes differ.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class CapabilityStatementCache {
+
+    /**
+     * Rendered capability statements by tenant
+     */
+    private final Map<String, Rendered> rendered = new ConcurrentHashMap<>();
+
+    /**
+     * Get the capability statement of the current tenant
+     *
+     * @param fhirServerContext the context
+     * @return the rendered capability statement
+     */
+    public Rendered get(FhirServerContext<?> fhirServerContext) {
+        var config = fhirServerContext.getSearchConfigService().getServerSearchConfig();
+        var tenant = Objects.toString(TenantUtil.getCurrentTenant(), "");
+        var current = rendered.get(tenant);
+        if (current == null || current.config != config) {
+            current = rendered.compute(tenant, (k, v) -> v != null && v.config == config ? v : render(fhirServerContext, config));
+        }
+        return current;
+    }
+
+    private Rendered render(FhirServerContext<?> fhirServerContext, TenantSearchConfig config) {
+        var cs = new CapabilityStatement();
+        writeMeta(cs, config);
+        cs.setRest(buildServer(config));
+        var json = fhirServerContext.getFhirContext().newJsonParser().encodeResourceToString(cs).getBytes(StandardCharsets.UTF_8);
+        return new Rendered(config, json);
+    }
+
+    /**
+     * Write the capability statement metadata
+     *
+     * @param cs     the capability statement
+     * @param config the configuration of the tenant
+     */
+    private void writeMeta(CapabilityStatement cs, TenantSearchConfig config) {
+        if (StringUtils.isNotBlank(config.getCopyright())) {
+            cs.setCopyright(config.getCopyright());
+        }
+        if (StringUtils.isNotBlank(config.getImplementationGuideUrl())) {
+            cs.setImplementationGuide(List.of(new CanonicalType(config.getImplementationGuideUrl())));
+        }
+        cs.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        cs.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+        // we only support json:
+        cs.setFormat(List.of(new CodeType("application/fhir+json"), new CodeType("json")));
+    }
+
+    /**
+     * Build the server/rest section of the capability statement
+     *
+     * @param config the configuration of the tenant
+     * @return rest components of the capability statement
+     */
+    protected List<CapabilityStatement.CapabilityStatementRestComponent> buildServer(TenantSearchConfig config) {
+        var serverComponents = new ArrayList<CapabilityStatement.CapabilityStatementRestComponent>();
+        var serverComponent = new CapabilityStatement.CapabilityStatementRestComponent();
+        serverComponents.add(serverComponent);
+        for (var resourceConfig : config.getResources()) {
+            var resource = serverComponent.addResource();
+            resource.setProfile(resourceConfig.getProfile());
+            resource.setType(resourceConfig.getName());
+
+            CapabilityStatementWriteListener.addInteractions(resourceConfig, resource);
+
+            resource.setSearchInclude(resourceConfig.getSearchIncludes());
+            resource.setSearchRevInclude(resourceConfig.getSearchRevIncludes());
+
+            for (var p : resourceConfig.getSearchParams()) {
+                var sp = resource.addSearchParam();
+                sp.setName(p.getName());
+                sp.setType(Enumerations.SearchParamType.fromCode(p.getSearchType()));
+                sp.setDocumentation(p.getDescription());
+                sp.setDefinition(p.getDefinition());
+            }
+        }
+        return serverComponents;
+    }
+
+    /**
+     * A capability statement rendered in json
+     */
+    public static class Rendered {
+
+        /**
+         * The configuration used to render the statement
+         */
+        private final TenantSearchConfig config;
+
+        /**
+         * The statement in json (UTF-8)
+         */
+        private final byte[] json;
+
+        /**
+         * The strong entity tag of the statement in json (not compressed)
+         */
+        @Getter
+        private final String etag;
+
+        /**
+         * The digest of the statement in json
+         */
+        private final String digest;
+
+        /**
+         * Compressed variants by coding
+         */
+        private final Map<String, byte[]> encoded = new ConcurrentHashMap<>();
+
+        Rendered(TenantSearchConfig config, byte[] json) {
+            this.config = config;
+            this.json = json;
+            this.digest = digest(json);
+            this.etag = "\"" + digest + "\"";
+        }
+
+        /**
+         * @return the statement in json. Must not be modified
+         */
+        public byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * Get the statement compressed with a codec
+         *
+         * @param codec the codec
+         * @param level the compression level
+         * @return the compressed statement. Must not be modified
+         */
+        public byte[] getEncoded(CompressionCodec codec, int level) {
+            return encoded.computeIfAbsent(codec.getEncoding(), k -> {
+                var bytes = new ByteArrayOutputStream(json.length / 4);
+                try (var out = codec.compress(bytes, level)) {
+                    out.write(json);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return bytes.toByteArray();
+            });
+        }
+
+        /**
+         * Get the strong entity tag of the statement sent with a content coding
+         *
+         * @param codec the codec or null if the statement is not compressed
+         * @return the entity tag
+         */
+        public String getEtag(CompressionCodec codec) {
+            return codec == null ? etag : "\"" + digest + "-" + codec.getEncoding() + "\"";
+        }
+
+        /**
+         * Check if the If-None-Match header of a request matches the statement in json
+         *
+         * @param ifNoneMatch the header (can be null)
+         * @return true if the client has the statement
+         */
+        public boolean matches(String ifNoneMatch) {
+            return matches(ifNoneMatch, null);
+        }
+
+        /**
+         * Check if the If-None-Match header of a request matches the statement sent with a content coding
+         *
+         * @param ifNoneMatch the header (can be null)
+         * @param codec       the codec or null if the statement is not compressed
+         * @return true if the client has the statement
+         */
+        public boolean matches(String ifNoneMatch, CompressionCodec codec) {
+            if (StringUtils.isBlank(ifNoneMatch)) {
+                return false;
+            }
+            var expected = getEtag(codec);
+            for (var tag : ifNoneMatch.split(",")) {
+                var t = tag.trim();
+                // weak comparison for If-None-Match:
+                if (t.equals("*") || StringUtils.removeStart(t, "W/").equals(expected)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String digest(byte[] data) {
+            try {
+                var hash = MessageDigest.getInstance("SHA-256").digest(data);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
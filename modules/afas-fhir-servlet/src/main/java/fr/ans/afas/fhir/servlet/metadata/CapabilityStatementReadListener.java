@@ -3,6 +3,7 @@
  */
 package fr.ans.afas.fhir.servlet.metadata;
 
+import fr.ans.afas.fhir.servlet.compression.CompressingHttpServletResponse;
 import fr.ans.afas.fhir.servlet.exception.BadRequestException;
 import fr.ans.afas.fhirserver.service.FhirServerContext;
 import jakarta.servlet.AsyncContext;
@@ -27,6 +28,11 @@ public class CapabilityStatementReadListener<T> implements ReadListener {
 
     private final FhirServerContext<T> fhirServerContext;
 
+    /**
+     * The rendered statements
+     */
+    private final CapabilityStatementCache cache;
+
     /**
      * The servlet response
      */
@@ -46,8 +52,9 @@ public class CapabilityStatementReadListener<T> implements ReadListener {
 
     @Override
     public void onAllDataRead() throws IOException {
-        var output = response.getOutputStream();
-        var writeListener = new CapabilityStatementWriteListener<>(fhirServerContext, output, asyncContext);
+        // the statement is precompressed:
+        var output = response instanceof CompressingHttpServletResponse compressed ? compressed.getEncodedOutputStream() : response.getOutputStream();
+        var writeListener = new CapabilityStatementWriteListener<>(fhirServerContext, cache, response, output, asyncContext);
         output.setWriteListener(writeListener);
     }
 
@@ -3,28 +3,27 @@
  */
 package fr.ans.afas.fhir.servlet.metadata;
 
+import fr.ans.afas.fhir.servlet.compression.CompressingHttpServletResponse;
 import fr.ans.afas.fhir.servlet.error.ErrorWriter;
 import fr.ans.afas.fhir.servlet.servletutils.DefaultWriteListener;
 import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
 import fr.ans.afas.fhirserver.service.FhirServerContext;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletOutputStream;
-import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
-import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CapabilityStatement;
-import org.hl7.fhir.r4.model.CodeType;
-import org.hl7.fhir.r4.model.Enumerations;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * Write the capability statement
+ * Write the capability statement.
+ * <p>
+ * The statement is rendered once per tenant (see {@link CapabilityStatementCache}) and written in one write. A 304
+ * response is sent if the client has the statement (If-None-Match). If the response is compressed, the precompressed
+ * statement is written.
+ * </p>
  *
  * @author Guillaume Poulériguen
  * @since 1.0.0
@@ -33,16 +32,29 @@ import java.util.List;
 public class CapabilityStatementWriteListener<T> extends DefaultWriteListener {
 
     private final FhirServerContext<T> fhirServerContext;
+
+    /**
+     * The rendered statements
+     */
+    private final CapabilityStatementCache cache;
+
+    /**
+     * The response
+     */
+    private final HttpServletResponse response;
+
     /**
      * The servlet output stream
      */
     private final ServletOutputStream sos;
 
 
-    public CapabilityStatementWriteListener(FhirServerContext<T> fhirServerContext, ServletOutputStream sos, AsyncContext context) {
+    public CapabilityStatementWriteListener(FhirServerContext<T> fhirServerContext, CapabilityStatementCache cache, HttpServletResponse response, ServletOutputStream sos, AsyncContext context) {
         super(context);
-        this.sos = sos;
         this.fhirServerContext = fhirServerContext;
+        this.cache = cache;
+        this.response = response;
+        this.sos = sos;
     }
 
     /**
@@ -67,32 +79,25 @@ public class CapabilityStatementWriteListener<T> extends DefaultWriteListener {
 
     @Override
     public void onWritePossibleInTenant() throws IOException {
-
-            var cs = new CapabilityStatement();
-            writeMeta(cs);
-            cs.setRest(buildServer());
-            sos.write(this.fhirServerContext.getFhirContext().newJsonParser().encodeResourceToString(cs).getBytes(Charset.defaultCharset()));
+        var statement = cache.get(fhirServerContext);
+        var codec = response instanceof CompressingHttpServletResponse compressed ? compressed.getCodec() : null;
+        // the compressed variants have their own tag:
+        response.setHeader("ETag", statement.getEtag(codec));
+        if (context.getRequest() instanceof HttpServletRequest request && statement.matches(request.getHeader("If-None-Match"), codec)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             context.complete();
-
-    }
-
-    /**
-     * Write the capability statement metadata
-     *
-     * @param cs the capability statement
-     */
-    private void writeMeta(CapabilityStatement cs) {
-        var searchConfigService = this.fhirServerContext.getSearchConfigService();
-        if (StringUtils.isNotBlank(searchConfigService.getServerSearchConfig().getCopyright())) {
-            cs.setCopyright(searchConfigService.getServerSearchConfig().getCopyright());
+            return;
         }
-        if (StringUtils.isNotBlank(searchConfigService.getServerSearchConfig().getImplementationGuideUrl())) {
-            cs.setImplementationGuide(List.of(new CanonicalType(searchConfigService.getServerSearchConfig().getImplementationGuideUrl())));
+        byte[] body;
+        if (response instanceof CompressingHttpServletResponse compressed) {
+            body = statement.getEncoded(compressed.getCodec(), compressed.getLevel());
+            compressed.setEncodedContentLength(body.length);
+        } else {
+            body = statement.getJson();
+            response.setContentLength(body.length);
         }
-        cs.setStatus(Enumerations.PublicationStatus.ACTIVE);
-        cs.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
-        // we only support json:
-        cs.setFormat(List.of(new CodeType("application/fhir+json"), new CodeType("json")));
+        sos.write(body);
+        context.complete();
     }
 
     @Override
@@ -101,36 +106,4 @@ public class CapabilityStatementWriteListener<T> extends DefaultWriteListener {
         ErrorWriter.writeError("Unexpected error", context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         context.complete();
     }
-
-    /**
-     * Build the server/rest section of the capability statement
-     *
-     * @return rest components of the capability statement
-     */
-    protected List<CapabilityStatement.CapabilityStatementRestComponent> buildServer() {
-        var serverComponents = new ArrayList<CapabilityStatement.CapabilityStatementRestComponent>();
-        var serverComponent = new CapabilityStatement.CapabilityStatementRestComponent();
-        serverComponents.add(serverComponent);
-        for (var config : this.fhirServerContext.getSearchConfigService().getServerSearchConfig().getResources()) {
-            var resource = serverComponent.addResource();
-            resource.setProfile(config.getProfile());
-            resource.setType(config.getName());
-
-            addInteractions(config, resource);
-
-            resource.setSearchInclude(config.getSearchIncludes());
-            resource.setSearchRevInclude(config.getSearchRevIncludes());
-
-            for (var p : config.getSearchParams()) {
-                var sp = resource.addSearchParam();
-                sp.setName(p.getName());
-                sp.setType(Enumerations.SearchParamType.fromCode(p.getSearchType()));
-                sp.setDocumentation(p.getDescription());
-                sp.setDefinition(p.getDefinition());
-            }
-        }
-        return serverComponents;
-    }
-
-
 }
@@ -3,10 +3,10 @@
  */
 package fr.ans.afas.fhir.servlet.operation;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.param.DateParam;
 import fr.ans.afas.fhir.servlet.error.ErrorWriter;
 import fr.ans.afas.fhirserver.search.exception.BadParametersException;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
 import fr.ans.afas.fhirserver.service.IndexService;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletResponse;
@@ -64,7 +64,7 @@ public class IndexResourceOperation implements Runnable {
             var operationOutcomeIssueComponent = operationOutcome.addIssue();
             operationOutcomeIssueComponent.setCode(OperationOutcome.IssueType.PROCESSING);
             operationOutcomeIssueComponent.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
-            FhirContext.forR4().newJsonParser().encodeResourceToWriter(operationOutcome, writer);
+            FhirParserPool.forR4().encodeResourceToWriter(operationOutcome, writer);
         } catch (Exception e) {
             logger.debug("Error rendering the operation response", e);
             ErrorWriter.writeError(e, context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
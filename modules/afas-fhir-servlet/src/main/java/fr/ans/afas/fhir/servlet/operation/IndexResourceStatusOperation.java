@@ -3,8 +3,8 @@
  */
 package fr.ans.afas.fhir.servlet.operation;
 
-import ca.uhn.fhir.context.FhirContext;
 import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
 import fr.ans.afas.fhirserver.service.IndexService;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletResponse;
@@ -14,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
+import java.util.Locale;
 
 /**
  * Fhir operation that show the status of indexing process
@@ -57,7 +58,18 @@ public class IndexResourceStatusOperation implements Runnable {
             } else {
                 operationOutcomeIssueComponent.setDiagnostics("Not running");
             }
-            FhirContext.forR4().newJsonParser().encodeResourceToWriter(operationOutcome, writer);
+            // progress of the last job:
+            indexService.getStatus().ifPresent(status -> {
+                var progress = operationOutcome.addIssue();
+                progress.setCode(OperationOutcome.IssueType.VALUE);
+                progress.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
+                progress.setDiagnostics(String.format(Locale.ROOT, "Processed: %d/%d, rate: %.1f resources/s, eta: %s",
+                        status.getProcessed(),
+                        status.getTotal(),
+                        status.getRate(),
+                        status.getEta() == null ? "unknown" : status.getEta() + "s"));
+            });
+            FhirParserPool.forR4().encodeResourceToWriter(operationOutcome, writer);
         } catch (Exception e) {
             logger.debug("Error rendering the operation response", e);
             ErrorWriter.writeError(e, context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -0,0 +1,72 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.operation;
+
+import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
+import fr.ans.afas.fhirserver.service.SearchConfigReloadService;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+
+/**
+ * Fhir operation that launch the reload of the search configuration and show the result of the last reload
+ */
+public class ReloadConfigOperation implements Runnable {
+
+    /**
+     * Logger
+     */
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AsyncContext context;
+
+    private final SearchConfigReloadService searchConfigReloadService;
+
+    /**
+     * Construct the reload fhir operation
+     *
+     * @param context                   the async context
+     * @param searchConfigReloadService the reload service
+     */
+    public ReloadConfigOperation(AsyncContext context, SearchConfigReloadService searchConfigReloadService) {
+        this.context = context;
+        this.searchConfigReloadService = searchConfigReloadService;
+    }
+
+    /**
+     * Launch the reload and generate an operation outcome
+     */
+    @Override
+    public void run() {
+        try (var out = context.getResponse().getOutputStream();
+             var writer = new PrintWriter(out)) {
+            // the result of the previous reload:
+            var previous = searchConfigReloadService.getStatus();
+            var started = searchConfigReloadService.reload();
+
+            var operationOutcome = new OperationOutcome();
+            var operationOutcomeIssueComponent = operationOutcome.addIssue();
+            operationOutcomeIssueComponent.setCode(OperationOutcome.IssueType.PROCESSING);
+            operationOutcomeIssueComponent.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
+            operationOutcomeIssueComponent.setDiagnostics(started ? "Started" : "Already running");
+            previous.ifPresent(status -> {
+                var last = operationOutcome.addIssue();
+                last.setCode(OperationOutcome.IssueType.VALUE);
+                last.setSeverity(status.isApplied() ? OperationOutcome.IssueSeverity.INFORMATION : OperationOutcome.IssueSeverity.WARNING);
+                last.setDiagnostics("Last reload: " + status);
+            });
+            FhirParserPool.forR4().encodeResourceToWriter(operationOutcome, writer);
+        } catch (Exception e) {
+            logger.debug("Error rendering the operation response", e);
+            ErrorWriter.writeError(e, context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            context.complete();
+        }
+    }
+}
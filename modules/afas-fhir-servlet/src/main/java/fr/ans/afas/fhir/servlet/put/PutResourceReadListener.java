@@ -22,7 +22,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.stream.Collectors;
 
 
 /**
@@ -75,13 +74,10 @@ public class PutResourceReadListener<T> extends DefaultReadListener {
     @Override
     public void onAllDataReadInTenant() throws IOException {
         try {
-            if (queue.isEmpty()) return;// REMOVE
-
-            var requestContent = queue.stream().collect(Collectors.joining());
+            if (body.isEmpty()) return;// REMOVE
 
             var output = response.getOutputStream();
-            var parser = fhirServerContext.getFhirContext().newJsonParser();
-            var fhirResource = (DomainResource) parser.parseResource(requestContent);
+            var fhirResource = (DomainResource) fhirServerContext.getParserPool().parseResource(body.getReader());
 
 
             var idWithResource = putParams.getId();
@@ -12,7 +12,7 @@ import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.r4.model.IdType;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Write a resource
@@ -50,7 +50,7 @@ public class ReadResourceWriteListener<T> extends DefaultWriteListener {
             if (found == null) {
                 throw new ResourceNotFoundException("Resource not found with id: " + this.readSearchParams.getId());
             }
-            sos.write(fhirServerContext.getFhirContext().newJsonParser().encodeResourceToString(found).getBytes(Charset.defaultCharset()));
+            sos.write(fhirServerContext.getParserPool().encodeResourceToString(found).getBytes(StandardCharsets.UTF_8));
             context.complete();
         } catch (ResourceNotFoundException resourceNotFoundException) {
             ErrorWriter.writeError(resourceNotFoundException, context, HttpServletResponse.SC_NOT_FOUND);
@@ -3,13 +3,13 @@
  */
 package fr.ans.afas.fhir.servlet.search.bundle;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import fr.ans.afas.configuration.AfasConfiguration;
 import fr.ans.afas.domain.FhirBundleBuilder;
 import fr.ans.afas.fhir.servlet.exception.UnknownErrorWritingResponse;
+import fr.ans.afas.fhir.servlet.servletutils.ByteBufferPool;
 import fr.ans.afas.fhir.servlet.servletutils.DefaultWriteListener;
 import fr.ans.afas.fhir.servlet.servletutils.HttpUtils;
+import fr.ans.afas.fhirserver.http.FhirRoute;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.service.FhirPageIterator;
 import fr.ans.afas.fhirserver.service.FhirServerContext;
@@ -23,15 +23,19 @@ import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 
 
 /**
- * Base class to write fhir bundle with nio servlet
+ * Base class to write fhir bundle with nio servlet.
+ * <p>
+ * The bundle is written in a pooled buffer (see {@link BundleByteWriter}). The buffer is written to the response when
+ * it's full, so one write contains many entries.
+ * </p>
  *
  * @author Guillaume Poulériguen
  * @since 1.0.0
@@ -39,7 +43,6 @@ import java.util.UUID;
 @Slf4j
 public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteListener {
 
-    static IParser parser = FhirContext.forR4().newJsonParser();
     private final AfasConfiguration afasConfiguration;
     private final ServletOutputStream output;
 
@@ -48,10 +51,18 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
     private final FhirPageIterator fhirPageIterator;
     FhirServerContext<T> fhirServerContext;
     Iterator<FhirBundleBuilder.BundleEntry> includeCursor;
-    private RenderingState state = RenderingState.HEADER;
+    private volatile RenderingState state = RenderingState.HEADER;
     private int index = 0;
     private Map<String, Set<String>> toInclude;
     private Set<String> toRevInclude;
+    /**
+     * The writer of the bundle, created on the first write
+     */
+    private BundleByteWriter writer;
+    /**
+     * True if the total was written in the header
+     */
+    private boolean totalWritten = false;
 
     protected AbstractFhirBundleWriteListener(FhirServerContext<T> fhirServerContext, AfasConfiguration afasConfiguration, ServletOutputStream output, AsyncContext context, SelectExpression<T> selectExpression, FhirPageIterator fhirPageIterator) {
         super(context);
@@ -66,6 +77,12 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
     public void onWritePossibleInTenant() {
         try {
             while (output.isReady()) {
+                if (isCancelled()) {
+                    // nobody waits for the response, the cursor is closed:
+                    closeIterator();
+                    releaseWriter();
+                    return;
+                }
                 switch (state) {
                     case HEADER:
                         writeHeader();
@@ -80,26 +97,102 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
                         writeRevIncludes();
                         break;
                     case FOOTER:
-                        writeFooter();
-                        break;
+                        if (!fhirPageIterator.isTotalCalculated() && !totalWritten) {
+                            waitTotal();
+                        } else {
+                            writeFooter();
+                        }
+                        return;
+                    case WAITING_TOTAL:
+                        return;
+                }
+                // write many entries at once:
+                if (writer().isFull()) {
+                    writer().writeTo(output);
                 }
             }
         } catch (Exception e) {
             log.error("Error writing the request", e);
+            releaseWriter();
             context.complete();
         }
     }
 
-    private String addIfHasParams(String text) {
+    /**
+     * Get the writer of the bundle. The url of entries is computed once per response
+     *
+     * @return the writer
+     */
+    BundleByteWriter writer() {
+        if (writer == null) {
+            var outputConfiguration = afasConfiguration.getFhir().getOutput();
+            //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
+            writer = new BundleByteWriter(ByteBufferPool.shared(outputConfiguration.getBufferSize(), outputConfiguration.getPoolSize()),
+                    HttpUtils.getServerUrl(afasConfiguration.getPublicUrl(), ""));
+        }
+        return writer;
+    }
+
+    private void closeIterator() {
+        try {
+            fhirPageIterator.close();
+        } catch (Exception e) {
+            log.debug("Error closing the cursor", e);
+        }
+    }
+
+    private void releaseWriter() {
+        if (writer != null) {
+            writer.release();
+        }
+    }
+
+    private static String addIfHasParams(String text) {
         return text == null ? "" : "?" + text;
     }
 
+    /**
+     * Get the public url of the current request (self link of bundles)
+     *
+     * @param afasConfiguration the configuration of the server
+     * @param httpReq           the request
+     * @return the url
+     */
+    static String currentUrl(AfasConfiguration afasConfiguration, HttpServletRequest httpReq) {
+        //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
+        var uri = httpReq.getRequestURI();
+        if (httpReq.getAttribute(FhirRoute.REQUEST_ATTRIBUTE) instanceof FhirRoute route && route.getTenantPath() != null) {
+            // not forwarded, the uri contains the tenant:
+            uri = uri.replace(route.getTenantPath(), "");
+        }
+        return afasConfiguration.getPublicUrl().concat(uri.replaceAll("(/0.x)|(/1.x)", "")).concat(addIfHasParams(httpReq.getQueryString()));
+    }
+
+    /**
+     * The count is not finished: the thread is released and the footer is written when the count ends
+     */
+    private void waitTotal() {
+        state = RenderingState.WAITING_TOTAL;
+        fhirPageIterator.totalFuture().whenComplete((total, e) -> {
+            state = RenderingState.FOOTER;
+            context.start(this::resume);
+        });
+    }
+
+    private void resume() {
+        try {
+            onWritePossible();
+        } catch (Exception e) {
+            onError(e);
+        }
+    }
+
     void writeFooter() throws IOException {
 
-        var req = this.context.getRequest();
-        var httpReq = (HttpServletRequest) req;
-        //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
-        var currentUrl = afasConfiguration.getPublicUrl().concat(httpReq.getRequestURI().replaceAll("(/0.x)|(/1.x)", "")).concat(addIfHasParams(httpReq.getQueryString()));
+        var currentUrl = currentUrl(afasConfiguration, (HttpServletRequest) this.context.getRequest());
+        // if the count was not finished when the header was written, it's written in the footer (the count is finished here):
+        var total = fhirPageIterator.awaitTotal();
+        var footerTotal = totalWritten ? null : total;
 
         if (fhirPageIterator.hasNextPage()) {
             //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
@@ -107,21 +200,22 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
 
             var id = fhirServerContext.getNextUrlManager().store(PagingData.<T>builder()
                     .pageSize(selectExpression.getCount())
-                    .size(CountResult.builder().total(fhirPageIterator.searchContext().getTotal()).build())
+                    .size(CountResult.builder().total(total).build())
                     .type(selectExpression.getFhirResource())
                     .selectExpression(selectExpression)
                     .elements(fhirPageIterator.getElements())
-                    .uuid(UUID.randomUUID().toString())
+                    .uuid(Optional.ofNullable(fhirPageIterator.searchContext().getUuid()).orElseGet(() -> UUID.randomUUID().toString()))
                     .timestamp(fhirPageIterator.searchContext().getRevision())
                     .lastId(fhirPageIterator.searchContext().getFirstId())
                     .build());
 
 
-            output.write(this.fhirBundleBuilder.getFooter(nextUrl, currentUrl, id).getBytes(Charset.defaultCharset()));
-            context.complete();
-            return;
+            writer().append(this.fhirBundleBuilder.getFooter(nextUrl, currentUrl, id, footerTotal));
+        } else {
+            writer().append(this.fhirBundleBuilder.getFooter(afasConfiguration.getPublicUrl(), currentUrl, null, footerTotal));
         }
-        output.write(this.fhirBundleBuilder.getFooter(afasConfiguration.getPublicUrl(), currentUrl, null).getBytes(Charset.defaultCharset()));
+        writer().writeTo(output);
+        releaseWriter();
         context.complete();
     }
 
@@ -147,13 +241,7 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
     void writeIteratorEntries() {
         try {
             var entry = fhirPageIterator.next();
-            var resourceAsByte = "";
-            if (index++ > 0) {
-                resourceAsByte += ",";
-            }
-            //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
-            resourceAsByte += FhirBundleBuilder.wrapBundleEntry(HttpUtils.getServerUrl(afasConfiguration.getPublicUrl(), ""), entry);
-            output.write(resourceAsByte.getBytes(Charset.defaultCharset()));
+            writer().appendEntry(index++ > 0, entry);
             toInclude = fhirPageIterator.getIncludesTypeReference();
             toRevInclude = fhirPageIterator.getRevIncludeIds();
             this.addRevIncludes(afasConfiguration.getFhir().getIncludes().getBufferSize());
@@ -179,11 +267,7 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
                 includeCursor = new CombinedCursor(resource);
             }// or write the response:
             if (includeCursor.hasNext()) {
-                var entry = includeCursor.next();
-                var resourceAsByte = ",";
-                //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
-                resourceAsByte += FhirBundleBuilder.wrapBundleEntry(HttpUtils.getServerUrl(afasConfiguration.getPublicUrl(), ""), entry);
-                output.write(resourceAsByte.getBytes(Charset.defaultCharset()));
+                writer().appendEntry(true, includeCursor.next());
             } else {
                 includeCursor = null;
                 fhirPageIterator.clearIncludesTypeReference();
@@ -199,13 +283,9 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
             state = RenderingState.ENTRIES;
         } else {
             var revIncludes = fhirServerContext.getFhirStoreService().findRevIncludes(fhirPageIterator.searchContext().getRevision(), toRevInclude, selectExpression.getRevincludes());
-            var resourceAsByte = new StringBuilder();
             for (FhirBundleBuilder.BundleEntry entry : revIncludes) {
-                resourceAsByte.append(",");
-                //TODO temporal solution to remove tenant before generating the next url because the tenant don't have to appear in next url but we can remove this solution at the moment that HAPI would be deleted
-                resourceAsByte.append(FhirBundleBuilder.wrapBundleEntry(HttpUtils.getServerUrl(afasConfiguration.getPublicUrl(), ""), entry));
+                writer().appendEntry(true, entry);
             }
-            output.write(resourceAsByte.toString().getBytes(Charset.defaultCharset()));
             fhirPageIterator.clearRevIncludeIds();
             state = RenderingState.ENTRIES;
         }
@@ -214,7 +294,13 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
 
     private void writeHeader() throws IOException {
         var bundleId = UUID.randomUUID().toString();
-        output.write(this.fhirBundleBuilder.getHeader(bundleId, fhirPageIterator.searchContext().getTotal()).getBytes(Charset.defaultCharset()));
+        // the total is calculated concurrently with the first page. We don't wait for it here, if it's not ready it will be written in the footer:
+        Long total = null;
+        if (fhirPageIterator.isTotalCalculated()) {
+            total = fhirPageIterator.awaitTotal();
+            totalWritten = true;
+        }
+        writer().append(this.fhirBundleBuilder.getHeader(bundleId, total));
         state = RenderingState.ENTRIES;
 
     }
@@ -223,6 +309,8 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
     @Override
     public void onError(Throwable throwable) {
         log.error("Error reading the request", throwable);
+        closeIterator();
+        releaseWriter();
         context.complete();
     }
 
@@ -232,6 +320,7 @@ public abstract class AbstractFhirBundleWriteListener<T> extends DefaultWriteLis
         ENTRIES,
         INCLUDES,
         REVINCLUDES,
-        FOOTER
+        FOOTER,
+        WAITING_TOTAL
     }
 }
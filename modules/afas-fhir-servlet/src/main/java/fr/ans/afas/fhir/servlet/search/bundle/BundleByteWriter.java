@@ -0,0 +1,190 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.search.bundle;
+
+import fr.ans.afas.domain.FhirBundleBuilder;
+import fr.ans.afas.fhir.servlet.servletutils.ByteBufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Write the parts of a bundle (header, entries, footer) in UTF-8 in a pooled buffer.
+ * <p>
+ * Entries are encoded directly in the buffer, without intermediate strings. The start of the full url of entries is
+ * encoded once per response. The buffer is written to the response when it's full (see {@link #isFull()}), so a
+ * write contains as many entries as possible. An entry bigger than the free space of the buffer makes it grow.
+ * </p>
+ * <p>
+ * Not thread safe: one writer per response.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class BundleByteWriter {
+
+    private static final byte[] ENTRY_START = "\n{\"fullUrl\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENTRY_RESOURCE = "\",\"resource\":".getBytes(StandardCharsets.UTF_8);
+
+    private final ByteBufferPool pool;
+
+    /**
+     * Start of entries until the server url included: <code>\n{"fullUrl":"serverUrl/</code>
+     */
+    private final byte[] entryPrefix;
+
+    /**
+     * Number of bytes after which the buffer is full
+     */
+    private final int flushThreshold;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Create the writer
+     *
+     * @param pool      the pool of buffers
+     * @param serverUrl the url of the server used in the full url of entries
+     */
+    public BundleByteWriter(ByteBufferPool pool, String serverUrl) {
+        this.pool = pool;
+        var url = (serverUrl + "/").getBytes(StandardCharsets.UTF_8);
+        this.entryPrefix = new byte[ENTRY_START.length + url.length];
+        System.arraycopy(ENTRY_START, 0, entryPrefix, 0, ENTRY_START.length);
+        System.arraycopy(url, 0, entryPrefix, ENTRY_START.length, url.length);
+        // keep a quarter of the buffer for the last entry:
+        this.flushThreshold = pool.getBufferSize() - pool.getBufferSize() / 4;
+    }
+
+    /**
+     * Append a text
+     *
+     * @param text the text
+     */
+    public void append(String text) {
+        encode(text);
+    }
+
+    /**
+     * Append an entry of the bundle
+     *
+     * @param separator true to write a comma before the entry
+     * @param entry     the entry
+     */
+    public void appendEntry(boolean separator, FhirBundleBuilder.BundleEntry entry) {
+        if (separator) {
+            put((byte) ',');
+        }
+        put(entryPrefix);
+        encode(entry.getType());
+        put((byte) '/');
+        encode(entry.getId());
+        put(ENTRY_RESOURCE);
+        encode(entry.getContent());
+        put((byte) '}');
+    }
+
+    /**
+     * @return true if the buffer must be written to the response
+     */
+    public boolean isFull() {
+        return buffer != null && buffer.position() >= flushThreshold;
+    }
+
+    /**
+     * @return the number of bytes not written
+     */
+    public int size() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Write the buffer with one call to the output. Nothing is written if the buffer is empty
+     *
+     * @param output the output
+     * @throws IOException if an error occurs writing the output
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        if (size() > 0) {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Give back the buffer to the pool
+     */
+    public void release() {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private ByteBuffer buffer(int needed) {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        }
+        if (buffer.remaining() < needed) {
+            var bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+        return buffer;
+    }
+
+    private void put(byte b) {
+        buffer(1).put(b);
+    }
+
+    private void put(byte[] bytes) {
+        buffer(bytes.length).put(bytes);
+    }
+
+    /**
+     * Encode a text in UTF-8 in the buffer
+     *
+     * @param value the text ("null" is written for null values, like a concatenation)
+     */
+    private void encode(String value) {
+        var text = String.valueOf(value);
+        var length = text.length();
+        var out = buffer(4);
+        var array = out.array();
+        var p = out.position();
+        for (var i = 0; i < length; i++) {
+            // the longest sequence is 4 bytes:
+            if (p + 4 > array.length) {
+                out.position(p);
+                out = buffer(Math.min(length - i, 1024) * 3 + 4);
+                array = out.array();
+                p = out.position();
+            }
+            var c = text.charAt(i);
+            if (c < 0x80) {
+                array[p++] = (byte) c;
+            } else if (c < 0x800) {
+                array[p++] = (byte) (0xC0 | (c >> 6));
+                array[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                var codePoint = Character.toCodePoint(c, text.charAt(++i));
+                array[p++] = (byte) (0xF0 | (codePoint >> 18));
+                array[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                array[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                array[p++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // malformed text, same replacement as String.getBytes:
+                array[p++] = (byte) '?';
+            } else {
+                array[p++] = (byte) (0xE0 | (c >> 12));
+                array[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out.position(p);
+    }
+}
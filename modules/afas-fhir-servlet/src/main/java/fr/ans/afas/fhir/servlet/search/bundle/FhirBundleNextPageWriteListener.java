@@ -19,7 +19,7 @@ public class FhirBundleNextPageWriteListener<T> extends AbstractFhirBundleWriteL
     public FhirBundleNextPageWriteListener(FhirServerContext<T> fhirServerContext, ServletOutputStream sos, AsyncContext c, PagingData<T> pagingData, AfasConfiguration afasConfiguration) {
         super(fhirServerContext, afasConfiguration, sos, c, pagingData.getSelectExpression(), fhirServerContext.getFhirStoreService().iterate(
                 SearchContext.builder().firstId(pagingData.getLastId()).total(pagingData.getSize().getTotal()).revision(pagingData.getTimestamp())
-                        .elements(pagingData.getElements()).build(),
+                        .elements(pagingData.getElements()).uuid(pagingData.getUuid()).build(),
                 pagingData.getSelectExpression()
         ));
     }
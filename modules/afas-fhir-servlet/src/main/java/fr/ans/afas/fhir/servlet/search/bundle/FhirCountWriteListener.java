@@ -0,0 +1,113 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.search.bundle;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import fr.ans.afas.domain.FhirBundleBuilder;
+import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhir.servlet.servletutils.DefaultWriteListener;
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.fhirserver.service.FhirServerContext;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Write a bundle without entries for requests that only ask the number of matches (_summary=count or _count=0).
+ * <p>
+ * Only the count is run on the storage: no cursor is opened, no resource is read and no next page is stored. The count
+ * uses the total mode of the query: with the default mode (best effort) the count is limited in time and the total is
+ * omitted if the limit is reached. The count is run when the response can be written, so it runs in the storage
+ * executor when there is one.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class FhirCountWriteListener<T> extends DefaultWriteListener {
+
+    private final FhirServerContext<T> fhirServerContext;
+
+    private final ServletOutputStream output;
+
+    private final SelectExpression<T> selectExpression;
+
+    private final AfasConfiguration afasConfiguration;
+
+    /**
+     * The url of the request
+     */
+    private final String currentUrl;
+
+    /**
+     * True when the bundle is written
+     */
+    private boolean written;
+
+    /**
+     * Create the listener
+     *
+     * @param fhirServerContext the context of the server
+     * @param output            the output of the response
+     * @param context           the async context
+     * @param selectExpression  the query
+     * @param afasConfiguration the configuration of the server
+     */
+    public FhirCountWriteListener(FhirServerContext<T> fhirServerContext, ServletOutputStream output, AsyncContext context, SelectExpression<T> selectExpression, AfasConfiguration afasConfiguration) {
+        super(context);
+        this.fhirServerContext = fhirServerContext;
+        this.output = output;
+        this.selectExpression = selectExpression;
+        this.afasConfiguration = afasConfiguration;
+        this.currentUrl = AbstractFhirBundleWriteListener.currentUrl(afasConfiguration, (HttpServletRequest) context.getRequest());
+    }
+
+    @Override
+    public void onWritePossibleInTenant() {
+        try {
+            if (!output.isReady()) {
+                return;
+            }
+            if (!written) {
+                var bundle = bundle();
+                written = true;
+                output.write(bundle);
+            }
+            if (output.isReady()) {
+                context.complete();
+            }
+        } catch (Exception e) {
+            log.error("Error writing the request", e);
+            if (!written) {
+                // nothing is written yet, the error is returned:
+                ErrorWriter.writeError(e, context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            context.complete();
+        }
+    }
+
+    /**
+     * Count the resources and create the bundle
+     *
+     * @return the bundle
+     */
+    private byte[] bundle() {
+        var total = fhirServerContext.getFhirStoreService().count(selectExpression).getTotal();
+        var fhirBundleBuilder = new FhirBundleBuilder();
+        return (fhirBundleBuilder.getHeader(UUID.randomUUID().toString(), total)
+                + fhirBundleBuilder.getFooter(afasConfiguration.getPublicUrl(), currentUrl, null)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        log.error("Error reading the request", throwable);
+        context.complete();
+    }
+}
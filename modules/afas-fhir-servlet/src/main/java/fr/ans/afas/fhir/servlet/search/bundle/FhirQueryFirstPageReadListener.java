@@ -13,7 +13,6 @@ import fr.ans.afas.fhirserver.service.exception.BadRequestException;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletResponse;
-import java.util.stream.Collectors;
 
 
 /**
@@ -37,15 +36,18 @@ public class FhirQueryFirstPageReadListener<T> extends FhirQueryReadListener<T>
 
     public void onAllDataReadInTenant() {
         try {
-            String fPath = this.queue.isEmpty() ? fhirPath : String.format("%s?%s", fhirPath, this.queue.stream().map(param -> param)
-                    .collect(Collectors.joining("&")));
+            // parameters posted with a form:
+            String fPath = this.body.isEmpty() ? fhirPath : String.format("%s?%s", fhirPath, this.body.asString());
             var query = FhirRequestParser.parseSelectExpression(fPath, this.fhirServerContext.getExpressionFactory(), this.fhirServerContext.getSearchConfigService());
 
             // now all data are read, set up a WriteListener to write
             var output = res.getOutputStream();
-            var writeListener = new FhirBundleFirstPageWriteListener<>(this.fhirServerContext, output, ac, query, afasConfiguration);
-
-            output.setWriteListener(writeListener);
+            if (query.isCountOnly()) {
+                // _summary=count or _count=0, no need to read resources:
+                output.setWriteListener(new FhirCountWriteListener<>(this.fhirServerContext, output, ac, query, afasConfiguration));
+            } else {
+                output.setWriteListener(new FhirBundleFirstPageWriteListener<>(this.fhirServerContext, output, ac, query, afasConfiguration));
+            }
 
         }
         catch (Exception e) {
@@ -56,7 +56,7 @@ public class FhirQueryNextPageReadListener<T> extends FhirQueryReadListener<T> {
             var pagingData = PagingData.<T>builder()
                     .pageSize(url.get().getPageSize())
                     .lastId(url.get().getLastId())
-                    .uuid(pageId)
+                    .uuid(url.get().getUuid())
                     .size(url.get().getSize())
                     .timestamp(url.get().getTimestamp())
                     .type(url.get().getType())
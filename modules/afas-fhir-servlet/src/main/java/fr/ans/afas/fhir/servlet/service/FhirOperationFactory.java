@@ -5,7 +5,9 @@ package fr.ans.afas.fhir.servlet.service;
 
 import fr.ans.afas.fhir.servlet.operation.IndexResourceOperation;
 import fr.ans.afas.fhir.servlet.operation.IndexResourceStatusOperation;
+import fr.ans.afas.fhir.servlet.operation.ReloadConfigOperation;
 import fr.ans.afas.fhirserver.service.IndexService;
+import fr.ans.afas.fhirserver.service.SearchConfigReloadService;
 import jakarta.servlet.AsyncContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -23,10 +25,22 @@ public class FhirOperationFactory {
     @Autowired
     IndexService indexService;
 
+    /**
+     * Reload of the search configuration (null if the reload is not enabled)
+     */
+    @Autowired(required = false)
+    SearchConfigReloadService searchConfigReloadService;
+
     public Runnable findOperationByName(String name, AsyncContext context) {
         return switch (name) {
             case "$index" -> new IndexResourceOperation(context, indexService);
             case "$index-status" -> new IndexResourceStatusOperation(context, indexService);
+            case "$reload-config" -> {
+                if (searchConfigReloadService == null) {
+                    throw new UnsupportedOperationException("The reload of the configuration is not enabled");
+                }
+                yield new ReloadConfigOperation(context, searchConfigReloadService);
+            }
             default -> throw new UnsupportedOperationException("Fhir operation not supported");
         };
     }
@@ -3,19 +3,35 @@
  */
 package fr.ans.afas.fhir.servlet.servletutils;
 
+import fr.ans.afas.audit.AuditInformation;
+import fr.ans.afas.audit.AuditUtils;
 import fr.ans.afas.exception.TenantNotFoundException;
 import fr.ans.afas.fhir.servlet.FhirResourceServlet;
+import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhirserver.service.StorageExecutor;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.RequestDeadline;
 import fr.ans.afas.utils.TenantUtil;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.StringUtils;
 
 
+@Slf4j
 public abstract class BaseServletListener {
     protected final AsyncContext context;
 
+    /**
+     * The admission control of the request or null if the request is not limited
+     */
+    private final RequestAdmission admission;
+
     protected BaseServletListener(AsyncContext context) {
         this.context = context;
+        var request = context.getRequest();
+        this.admission = request != null && request.getAttribute(FhirResourceServlet.REQUEST_AFAS_ADMISSION_ATTRIBUTE) instanceof RequestAdmission a ? a : null;
     }
 
     protected String getCurrentTenantInAsyncReq(ServletRequest req) {
@@ -26,7 +42,64 @@ public abstract class BaseServletListener {
         return tenant;
     }
 
+    /**
+     * Set the tenant, the audit information and the deadline of the request in the current thread
+     */
     protected void setTenant() {
         TenantUtil.setCurrentTenant(getCurrentTenantInAsyncReq(this.context.getRequest()));
+        if (this.context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_AUDIT_ATTRIBUTE) instanceof AuditInformation audit) {
+            AuditUtils.store(audit);
+        }
+        RequestDeadline.set(getDeadline());
+    }
+
+    /**
+     * Count the time spent working on the request in the latency seen by the admission control. The time waiting for
+     * the client (body of the request, response not writable) is not counted
+     *
+     * @param start the start of the work (see {@link System#nanoTime()})
+     */
+    protected void workDone(long start) {
+        if (admission != null) {
+            admission.workDone(start);
+        }
+    }
+
+    /**
+     * @return the deadline of the request or null if the request has no deadline
+     */
+    protected RequestDeadline getDeadline() {
+        return this.context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_DEADLINE_ATTRIBUTE) instanceof RequestDeadline deadline ? deadline : null;
+    }
+
+    /**
+     * @return true if the request was cancelled (timeout, client disconnected): the remaining work is useless
+     */
+    protected boolean isCancelled() {
+        var deadline = getDeadline();
+        return deadline != null && deadline.isCancelled();
+    }
+
+    /**
+     * @return the executor of blocking storage work or null to run the work in the current thread
+     */
+    protected StorageExecutor getStorageExecutor() {
+        return this.context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_STORAGE_EXECUTOR_ATTRIBUTE) instanceof StorageExecutor executor ? executor : null;
+    }
+
+    /**
+     * End the request rejected by the storage executor (the executor is full): a 429 with a Retry-After header if
+     * nothing is written yet
+     *
+     * @param e the rejection
+     */
+    protected void rejectOverloaded(TooManyRequestsException e) {
+        log.debug("Request rejected: {}", e.getMessage());
+        var response = (HttpServletResponse) context.getResponse();
+        if (!response.isCommitted()) {
+            response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+            ErrorWriter.writeError(e, context, RequestAdmission.SC_TOO_MANY_REQUESTS);
+        }
+        context.complete();
     }
 }
@@ -0,0 +1,110 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of byte buffers used to write responses.
+ * <p>
+ * Buffers are heap buffers: the servlet api (6.0) only writes byte arrays, so a direct buffer would be copied in an
+ * array before each write. A buffer is taken when a response starts and released when the response is complete.
+ * Buffers that grew (an entry bigger than the buffer) are not kept in the pool.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class ByteBufferPool {
+
+    /**
+     * Pools shared by all responses, by buffer size
+     */
+    private static final Map<Integer, ByteBufferPool> SHARED = new ConcurrentHashMap<>();
+
+    /**
+     * Size of buffers in bytes
+     */
+    private final int bufferSize;
+
+    /**
+     * Free buffers
+     */
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    private final LongAdder allocations = new LongAdder();
+
+    /**
+     * Create a pool
+     *
+     * @param bufferSize the size of buffers in bytes
+     * @param maxPooled  the max number of free buffers kept in the pool
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    /**
+     * Get the pool shared by all responses for a buffer size
+     *
+     * @param bufferSize the size of buffers in bytes
+     * @param maxPooled  the max number of free buffers kept in the pool (used when the pool is created)
+     * @return the pool
+     */
+    public static ByteBufferPool shared(int bufferSize, int maxPooled) {
+        return SHARED.computeIfAbsent(bufferSize, size -> new ByteBufferPool(size, maxPooled));
+    }
+
+    /**
+     * Take a buffer from the pool or allocate a new one
+     *
+     * @return an empty buffer
+     */
+    public ByteBuffer acquire() {
+        var buffer = buffers.poll();
+        if (buffer == null) {
+            allocations.increment();
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer to the pool
+     *
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * @return the size of buffers in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of free buffers
+     */
+    public int size() {
+        return buffers.size();
+    }
+
+    /**
+     * @return the number of buffers allocated because the pool was empty
+     */
+    public long getAllocations() {
+        return allocations.sum();
+    }
+}
@@ -4,29 +4,69 @@
 package fr.ans.afas.fhir.servlet.servletutils;
 
 
+import fr.ans.afas.fhir.servlet.FhirResourceServlet;
+import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhir.servlet.exception.PayloadTooLargeException;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.RequestDeadline;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ReadListener;
 import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Base class for the ReadListener.
- * This listener parse all request and put it into oa buffer
+ * This listener reads all the request in a buffer (see {@link RequestBody}). A 413 error is returned if the body is
+ * larger than the max size. If a storage executor is set on the request, the request is handled in the executor.
  *
  * @author Guillaume Poulériguen
  * @since 1.25
  */
+@Slf4j
 public abstract class DefaultReadListener extends BaseServletListener implements ReadListener {
 
+    /**
+     * Size of the pooled buffers of bodies
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Max number of free buffers of bodies
+     */
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * Max size of bodies if not set on the request (10MB)
+     */
+    private static final long DEFAULT_MAX_BODY_SIZE = 10L * 1024 * 1024;
+
     /**
      * Input stream of the request
      */
     private final ServletInputStream inputStream;
 
-    protected Queue<String> queue = new LinkedBlockingQueue<>();
+    /**
+     * The body of the request
+     */
+    protected final RequestBody body;
+
+    /**
+     * True while data are read
+     */
+    private boolean reading;
+
+    /**
+     * True when all data are read (or the request is rejected)
+     */
+    private boolean done;
+
+    /**
+     * True if the end of the request was notified while data were read
+     */
+    private boolean allDataReadPending;
 
     /**
      * Construct a read listener
@@ -37,26 +77,91 @@ public abstract class DefaultReadListener extends BaseServletListener implements
     protected DefaultReadListener(AsyncContext context, ServletInputStream inputStream) {
         super(context);
         this.inputStream = inputStream;
+        var maxBodySize = context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_MAX_BODY_SIZE_ATTRIBUTE);
+        this.body = new RequestBody(ByteBufferPool.shared(BUFFER_SIZE, POOL_SIZE), maxBodySize instanceof Number n ? n.longValue() : DEFAULT_MAX_BODY_SIZE);
     }
 
     @Override
     public final void onDataAvailable() throws IOException {
+        if (done) {
+            return;
+        }
         setTenant();
-        var sb = new StringBuilder();
-        int len;
-        var b = new byte[1024];
-        while (inputStream.isReady() && (len = inputStream.read(b)) != -1) {
-            var data = new String(b, 0, len);
-            sb.append(data);
+        reading = true;
+        try {
+            body.checkContentLength(context.getRequest().getContentLengthLong());
+            body.readFrom(inputStream);
+        } catch (PayloadTooLargeException e) {
+            reject(e);
+            return;
+        } finally {
+            reading = false;
+            RequestDeadline.clear();
+        }
+        if (allDataReadPending) {
+            onAllDataRead();
         }
-        queue.add(sb.toString());
     }
 
 
     @Override
     public final void onAllDataRead() throws IOException {
-        setTenant();
-        onAllDataReadInTenant();
+        if (reading) {
+            allDataReadPending = true;
+            return;
+        }
+        if (done) {
+            return;
+        }
+        done = true;
+        var executor = getStorageExecutor();
+        if (executor == null) {
+            var start = System.nanoTime();
+            setTenant();
+            try {
+                handleBody();
+            } finally {
+                workDone(start);
+                // the thread of the container is used by other requests:
+                RequestDeadline.clear();
+            }
+        } else {
+            // the request is handled without the thread of the container:
+            try {
+                executor.execute(() -> {
+                    var start = System.nanoTime();
+                    setTenant();
+                    try {
+                        handleBody();
+                    } catch (IOException e) {
+                        log.error("Error handling the request", e);
+                        ErrorWriter.writeError(e, context, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        context.complete();
+                    } finally {
+                        workDone(start);
+                    }
+                });
+            } catch (TooManyRequestsException e) {
+                body.release();
+                rejectOverloaded(e);
+            }
+        }
+    }
+
+    private void handleBody() throws IOException {
+        try {
+            onAllDataReadInTenant();
+        } finally {
+            body.release();
+        }
+    }
+
+    private void reject(PayloadTooLargeException e) {
+        log.debug("Request rejected: {}", e.getMessage());
+        done = true;
+        body.release();
+        ErrorWriter.writeError(e, context, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        context.complete();
     }
 
     protected abstract void onAllDataReadInTenant() throws IOException;
@@ -4,14 +4,36 @@
 package fr.ans.afas.fhir.servlet.servletutils;
 
 
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.RequestDeadline;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.WriteListener;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
+/**
+ * Base class for the WriteListener.
+ * <p>
+ * If a storage executor is set on the request, the writing is run in the executor: the thread of the container is
+ * released while the listener reads the database. The writing resumes when the container notifies that the
+ * response can be written again. Only one thread writes at a time. If the executor is full, the request is rejected
+ * with a 429.
+ * </p>
+ */
 public abstract class DefaultWriteListener extends BaseServletListener implements WriteListener {
 
+    /**
+     * True while a thread of the executor writes
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * True if the container notified that the response can be written
+     */
+    private volatile boolean pending;
+
     protected DefaultWriteListener(AsyncContext context) {
         super(context);
     }
@@ -19,8 +41,45 @@ public abstract class DefaultWriteListener extends BaseServletListener implement
 
     @Override
     public final void onWritePossible() throws IOException {
-        setTenant();
-        onWritePossibleInTenant();
+        var executor = getStorageExecutor();
+        if (executor == null) {
+            var start = System.nanoTime();
+            setTenant();
+            try {
+                onWritePossibleInTenant();
+            } finally {
+                workDone(start);
+                // the thread of the container is used by other requests:
+                RequestDeadline.clear();
+            }
+            return;
+        }
+        pending = true;
+        if (running.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::writeInExecutor);
+            } catch (TooManyRequestsException e) {
+                running.set(false);
+                rejectOverloaded(e);
+            }
+        }
+    }
+
+    private void writeInExecutor() {
+        do {
+            pending = false;
+            var start = System.nanoTime();
+            try {
+                setTenant();
+                onWritePossibleInTenant();
+            } catch (Exception e) {
+                onError(e);
+            } finally {
+                workDone(start);
+                running.set(false);
+            }
+            // the container notified again while we were writing:
+        } while (pending && running.compareAndSet(false, true));
     }
 
     public abstract void onWritePossibleInTenant() throws IOException;
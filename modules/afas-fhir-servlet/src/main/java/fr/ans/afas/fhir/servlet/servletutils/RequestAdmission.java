@@ -0,0 +1,175 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.audit.AuditInformation;
+import fr.ans.afas.audit.AuditUtils;
+import fr.ans.afas.fhir.servlet.FhirResourceServlet;
+import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhirserver.service.admission.AdaptiveLimiter;
+import fr.ans.afas.fhirserver.service.admission.AdmissionController;
+import fr.ans.afas.fhirserver.service.admission.OperationClass;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.TenantUtil;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission of a request of the servlet by the {@link AdmissionController}.
+ * <p>
+ * The request is handled now if a slot is free, otherwise it waits without thread: it's started in the container
+ * (see {@link AsyncContext#start(Runnable)}) when a slot is released. Rejected requests get a 429 with a Retry-After
+ * header. The slot is released when the request ends (a timeout or an error decreases the limit).
+ * </p>
+ * <p>
+ * The latency given to the limiter is the time spent working on the request (the handler and the listeners, see
+ * {@link BaseServletListener}), not the time since the admission: the time waiting for the body of the request or for
+ * the client to read the response doesn't decrease the limit of the tenant.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class RequestAdmission implements AsyncListener {
+
+    /**
+     * Too Many Requests (RFC 6585)
+     */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final AsyncContext context;
+    private final Thread submitter = Thread.currentThread();
+    /**
+     * Time (ns) spent working on the request
+     */
+    private final LongAdder workTime = new LongAdder();
+    private volatile boolean submitting;
+    private AdaptiveLimiter.Ticket ticket;
+    private boolean ended;
+    private boolean failed;
+
+    private RequestAdmission(AsyncContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Submit a request to the admission control
+     *
+     * @param admissionController the admission control
+     * @param operationClass      the class of the operation
+     * @param context             the async context of the request
+     * @param handler             handle the request when it's admitted
+     */
+    public static void submit(AdmissionController admissionController, OperationClass operationClass, AsyncContext context, Runnable handler) {
+        var admission = new RequestAdmission(context);
+        context.addListener(admission);
+        context.getRequest().setAttribute(FhirResourceServlet.REQUEST_AFAS_ADMISSION_ATTRIBUTE, admission);
+        var tenant = (String) context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_TENANT_ATTRIBUTE);
+        admission.submitting = true;
+        AdaptiveLimiter.Ticket ticket;
+        try {
+            ticket = admissionController.submit(tenant, operationClass, () -> admission.start(handler), admission::reject);
+        } finally {
+            admission.submitting = false;
+        }
+        admission.setTicket(ticket);
+    }
+
+    /**
+     * Count time spent working on the request
+     *
+     * @param start the start of the work (see {@link System#nanoTime()})
+     */
+    void workDone(long start) {
+        workTime.add(System.nanoTime() - start);
+    }
+
+    private void start(Runnable handler) {
+        if (submitting && Thread.currentThread() == submitter) {
+            run(handler);
+        } else {
+            // a slot was released by another request:
+            context.start(() -> {
+                TenantUtil.setCurrentTenant((String) context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_TENANT_ATTRIBUTE));
+                if (context.getRequest().getAttribute(FhirResourceServlet.REQUEST_AFAS_AUDIT_ATTRIBUTE) instanceof AuditInformation audit) {
+                    AuditUtils.store(audit);
+                }
+                try {
+                    run(handler);
+                } finally {
+                    TenantUtil.clear();
+                    AuditUtils.clean();
+                }
+            });
+        }
+    }
+
+    private void run(Runnable handler) {
+        var start = System.nanoTime();
+        try {
+            handler.run();
+        } finally {
+            workDone(start);
+        }
+    }
+
+    private void reject(TooManyRequestsException e) {
+        log.debug("Request rejected: {}", e.getMessage());
+        ((HttpServletResponse) context.getResponse()).setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        ErrorWriter.writeError(e, context, SC_TOO_MANY_REQUESTS);
+        context.complete();
+    }
+
+    private void setTicket(AdaptiveLimiter.Ticket ticket) {
+        boolean release;
+        synchronized (this) {
+            this.ticket = ticket;
+            release = ended;
+        }
+        // the lock is not held while releasing, the release can end other requests:
+        if (release) {
+            ticket.release(failed, workTime.sum());
+        }
+    }
+
+    private void end(boolean failed) {
+        AdaptiveLimiter.Ticket toRelease;
+        synchronized (this) {
+            if (ticket == null) {
+                this.ended = true;
+                this.failed = failed;
+                return;
+            }
+            toRelease = ticket;
+        }
+        toRelease.release(failed, workTime.sum());
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        end(false);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        // a request that still waits for a slot is rejected:
+        end(true);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        end(true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // nothing to do
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.fhir.servlet.exception.PayloadTooLargeException;
+import jakarta.servlet.ServletInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a request, read in a pooled buffer.
+ * <p>
+ * Bytes are read as they are (no decoding while reading, so multi-byte characters split between two reads are kept).
+ * The buffer grows until the max size of the body. Parsers read the body with {@link #getInputStream()} or
+ * {@link #getReader()} without copy.
+ * </p>
+ * <p>
+ * Not thread safe: one body per request.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class RequestBody {
+
+    private final ByteBufferPool pool;
+
+    /**
+     * Max size of the body in bytes
+     */
+    private final long maxSize;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Create a body
+     *
+     * @param pool    the pool of buffers
+     * @param maxSize the max size of the body in bytes
+     */
+    public RequestBody(ByteBufferPool pool, long maxSize) {
+        this.pool = pool;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check the length of the body announced by the client
+     *
+     * @param contentLength the Content-Length of the request (-1 if unknown)
+     * @throws PayloadTooLargeException if the body is too large
+     */
+    public void checkContentLength(long contentLength) {
+        if (contentLength > maxSize) {
+            throw tooLarge();
+        }
+    }
+
+    /**
+     * Read all data available
+     *
+     * @param inputStream the input stream of the request
+     * @throws IOException              if an error occurs reading the request
+     * @throws PayloadTooLargeException if the body is too large
+     */
+    public void readFrom(ServletInputStream inputStream) throws IOException {
+        while (inputStream.isReady()) {
+            var b = free();
+            var len = inputStream.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            if (len == -1) {
+                return;
+            }
+            b.position(b.position() + len);
+            if (b.position() > maxSize) {
+                throw tooLarge();
+            }
+        }
+    }
+
+    /**
+     * @return the size of the body in bytes
+     */
+    public int size() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * @return true if the body is empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the body as a stream. The stream is valid until the body is released
+     */
+    public InputStream getInputStream() {
+        if (buffer == null) {
+            return InputStream.nullInputStream();
+        }
+        return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    /**
+     * @return the body as UTF-8 characters. The reader is valid until the body is released
+     */
+    public Reader getReader() {
+        return new InputStreamReader(getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the body decoded in UTF-8
+     */
+    public String asString() {
+        if (buffer == null) {
+            return "";
+        }
+        return new String(buffer.array(), buffer.arrayOffset(), buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Give back the buffer to the pool
+     */
+    public void release() {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    /**
+     * Get a buffer with free space. The buffer grows if it's full
+     *
+     * @return the buffer
+     */
+    private ByteBuffer free() {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        } else if (!buffer.hasRemaining()) {
+            // one more byte than the max to detect too large bodies:
+            var capacity = (int) Math.min(buffer.capacity() * 2L, Math.max(maxSize + 1, buffer.capacity() + 1L));
+            var bigger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+        return buffer;
+    }
+
+    private PayloadTooLargeException tooLarge() {
+        return new PayloadTooLargeException("The body of the request is larger than " + maxSize + " bytes");
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.utils.RequestDeadline;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+
+/**
+ * Cancel the deadline of a request when the request times out or when the client is disconnected, so the remaining
+ * database work of the request is not done
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class RequestDeadlineListener implements AsyncListener {
+
+    private final RequestDeadline deadline;
+
+    public RequestDeadlineListener(RequestDeadline deadline) {
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        // the work is done:
+        deadline.cancel();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        deadline.cancel();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        deadline.cancel();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // nothing to do
+    }
+}
@@ -24,7 +24,6 @@ import java.nio.charset.Charset;
 import java.time.ZonedDateTime;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.stream.Collectors;
 
 @Slf4j
 public class TransactionReadListener<T> extends DefaultReadListener {
@@ -60,12 +59,7 @@ public class TransactionReadListener<T> extends DefaultReadListener {
     @Override
     public void onAllDataReadInTenant() throws IOException {
         try {
-            if (queue.isEmpty()) {
-                throw new DataFormatFhirException(messageSource.getMessage("error.body.empty", null, Locale.getDefault()));
-            }
-
-            var requestContent = queue.stream().collect(Collectors.joining());
-            if (requestContent.isEmpty()) {
+            if (body.isEmpty()) {
                 throw new DataFormatFhirException(messageSource.getMessage("error.body.empty", null, Locale.getDefault()));
             }
 
@@ -73,8 +67,8 @@ public class TransactionReadListener<T> extends DefaultReadListener {
             var lastModified = HttpUtils.lastModifiedFromDate(now);
 
             var output = response.getOutputStream();
-            var parser = fhirServerContext.getFhirContext().newJsonParser();
-            var fhirBundle = (Bundle) parser.parseResource(requestContent);
+            var parserPool = fhirServerContext.getParserPool();
+            var fhirBundle = (Bundle) parserPool.parseResource(body.getReader());
 
             TransactionalResourceProvider<T> transactionalResourceProvider = new TransactionalResourceProvider<>(fhirServerContext.getFhirStoreService());
             Bundle bundle = transactionalResourceProvider.transaction(fhirBundle);
@@ -84,7 +78,7 @@ public class TransactionReadListener<T> extends DefaultReadListener {
             response.addHeader("Last-Modified", lastModified);
             response.setStatus(HttpServletResponse.SC_OK);
             log.info("{} resources traited", bundle.getEntry().size());
-            output.write(parser.encodeResourceToString(bundle).getBytes(Charset.defaultCharset()));
+            output.write(parserPool.encodeResourceToString(bundle).getBytes(Charset.defaultCharset()));
             asyncContext.complete();
         } catch (Exception e) {
             if (e instanceof DataFormatException || e instanceof ConfigurationException || e instanceof UnprocessableEntityException) { // Supón que UnprocessableEntityException es lanzada para errores de reglas de negocio
@@ -8,6 +8,7 @@ import fr.ans.afas.configuration.AfasConfiguration;
 import fr.ans.afas.fhir.servlet.service.FhirOperationFactory;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
 import fr.ans.afas.fhirserver.service.FhirServerContext;
 import fr.ans.afas.fhirserver.service.FhirStoreService;
 import fr.ans.afas.fhirserver.service.NextUrlManager;
@@ -41,8 +42,11 @@ public abstract class BaseTest {
         Mockito.when(fhirServerContext.getFhirStoreService()).thenReturn(Mockito.mock(FhirStoreService.class));
         Mockito.when(fhirServerContext.getNextUrlManager()).thenReturn(Mockito.mock(NextUrlManager.class));
         Mockito.when(fhirServerContext.getFhirContext()).thenReturn(FhirContext.forR4());
+        Mockito.when(fhirServerContext.getParserPool()).thenReturn(FhirParserPool.forR4());
         Mockito.when(fhirServerContext.getExpressionFactory()).thenReturn(Mockito.mock(ExpressionFactory.class));
-        Mockito.when(fhirServerContext.getSearchConfigService()).thenReturn(Mockito.mock(SearchConfigService.class));
+        var searchConfigService = Mockito.mock(SearchConfigService.class);
+        Mockito.when(searchConfigService.forCurrentTenant()).thenReturn(searchConfigService);
+        Mockito.when(fhirServerContext.getSearchConfigService()).thenReturn(searchConfigService);
         Mockito.when(fhirServerContext.getSecurityService()).thenReturn(Mockito.mock(SecurityService.class));
 
     }
@@ -6,6 +6,8 @@ package fr.ans.afas.fhir.servlet;
 import ca.uhn.fhir.context.FhirContext;
 import fr.ans.afas.configuration.AfasConfiguration;
 import fr.ans.afas.fhir.servlet.error.ErrorWriter;
+import fr.ans.afas.fhir.servlet.compression.GzipCodec;
+import fr.ans.afas.fhir.servlet.metadata.CapabilityStatementCache;
 import fr.ans.afas.fhir.servlet.metadata.CapabilityStatementWriteListener;
 import fr.ans.afas.fhir.servlet.servletutils.HttpUtils;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
@@ -17,6 +19,7 @@ import fr.ans.afas.servlet.ServletTestUtil;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.Enumerations;
@@ -26,12 +29,15 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
@@ -64,7 +70,7 @@ public class CapabilityStatementTest extends BaseTest {
         mockResponse =  Mockito.mock(HttpServletResponse.class);
 
 
-        listener = new CapabilityStatementWriteListener<>(mockFhirServerContext, mockServletOutputStream, mockAsyncContext);
+        listener = new CapabilityStatementWriteListener<>(mockFhirServerContext, new CapabilityStatementCache(), mockResponse, mockServletOutputStream, mockAsyncContext);
         mockResponse = Mockito.mock(HttpServletResponse.class);
 
 
@@ -207,6 +213,69 @@ public class CapabilityStatementTest extends BaseTest {
         Assert.assertEquals("token", p1.getType().toCode());
     }
 
+    @Test
+    public void testEtag() throws Exception {
+        var cache = new CapabilityStatementCache();
+        var tenantSearchConfig = new TenantSearchConfig();
+        tenantSearchConfig.setCopyright("@Ans");
+        tenantSearchConfig.setResources(List.of());
+        when(mockFhirServerContext.getSearchConfigService()).thenReturn(Mockito.mock(SearchConfigService.class));
+        when(mockFhirServerContext.getSearchConfigService().getServerSearchConfig()).thenReturn(tenantSearchConfig);
+        when(mockFhirServerContext.getFhirContext()).thenReturn(FhirContext.forR4());
+
+        // rendered once:
+        var statement = cache.get(mockFhirServerContext);
+        Assert.assertSame(statement, cache.get(mockFhirServerContext));
+        Assert.assertTrue(statement.getEtag().startsWith("\""));
+        Assert.assertTrue(statement.matches("W/\"other\", " + statement.getEtag()));
+        Assert.assertTrue(statement.matches("*"));
+        Assert.assertFalse(statement.matches("\"other\""));
+        Assert.assertFalse(statement.matches(null));
+
+        // precompressed once:
+        var gzip = new GzipCodec();
+        var encoded = statement.getEncoded(gzip, 6);
+        Assert.assertSame(encoded, statement.getEncoded(gzip, 6));
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            Assert.assertArrayEquals(statement.getJson(), in.readAllBytes());
+        }
+        // the compressed variant has its own tag:
+        Assert.assertEquals(statement.getEtag().replaceAll("\"$", "-gzip\""), statement.getEtag(gzip));
+        Assert.assertTrue(statement.matches(statement.getEtag(gzip), gzip));
+        Assert.assertFalse(statement.matches(statement.getEtag(), gzip));
+        Assert.assertFalse(statement.matches(statement.getEtag(gzip)));
+
+        // rendered again when the configuration changes:
+        var reloaded = new TenantSearchConfig();
+        reloaded.setCopyright("@Ans 2");
+        reloaded.setResources(List.of());
+        when(mockFhirServerContext.getSearchConfigService().getServerSearchConfig()).thenReturn(reloaded);
+        var newStatement = cache.get(mockFhirServerContext);
+        Assert.assertNotEquals(statement.getEtag(), newStatement.getEtag());
+        Assert.assertTrue(new String(newStatement.getJson(), StandardCharsets.UTF_8).contains("@Ans 2"));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        var cache = new CapabilityStatementCache();
+        var tenantSearchConfig = new TenantSearchConfig();
+        tenantSearchConfig.setResources(List.of());
+        when(mockFhirServerContext.getSearchConfigService()).thenReturn(Mockito.mock(SearchConfigService.class));
+        when(mockFhirServerContext.getSearchConfigService().getServerSearchConfig()).thenReturn(tenantSearchConfig);
+        when(mockFhirServerContext.getFhirContext()).thenReturn(FhirContext.forR4());
+        var etag = cache.get(mockFhirServerContext).getEtag();
+
+        var request = Mockito.mock(HttpServletRequest.class);
+        when(request.getHeader("If-None-Match")).thenReturn(etag);
+        when(mockAsyncContext.getRequest()).thenReturn(request);
+        new CapabilityStatementWriteListener<>(mockFhirServerContext, cache, mockResponse, mockServletOutputStream, mockAsyncContext).onWritePossibleInTenant();
+
+        Mockito.verify(mockResponse).setHeader("ETag", etag);
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Mockito.verify(mockServletOutputStream, Mockito.never()).write(any());
+        Mockito.verify(mockAsyncContext).complete();
+    }
+
     @Test
     public void testWriteError() throws Exception {
         // Llamar al método con un mensaje de error y un código de estado
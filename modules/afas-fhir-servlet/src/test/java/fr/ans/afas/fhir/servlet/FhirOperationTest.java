@@ -8,6 +8,7 @@ import fr.ans.afas.fhir.servlet.operation.IndexResourceOperation;
 import fr.ans.afas.fhir.servlet.operation.IndexResourceStatusOperation;
 import fr.ans.afas.fhir.servlet.servletutils.HttpUtils;
 import fr.ans.afas.fhirserver.service.IndexService;
+import fr.ans.afas.fhirserver.service.data.IndexStatus;
 import fr.ans.afas.servlet.ServletTestUtil;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.junit.Assert;
@@ -19,6 +20,7 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * Test operations
@@ -71,4 +73,26 @@ public class FhirOperationTest extends BaseTest {
         }
 
     }
+
+    @Test
+    public void launchIndexStatusOperationWithProgress() throws IOException, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
+        var indexService = Mockito.mock(IndexService.class);
+        Mockito.when(indexService.isRunning()).thenReturn(true);
+        Mockito.when(indexService.getStatus()).thenReturn(Optional.of(IndexStatus.builder()
+                .running(true)
+                .startDate(System.currentTimeMillis() - 10000)
+                .processed(1000)
+                .total(3000)
+                .build()));
+
+        Mockito.when(fhirOperationFactory.findOperationByName(Mockito.any(), Mockito.any())).then((a) -> new IndexResourceStatusOperation(a.getArgument(1), indexService));
+        var servlet = new FhirResourceServlet<>(fhirServerContext, afasConfiguration, fhirOperationFactory, messageSource);
+        StringWriter out = ServletTestUtil.callAsyncServlet(servlet, "GET", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/$index-status", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/", "");
+
+        var parser = FhirContext.forR4().newJsonParser();
+        var outcome = (OperationOutcome) parser.parseResource(out.toString());
+        Assert.assertEquals("Running", outcome.getIssue().get(0).getDiagnostics());
+        Assert.assertEquals(2, outcome.getIssue().size());
+        Assert.assertTrue(outcome.getIssue().get(1).getDiagnostics().startsWith("Processed: 1000/3000, rate: "));
+    }
 }
@@ -9,11 +9,14 @@ import fr.ans.afas.fhir.servlet.servletutils.HttpUtils;
 import fr.ans.afas.fhir.servlet.utils.MockedFhirPageIterator;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.data.TotalMode;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.search.expression.StringExpression;
 import fr.ans.afas.fhirserver.search.expression.emptyimpl.EmptyAndExpression;
 import fr.ans.afas.fhirserver.search.expression.emptyimpl.EmptyOrExpression;
 import fr.ans.afas.fhirserver.search.expression.emptyimpl.EmptyStringExpression;
+import fr.ans.afas.fhirserver.service.admission.AdmissionController;
+import fr.ans.afas.fhirserver.service.data.CountResult;
 import fr.ans.afas.fhirserver.service.data.PagingData;
 import fr.ans.afas.fhirserver.service.exception.BadLinkException;
 import fr.ans.afas.fhirserver.service.exception.BadRequestException;
@@ -31,6 +34,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 import static fr.ans.afas.servlet.ServletTestUtil.SERVER_URL;
@@ -131,6 +135,58 @@ public class FhirSearchTest extends BaseTest {
     }
 
 
+    /**
+     * Test _summary=count and _count=0: only the count is run, the bundle has no entry
+     */
+    @Test
+    public void countOnlyTest() throws Exception {
+        Mockito.when(fhirServerContext.getFhirStoreService().count(any())).thenReturn(CountResult.builder().total(3L).build());
+
+        var servlet = new FhirResourceServlet<>(fhirServerContext, afasConfiguration, fhirOperationFactory, messageSource);
+        var parser = FhirContext.forR4().newJsonParser();
+        for (var query : List.of("_summary=count", "_count=0")) {
+            var out = ServletTestUtil.callAsyncServlet(servlet, "GET", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/Patient?" + query, "/fhir/" + HttpUtils.SERVLET_API_PATH + "/", null);
+            var patients = (Bundle) parser.parseResource(out.toString());
+
+            Assert.assertEquals(3, patients.getTotal());
+            Assert.assertEquals(0, patients.getEntry().size());
+            Assert.assertNull(patients.getLink("next"));
+        }
+        Mockito.verify(fhirServerContext.getFhirStoreService(), Mockito.never()).iterate(any(), any());
+        // the count is limited in time as asked by the query:
+        Mockito.verify(fhirServerContext.getFhirStoreService(), Mockito.times(2)).count(Mockito.argThat(se -> se.getTotalMode() == TotalMode.BEST_EFFORT));
+    }
+
+    /**
+     * Test the admission control: requests of a tenant over the limit are rejected with a 429
+     */
+    @Test
+    public void tooManyRequestsTest() throws Exception {
+        Mockito.when(fhirServerContext.getFhirStoreService().iterate(any(), any())).then(a -> {
+                    var se = (SelectExpression<String>) a.getArgument(1);
+                    return new MockedFhirPageIterator("Patient", patientList, a.getArgument(0), se.getCount());
+                }
+        );
+        var limit = new AfasConfiguration.AdmissionLimit();
+        limit.setInitial(1);
+        limit.setQueueSize(0);
+        var admission = new AfasConfiguration.Admission();
+        admission.setLimits(Map.of("search", limit));
+        when(fhirServerContext.getAdmissionController()).thenReturn(new AdmissionController(admission));
+
+        var servlet = new FhirResourceServlet<>(fhirServerContext, afasConfiguration, fhirOperationFactory, messageSource);
+        var parser = FhirContext.forR4().newJsonParser();
+        // the slot is not released by the mocked async context:
+        var out = ServletTestUtil.callAsyncServlet(servlet, "GET", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/Patient", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/", null);
+        Assert.assertEquals(3, ((Bundle) parser.parseResource(out.toString())).getEntry().size());
+
+        var rejected = ServletTestUtil.callAsyncServletWithResponse(servlet, "GET", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/Patient", "/fhir/" + HttpUtils.SERVLET_API_PATH + "/", null);
+        Assert.assertEquals(429, rejected.getServletResponse().getStatus());
+        Mockito.verify(rejected.getServletResponse()).setHeader(Mockito.eq("Retry-After"), any());
+        var operationOutcome = (OperationOutcome) parser.parseResource(rejected.getWriter().toString());
+        Assert.assertEquals(OperationOutcome.IssueSeverity.ERROR, operationOutcome.getIssue().get(0).getSeverity());
+    }
+
     /**
      * Test when we cant found the next page id
      */
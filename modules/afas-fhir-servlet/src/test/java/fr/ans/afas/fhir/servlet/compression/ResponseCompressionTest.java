@@ -0,0 +1,171 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.compression;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the compression of responses
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class ResponseCompressionTest {
+
+    private final ResponseCompression compression = ResponseCompression.of(new AfasConfiguration.Compression());
+
+    @Test
+    void testNegotiation() {
+        assertEquals(GzipCodec.ENCODING, compression.negotiate("gzip, deflate, br").orElseThrow().getEncoding());
+        assertEquals(DeflateCodec.ENCODING, compression.negotiate("gzip;q=0.5, deflate").orElseThrow().getEncoding());
+        assertEquals(GzipCodec.ENCODING, compression.negotiate("*").orElseThrow().getEncoding());
+        assertEquals(DeflateCodec.ENCODING, compression.negotiate("gzip;q=0, *;q=0.1").orElseThrow().getEncoding());
+        assertTrue(compression.negotiate("identity").isEmpty());
+        assertTrue(compression.negotiate("gzip;q=0").isEmpty());
+        assertTrue(compression.negotiate(null).isEmpty());
+        assertTrue(ResponseCompression.DISABLED.negotiate("gzip").isEmpty());
+    }
+
+    @Test
+    void testWrap() {
+        var request = Mockito.mock(HttpServletRequest.class);
+        var response = Mockito.mock(HttpServletResponse.class);
+
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        assertTrue(compression.wrap(request, response) instanceof CompressingHttpServletResponse);
+        verify(response).addHeader("Vary", "Accept-Encoding");
+
+        when(request.getHeader("Accept-Encoding")).thenReturn(null);
+        assertSame(response, compression.wrap(request, response));
+        assertSame(response, ResponseCompression.DISABLED.wrap(request, response));
+    }
+
+    @Test
+    void testSmallResponsesAreNotCompressed() throws IOException {
+        var output = new TestOutputStream();
+        var response = response(output);
+        var compressed = new CompressingHttpServletResponse(response, new GzipCodec(), 6, 1024);
+        var completed = new AtomicBoolean();
+
+        compressed.getOutputStream().write("{\"resourceType\":\"Bundle\"}".getBytes(StandardCharsets.UTF_8));
+        compressed.finish(() -> completed.set(true));
+
+        assertTrue(completed.get());
+        assertEquals("{\"resourceType\":\"Bundle\"}", output.bytes.toString(StandardCharsets.UTF_8));
+        verify(response, never()).setHeader(eq("Content-Encoding"), any());
+    }
+
+    @Test
+    void testNonBlockingGzip() throws IOException {
+        var output = new TestOutputStream();
+        var response = response(output);
+        var compressed = new CompressingHttpServletResponse(response, new GzipCodec(), 6, 1024);
+        var expected = new StringBuilder();
+        var completed = new AtomicBoolean();
+        var stream = compressed.getOutputStream();
+        stream.setWriteListener(new WriteListener() {
+            int index = 0;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                while (stream.isReady()) {
+                    if (index == 100) {
+                        compressed.finish(() -> completed.set(true));
+                        return;
+                    }
+                    var entry = "{\"fullUrl\":\"http://localhost/fhir/v2/Organization/" + index++ + "\"},";
+                    expected.append(entry);
+                    stream.write(entry.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+        });
+
+        // the container calls the listener until all is written:
+        while (!completed.get()) {
+            output.ready = true;
+            output.listener.onWritePossible();
+        }
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        assertTrue(output.bytes.size() < expected.length() / 4);
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(output.bytes.toByteArray()))) {
+            assertEquals(expected.toString(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void testDeflate() throws IOException {
+        var output = new TestOutputStream();
+        var compressed = new CompressingHttpServletResponse(response(output), new DeflateCodec(), 9, 0);
+        var content = "Organization ".repeat(1000);
+
+        compressed.getOutputStream().write(content.getBytes(StandardCharsets.UTF_8));
+        compressed.getOutputStream().close();
+
+        try (var in = new InflaterInputStream(new ByteArrayInputStream(output.bytes.toByteArray()))) {
+            assertEquals(content, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private HttpServletResponse response(ServletOutputStream output) throws IOException {
+        var response = Mockito.mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(output);
+        return response;
+    }
+
+    /**
+     * A non blocking output: it's not ready after each write
+     */
+    static class TestOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean ready = true;
+        WriteListener listener;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.listener = writeListener;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (listener != null) {
+                assertTrue(ready, "Write when the output is not ready");
+                ready = false;
+            }
+            bytes.write(b, off, len);
+        }
+    }
+}
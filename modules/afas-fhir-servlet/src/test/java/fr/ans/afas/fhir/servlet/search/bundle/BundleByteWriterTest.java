@@ -0,0 +1,97 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.search.bundle;
+
+import fr.ans.afas.domain.FhirBundleBuilder;
+import fr.ans.afas.fhir.servlet.servletutils.ByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the writer of bundles in pooled buffers
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class BundleByteWriterTest {
+
+    private static final String SERVER_URL = "http://localhost:8080/fhir/v2";
+
+    @Test
+    void testEntriesAreEncodedInUtf8() throws IOException {
+        var writer = new BundleByteWriter(new ByteBufferPool(1024, 1), SERVER_URL);
+        var entry1 = new FhirBundleBuilder.BundleEntry("Organization", "1", "{\"name\":\"Hôpital Saint-Éloi ∑ 🏥\"}");
+        var entry2 = new FhirBundleBuilder.BundleEntry("Organization", "2", "{\"name\":\"bad \uD83C surrogate\"}");
+
+        writer.append("{");
+        writer.appendEntry(false, entry1);
+        writer.appendEntry(true, entry2);
+        var out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+
+        var expected = "{" + FhirBundleBuilder.wrapBundleEntry(SERVER_URL, entry1) + "," + FhirBundleBuilder.wrapBundleEntry(SERVER_URL, entry2);
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        assertEquals(0, writer.size());
+    }
+
+    @Test
+    void testEntriesAreWrittenWhenTheBufferIsFull() throws IOException {
+        var writer = new BundleByteWriter(new ByteBufferPool(1024, 1), SERVER_URL);
+        var writes = new AtomicInteger();
+        var out = new ByteArrayOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                super.write(b, off, len);
+            }
+        };
+        var expected = new StringBuilder();
+        for (var i = 0; i < 100; i++) {
+            var entry = new FhirBundleBuilder.BundleEntry("Organization", String.valueOf(i), "{\"id\":\"" + i + "\"}");
+            writer.appendEntry(i > 0, entry);
+            expected.append(i > 0 ? "," : "").append(FhirBundleBuilder.wrapBundleEntry(SERVER_URL, entry));
+            if (writer.isFull()) {
+                writer.writeTo(out);
+            }
+        }
+        writer.writeTo(out);
+
+        assertEquals(expected.toString(), out.toString(StandardCharsets.UTF_8));
+        // ~80 bytes per entry and a flush at 768 bytes:
+        assertTrue(writes.get() < 15, "Too many writes: " + writes.get());
+    }
+
+    @Test
+    void testBigEntriesAndPool() throws IOException {
+        var pool = new ByteBufferPool(64, 2);
+        var writer = new BundleByteWriter(pool, SERVER_URL);
+        var content = "{\"text\":\"" + "é".repeat(1000) + "\"}";
+        var entry = new FhirBundleBuilder.BundleEntry("Organization", "1", content);
+
+        writer.appendEntry(false, entry);
+        var out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        writer.release();
+
+        assertEquals(FhirBundleBuilder.wrapBundleEntry(SERVER_URL, entry), out.toString(StandardCharsets.UTF_8));
+        // the first buffer is back in the pool, the buffer that grew is not kept:
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.getAllocations());
+
+        // buffers are reused:
+        var other = new BundleByteWriter(pool, SERVER_URL);
+        other.append("{}");
+        other.writeTo(OutputStream.nullOutputStream());
+        other.release();
+        assertEquals(1, pool.getAllocations());
+        assertEquals(1, pool.size());
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.fhir.servlet.FhirResourceServlet;
+import fr.ans.afas.fhirserver.service.StorageExecutor;
+import fr.ans.afas.utils.TenantUtil;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the writing of responses in the storage executor
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class DefaultWriteListenerTest {
+
+    @Test
+    void testWritingIsOffloaded() throws IOException, InterruptedException {
+        var request = Mockito.mock(HttpServletRequest.class);
+        var context = Mockito.mock(AsyncContext.class);
+        when(context.getRequest()).thenReturn(request);
+        when(request.getAttribute(FhirResourceServlet.REQUEST_AFAS_TENANT_ATTRIBUTE)).thenReturn("tenant-1");
+        var executor = new StorageExecutor(Executors.newFixedThreadPool(2));
+        when(request.getAttribute(FhirResourceServlet.REQUEST_AFAS_STORAGE_EXECUTOR_ATTRIBUTE)).thenReturn(executor);
+
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(2);
+        List<String> calls = new CopyOnWriteArrayList<>();
+        var listener = new DefaultWriteListener(context) {
+            @Override
+            public void onWritePossibleInTenant() {
+                calls.add(Thread.currentThread().getName() + "/" + TenantUtil.getCurrentTenant());
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+        };
+
+        listener.onWritePossible();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // notified again while writing: the writing continues in the same thread after the current one
+        listener.onWritePossible();
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.close();
+
+        assertEquals(2, calls.size());
+        assertEquals(calls.get(0), calls.get(1));
+        assertTrue(calls.get(0).endsWith("/tenant-1"));
+        assertNotEquals(Thread.currentThread().getName() + "/tenant-1", calls.get(0));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import fr.ans.afas.fhir.servlet.FhirResourceServlet;
+import fr.ans.afas.fhirserver.service.admission.AdaptiveLimiter;
+import fr.ans.afas.fhirserver.service.admission.AdmissionController;
+import fr.ans.afas.fhirserver.service.admission.OperationClass;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the admission control of requests of the servlet
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class RequestAdmissionTest {
+
+    private AdmissionController admissionController;
+
+    @BeforeEach
+    void setUp() {
+        var limit = new AfasConfiguration.AdmissionLimit();
+        limit.setInitial(4);
+        limit.setLatencyThreshold(20);
+        var admission = new AfasConfiguration.Admission();
+        admission.setLimits(Map.of("search", limit));
+        admissionController = new AdmissionController(admission);
+    }
+
+    @AfterEach
+    void tearDown() {
+        admissionController.close();
+    }
+
+    @Test
+    void testTheTimeWaitingForTheClientIsNotALatency() throws Exception {
+        var admission = submit(() -> {
+        });
+        // the client reads the response slowly:
+        Thread.sleep(50);
+        admission.onComplete(null);
+
+        assertEquals(0, limiter().getInFlight());
+        assertEquals(0, limiter().getDropped());
+    }
+
+    @Test
+    void testTheTimeSpentWorkingIsALatency() throws Exception {
+        var admission = submit(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        admission.onComplete(null);
+
+        assertEquals(0, limiter().getInFlight());
+        assertEquals(1, limiter().getDropped());
+    }
+
+    private RequestAdmission submit(Runnable handler) {
+        var request = Mockito.mock(HttpServletRequest.class);
+        var context = Mockito.mock(AsyncContext.class);
+        when(context.getRequest()).thenReturn(request);
+        when(request.getAttribute(FhirResourceServlet.REQUEST_AFAS_TENANT_ATTRIBUTE)).thenReturn("tenant-1");
+
+        RequestAdmission.submit(admissionController, OperationClass.SEARCH, context, handler);
+
+        var listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(context).addListener(listener.capture());
+        verify(request).setAttribute(FhirResourceServlet.REQUEST_AFAS_ADMISSION_ATTRIBUTE, listener.getValue());
+        assertEquals(1, limiter().getInFlight());
+        return (RequestAdmission) listener.getValue();
+    }
+
+    private AdaptiveLimiter limiter() {
+        return admissionController.getLimiters().get("tenant-1").get(OperationClass.SEARCH);
+    }
+}
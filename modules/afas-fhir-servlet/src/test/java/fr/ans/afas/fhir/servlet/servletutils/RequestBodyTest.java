@@ -0,0 +1,120 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhir.servlet.servletutils;
+
+import fr.ans.afas.fhir.servlet.exception.PayloadTooLargeException;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the reading of request bodies
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class RequestBodyTest {
+
+    private static final String CONTENT = "{\"resourceType\":\"Organization\",\"name\":\"Hôpital Sainte-Anne ∑ 🏥\"}";
+
+    @Test
+    void testMultiByteCharactersSplitBetweenReads() throws IOException {
+        var pool = new ByteBufferPool(16, 1);
+        var body = new RequestBody(pool, 1024);
+        var bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        // 3 bytes available on each call:
+        readAll(body, new ChunkedInputStream(bytes, 3));
+
+        assertEquals(bytes.length, body.size());
+        assertEquals(CONTENT, body.asString());
+        assertArrayEquals(bytes, body.getInputStream().readAllBytes());
+        try (Reader reader = body.getReader()) {
+            var chars = new char[CONTENT.length() + 1];
+            assertEquals(CONTENT.length(), reader.read(chars));
+        }
+
+        body.release();
+        assertTrue(body.isEmpty());
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    void testMaxSize() throws IOException {
+        var bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+        var body = new RequestBody(new ByteBufferPool(16, 1), 20);
+
+        assertThrows(PayloadTooLargeException.class, () -> body.checkContentLength(bytes.length));
+        body.checkContentLength(-1);
+        var input = new ChunkedInputStream(bytes, bytes.length);
+        assertThrows(PayloadTooLargeException.class, () -> readAll(body, input));
+
+        var exact = new RequestBody(new ByteBufferPool(16, 1), bytes.length);
+        readAll(exact, new ChunkedInputStream(bytes, 7));
+        assertEquals(bytes.length, exact.size());
+    }
+
+    /**
+     * Read the body like the container: the listener is called each time data are available
+     */
+    private void readAll(RequestBody body, ChunkedInputStream input) throws IOException {
+        while (!input.isFinished()) {
+            input.ready = true;
+            body.readFrom(input);
+        }
+    }
+
+    /**
+     * An input stream that reads a few bytes at once and is ready once per call
+     */
+    static class ChunkedInputStream extends ServletInputStream {
+        private final byte[] bytes;
+        private final int chunk;
+        private int position;
+        boolean ready = true;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position == bytes.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready || isFinished();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            // not used
+        }
+
+        @Override
+        public int read() {
+            return isFinished() ? -1 : bytes[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (isFinished()) {
+                return -1;
+            }
+            var n = Math.min(Math.min(len, chunk), bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            ready = false;
+            return n;
+        }
+    }
+}
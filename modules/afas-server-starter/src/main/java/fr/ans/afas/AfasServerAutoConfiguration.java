@@ -17,24 +17,31 @@ import fr.ans.afas.fhirserver.search.config.MultiTenantSearchConfigService;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.fhirserver.search.config.yaml.MultiConfigLoader;
 import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
 import fr.ans.afas.fhirserver.search.expression.serialization.DefaultSerializeUrlEncrypter;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import fr.ans.afas.fhirserver.search.expression.serialization.SerializeUrlEncrypter;
 import fr.ans.afas.fhirserver.service.*;
+import fr.ans.afas.fhirserver.service.admission.AdmissionController;
 import fr.ans.afas.fhirserver.service.audit.DefaultReadAuditService;
 import fr.ans.afas.fhirserver.service.audit.DefaultWriteAuditService;
 import fr.ans.afas.mdbexpression.domain.fhir.MongoDbExpressionFactory;
 import fr.ans.afas.mdbexpression.domain.fhir.serialization.MongoDbExpressionSerializer;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.SelectExpressionCache;
 import fr.ans.afas.rass.service.MongoDbFhirService;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.rass.service.impl.CursorRegistry;
 import fr.ans.afas.rass.service.impl.DefaultIndexService;
+import fr.ans.afas.rass.service.impl.DefaultSearchConfigReloadService;
 import fr.ans.afas.rass.service.impl.MongoDbNextUrlManager;
 import fr.ans.afas.rass.service.json.FhirBaseResourceDeSerializer;
 import fr.ans.afas.rass.service.json.FhirBaseResourceSerializer;
 import fr.ans.afas.rass.service.json.GenericSerializer;
 import org.bson.conversions.Bson;
+import org.hl7.fhir.r4.model.DomainResource;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -46,10 +53,10 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 
 /**
  * Autoconfiguration of the fhir server.
@@ -67,7 +74,8 @@ public class AfasServerAutoConfiguration<T> {
     @ConditionalOnMissingBean
     @Bean
     public FhirContext context() {
-        return FhirContext.forR4();
+        // shared with code that can't be injected (see FhirParserPool):
+        return FhirContext.forR4Cached();
     }
 
 
@@ -115,8 +123,12 @@ public class AfasServerAutoConfiguration<T> {
     @ConditionalOnMissingBean
     @Bean
     @Inject
-    NextUrlManager<Bson> nextUrlManager(MongoMultiTenantService mongoMultiTenantService, @Value("${afas.fhir.next-url-max-size:500}") int maxNextUrlLength, ExpressionSerializer<Bson> expressionSerializer, SerializeUrlEncrypter serializeUrlEncrypter, @Value("${spring.data.mongodb.database}") String dbName) {
-        return new MongoDbNextUrlManager(mongoMultiTenantService, maxNextUrlLength, expressionSerializer, serializeUrlEncrypter, dbName);
+    NextUrlManager<Bson> nextUrlManager(MongoMultiTenantService mongoMultiTenantService, @Value("${afas.fhir.next-url-max-size:500}") int maxNextUrlLength, ExpressionSerializer<Bson> expressionSerializer, SerializeUrlEncrypter serializeUrlEncrypter, @Value("${spring.data.mongodb.database}") String dbName,
+                                        @Value("${afas.fhir.next-url-cache-size:10000}") int cacheSize, @Value("${afas.fhir.max-revision-duration:3600000}") long validityMs,
+                                        @Value("${afas.fhir.select-expression-cache-size:1000}") int selectExpressionCacheSize) {
+        var nextUrlManager = new MongoDbNextUrlManager(mongoMultiTenantService, maxNextUrlLength, expressionSerializer, serializeUrlEncrypter, dbName, cacheSize, validityMs);
+        nextUrlManager.setSelectExpressionCache(new SelectExpressionCache(selectExpressionCacheSize));
+        return nextUrlManager;
 
     }
 
@@ -153,8 +165,9 @@ public class AfasServerAutoConfiguration<T> {
             SearchConfigService searchConfigService,
             FhirContext fhirContext,
             ApplicationContext context,
-            MongoMultiTenantService mongoMultiTenantService) throws BadHookConfiguration {
-        return new MongoDbFhirService(
+            MongoMultiTenantService mongoMultiTenantService,
+            Optional<CursorRegistry> cursorRegistry) throws BadHookConfiguration {
+        var fhirStoreService = new MongoDbFhirService(
                 serializers,
                 fhirBaseResourceDeSerializer,
                 searchConfigService,
@@ -162,6 +175,22 @@ public class AfasServerAutoConfiguration<T> {
                 new HookService(context),
                 mongoMultiTenantService
         );
+        cursorRegistry.ifPresent(fhirStoreService::setCursorRegistry);
+        return fhirStoreService;
+    }
+
+    /**
+     * Registry of mongodb cursors parked between pages of searches (server-side cursor continuation)
+     *
+     * @return the registry
+     */
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "afas.fhir.cursor-continuation.enabled", havingValue = "true")
+    @Bean
+    CursorRegistry cursorRegistry(@Value("${afas.fhir.cursor-continuation.max-cursors:200}") int maxCursors,
+                                  @Value("${afas.fhir.cursor-continuation.idle-timeout:60000}") long idleTimeoutMs,
+                                  @Value("${afas.fhir.cursor-continuation.max-pages:10}") int maxPages) {
+        return new CursorRegistry(maxCursors, idleTimeoutMs, maxPages);
     }
 
     @ConditionalOnMissingBean
@@ -188,19 +217,37 @@ public class AfasServerAutoConfiguration<T> {
     @Bean
     @Inject
     public ServerSearchConfig simpleSearchConfigMultiTenant(List<TenantSearchConfig> tenantSearchConfig) {
-        var mapOfConfigs = new HashMap<String, List<TenantSearchConfig>>();
-        for (var tsc : tenantSearchConfig) {
-            var name = tsc.getTenantConfig().getName();
-            mapOfConfigs.computeIfAbsent(name, a -> new ArrayList<>());
-            mapOfConfigs.get(name).add(tsc);
-        }
-
+        return ServerSearchConfig.of(tenantSearchConfig);
+    }
 
-        Map<String, TenantSearchConfig> configs = new HashMap<>();
-        for (var es : mapOfConfigs.entrySet()) {
-            configs.put(es.getKey(), es.getValue().get(0));
+    /**
+     * Reload of the search configuration while the server is running (operation $reload-config or watch of the
+     * folder of the configuration)
+     *
+     * @return the reload service
+     */
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "afas.fhir.config-reload.enabled", havingValue = "true")
+    @Bean
+    DefaultSearchConfigReloadService searchConfigReloadService(AfasConfiguration afasConfiguration, ServerSearchConfig serverSearchConfig, SearchConfigService searchConfigService,
+                                                               MongoMultiTenantService mongoMultiTenantService, NextUrlManager<Bson> nextUrlManager) throws URISyntaxException, IOException {
+        if (!(searchConfigService instanceof MultiTenantSearchConfigService multiTenantSearchConfigService)) {
+            throw new IllegalStateException("The reload of the search configuration needs a MultiTenantSearchConfigService");
         }
-        return new ServerSearchConfig(configs);
+        var configReload = afasConfiguration.getFhir().getConfigReload();
+        var loader = new MultiConfigLoader();
+        var reloadService = new DefaultSearchConfigReloadService(() -> loader.loadConfigs(configReload.getPath()), serverSearchConfig, multiTenantSearchConfigService, mongoMultiTenantService);
+        // cached next pages were parsed with the previous configuration:
+        if (nextUrlManager instanceof MongoDbNextUrlManager mongoDbNextUrlManager && mongoDbNextUrlManager.getSelectExpressionCache() != null) {
+            reloadService.addReloadListener(mongoDbNextUrlManager.getSelectExpressionCache()::clear);
+        }
+        if (configReload.isWatch()) {
+            var folder = MultiConfigLoader.resolveFolder(configReload.getPath());
+            if (folder != null) {
+                reloadService.watch(folder);
+            }
+        }
+        return reloadService;
     }
 
 
@@ -280,8 +327,10 @@ public class AfasServerAutoConfiguration<T> {
     @ConditionalOnMissingBean
     @Inject
     @Bean
-    DefaultIndexService defaultIndexService(FhirStoreService<Bson> fhirStoreService, ExpressionFactory<Bson> expressionFactory, SearchConfigService searchConfigService, GenericSerializer genericSerializer) {
-        return new DefaultIndexService(fhirStoreService, expressionFactory, searchConfigService, genericSerializer);
+    DefaultIndexService defaultIndexService(SearchConfigService searchConfigService, MongoMultiTenantService mongoMultiTenantService, @Value("${afas.fhir.index.parallelism:4}") int parallelism) {
+        var indexService = new DefaultIndexService(searchConfigService, mongoMultiTenantService);
+        indexService.setParallelism(parallelism);
+        return indexService;
     }
 
 
@@ -311,7 +360,58 @@ public class AfasServerAutoConfiguration<T> {
 
     @ConditionalOnMissingBean
     @Bean
-    FhirServerContext<T> fhirServerContext(FhirStoreService<T> fhirStoreService, MultiTenantService multiTenantService, ExpressionFactory<T> expressionFactory, SearchConfigService searchConfigService, NextUrlManager<T> nextUrlManager, SecurityService securityService) {
-        return new FhirServerContext(fhirStoreService, multiTenantService, expressionFactory, searchConfigService, nextUrlManager, securityService);
+    FhirServerContext<T> fhirServerContext(FhirStoreService<T> fhirStoreService, MultiTenantService multiTenantService, ExpressionFactory<T> expressionFactory, SearchConfigService searchConfigService, NextUrlManager<T> nextUrlManager, SecurityService securityService,
+                                           FhirContext fhirContext, Optional<StorageExecutor> storageExecutor, Optional<AdmissionController> admissionController) {
+        var fhirServerContext = new FhirServerContext<T>(fhirStoreService, multiTenantService, expressionFactory, searchConfigService, nextUrlManager, securityService, fhirContext);
+        storageExecutor.ifPresent(fhirServerContext::setStorageExecutor);
+        admissionController.ifPresent(fhirServerContext::setAdmissionController);
+        return fhirServerContext;
+    }
+
+    /**
+     * Executor of the blocking storage work of the servlet (v2 api)
+     *
+     * @return the executor
+     */
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "afas.fhir.storage-executor.enabled", havingValue = "true")
+    @Bean(destroyMethod = "close")
+    StorageExecutor storageExecutor(@Value("${afas.fhir.storage-executor.virtual-threads:true}") boolean virtualThreads,
+                                    @Value("${afas.fhir.storage-executor.threads:64}") int threads,
+                                    @Value("${afas.fhir.storage-executor.queue-size:1000}") int queueSize) {
+        return StorageExecutor.create(virtualThreads, threads, queueSize);
+    }
+
+    /**
+     * Admission control of the requests of the servlet (v2 api) by tenant and class of operation
+     *
+     * @param afasConfiguration the configuration of the limits
+     * @return the admission control
+     */
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "afas.fhir.admission.enabled", havingValue = "true")
+    @Bean
+    AdmissionController admissionController(AfasConfiguration afasConfiguration) {
+        return new AdmissionController(afasConfiguration.getFhir().getAdmission());
+    }
+
+    /**
+     * Warm up the server before it's ready (fhir models, parsers and search queries)
+     *
+     * @param fhirServerContext  the context
+     * @param serverSearchConfig the configuration of tenants
+     * @param iterations         number of times each operation is run
+     * @return the warm up, run at the start of the application
+     */
+    @ConditionalOnProperty(value = "afas.fhir.warm-up.enabled", havingValue = "true", matchIfMissing = true)
+    @Bean
+    ApplicationRunner fhirWarmUp(FhirServerContext<T> fhirServerContext, ServerSearchConfig serverSearchConfig,
+                                 @Value("${afas.fhir.warm-up.iterations:20}") int iterations) {
+        var warmUp = new FhirWarmUp<>(fhirServerContext.getParserPool(), serverSearchConfig, fhirServerContext.getSearchConfigService(), fhirServerContext.getExpressionFactory(), iterations);
+        if (fhirServerContext.getFhirStoreService() instanceof MongoDbFhirService mongoDbFhirService) {
+            // warm up the serializers of the storage (GenericSerializer):
+            warmUp.setStorageRoundTrip(resource -> resource instanceof DomainResource domainResource ? mongoDbFhirService.serializeAndRead(domainResource) : resource);
+        }
+        return args -> warmUp.run();
     }
 }
@@ -5,7 +5,7 @@ package fr.ans.afas;
 
 
 import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
+import fr.ans.afas.rass.service.MongoClientRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 
@@ -22,14 +22,35 @@ public class MongoConfig {
     @Value("${afas.mongodb.uri}")
     String mongoUri;
 
+    /**
+     * Time (ms) between two logs of the metrics of the mongodb pools, 0 to disable
+     */
+    @Value("${afas.mongodb.pool-metrics.log-interval:60000}")
+    long poolMetricsLogInterval;
+
+    /**
+     * Create the registry of the mongodb clients of the tenants
+     *
+     * @return the registry
+     */
+    @Bean
+    public MongoClientRegistry mongoClientRegistry() {
+        var registry = new MongoClientRegistry(mongoUri);
+        if (poolMetricsLogInterval > 0) {
+            registry.logMetrics(poolMetricsLogInterval);
+        }
+        return registry;
+    }
+
     /**
      * Create a mongodb client
      *
-     * @return the client
+     * @param mongoClientRegistry the registry of the clients
+     * @return the client of the server
      */
     @Bean
-    public MongoClient mongoClient() {
-        return MongoClients.create(mongoUri);
+    public MongoClient mongoClient(MongoClientRegistry mongoClientRegistry) {
+        return mongoClientRegistry.getDefaultClient();
     }
 
 
@@ -5,20 +5,25 @@ package fr.ans.afas.config;
 
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.filter.TenantFilter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.List;
+import java.util.Set;
+
 @ConditionalOnProperty(value = "afas.fhir.tenant.mode", havingValue = "path", matchIfMissing = true)
 @Configuration
 public class PathFilterConfig {
 
 
     @Bean
-    public FilterRegistrationBean<TenantFilter> pathFilter(ServerSearchConfig serverSearchConfig) {
+    public FilterRegistrationBean<TenantFilter> pathFilter(ServerSearchConfig serverSearchConfig,
+                                                         @Value("${afas.fhir.tenant.direct-versions:v2}") String[] directVersions) {
         FilterRegistrationBean<TenantFilter> registrationBean = new FilterRegistrationBean<>();
-        registrationBean.setFilter(new TenantFilter(serverSearchConfig));
+        registrationBean.setFilter(new TenantFilter(serverSearchConfig, Set.copyOf(List.of(directVersions))));
         registrationBean.addUrlPatterns("/fhir/*");
         return registrationBean;
     }
@@ -7,6 +7,9 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @ConfigurationProperties(prefix = "afas")
 @Setter
 @Getter
@@ -22,6 +25,12 @@ public class AfasConfiguration {
     @Getter
     public static class Fhir {
         private Includes includes = new Includes();
+        private Output output = new Output();
+        private Compression compression = new Compression();
+        private Input input = new Input();
+        private Admission admission = new Admission();
+        private Deadline deadline = new Deadline();
+        private ConfigReload configReload = new ConfigReload();
     }
 
     @Setter
@@ -30,5 +39,133 @@ public class AfasConfiguration {
         private int bufferSize = 1000;
     }
 
+    /**
+     * Buffers used to write bundles (see the pooled buffers of the servlet)
+     */
+    @Setter
+    @Getter
+    public static class Output {
+        /**
+         * Size of a buffer in bytes. Entries are written to the response when a buffer is full
+         */
+        private int bufferSize = 32768;
+        /**
+         * Max number of free buffers kept in the pool
+         */
+        private int poolSize = 64;
+    }
+
+    /**
+     * Compression of responses negotiated with the Accept-Encoding header
+     */
+    @Setter
+    @Getter
+    public static class Compression {
+        private boolean enabled = true;
+        /**
+         * Responses smaller than this size (bytes) are not compressed
+         */
+        private int minSize = 2048;
+        /**
+         * Compression level, from 1 (fast) to 9 (small). -1 for the default level of the codec
+         */
+        private int level = 6;
+    }
+
+    /**
+     * Bodies of requests
+     */
+    @Setter
+    @Getter
+    public static class Input {
+        /**
+         * Max size of bodies in bytes. Larger requests are rejected (413)
+         */
+        private long maxBodySize = 10L * 1024 * 1024;
+    }
+
+    /**
+     * Reload of the search configuration while the server is running
+     */
+    @Setter
+    @Getter
+    public static class ConfigReload {
+        private boolean enabled = false;
+        /**
+         * Folder of the yaml files of the search configuration (absolute path on the file system, or path in the
+         * classpath)
+         */
+        private String path = "indexes/";
+        /**
+         * Reload when a file of the folder changes (file system only)
+         */
+        private boolean watch = false;
+    }
+
+    /**
+     * Deadline of the requests of the v2 api, applied as the max time of database queries
+     */
+    @Setter
+    @Getter
+    public static class Deadline {
+        /**
+         * Time (ms) given to a request. 0 to use the timeout of the servlet
+         */
+        private long budget = 0;
+        /**
+         * Header of the request where the client can give a shorter time (ms)
+         */
+        private String header = "X-Request-Timeout";
+    }
+
+    /**
+     * Admission control of the requests of the v2 api, by tenant and class of operation (read, search, count, write,
+     * index)
+     */
+    @Setter
+    @Getter
+    public static class Admission {
+        /**
+         * Limits by class of operation. Classes without limits are not limited
+         */
+        private Map<String, AdmissionLimit> limits = new HashMap<>();
+        /**
+         * Limits by tenant then by class of operation. Override the limits of the class for the tenant
+         */
+        private Map<String, Map<String, AdmissionLimit>> tenants = new HashMap<>();
+    }
+
+    /**
+     * Limit of concurrent requests of a tenant for a class of operation. The limit adapts to the latency of requests
+     * between min and max: it increases while requests are fast and decreases when they are slow (AIMD)
+     */
+    @Setter
+    @Getter
+    public static class AdmissionLimit {
+        /**
+         * Number of concurrent requests at start
+         */
+        private int initial = 16;
+        private int min = 1;
+        private int max = 64;
+        /**
+         * Max number of requests waiting for a slot. Other requests are rejected (429)
+         */
+        private int queueSize = 32;
+        /**
+         * Max time (ms) a request waits for a slot
+         */
+        private long maxWait = 5000;
+        /**
+         * Latency (ms) above which the limit decreases. The latency is the time spent working on the request, without
+         * the time waiting for the client (body of the request, reading of the response)
+         */
+        private long latencyThreshold = 1000;
+        /**
+         * Ratio applied to the limit when a request is slow or fails
+         */
+        private double backoffRatio = 0.9;
+    }
+
 
 }
@@ -3,6 +3,7 @@
  */
 package fr.ans.afas.domain;
 
+import lombok.Getter;
 
 public class FhirBundleBuilder {
 
@@ -39,7 +40,24 @@ public class FhirBundleBuilder {
     }
 
     public String getFooter(String nextUrl, String currentUrl, String nextPageId) {
+        return getFooter(nextUrl, currentUrl, nextPageId, null);
+    }
+
+    /**
+     * Get the footer of the bundle. The total can be written in the footer when it was not known when the header was written.
+     *
+     * @param nextUrl    the url of the next page
+     * @param currentUrl the url of the current page
+     * @param nextPageId the id of the next page (null if there is no next page)
+     * @param total      the total to write in the footer, null to not write it
+     * @return the footer
+     */
+    public String getFooter(String nextUrl, String currentUrl, String nextPageId, Long total) {
         var sb = new StringBuilder("]");
+        if (total != null) {
+            sb.append(",\"total\":");
+            sb.append(total);
+        }
         sb.append(",\"link\": [");
         if (nextPageId != null) {
             sb.append(" {")
@@ -70,6 +88,7 @@ public class FhirBundleBuilder {
     }
 
 
+    @Getter
     public static class BundleEntry {
         final String content;
         final String id;
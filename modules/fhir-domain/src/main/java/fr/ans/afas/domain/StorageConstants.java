@@ -32,6 +32,7 @@ public final class StorageConstants {
     public static final String ID_SUFFIX = "-id";
     public static final String REFERENCE_SUFFIX = "-reference";
     public static final String TYPE_SUFFIX = "-type";
+    public static final String SORT_SUFFIX = "-sort";
     public static final String CITY_SUFFIX = "-city";
     public static final String COUNTY_SUFFIX = "-country";
     public static final String POSTALCODE_SUFFIX = "-postalcode";
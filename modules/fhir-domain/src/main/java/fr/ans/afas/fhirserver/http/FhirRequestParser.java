@@ -4,13 +4,16 @@
 package fr.ans.afas.fhirserver.http;
 
 import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.rest.param.*;
 import fr.ans.afas.exception.BadDataFormatException;
 import fr.ans.afas.exception.BadSelectExpression;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.fhirserver.service.FhirParserPool;
 import org.apache.commons.lang3.ArrayUtils;
 import org.springframework.util.StringUtils;
 
@@ -19,7 +22,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -30,7 +36,12 @@ import java.util.StringTokenizer;
  */
 public class FhirRequestParser {
 
-    static final String[] SPECIAL_PARAMS = new String[]{"_count", "_pretty", "_format", "_total", "_include", "_revinclude", "_elements"};
+    static final String[] SPECIAL_PARAMS = new String[]{"_count", "_pretty", "_format", "_total", "_include", "_revinclude", "_elements", "_sort", "_summary"};
+
+    /**
+     * Elements of the summary of resources (_summary=true) by resource type
+     */
+    private static final Map<String, Set<String>> SUMMARY_ELEMENTS = new ConcurrentHashMap<>();
 
 
     private FhirRequestParser() {
@@ -45,6 +56,8 @@ public class FhirRequestParser {
 
 
     public static <T> SelectExpression<T> parseSelectExpression(String url, ExpressionFactory<T> expressionFactory, SearchConfigService searchConfigService) throws BadSelectExpression, BadDataFormatException {
+        // the configuration of the tenant is resolved once for the request:
+        var tenantSearchConfigService = searchConfigService.forCurrentTenant();
         var index = url.indexOf('?');
 
         String resourceType;
@@ -68,10 +81,10 @@ public class FhirRequestParser {
                         handleCountParam(selectExpression, parsedParam);
                         break;
                     case "_include":
-                        handleIncludeParam(searchConfigService, selectExpression, resourceType, parsedParam);
+                        handleIncludeParam(tenantSearchConfigService, selectExpression, resourceType, parsedParam);
                         break;
                     case "_revinclude":
-                        handleRevIncludeParam(searchConfigService, selectExpression, resourceType, parsedParam);
+                        handleRevIncludeParam(tenantSearchConfigService, selectExpression, resourceType, parsedParam);
                         break;
                     case "_total":
                         handleTotalParam(selectExpression, parsedParam);
@@ -79,6 +92,12 @@ public class FhirRequestParser {
                     case "_elements":
                         handleElementsParam(selectExpression, parsedParam);
                         break;
+                    case "_sort":
+                        handleSortParam(tenantSearchConfigService, selectExpression, resourceType, parsedParam);
+                        break;
+                    case "_summary":
+                        handleSummaryParam(selectExpression, resourceType, parsedParam);
+                        break;
                     case "_pretty", "_format":
                     default:
                         break;
@@ -88,7 +107,7 @@ public class FhirRequestParser {
             } else {
                 // classic params
                 var path = FhirSearchPath.builder().resource(resourceType).path(parsedParam.paramName).build();
-                var sc = searchConfigService.getSearchConfigByPath(path).orElseThrow(() -> new BadSelectExpression("Parameter " + parsedParam.paramName + " not found for resource " + resourceType));
+                var sc = tenantSearchConfigService.getSearchConfigByPath(path).orElseThrow(() -> new BadSelectExpression("Parameter " + parsedParam.paramName + " not found for resource " + resourceType));
                 switch (sc.getSearchType()) {
 
                     case "string":
@@ -254,12 +273,83 @@ public class FhirRequestParser {
         }
     }
 
+    /**
+     * Handle the _elements parameter. The elements are added to the ones already asked (e.g. by _summary=true), so
+     * the order of the parameters doesn't change the result
+     */
     public static void handleElementsParam(SelectExpression<?> selectExpression, ParsedParam parsedParam) {
         if (!parsedParam.getParamValues().isEmpty()) {
-            selectExpression.setElements(new HashSet<>(parsedParam.getParamValues()));
+            var elements = new HashSet<>(parsedParam.getParamValues());
+            if (selectExpression.getElements() != null) {
+                elements.addAll(selectExpression.getElements());
+            }
+            selectExpression.setElements(elements);
+        }
+    }
+
+    /**
+     * Handle the _summary parameter. "count" returns only the number of matches, "true" returns only the elements
+     * marked as summary in the definition of the resource, "false" returns the full resources.
+     */
+    public static void handleSummaryParam(SelectExpression<?> selectExpression, String resourceType, ParsedParam parsedParam) throws BadSelectExpression {
+        if (parsedParam.getParamValues().isEmpty()) {
+            return;
+        }
+        switch (parsedParam.getParamValues().get(0)) {
+            case "count":
+                selectExpression.setSummaryCount(true);
+                break;
+            case "true":
+                var elements = new HashSet<>(summaryElements(resourceType));
+                if (selectExpression.getElements() != null) {
+                    elements.addAll(selectExpression.getElements());
+                }
+                selectExpression.setElements(elements);
+                break;
+            case "false":
+                break;
+            default:
+                throw new BadSelectExpression("Bad value for the _summary parameter. Allowed values are : true, false, count");
         }
     }
 
+    /**
+     * Get the elements of the summary of a resource type. Choice elements (value[x]) are expanded to all their names.
+     *
+     * @param resourceType the resource type
+     * @return the names of the elements
+     */
+    static Set<String> summaryElements(String resourceType) throws BadSelectExpression {
+        try {
+            return SUMMARY_ELEMENTS.computeIfAbsent(resourceType, type -> {
+                var elements = new HashSet<String>();
+                for (var child : FhirParserPool.forR4().getFhirContext().getResourceDefinition(type).getChildren()) {
+                    if (child.isSummary()) {
+                        elements.addAll(child.getValidChildNames());
+                    }
+                }
+                return Set.copyOf(elements);
+            });
+        } catch (DataFormatException e) {
+            throw new BadSelectExpression("Unknown resource type: " + resourceType);
+        }
+    }
+
+    /**
+     * Handle the _sort parameter. Only check that parameters exist, the storage check that the sort is supported
+     */
+    public static void handleSortParam(SearchConfigService searchConfigService, SelectExpression<?> selectExpression, String resourceType, ParsedParam parsedParam) throws BadSelectExpression {
+        var sort = new ArrayList<SortField>();
+        for (var val : parsedParam.getParamValues()) {
+            var sortField = SortField.parse(val);
+            var path = FhirSearchPath.builder().resource(resourceType).path(sortField.getParam()).build();
+            if (searchConfigService.getSearchConfigByPath(path).isEmpty()) {
+                throw new BadSelectExpression("Parameter " + sortField.getParam() + " not found for resource " + resourceType + " in _sort");
+            }
+            sort.add(sortField);
+        }
+        selectExpression.setSort(sort);
+    }
 
     public static void handleIncludeParam(SearchConfigService searchConfigService, SelectExpression<?> selectExpression, String resourceType, ParsedParam parsedParam) throws BadDataFormatException, BadSelectExpression {
         var includes = new HashSet<Include>();
@@ -0,0 +1,179 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.http;
+
+import lombok.Getter;
+
+/**
+ * The target of a fhir request, resolved from the path of the request in one pass (see {@link FhirRouter}).
+ * <p>
+ * The fhir path is the part of the path after the version and the tenant, without the leading slash (e.g.
+ * "Organization/123" for "/fhir/v2/tenant/Organization/123"). Segments follow the split of the fhir path on "/"
+ * (trailing empty segments are ignored).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Getter
+public class FhirRoute {
+
+    /**
+     * Name of the request attribute that contains the route when it's resolved by the tenant filter
+     */
+    public static final String REQUEST_ATTRIBUTE = "afas_route";
+
+    /**
+     * The api version (e.g. "v2"), null if the route is resolved from a path without version
+     */
+    private final String version;
+
+    /**
+     * The name of the tenant, null if the route is resolved from a path without tenant
+     */
+    private final String tenant;
+
+    /**
+     * The path of the tenant, null if the route is resolved from a path without tenant
+     */
+    private final String tenantPath;
+
+    /**
+     * The fhir path
+     */
+    private final String fhirPath;
+
+    /**
+     * The kind of target
+     */
+    private final Kind kind;
+
+    /**
+     * The first segment of the fhir path (the resource type for reads and searches). Empty if the fhir path is empty
+     */
+    private final String resourceType;
+
+    /**
+     * The id of the resource for reads, null otherwise
+     */
+    private final String id;
+
+    /**
+     * Number of segments of the fhir path
+     */
+    private final int segmentCount;
+
+    private FhirRoute(String version, String tenant, String tenantPath, String fhirPath, Kind kind, String resourceType, String id, int segmentCount) {
+        this.version = version;
+        this.tenant = tenant;
+        this.tenantPath = tenantPath;
+        this.fhirPath = fhirPath;
+        this.kind = kind;
+        this.resourceType = resourceType;
+        this.id = id;
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Resolve the route of a path without version and tenant (e.g. a forwarded request)
+     *
+     * @param path  the path of the request
+     * @param start the start of the fhir path in the path
+     * @return the route
+     */
+    public static FhirRoute parse(String path, int start) {
+        return parse(path, start, null, null, null, null);
+    }
+
+    /**
+     * Resolve the route of a fhir path
+     *
+     * @param path       the path of the request
+     * @param start      the start of the fhir path in the path (a leading slash is skipped)
+     * @param version    the api version
+     * @param tenant     the name of the tenant
+     * @param tenantPath the path of the tenant
+     * @param resources  the resource types of the tenant (null if unknown)
+     * @return the route
+     */
+    static FhirRoute parse(String path, int start, String version, String tenant, String tenantPath, SegmentTrie<String> resources) {
+        if (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        var fhirPath = start == 0 ? path : path.substring(Math.min(start, path.length()));
+        var end = fhirPath.length();
+        // trailing empty segments are ignored:
+        while (end > 0 && fhirPath.charAt(end - 1) == '/') {
+            end--;
+        }
+        var firstEnd = fhirPath.indexOf('/');
+        if (firstEnd < 0 || firstEnd > end) {
+            firstEnd = end;
+        }
+        var segmentCount = end == 0 ? (fhirPath.isEmpty() ? 1 : 0) : 1;
+        var secondEnd = end;
+        for (var i = firstEnd; i < end; i++) {
+            if (fhirPath.charAt(i) == '/') {
+                segmentCount++;
+                if (segmentCount == 3) {
+                    secondEnd = i;
+                }
+            }
+        }
+        var resourceType = resources == null ? null : resources.get(fhirPath, 0, firstEnd);
+        if (resourceType == null) {
+            resourceType = fhirPath.substring(0, firstEnd);
+        }
+        String id = null;
+        if (segmentCount == 2 && firstEnd + 1 < secondEnd && fhirPath.charAt(firstEnd + 1) != '_') {
+            id = fhirPath.substring(firstEnd + 1, secondEnd);
+        }
+        return new FhirRoute(version, tenant, tenantPath, fhirPath, kindOf(fhirPath, id), resourceType, id, segmentCount);
+    }
+
+    private static Kind kindOf(String fhirPath, String id) {
+        if (fhirPath.startsWith("_page")) {
+            return Kind.PAGE;
+        } else if (fhirPath.startsWith("metadata")) {
+            return Kind.METADATA;
+        } else if (fhirPath.startsWith("$")) {
+            return Kind.OPERATION;
+        } else if (fhirPath.isEmpty()) {
+            return Kind.ROOT;
+        } else if (id != null) {
+            return Kind.READ;
+        }
+        return Kind.SEARCH;
+    }
+
+    /**
+     * Kinds of targets
+     */
+    public enum Kind {
+        /**
+         * The root of the server (transactions)
+         */
+        ROOT,
+        /**
+         * Next pages of a search
+         */
+        PAGE,
+        /**
+         * The capability statement
+         */
+        METADATA,
+        /**
+         * A fhir operation
+         */
+        OPERATION,
+        /**
+         * A resource (read, update, delete)
+         */
+        READ,
+        /**
+         * A resource type (search, create)
+         */
+        SEARCH
+    }
+}
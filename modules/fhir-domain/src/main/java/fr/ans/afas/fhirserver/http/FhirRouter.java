@@ -0,0 +1,83 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.http;
+
+import fr.ans.afas.exception.TenantNotFoundException;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+
+/**
+ * Resolve the routes of fhir requests ("/fhir/{version}/{tenant}/{fhir path}").
+ * <p>
+ * Tenants and resource types of the configuration are compiled in tries: the path of a request is read once, without
+ * regex and without substring for the tenant. The router is immutable and can be shared by threads. A new router must
+ * be created when the configuration changes.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class FhirRouter {
+
+    private static final String PREFIX = "/fhir/v";
+
+    /**
+     * Tenants by name
+     */
+    private final SegmentTrie<TenantRoutes> tenants = new SegmentTrie<>();
+
+    /**
+     * Create the router
+     *
+     * @param serverSearchConfig the configuration of tenants
+     */
+    public FhirRouter(ServerSearchConfig serverSearchConfig) {
+        for (var config : serverSearchConfig.getConfigs().values()) {
+            var resources = new SegmentTrie<String>();
+            if (config.getResources() != null) {
+                for (var resource : config.getResources()) {
+                    resources.put(resource.getName(), resource.getName());
+                }
+            }
+            var tenant = config.getTenantConfig();
+            tenants.put(tenant.getName(), new TenantRoutes(tenant.getName(), tenant.getPath(), resources));
+        }
+    }
+
+    /**
+     * Resolve the route of a request
+     *
+     * @param path the path of the request (without query)
+     * @return the route or null if the path is not a fhir path
+     * @throws TenantNotFoundException if the tenant of the path doesn't exist
+     */
+    public FhirRoute route(String path) {
+        if (!path.startsWith(PREFIX)) {
+            return null;
+        }
+        var versionEnd = PREFIX.length();
+        while (versionEnd < path.length() && Character.isDigit(path.charAt(versionEnd))) {
+            versionEnd++;
+        }
+        var tenantStart = versionEnd + 1;
+        if (tenantStart >= path.length() || path.charAt(versionEnd) != '/') {
+            return null;
+        }
+        var tenantEnd = path.indexOf('/', tenantStart);
+        if (tenantEnd < 0) {
+            tenantEnd = path.length();
+        }
+        if (tenantEnd == tenantStart) {
+            return null;
+        }
+        var tenant = tenants.get(path, tenantStart, tenantEnd);
+        if (tenant == null) {
+            throw new TenantNotFoundException(path);
+        }
+        var version = path.substring(PREFIX.length() - 1, versionEnd);
+        return FhirRoute.parse(path, tenantEnd, version, tenant.name, tenant.path, tenant.resources);
+    }
+
+    private record TenantRoutes(String name, String path, SegmentTrie<String> resources) {
+    }
+}
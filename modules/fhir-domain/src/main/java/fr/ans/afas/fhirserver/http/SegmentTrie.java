@@ -0,0 +1,88 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.http;
+
+import java.util.Arrays;
+
+/**
+ * A trie to find values by a segment of a string without creating a substring.
+ * <p>
+ * Filled at construction then only read (not thread safe while filled).
+ * </p>
+ *
+ * @param <V> the type of values
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+final class SegmentTrie<V> {
+
+    private final Node<V> root = new Node<>();
+
+    /**
+     * Add a value
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    void put(String key, V value) {
+        var node = root;
+        for (var i = 0; i < key.length(); i++) {
+            node = node.child(key.charAt(i), true);
+        }
+        node.value = value;
+    }
+
+    /**
+     * Find the value of a segment
+     *
+     * @param s     the string
+     * @param start the start of the segment (inclusive)
+     * @param end   the end of the segment (exclusive)
+     * @return the value or null if not found
+     */
+    V get(CharSequence s, int start, int end) {
+        var node = root;
+        for (var i = start; i < end && node != null; i++) {
+            node = node.child(s.charAt(i), false);
+        }
+        return node == null ? null : node.value;
+    }
+
+    private static final class Node<V> {
+        /**
+         * Chars of children (sorted)
+         */
+        private char[] chars = new char[0];
+        private Node<V>[] children = newArray(0);
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int size) {
+            return (Node<V>[]) new Node[size];
+        }
+
+        Node<V> child(char c, boolean create) {
+            var index = Arrays.binarySearch(chars, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            if (!create) {
+                return null;
+            }
+            var insert = -index - 1;
+            var newChars = new char[chars.length + 1];
+            Node<V>[] newChildren = newArray(chars.length + 1);
+            System.arraycopy(chars, 0, newChars, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(chars, insert, newChars, insert + 1, chars.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, chars.length - insert);
+            var child = new Node<V>();
+            newChars[insert] = c;
+            newChildren[insert] = child;
+            chars = newChars;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -3,7 +3,6 @@
  */
 package fr.ans.afas.fhirserver.search.config;
 
-import fr.ans.afas.domain.StorageConstants;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
@@ -29,6 +28,11 @@ public abstract class BaseSearchConfigService implements SearchConfigService {
 
     protected final TenantSearchConfig serverSearchConfig;
 
+    /**
+     * The compiled configuration (null when the configuration changed)
+     */
+    private volatile SearchConfigSnapshot snapshot;
+
     /**
      * Construct the search config
      *
@@ -36,7 +40,7 @@ public abstract class BaseSearchConfigService implements SearchConfigService {
      */
     protected BaseSearchConfigService(TenantSearchConfig serverSearchConfig) {
         this.serverSearchConfig = serverSearchConfig;
-        this.configs = new HashMap<>();
+        this.configs = new ConfigMap();
         for (var r : serverSearchConfig.getResources()) {
             this.configs.put(r.getName(), r);
         }
@@ -62,10 +66,7 @@ public abstract class BaseSearchConfigService implements SearchConfigService {
      */
     @Override
     public Optional<SearchParamConfig> getSearchConfigByPath(FhirSearchPath path) {
-        if (!configs.containsKey(path.getResource())) {
-            return Optional.empty();
-        }
-        return getSearchConfigByResourceAndParamName(path.getResource(), path.getPath());
+        return getSnapshot().find(path.getResource(), path.getPath());
     }
 
     /**
@@ -77,33 +78,7 @@ public abstract class BaseSearchConfigService implements SearchConfigService {
      */
     @Override
     public Optional<SearchParamConfig> getSearchConfigByResourceAndParamName(String resourceType, String paramName) {
-        if (!configs.containsKey(resourceType)) {
-            return Optional.empty();
-        }
-
-        if (paramName.startsWith("links")) {
-            var parts = paramName.split("\\.");
-            if (parts.length != 3) {
-                return Optional.empty();
-            }
-
-            return configs.get(parts[1])
-                    .getSearchParams()
-                    .stream()
-                    .filter(conf -> conf.getUrlParameter().equals(parts[2]))
-                    .map(p -> SearchParamConfig.builder()
-                            .name(p.getName())
-                            .indexName(parts[0] + "." + parts[1] + "." + p.getIndexName())
-                            .resourcePaths(p.getResourcePaths()).urlParameter(p.getUrlParameter()).searchType("string").build())
-                    .findAny();
-
-        } else {
-            return configs.get(resourceType)
-                    .getSearchParams()
-                    .stream()
-                    .filter(conf -> conf.getUrlParameter().equals(paramName))
-                    .findAny();
-        }
+        return getSnapshot().find(resourceType, paramName);
     }
 
     @Override
@@ -127,42 +102,55 @@ public abstract class BaseSearchConfigService implements SearchConfigService {
 
     @Override
     public Set<String> getIndexesByFhirResource(String fhirResource) {
-        Set<String> indexes = new HashSet<>(getGenericIndexes());
-
-        for (var config : getAllByFhirResource(fhirResource)) {
-            if (config.isIndex()) {
-                switch (config.getSearchType()) {
-                    case StorageConstants.INDEX_TYPE_TOKEN -> {
-                        indexes.add(config.getIndexName() + StorageConstants.SYSTEM_SUFFIX);
-                        indexes.add(config.getIndexName() + StorageConstants.VALUE_SUFFIX);
-                        indexes.add(config.getIndexName() + StorageConstants.SYSVAL_SUFFIX);
-                    }
-                    case StorageConstants.INDEX_TYPE_REFERENCE -> {
-                        indexes.add(config.getIndexName() + StorageConstants.REFERENCE_SUFFIX);
-                        indexes.add(config.getIndexName() + StorageConstants.TYPE_SUFFIX);
-                        indexes.add(config.getIndexName() + StorageConstants.ID_SUFFIX);
-                    }
-                    default -> {
-                        indexes.add(config.getIndexName());
-                        indexes.add(config.getIndexName() + StorageConstants.INSENSITIVE_SUFFIX);
-                    }
-                }
-            }
-        }
+        return getSnapshot().getIndexes(fhirResource);
+    }
+
+    @Override
+    public List<String> getProjectionFields(String fhirResource) {
+        return getSnapshot().getProjectionFields(fhirResource);
+    }
 
-        return indexes;
+    /**
+     * Get the compiled configuration, compiled on the first call after a change of the configuration
+     *
+     * @return the snapshot of the configuration
+     */
+    public SearchConfigSnapshot getSnapshot() {
+        var current = this.snapshot;
+        if (current == null) {
+            current = SearchConfigSnapshot.compile(configs);
+            this.snapshot = current;
+        }
+        return current;
     }
 
-    private static List<String> getGenericIndexes() {
-        return Arrays.asList(
-                StorageConstants.INDEX_T_FID,
-                StorageConstants.INDEX_T_ID,
-                StorageConstants.INDEX_T_LASTUPDATED,
-                StorageConstants.INDEX_T_LASTUPDATED_SECOND,
-                StorageConstants.INDEX_T_LASTUPDATED_MINUTE,
-                StorageConstants.INDEX_T_LASTUPDATED_DATE,
-                StorageConstants.INDEX_T_LASTUPDATED_MONTH,
-                StorageConstants.INDEX_T_LASTUPDATED_YEAR
-        );
+    /**
+     * Map of configurations that drops the compiled configuration when it changes
+     */
+    private final class ConfigMap extends HashMap<String, FhirResourceSearchConfig> {
+
+        @Override
+        public FhirResourceSearchConfig put(String key, FhirResourceSearchConfig value) {
+            snapshot = null;
+            return super.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends FhirResourceSearchConfig> m) {
+            snapshot = null;
+            super.putAll(m);
+        }
+
+        @Override
+        public FhirResourceSearchConfig remove(Object key) {
+            snapshot = null;
+            return super.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            snapshot = null;
+            super.clear();
+        }
     }
 }
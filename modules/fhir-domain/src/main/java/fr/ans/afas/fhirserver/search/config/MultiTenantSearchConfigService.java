@@ -15,10 +15,30 @@ import java.util.*;
 
 /**
  * Access search config based on a tenant.
+ * <p>
+ * The configuration of tenants is the one of the {@link ServerSearchConfig}: the compiled configuration of each tenant
+ * is kept with the configuration it was compiled from, and is compiled again if the configuration of the server is
+ * replaced. A reload prepares the compiled configuration before the configuration of the server is replaced (see
+ * {@link #prepare(ServerSearchConfig, Map)}), so requests always see the compiled configuration of the tenants they are
+ * routed to.
+ * </p>
  */
 public class MultiTenantSearchConfigService implements SearchConfigService {
 
-    Map<String, BaseSearchConfigService> tenantConfigServices = new HashMap<>();
+    /**
+     * The configuration of the server
+     */
+    private final ServerSearchConfig serverSearchConfig;
+
+    /**
+     * The configuration by tenant of the current configuration of the server
+     */
+    private volatile Compiled compiled;
+
+    /**
+     * The configuration by tenant of the next configuration of the server (reload)
+     */
+    private volatile Compiled prepared;
 
     /**
      * Construct the search config
@@ -26,9 +46,44 @@ public class MultiTenantSearchConfigService implements SearchConfigService {
      * @param serverSearchConfig the configuration
      */
     public MultiTenantSearchConfigService(ServerSearchConfig serverSearchConfig) {
+        this.serverSearchConfig = serverSearchConfig;
+        this.compiled = new Compiled(serverSearchConfig.getConfigs(), compile(serverSearchConfig));
+    }
+
+    /**
+     * Create the configuration of each tenant
+     *
+     * @param serverSearchConfig the configuration
+     * @return the configuration by tenant
+     */
+    public static Map<String, BaseSearchConfigService> compile(ServerSearchConfig serverSearchConfig) {
+        var services = new HashMap<String, BaseSearchConfigService>();
         for (var ssc : serverSearchConfig.getConfigs().entrySet()) {
-            tenantConfigServices.put(ssc.getKey(), new CompositeSearchConfigService(List.of(ssc.getValue())));
+            var service = new CompositeSearchConfigService(List.of(ssc.getValue()));
+            // compiled now and not on the first request:
+            service.getSnapshot();
+            services.put(ssc.getKey(), service);
         }
+        return Map.copyOf(services);
+    }
+
+    /**
+     * Prepare the configuration of all tenants of the next configuration of the server. It's used when the
+     * configuration of the server is replaced by the one given. Requests that already resolved the configuration of
+     * their tenant (see {@link #forCurrentTenant()}) end with the previous one.
+     *
+     * @param next                 the next configuration of the server
+     * @param tenantConfigServices the configuration by tenant (see {@link #compile(ServerSearchConfig)})
+     */
+    public void prepare(ServerSearchConfig next, Map<String, BaseSearchConfigService> tenantConfigServices) {
+        this.prepared = new Compiled(next.getConfigs(), tenantConfigServices);
+    }
+
+    /**
+     * @return the configuration by tenant
+     */
+    public Map<String, BaseSearchConfigService> getTenantConfigServices() {
+        return current().services();
     }
 
     @Override
@@ -67,12 +122,53 @@ public class MultiTenantSearchConfigService implements SearchConfigService {
     }
 
 
+    @Override
+    public List<String> getProjectionFields(String fhirResource) {
+        return currentServerSearchConfig().getProjectionFields(fhirResource);
+    }
+
+    @Override
+    public SearchConfigService forCurrentTenant() {
+        return currentServerSearchConfig();
+    }
+
     private BaseSearchConfigService currentServerSearchConfig() {
         var tenant = TenantUtil.getCurrentTenant();
-        if (!tenantConfigServices.containsKey(tenant)) {
+        var service = tenant == null ? null : current().services().get(tenant);
+        if (service == null) {
             throw new NotFoundTenantException("Tenant not found: " + tenant);
         }
-        return this.tenantConfigServices.get(tenant);
+        return service;
+    }
+
+    /**
+     * Get the configuration by tenant of the current configuration of the server
+     *
+     * @return the compiled configuration
+     */
+    private Compiled current() {
+        var configs = serverSearchConfig.getConfigs();
+        var current = compiled;
+        if (current.configs() != configs) {
+            var next = prepared;
+            if (next != null && next.configs() == configs) {
+                current = next;
+            } else {
+                // the configuration was replaced without being prepared:
+                current = new Compiled(configs, compile(new ServerSearchConfig(configs)));
+            }
+            compiled = current;
+        }
+        return current;
+    }
+
+    /**
+     * The configuration by tenant compiled from a configuration of the server
+     *
+     * @param configs  the configuration of the server
+     * @param services the configuration by tenant
+     */
+    private record Compiled(Map<String, TenantSearchConfig> configs, Map<String, BaseSearchConfigService> services) {
     }
 
 
@@ -8,6 +8,7 @@ import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
 import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
 import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -70,4 +71,29 @@ public interface SearchConfigService {
     Set<String> getResources();
 
     Set<String> getIndexesByFhirResource(String fhirResource);
+
+    /**
+     * Get the fields of the resource that are always read when only some elements of the resource are returned
+     * (indexes and elements that are compulsory or modifier)
+     *
+     * @param fhirResource the resource
+     * @return the fields (in the storage)
+     */
+    default List<String> getProjectionFields(String fhirResource) {
+        var fields = new ArrayList<>(getIndexesByFhirResource(fhirResource));
+        getAllByFhirResource(fhirResource).stream()
+                .filter(s -> Boolean.TRUE.equals(s.getIsCompulsoryOrModifierElementsParam()))
+                .forEach(s -> fields.add("fhir.".concat(s.getName())));
+        return fields;
+    }
+
+    /**
+     * Get the configuration of the current tenant. Services that resolve the tenant on each call return the service
+     * of the tenant, so a request can resolve it once.
+     *
+     * @return the configuration of the current tenant
+     */
+    default SearchConfigService forCurrentTenant() {
+        return this;
+    }
 }
@@ -0,0 +1,168 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.search.config;
+
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The search configuration of a tenant compiled for the lookups done for each request.
+ * <p>
+ * Parameters are indexed by resource and url parameter, parameters of joined resources ({@code links.Resource.param})
+ * are resolved once, and the indexes and the projection fields of each resource are computed once. Immutable: a new
+ * snapshot is compiled when the configuration changes.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public final class SearchConfigSnapshot {
+
+    /**
+     * Prefix of the parameters of joined resources
+     */
+    private static final String LINKS_PREFIX = "links";
+
+    private static final List<String> GENERIC_INDEXES = List.of(
+            StorageConstants.INDEX_T_FID,
+            StorageConstants.INDEX_T_ID,
+            StorageConstants.INDEX_T_LASTUPDATED,
+            StorageConstants.INDEX_T_LASTUPDATED_SECOND,
+            StorageConstants.INDEX_T_LASTUPDATED_MINUTE,
+            StorageConstants.INDEX_T_LASTUPDATED_DATE,
+            StorageConstants.INDEX_T_LASTUPDATED_MONTH,
+            StorageConstants.INDEX_T_LASTUPDATED_YEAR
+    );
+
+    /**
+     * Parameters by resource then url parameter
+     */
+    private final Map<String, Map<String, Optional<SearchParamConfig>>> params;
+    /**
+     * Parameters of joined resources by full name (links.Resource.param)
+     */
+    private final Map<String, Optional<SearchParamConfig>> links;
+    private final Map<String, Set<String>> indexes;
+    private final Map<String, List<String>> projectionFields;
+
+    private SearchConfigSnapshot(Map<String, Map<String, Optional<SearchParamConfig>>> params, Map<String, Optional<SearchParamConfig>> links,
+                                 Map<String, Set<String>> indexes, Map<String, List<String>> projectionFields) {
+        this.params = params;
+        this.links = links;
+        this.indexes = indexes;
+        this.projectionFields = projectionFields;
+    }
+
+    /**
+     * Compile the configuration of resources
+     *
+     * @param configs the configuration by resource
+     * @return the snapshot
+     */
+    public static SearchConfigSnapshot compile(Map<String, FhirResourceSearchConfig> configs) {
+        var params = new HashMap<String, Map<String, Optional<SearchParamConfig>>>();
+        var links = new HashMap<String, Optional<SearchParamConfig>>();
+        var indexes = new HashMap<String, Set<String>>();
+        var projectionFields = new HashMap<String, List<String>>();
+        for (var entry : configs.entrySet()) {
+            var resource = entry.getKey();
+            var searchParams = Objects.requireNonNullElse(entry.getValue().getSearchParams(), List.<SearchParamConfig>of());
+            var byName = new HashMap<String, Optional<SearchParamConfig>>();
+            for (var p : searchParams) {
+                // the first parameter is used if a name is defined many times:
+                byName.putIfAbsent(p.getUrlParameter(), Optional.of(p));
+                links.putIfAbsent(LINKS_PREFIX + "." + resource + "." + p.getUrlParameter(), Optional.of(SearchParamConfig.builder()
+                        .name(p.getName())
+                        .indexName(LINKS_PREFIX + "." + resource + "." + p.getIndexName())
+                        .resourcePaths(p.getResourcePaths()).urlParameter(p.getUrlParameter()).searchType("string").build()));
+            }
+            params.put(resource, Map.copyOf(byName));
+            var resourceIndexes = indexesOf(searchParams);
+            indexes.put(resource, Collections.unmodifiableSet(resourceIndexes));
+            projectionFields.put(resource, projectionFieldsOf(resourceIndexes, searchParams));
+        }
+        return new SearchConfigSnapshot(Map.copyOf(params), Map.copyOf(links), Map.copyOf(indexes), Map.copyOf(projectionFields));
+    }
+
+    /**
+     * Get the configuration of a parameter
+     *
+     * @param resourceType the type of the resource
+     * @param paramName    the url parameter, or links.Resource.param for a parameter of a joined resource
+     * @return the configuration (empty if not found)
+     */
+    public Optional<SearchParamConfig> find(String resourceType, String paramName) {
+        var resourceParams = params.get(resourceType);
+        if (resourceParams == null) {
+            return Optional.empty();
+        }
+        if (paramName.startsWith(LINKS_PREFIX)) {
+            return links.getOrDefault(paramName, Optional.empty());
+        }
+        return resourceParams.getOrDefault(paramName, Optional.empty());
+    }
+
+    /**
+     * @param resourceType the type of the resource
+     * @return the indexed fields of the resource (unmodifiable)
+     */
+    public Set<String> getIndexes(String resourceType) {
+        return indexes.getOrDefault(resourceType, Set.copyOf(GENERIC_INDEXES));
+    }
+
+    /**
+     * @param resourceType the type of the resource
+     * @return the fields always read when only a part of the resource is returned (unmodifiable)
+     */
+    public List<String> getProjectionFields(String resourceType) {
+        return projectionFields.getOrDefault(resourceType, GENERIC_INDEXES);
+    }
+
+    private static Set<String> indexesOf(List<SearchParamConfig> searchParams) {
+        var indexes = new LinkedHashSet<>(GENERIC_INDEXES);
+        for (var config : searchParams) {
+            if (config.isIndex()) {
+                switch (config.getSearchType()) {
+                    case StorageConstants.INDEX_TYPE_TOKEN -> {
+                        indexes.add(config.getIndexName() + StorageConstants.SYSTEM_SUFFIX);
+                        indexes.add(config.getIndexName() + StorageConstants.VALUE_SUFFIX);
+                        indexes.add(config.getIndexName() + StorageConstants.SYSVAL_SUFFIX);
+                    }
+                    case StorageConstants.INDEX_TYPE_REFERENCE -> {
+                        indexes.add(config.getIndexName() + StorageConstants.REFERENCE_SUFFIX);
+                        indexes.add(config.getIndexName() + StorageConstants.TYPE_SUFFIX);
+                        indexes.add(config.getIndexName() + StorageConstants.ID_SUFFIX);
+                    }
+                    default -> {
+                        indexes.add(config.getIndexName());
+                        indexes.add(config.getIndexName() + StorageConstants.INSENSITIVE_SUFFIX);
+                    }
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * The indexes (used by includes, next pages...) and the compulsory or modifier elements of the resource
+     */
+    private static List<String> projectionFieldsOf(Set<String> indexes, List<SearchParamConfig> searchParams) {
+        var fields = new ArrayList<>(indexes);
+        searchParams.stream()
+                .filter(s -> Boolean.TRUE.equals(s.getIsCompulsoryOrModifierElementsParam()))
+                .forEach(s -> fields.add("fhir.".concat(s.getName())));
+        return List.copyOf(fields);
+    }
+}
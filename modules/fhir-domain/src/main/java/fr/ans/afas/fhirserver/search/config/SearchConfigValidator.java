@@ -0,0 +1,76 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.search.config;
+
+import fr.ans.afas.exception.CantLoadConfigurationException;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Check a search configuration before it's used, so a bad configuration loaded while the server is running doesn't
+ * replace the current one.
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public final class SearchConfigValidator {
+
+    private SearchConfigValidator() {
+    }
+
+    /**
+     * Check the configuration of the server
+     *
+     * @param serverSearchConfig the configuration
+     * @throws CantLoadConfigurationException with all the errors if the configuration is not valid
+     */
+    public static void validate(ServerSearchConfig serverSearchConfig) {
+        var errors = new ArrayList<String>();
+        if (serverSearchConfig.getConfigs().isEmpty()) {
+            errors.add("no tenant");
+        }
+        var paths = new HashSet<String>();
+        serverSearchConfig.getConfigs().forEach((name, config) -> {
+            validateTenant(name, config, errors);
+            if (config.getTenantConfig() != null && config.getTenantConfig().getPath() != null && !paths.add(config.getTenantConfig().getPath())) {
+                errors.add("tenant " + name + ": the path " + config.getTenantConfig().getPath() + " is used by another tenant");
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw new CantLoadConfigurationException("Bad search configuration: " + String.join(", ", errors));
+        }
+    }
+
+    private static void validateTenant(String name, TenantSearchConfig config, List<String> errors) {
+        if (config.getTenantConfig() == null || StringUtils.isBlank(config.getTenantConfig().getPath())) {
+            errors.add("tenant " + name + ": the path is required");
+        }
+        if (config.getResources() == null) {
+            errors.add("tenant " + name + ": the resources are required");
+            return;
+        }
+        var resources = new HashSet<String>();
+        for (var resource : config.getResources()) {
+            if (StringUtils.isBlank(resource.getName()) || !resources.add(resource.getName())) {
+                errors.add("tenant " + name + ": the resource name " + resource.getName() + " is empty or defined many times");
+                continue;
+            }
+            if (resource.getSearchParams() == null) {
+                errors.add("tenant " + name + ": the search parameters of " + resource.getName() + " are required");
+                continue;
+            }
+            for (var param : resource.getSearchParams()) {
+                if (StringUtils.isAnyBlank(param.getName(), param.getUrlParameter(), param.getSearchType())
+                        || (param.isIndex() && StringUtils.isBlank(param.getIndexName()))) {
+                    errors.add("tenant " + name + ": the parameter " + resource.getName() + "." + param.getUrlParameter() + " needs a name, an url parameter, a search type and an index name");
+                }
+            }
+        }
+    }
+}
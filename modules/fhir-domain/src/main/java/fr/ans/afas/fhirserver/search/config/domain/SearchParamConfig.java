@@ -41,5 +41,8 @@ public class SearchParamConfig {
     private boolean index = true;
     @Builder.Default
     private boolean indexInSubRequest = false;
+    //If true, the parameter can be used in _sort (only for string parameters, _id and _lastUpdated). An index is created (and a sort key for string parameters)
+    @Builder.Default
+    private boolean sortable = false;
 
 }
@@ -5,6 +5,8 @@ package fr.ans.afas.fhirserver.search.config.domain;
 
 import lombok.*;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -18,10 +20,28 @@ import java.util.Map;
 @NoArgsConstructor
 public class ServerSearchConfig {
 
-    private Map<String, TenantSearchConfig> configs;
+    /**
+     * The configuration by tenant, replaced as a whole when the configuration is reloaded
+     */
+    private volatile Map<String, TenantSearchConfig> configs;
 
     @Builder
     public ServerSearchConfig(@NonNull Map<String, TenantSearchConfig> configs) {
         this.configs = configs;
     }
+
+    /**
+     * Create the search config of the server from the configurations of tenants. If a tenant has many configurations,
+     * the first one is used.
+     *
+     * @param tenantSearchConfigs the configurations of tenants
+     * @return the search config of the server
+     */
+    public static ServerSearchConfig of(Collection<TenantSearchConfig> tenantSearchConfigs) {
+        Map<String, TenantSearchConfig> configs = new HashMap<>();
+        for (var tsc : tenantSearchConfigs) {
+            configs.putIfAbsent(tsc.getTenantConfig().getName(), tsc);
+        }
+        return new ServerSearchConfig(configs);
+    }
 }
@@ -17,4 +17,15 @@ public class Tenant {
     String dbname;
     String suffixCollection;
     boolean isDefault = false;
+    // read preference of the collections of the tenant (primary, secondaryPreferred...), the one of the client if empty
+    String readPreference;
+    // read concern level of the collections of the tenant (local, majority...), the one of the client if empty
+    String readConcern;
+    // write concern of the collections of the tenant (w1, majority...), the one of the client if empty
+    String writeConcern;
+    // connection string of the mongodb cluster of the tenant, the one of the server (afas.mongodb.uri) if empty
+    String mongoUri;
+    // size of the connection pool of the tenant. If set, the tenant has its own pool, even without mongoUri
+    Integer maxPoolSize;
+    Integer minPoolSize;
 }
\ No newline at end of file
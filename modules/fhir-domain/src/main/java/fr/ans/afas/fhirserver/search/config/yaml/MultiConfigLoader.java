@@ -39,27 +39,59 @@ public class MultiConfigLoader {
         }
     }
 
-    @SuppressWarnings("java:S3864")// peek is used for debug
+    /**
+     * Load the configurations of a folder of the classpath, or of the file system if the path is an absolute folder
+     *
+     * @param path the folder
+     * @return the configurations (one by yaml file)
+     */
     public List<TenantSearchConfig> loadConfigs(String path) throws URISyntaxException, IOException {
-        var url = Thread.currentThread().getContextClassLoader().getResource(path);
-        if (url != null) {
-            var folder = Paths.get(url.toURI());
-            try (var lst = Files.list(folder)) {
-                return lst.filter(Files::isRegularFile)
-                        .filter(MultiConfigLoader::isYamlFile)
-                        .sorted()
-                        // used for debug in production:
-                        .peek(p -> logger.info("Loading file: {}", p.getFileName()))
-                        .map(MultiConfigLoader::loadFile)
-                        .map(YamlFhirWrapper::getFhir)
-                        .toList();
-            }
-
+        var folder = resolveFolder(path);
+        if (folder != null) {
+            return loadConfigs(folder);
         } else {
             logger.debug("Dossier non trouvé dans le classpath");
         }
         return List.of();
     }
 
+    /**
+     * Load the configurations of a folder
+     *
+     * @param folder the folder
+     * @return the configurations (one by yaml file)
+     */
+    @SuppressWarnings("java:S3864")// peek is used for debug
+    public List<TenantSearchConfig> loadConfigs(Path folder) throws IOException {
+        try (var lst = Files.list(folder)) {
+            return lst.filter(Files::isRegularFile)
+                    .filter(MultiConfigLoader::isYamlFile)
+                    .sorted()
+                    // used for debug in production:
+                    .peek(p -> logger.info("Loading file: {}", p.getFileName()))
+                    .map(MultiConfigLoader::loadFile)
+                    .map(YamlFhirWrapper::getFhir)
+                    .toList();
+        }
+    }
+
+    /**
+     * Find a folder of configurations on the file system (absolute path) or in the classpath
+     *
+     * @param path the folder
+     * @return the folder or null if not found
+     */
+    public static Path resolveFolder(String path) throws URISyntaxException {
+        var fsFolder = Paths.get(path);
+        if (Files.isDirectory(fsFolder) && fsFolder.isAbsolute()) {
+            return fsFolder;
+        }
+        var url = Thread.currentThread().getContextClassLoader().getResource(path);
+        if (url != null) {
+            return Paths.get(url.toURI());
+        }
+        return null;
+    }
+
 
 }
@@ -35,4 +35,9 @@ public class SearchContext {
     private final Long total;
 
     private final Set<String> elements;
+
+    /**
+     * The paging id of the search (shared by all pages). Used to continue server-side cursors between pages.
+     */
+    private final String uuid;
 }
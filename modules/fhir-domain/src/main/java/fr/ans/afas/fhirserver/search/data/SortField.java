@@ -0,0 +1,62 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.search.data;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A key of the FHIR <code>_sort</code> parameter: a search parameter and a direction
+ * (<code>_sort=name,-_lastUpdated</code> is the list of keys "name ascending" and "_lastUpdated descending").
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Getter
+@EqualsAndHashCode
+public class SortField {
+
+    /**
+     * Prefix of descending keys in the <code>_sort</code> parameter
+     */
+    public static final String DESCENDING_PREFIX = "-";
+
+    /**
+     * The search parameter (url name)
+     */
+    private final String param;
+
+    /**
+     * True for a descending sort
+     */
+    private final boolean descending;
+
+    public SortField(@NonNull String param, boolean descending) {
+        this.param = param;
+        this.descending = descending;
+    }
+
+    /**
+     * Parse a key of the <code>_sort</code> parameter
+     *
+     * @param value the key (ex: <code>-name</code>)
+     * @return the sort field
+     */
+    public static SortField parse(@NonNull String value) {
+        var trimmed = value.trim();
+        if (trimmed.startsWith(DESCENDING_PREFIX)) {
+            return new SortField(trimmed.substring(1), true);
+        }
+        return new SortField(trimmed, false);
+    }
+
+    /**
+     * @return the key in the format of the <code>_sort</code> parameter
+     */
+    @Override
+    public String toString() {
+        return (descending ? DESCENDING_PREFIX : "") + param;
+    }
+}
@@ -6,10 +6,13 @@ package fr.ans.afas.fhirserver.search.expression;
 
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.*;
 import fr.ans.afas.exception.BadDataFormatException;
 import fr.ans.afas.exception.BadSelectExpression;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.data.TotalMode;
 import fr.ans.afas.fhirserver.search.exception.BadParametersException;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
@@ -61,6 +64,10 @@ public class SelectExpression<T> implements Expression<T> {
      */
     private final ContainerExpression<T> expression;
     private final List<HasCondition<T>> hasConditions = new ArrayList<>();
+    /**
+     * Sort keys (FHIR _sort). If empty, results are sorted by their internal id
+     */
+    private final List<SortField> sort = new ArrayList<>();
     /**
      * Item per pages
      */
@@ -77,6 +84,11 @@ public class SelectExpression<T> implements Expression<T> {
 
     Set<String> elements;
 
+    /**
+     * True if only the number of matches is requested (FHIR _summary=count)
+     */
+    boolean summaryCount;
+
     SelectExpressionMatching<OrExpression<T>, Object, FhirSearchPath, Object, OrExpression<T>> constructOrExpression;
 
     /**
@@ -229,6 +241,13 @@ public class SelectExpression<T> implements Expression<T> {
         return this;
     }
 
+    public SelectExpression<T> fromFhirParams(SortSpec theSort) {
+        for (var spec = theSort; spec != null; spec = spec.getChain()) {
+            this.sort.add(new SortField(spec.getParamName(), spec.getOrder() == SortOrderEnum.DESC));
+        }
+        return this;
+    }
+
     /**
      * Get the request
      *
@@ -347,13 +366,30 @@ public class SelectExpression<T> implements Expression<T> {
         this.elements = elements;
     }
 
+    /**
+     * Request only the number of matches (FHIR _summary=count)
+     *
+     * @param summaryCount true to request only the number of matches
+     */
+    public void setSummaryCount(boolean summaryCount) {
+        this.summaryCount = summaryCount;
+    }
+
+    /**
+     * @return true if no resource has to be returned, only the number of matches (_summary=count or _count=0)
+     */
+    public boolean isCountOnly() {
+        return summaryCount || (count != null && count == 0);
+    }
+
     @Override
     public String toString() {
         return "Select " +
                 this.fhirResource +
                 this.expression +
                 "\tCount:" +
-                this.count;
+                this.count +
+                (this.sort.isEmpty() ? "" : "\tSort:" + this.sort);
     }
 
     public void addHasCondition(HasCondition<T> expression) {
@@ -364,4 +400,9 @@ public class SelectExpression<T> implements Expression<T> {
         this.hasConditions.clear();
         this.hasConditions.addAll(expression);
     }
+
+    public void setSort(List<SortField> sort) {
+        this.sort.clear();
+        this.sort.addAll(sort);
+    }
 }
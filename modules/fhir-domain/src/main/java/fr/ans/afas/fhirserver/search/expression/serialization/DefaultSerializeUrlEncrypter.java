@@ -3,9 +3,12 @@
  */
 package fr.ans.afas.fhirserver.search.expression.serialization;
 
+import fr.ans.afas.exception.SerializationException;
 import fr.ans.afas.utils.AesEncrypter;
 import org.springframework.util.Assert;
 
+import java.util.Base64;
+
 /***
  * Default implementation of the Url encrypter. This encrypts value with a simple AES algorithm and compress the string.
  * @author Guillaume Poulériguen
@@ -36,4 +39,18 @@ public class DefaultSerializeUrlEncrypter implements SerializeUrlEncrypter {
         return aesEncrypter.decrypt(val);
     }
 
+    @Override
+    public String encryptBytes(byte[] val) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(aesEncrypter.encryptBytes(val));
+    }
+
+    @Override
+    public byte[] decryptBytes(String val) {
+        try {
+            return aesEncrypter.decryptBytes(Base64.getUrlDecoder().decode(val));
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Can't deserialize parameters.", e);
+        }
+    }
+
 }
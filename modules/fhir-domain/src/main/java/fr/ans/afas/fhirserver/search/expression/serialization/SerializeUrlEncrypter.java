@@ -3,6 +3,8 @@
  */
 package fr.ans.afas.fhirserver.search.expression.serialization;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Encrypt / decrypt serialized url.
  *
@@ -27,5 +29,25 @@ public interface SerializeUrlEncrypter {
      */
     String decrypt(String val);
 
+    /**
+     * Encrypt binary data to an url safe string. By default, bytes are mapped to chars and encrypted with {@link #encrypt(String)}
+     *
+     * @param val the bytes to encrypt
+     * @return the encrypted version of the bytes
+     */
+    default String encryptBytes(byte[] val) {
+        return encrypt(new String(val, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Decrypt a string encrypted with {@link #encryptBytes(byte[])}. The {@link DefaultSerializeUrlEncrypter} also returns
+     * the UTF-8 bytes of strings encrypted with {@link #encrypt(String)}, so a value of unknown format is decrypted only once
+     *
+     * @param val the value
+     * @return the original bytes
+     */
+    default byte[] decryptBytes(String val) {
+        return decrypt(val).getBytes(StandardCharsets.ISO_8859_1);
+    }
 
 }
@@ -9,6 +9,7 @@ import fr.ans.afas.fhirserver.search.data.SearchContext;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface FhirPageIterator extends Iterator<FhirBundleBuilder.BundleEntry>, AutoCloseable {
 
@@ -25,4 +26,31 @@ public interface FhirPageIterator extends Iterator<FhirBundleBuilder.BundleEntry
     Set<String> getElements();
 
     boolean hasNextPage();
+
+    /**
+     * Check if the total of the search is known. The total can be calculated concurrently with the fetch of the first page.
+     *
+     * @return true if the total is calculated (the total can be null if the total mode don't ask for it)
+     */
+    default boolean isTotalCalculated() {
+        return true;
+    }
+
+    /**
+     * Get the total of the search and wait for the end of the calculation if needed.
+     *
+     * @return the total or null if not calculated
+     */
+    default Long awaitTotal() {
+        return searchContext().getTotal();
+    }
+
+    /**
+     * Get the total of the search without waiting for the end of the calculation.
+     *
+     * @return the future total, completed with null if the total mode don't ask for it
+     */
+    default CompletableFuture<Long> totalFuture() {
+        return CompletableFuture.completedFuture(searchContext().getTotal());
+    }
 }
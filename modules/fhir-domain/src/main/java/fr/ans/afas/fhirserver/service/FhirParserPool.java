@@ -0,0 +1,173 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.Getter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of parsers of a {@link FhirContext}, shared by all threads.
+ * <p>
+ * Creating a parser for each resource is costly and parsers can't be used by two threads at the same time. A parser
+ * is borrowed for one operation and given back to the pool (see {@link #jsonParser()}), so parsers are reused whatever
+ * the thread (virtual threads included). A parser is created when the pool is empty; the pool keeps at most a bounded
+ * number of free parsers. The options of the parsers must not be changed (use {@link FhirContext#newJsonParser()} to
+ * get a parser with specific options).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class FhirParserPool {
+
+    /**
+     * Default max number of free parsers kept
+     */
+    public static final int DEFAULT_MAX_IDLE = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * The context of parsers
+     */
+    @Getter
+    private final FhirContext fhirContext;
+
+    /**
+     * Free json parsers
+     */
+    private final BlockingQueue<IParser> jsonParsers;
+
+    /**
+     * Create the pool
+     *
+     * @param fhirContext the context of parsers
+     */
+    public FhirParserPool(FhirContext fhirContext) {
+        this(fhirContext, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Create the pool
+     *
+     * @param fhirContext the context of parsers
+     * @param maxIdle     the max number of free parsers kept
+     */
+    public FhirParserPool(FhirContext fhirContext, int maxIdle) {
+        this.fhirContext = fhirContext;
+        this.jsonParsers = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * The pool of the shared R4 context ({@link FhirContext#forR4Cached()}). Used where the context can't be injected
+     *
+     * @return the pool
+     */
+    public static FhirParserPool forR4() {
+        return R4Holder.POOL;
+    }
+
+    /**
+     * Borrow a json parser. The parser is given back to the pool when the lease is closed and must not be used after:
+     * <pre>
+     * try (var parser = pool.jsonParser()) {
+     *     parser.get().encodeResourceToString(resource);
+     * }
+     * </pre>
+     *
+     * @return the lease of the parser
+     */
+    public Lease jsonParser() {
+        var parser = jsonParsers.poll();
+        return new Lease(parser != null ? parser : fhirContext.newJsonParser());
+    }
+
+    /**
+     * Parse a resource in json with a parser of the pool
+     *
+     * @param reader the json
+     * @return the resource
+     */
+    public IBaseResource parseResource(Reader reader) {
+        try (var parser = jsonParser()) {
+            return parser.get().parseResource(reader);
+        }
+    }
+
+    /**
+     * Encode a resource in json with a parser of the pool
+     *
+     * @param resource the resource
+     * @return the json
+     */
+    public String encodeResourceToString(IBaseResource resource) {
+        try (var parser = jsonParser()) {
+            return parser.get().encodeResourceToString(resource);
+        }
+    }
+
+    /**
+     * Encode a resource in json to a writer with a parser of the pool
+     *
+     * @param resource the resource
+     * @param writer   the writer
+     * @throws IOException if the writer fails
+     */
+    public void encodeResourceToWriter(IBaseResource resource, Writer writer) throws IOException {
+        try (var parser = jsonParser()) {
+            parser.get().encodeResourceToWriter(resource, writer);
+        }
+    }
+
+    /**
+     * @return the number of free parsers
+     */
+    public int getIdle() {
+        return jsonParsers.size();
+    }
+
+    /**
+     * A parser borrowed from the pool
+     */
+    public final class Lease implements AutoCloseable {
+
+        private IParser parser;
+
+        private Lease(IParser parser) {
+            this.parser = parser;
+        }
+
+        /**
+         * @return the parser
+         * @throws IllegalStateException if the parser was given back
+         */
+        public IParser get() {
+            if (parser == null) {
+                throw new IllegalStateException("The parser was given back to the pool");
+            }
+            return parser;
+        }
+
+        /**
+         * Give the parser back to the pool (the parser is dropped if the pool is full)
+         */
+        @Override
+        public void close() {
+            if (parser != null) {
+                jsonParsers.offer(parser);
+                parser = null;
+            }
+        }
+    }
+
+    private static class R4Holder {
+        private static final FhirParserPool POOL = new FhirParserPool(FhirContext.forR4Cached());
+    }
+}
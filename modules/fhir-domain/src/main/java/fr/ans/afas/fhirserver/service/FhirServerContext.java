@@ -7,7 +7,9 @@ package fr.ans.afas.fhirserver.service;
 import ca.uhn.fhir.context.FhirContext;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
+import fr.ans.afas.fhirserver.service.admission.AdmissionController;
 import lombok.Getter;
+import lombok.Setter;
 
 /**
  * A context that contains services and managers
@@ -23,15 +25,34 @@ public class FhirServerContext<T> {
     protected final SearchConfigService searchConfigService;
     protected final NextUrlManager<T> nextUrlManager;
     protected final FhirContext fhirContext;
+    /**
+     * Parsers of the fhir context
+     */
+    protected final FhirParserPool parserPool;
     protected final SecurityService securityService;
+    /**
+     * The executor of blocking storage work. Null to run the work in the threads of the servlet container
+     */
+    @Setter
+    protected StorageExecutor storageExecutor;
+    /**
+     * The admission control of requests by tenant. Null to not limit requests
+     */
+    @Setter
+    protected AdmissionController admissionController;
 
     public FhirServerContext(FhirStoreService<T> fhirStoreService, MultiTenantService multiTenantService, ExpressionFactory<T> expressionFactory, SearchConfigService searchConfigService, NextUrlManager<T> nextUrlManager, SecurityService securityService) {
+        this(fhirStoreService, multiTenantService, expressionFactory, searchConfigService, nextUrlManager, securityService, FhirContext.forR4Cached());
+    }
+
+    public FhirServerContext(FhirStoreService<T> fhirStoreService, MultiTenantService multiTenantService, ExpressionFactory<T> expressionFactory, SearchConfigService searchConfigService, NextUrlManager<T> nextUrlManager, SecurityService securityService, FhirContext fhirContext) {
         this.fhirStoreService = fhirStoreService;
         this.multiTenantService = multiTenantService;
         this.expressionFactory = expressionFactory;
         this.searchConfigService = searchConfigService;
         this.nextUrlManager = nextUrlManager;
         this.securityService = securityService;
-        this.fhirContext = FhirContext.forR4();
+        this.fhirContext = fhirContext;
+        this.parserPool = fhirContext == FhirParserPool.forR4().getFhirContext() ? FhirParserPool.forR4() : new FhirParserPool(fhirContext);
     }
 }
@@ -0,0 +1,228 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import fr.ans.afas.fhirserver.http.FhirRequestParser;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
+import fr.ans.afas.utils.TenantUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.StringReader;
+import java.util.function.UnaryOperator;
+
+/**
+ * Warm up the server before it accepts requests.
+ * <p>
+ * Fhir models are loaded lazily and the first requests after a start are slow. For each resource configured, the warm
+ * up builds a sample with a value on the path of each search parameter, encodes and parses it, serializes it like the
+ * storage does (indexes included, see {@link #setStorageRoundTrip(UnaryOperator)}) and parses a query on each search
+ * parameter, many times so the JIT compiles the code. Errors are logged and don't stop the warm up.
+ * </p>
+ *
+ * @param <T> the type of expressions
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class FhirWarmUp<T> {
+
+    private final FhirParserPool parserPool;
+    private final ServerSearchConfig serverSearchConfig;
+    private final SearchConfigService searchConfigService;
+    private final ExpressionFactory<T> expressionFactory;
+
+    /**
+     * Number of times each operation is run
+     */
+    private final int iterations;
+
+    /**
+     * Serialize a resource like the storage and read it back, without writing it (null to skip)
+     */
+    private UnaryOperator<IBaseResource> storageRoundTrip;
+
+    /**
+     * Create the warm up
+     *
+     * @param parserPool          the parsers
+     * @param serverSearchConfig  the configuration of tenants
+     * @param searchConfigService the search configuration
+     * @param expressionFactory   the expression factory
+     * @param iterations          number of times each operation is run
+     */
+    public FhirWarmUp(FhirParserPool parserPool, ServerSearchConfig serverSearchConfig, SearchConfigService searchConfigService, ExpressionFactory<T> expressionFactory, int iterations) {
+        this.parserPool = parserPool;
+        this.serverSearchConfig = serverSearchConfig;
+        this.searchConfigService = searchConfigService;
+        this.expressionFactory = expressionFactory;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Set the serialization of the storage. The serializers of the storage are warmed up with the samples
+     *
+     * @param storageRoundTrip serialize a resource like the storage and read it back, without writing it
+     */
+    public void setStorageRoundTrip(UnaryOperator<IBaseResource> storageRoundTrip) {
+        this.storageRoundTrip = storageRoundTrip;
+    }
+
+    /**
+     * Run the warm up
+     *
+     * @return the number of operations run with success
+     */
+    public long run() {
+        var start = System.currentTimeMillis();
+        var success = 0L;
+        try {
+            for (var tenant : serverSearchConfig.getConfigs().entrySet()) {
+                TenantUtil.setCurrentTenant(tenant.getKey());
+                for (var resource : tenant.getValue().getResources()) {
+                    success += warmUp(resource);
+                }
+            }
+        } finally {
+            // the warm up runs in a thread of the startup, no tenant is bound after it:
+            TenantUtil.clear();
+        }
+        log.info("Warm up done in {}ms ({} operations)", System.currentTimeMillis() - start, success);
+        return success;
+    }
+
+    private long warmUp(FhirResourceSearchConfig resource) {
+        IBaseResource sample;
+        try {
+            sample = sample(resource);
+        } catch (RuntimeException e) {
+            log.debug("Resource {} can't be warmed up", resource.getName(), e);
+            return 0;
+        }
+        var success = 0L;
+        for (var i = 0; i < iterations; i++) {
+            success += roundTrip(resource, sample);
+            if (resource.getSearchParams() != null) {
+                for (var param : resource.getSearchParams()) {
+                    success += parse(resource.getName() + "?" + param.getUrlParameter() + "=" + sampleValue(param));
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Encode and parse the sample, then serialize it like the storage
+     */
+    private long roundTrip(FhirResourceSearchConfig resource, IBaseResource sample) {
+        var success = 0L;
+        try {
+            parserPool.parseResource(new StringReader(parserPool.encodeResourceToString(sample)));
+            success++;
+            if (storageRoundTrip != null) {
+                storageRoundTrip.apply(sample);
+                success++;
+            }
+        } catch (RuntimeException e) {
+            log.debug("Error warming up the resource {}", resource.getName(), e);
+        }
+        return success;
+    }
+
+    /**
+     * Build a sample of a resource with a value on the path of each search parameter
+     *
+     * @param resource the resource
+     * @return the sample
+     */
+    IBaseResource sample(FhirResourceSearchConfig resource) {
+        var sample = parserPool.getFhirContext().getResourceDefinition(resource.getName()).newInstance();
+        sample.setId(resource.getName() + "/warm-up");
+        if (resource.getSearchParams() == null) {
+            return sample;
+        }
+        var terser = parserPool.getFhirContext().newTerser();
+        for (var param : resource.getSearchParams()) {
+            if (param.getResourcePaths() == null) {
+                continue;
+            }
+            for (var path : param.getResourcePaths()) {
+                var fullPath = resource.getName() + "." + path.getPath().replace('|', '.');
+                try {
+                    fill(terser.addElement(sample, fullPath));
+                } catch (RuntimeException e) {
+                    // paths with choices or extensions are not warmed up:
+                    log.debug("The path {} can't be warmed up", fullPath, e);
+                }
+            }
+        }
+        return sample;
+    }
+
+    private static void fill(IBase element) {
+        if (element instanceof IPrimitiveType<?> primitive) {
+            if (!(primitive instanceof Enumeration<?>)) {
+                primitive.setValueAsString(samplePrimitive(primitive));
+            }
+        } else if (element instanceof Identifier identifier) {
+            identifier.setSystem("http://warm-up").setValue("1");
+        } else if (element instanceof CodeableConcept codeableConcept) {
+            codeableConcept.addCoding().setSystem("http://warm-up").setCode("code").setDisplay("display");
+        } else if (element instanceof Coding coding) {
+            coding.setSystem("http://warm-up").setCode("code");
+        } else if (element instanceof Reference reference) {
+            reference.setReference("Organization/warm-up");
+        } else if (element instanceof HumanName humanName) {
+            humanName.setFamily("Family").addGiven("Given").addPrefix("Dr");
+        } else if (element instanceof Address address) {
+            address.addLine("1 rue de la paix").setCity("Paris").setPostalCode("75001").setCountry("FR");
+        } else if (element instanceof ContactPoint contactPoint) {
+            contactPoint.setValue("0100000000");
+        }
+    }
+
+    private static String samplePrimitive(IPrimitiveType<?> primitive) {
+        if (primitive instanceof InstantType) {
+            return "2024-01-01T00:00:00Z";
+        } else if (primitive instanceof BaseDateTimeType) {
+            return "2024-01-01";
+        } else if (primitive instanceof BooleanType) {
+            return "true";
+        } else if (primitive instanceof IntegerType || primitive instanceof DecimalType) {
+            return "1";
+        }
+        return "warm-up";
+    }
+
+    private long parse(String query) {
+        try {
+            FhirRequestParser.parseSelectExpression(query, expressionFactory, searchConfigService);
+            return 1;
+        } catch (Exception e) {
+            log.debug("Error warming up the query {}", query, e);
+            return 0;
+        }
+    }
+
+    private static String sampleValue(SearchParamConfig param) {
+        if (param.getSearchType() == null) {
+            return "a";
+        }
+        return switch (param.getSearchType()) {
+            case "token" -> "system|code";
+            case "date" -> "ge2024-01-01";
+            case "reference" -> "Organization/1";
+            case "number", "quantity" -> "1";
+            case "uri" -> "http://a";
+            default -> "a";
+        };
+    }
+}
@@ -3,6 +3,9 @@
  */
 package fr.ans.afas.fhirserver.service;
 
+import fr.ans.afas.fhirserver.service.data.IndexStatus;
+
+import java.util.Optional;
 
 /**
  * Service to manage indexes
@@ -27,4 +30,13 @@ public interface IndexService {
      * @return status of the indexing process true == running
      */
     boolean isRunning();
+
+    /**
+     * Get the progress of the last indexing job of the current tenant.
+     *
+     * @return the progress or empty if no job was launched
+     */
+    default Optional<IndexStatus> getStatus() {
+        return Optional.empty();
+    }
 }
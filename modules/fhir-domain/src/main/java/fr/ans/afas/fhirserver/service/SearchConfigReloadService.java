@@ -0,0 +1,46 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import fr.ans.afas.fhirserver.service.data.ReloadStatus;
+
+import java.util.Optional;
+
+/**
+ * Reload the search configuration while the server is running.
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public interface SearchConfigReloadService {
+
+    /**
+     * Launch the reload of the search configuration in background: the new configuration is checked, the new indexes
+     * are created, then the configuration is replaced.
+     *
+     * @return false if a reload is already running
+     */
+    boolean reload();
+
+    /**
+     * Reload the search configuration and wait the end of the reload
+     *
+     * @return the result of the reload
+     */
+    ReloadStatus reloadSync();
+
+    /**
+     * Tell if the configuration is being reloaded
+     *
+     * @return true if a reload is running
+     */
+    boolean isRunning();
+
+    /**
+     * Get the result of the last reload
+     *
+     * @return the result or empty if the configuration was never reloaded
+     */
+    Optional<ReloadStatus> getStatus();
+}
@@ -0,0 +1,230 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import fr.ans.afas.audit.AuditInformation;
+import fr.ans.afas.audit.AuditUtils;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.RequestDeadline;
+import fr.ans.afas.utils.TenantUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Executor of blocking storage work (calls to the {@link FhirStoreService}, reads of cursors...).
+ * <p>
+ * The work of the async servlet is run here instead of the threads of the servlet container, so slow database
+ * responses don't exhaust the threads of the container. Virtual threads are used when the JVM supports them (java
+ * 21+), otherwise a fixed pool of threads with a bounded queue: when the queue is full, the work is rejected with a
+ * {@link TooManyRequestsException} (429).
+ * </p>
+ * <p>
+ * The tenant ({@link TenantUtil}), the audit information ({@link AuditUtils}) and the deadline of the request
+ * ({@link RequestDeadline}) of the calling thread are set in the thread that runs the work and cleaned after.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class StorageExecutor implements Closeable {
+
+    /**
+     * Default number of works waiting for a thread of the pool
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Number of seconds the client should wait before retrying a rejected request
+     */
+    private static final long RETRY_AFTER = 1;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create the executor
+     *
+     * @param executor the executor used to run the work
+     */
+    public StorageExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Create the executor with virtual threads if the JVM supports them, otherwise with a fixed pool of threads
+     *
+     * @param virtualThreads true to use virtual threads when available
+     * @param threads        the number of threads of the pool if virtual threads are not used
+     * @return the executor
+     */
+    public static StorageExecutor create(boolean virtualThreads, int threads) {
+        return create(virtualThreads, threads, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create the executor with virtual threads if the JVM supports them, otherwise with a fixed pool of threads
+     *
+     * @param virtualThreads true to use virtual threads when available
+     * @param threads        the number of threads of the pool if virtual threads are not used
+     * @param queueSize      the number of works waiting for a thread of the pool. Other works are rejected
+     * @return the executor
+     */
+    public static StorageExecutor create(boolean virtualThreads, int threads, int queueSize) {
+        if (virtualThreads) {
+            try {
+                // java 21+:
+                var executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Storage work runs on virtual threads");
+                return new StorageExecutor(executor);
+            } catch (ReflectiveOperationException e) {
+                log.info("Virtual threads are not supported by the JVM, storage work runs on {} threads", threads);
+            }
+        }
+        var count = new AtomicInteger();
+        return new StorageExecutor(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            var thread = new Thread(r, "afas-storage-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    /**
+     * Run a work
+     *
+     * @param task the work
+     * @throws TooManyRequestsException if the executor is full
+     */
+    public void execute(Runnable task) {
+        submit(withContext(task));
+    }
+
+    /**
+     * Run a work that returns a value
+     *
+     * @param task the work
+     * @param <R>  the type of the value
+     * @return the value
+     * @throws TooManyRequestsException if the executor is full
+     */
+    public <R> CompletableFuture<R> supply(Supplier<R> task) {
+        var future = new CompletableFuture<R>();
+        submit(withContext(() -> {
+            try {
+                future.complete(task.get());
+            } catch (RuntimeException e) {
+                // the error is given to the caller and logged once:
+                future.completeExceptionally(e);
+                failed(e);
+            }
+        }));
+        return future;
+    }
+
+    private void submit(Runnable task) {
+        submitted.increment();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new TooManyRequestsException("The server is overloaded, retry later", RETRY_AFTER);
+        }
+    }
+
+    private void failed(RuntimeException e) {
+        failures.increment();
+        log.error("Error running storage work", e);
+    }
+
+    /**
+     * Wrap a work to run it with the tenant, the audit information and the deadline of the current thread
+     *
+     * @param task the work
+     * @return the wrapped work
+     */
+    Runnable withContext(Runnable task) {
+        return withContext(TenantUtil.getCurrentTenant(), AuditUtils.get(), RequestDeadline.get(), task);
+    }
+
+    /**
+     * Get an executor that runs works with the tenant, the audit information and the deadline of the current thread,
+     * whatever the thread that submits the works
+     *
+     * @return the executor
+     */
+    public Executor bindContext() {
+        var tenant = TenantUtil.getCurrentTenant();
+        var audit = AuditUtils.get();
+        var deadline = RequestDeadline.get();
+        return task -> submit(withContext(tenant, audit, deadline, task));
+    }
+
+    private Runnable withContext(String tenant, AuditInformation audit, RequestDeadline deadline, Runnable task) {
+        return () -> {
+            active.incrementAndGet();
+            TenantUtil.setCurrentTenant(tenant);
+            AuditUtils.store(audit);
+            RequestDeadline.set(deadline);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failed(e);
+            } finally {
+                active.decrementAndGet();
+                TenantUtil.clear();
+                AuditUtils.clean();
+                RequestDeadline.clear();
+            }
+        };
+    }
+
+    /**
+     * @return the number of works running
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of works submitted
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of works ended with an error
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of works rejected because the executor was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.admission;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Limit of concurrent requests of a tenant for a class of operation, with a bounded queue of waiting requests.
+ * <p>
+ * The limit adapts to the latency observed (AIMD): it increases by one per window of requests (1/limit per request)
+ * while requests are faster than the threshold and the limit is used, and is multiplied by the backoff ratio when a
+ * request is slower than the threshold or fails. So a tenant that runs heavy queries (e.g. _has, :contains) gets
+ * less concurrent access to the database, and the others keep their latency. The latency of a request is the time
+ * given by the caller (e.g. the time spent working on the request, without the time waiting for the client), or the
+ * time since the admission.
+ * </p>
+ * <p>
+ * Requests are not blocked: a request that waits for a slot is started by the thread that releases the slot.
+ * Requests that can't wait (queue full, wait too long) are rejected with a {@link TooManyRequestsException}. The
+ * expiry of a waiting request is scheduled when it's queued, so it's rejected after the max wait even if no other
+ * request reaches the limiter.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class AdaptiveLimiter {
+
+    private final int min;
+    private final int max;
+    private final int queueSize;
+    private final long maxWait;
+    private final long latencyThreshold;
+    private final double backoffRatio;
+    private final LongSupplier clock;
+    /**
+     * Reject the requests that waited too long (can be null: the queue is checked at each call of the limiter)
+     */
+    private final ScheduledExecutorService scheduler;
+
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    /**
+     * Average latency of requests (ns)
+     */
+    private double averageLatency;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Create the limiter
+     *
+     * @param config    the configuration of the limit
+     * @param scheduler the scheduler of the expiry of waiting requests
+     */
+    public AdaptiveLimiter(AfasConfiguration.AdmissionLimit config, ScheduledExecutorService scheduler) {
+        this(config, System::nanoTime, scheduler);
+    }
+
+    AdaptiveLimiter(AfasConfiguration.AdmissionLimit config, LongSupplier clock, ScheduledExecutorService scheduler) {
+        this.min = Math.max(1, config.getMin());
+        this.max = Math.max(this.min, config.getMax());
+        this.queueSize = Math.max(0, config.getQueueSize());
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(config.getMaxWait());
+        this.latencyThreshold = TimeUnit.MILLISECONDS.toNanos(config.getLatencyThreshold());
+        this.backoffRatio = config.getBackoffRatio();
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.limit = Math.min(this.max, Math.max(this.min, config.getInitial()));
+    }
+
+    /**
+     * Ask a slot. The task is run now if a slot is free, later (by the thread that releases a slot) if the request can
+     * wait, otherwise the rejection is called
+     *
+     * @param task   the work to run when the request is admitted
+     * @param reject called if the request is rejected
+     * @return the ticket of the request, to release when the request ends
+     */
+    public Ticket submit(Runnable task, Consumer<TooManyRequestsException> reject) {
+        var ticket = new Ticket(this, task, reject);
+        var actions = new ArrayList<Runnable>();
+        synchronized (this) {
+            expire(actions);
+            if (inFlight < (int) limit && queue.isEmpty()) {
+                admit(ticket, actions);
+            } else if (queue.size() < queueSize) {
+                ticket.enqueuedAt = clock.getAsLong();
+                queue.addLast(ticket);
+                scheduleExpiry(ticket);
+            } else {
+                reject(ticket, "Too many requests, the queue is full", actions);
+            }
+        }
+        actions.forEach(Runnable::run);
+        return ticket;
+    }
+
+    /**
+     * End a request: release the slot of an admitted request (and adapt the limit), or remove a waiting request from
+     * the queue and reject it
+     *
+     * @param ticket  the request
+     * @param failed  true if the request failed
+     * @param latency the latency of the request (ns) or null for the time since the admission
+     */
+    void release(Ticket ticket, boolean failed, Long latency) {
+        var actions = new ArrayList<Runnable>();
+        synchronized (this) {
+            if (ticket.state == State.WAITING) {
+                queue.remove(ticket);
+                reject(ticket, "Too many requests, no slot was free in time", actions);
+            } else if (ticket.state == State.ADMITTED) {
+                ticket.state = State.DONE;
+                if (latency == null) {
+                    latency = clock.getAsLong() - ticket.admittedAt;
+                }
+                averageLatency = averageLatency == 0 ? latency : averageLatency * 0.9 + latency * 0.1;
+                if (failed || latency > latencyThreshold) {
+                    dropped.increment();
+                    limit = Math.max(min, limit * backoffRatio);
+                } else if (inFlight * 2 >= limit) {
+                    limit = Math.min(max, limit + 1 / limit);
+                }
+                inFlight--;
+                expire(actions);
+                while (inFlight < (int) limit && !queue.isEmpty()) {
+                    admit(queue.pollFirst(), actions);
+                }
+            }
+        }
+        actions.forEach(Runnable::run);
+    }
+
+    private void admit(Ticket ticket, List<Runnable> actions) {
+        cancelExpiry(ticket);
+        inFlight++;
+        admitted.increment();
+        ticket.state = State.ADMITTED;
+        ticket.admittedAt = clock.getAsLong();
+        actions.add(ticket.task);
+    }
+
+    private void reject(Ticket ticket, String message, List<Runnable> actions) {
+        cancelExpiry(ticket);
+        rejected.increment();
+        ticket.state = State.DONE;
+        var e = new TooManyRequestsException(message, retryAfter());
+        actions.add(() -> ticket.reject.accept(e));
+    }
+
+    /**
+     * Reject requests that waited too long
+     */
+    private void expire(List<Runnable> actions) {
+        var now = clock.getAsLong();
+        while (!queue.isEmpty() && now - queue.peekFirst().enqueuedAt > maxWait) {
+            reject(queue.pollFirst(), "Too many requests, no slot was free in time", actions);
+        }
+    }
+
+    /**
+     * Reject the requests that waited too long. Called by the scheduler
+     */
+    void expire() {
+        var actions = new ArrayList<Runnable>();
+        synchronized (this) {
+            expire(actions);
+        }
+        actions.forEach(Runnable::run);
+    }
+
+    private void scheduleExpiry(Ticket ticket) {
+        if (scheduler != null) {
+            try {
+                ticket.expiry = scheduler.schedule((Runnable) this::expire, maxWait + 1, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the scheduler is stopped, the queue is checked at each call of the limiter
+            }
+        }
+    }
+
+    private static void cancelExpiry(Ticket ticket) {
+        if (ticket.expiry != null) {
+            ticket.expiry.cancel(false);
+            ticket.expiry = null;
+        }
+    }
+
+    /**
+     * @return the estimated number of seconds before a slot is free for a new request
+     */
+    private long retryAfter() {
+        var seconds = averageLatency * (queue.size() + 1) / limit / TimeUnit.SECONDS.toNanos(1);
+        return Math.max(1, (long) Math.ceil(seconds));
+    }
+
+    /**
+     * @return the current limit of concurrent requests
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of requests running
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of requests admitted
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return the number of requests rejected
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of requests that were slow or failed (the limit decreased)
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private enum State {
+        WAITING, ADMITTED, DONE
+    }
+
+    /**
+     * A request submitted to a limiter
+     */
+    public static final class Ticket {
+
+        /**
+         * Ticket of requests that are not limited
+         */
+        public static final Ticket UNLIMITED = new Ticket(null, null, null);
+
+        private final AdaptiveLimiter limiter;
+        private final Runnable task;
+        private final Consumer<TooManyRequestsException> reject;
+        private State state = State.WAITING;
+        private long enqueuedAt;
+        private long admittedAt;
+        private Future<?> expiry;
+
+        private Ticket(AdaptiveLimiter limiter, Runnable task, Consumer<TooManyRequestsException> reject) {
+            this.limiter = limiter;
+            this.task = task;
+            this.reject = reject;
+        }
+
+        /**
+         * End the request. The latency is the time since the admission. Can be called many times, only the first call
+         * is used
+         *
+         * @param failed true if the request failed (e.g. timeout), the limit decreases
+         */
+        public void release(boolean failed) {
+            if (limiter != null) {
+                limiter.release(this, failed, null);
+            }
+        }
+
+        /**
+         * End the request. Can be called many times, only the first call is used
+         *
+         * @param failed  true if the request failed (e.g. timeout), the limit decreases
+         * @param latency the latency of the request (ns), e.g. the time spent working on the request
+         */
+        public void release(boolean failed, long latency) {
+            if (limiter != null) {
+                limiter.release(this, failed, latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.admission;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
+
+/**
+ * Admission control of requests by tenant and class of operation.
+ * <p>
+ * Each tenant has its own {@link AdaptiveLimiter} for each class of operation that has a limit in the configuration, so
+ * the heavy requests of a tenant don't take all the connections to the database. The limits of a tenant can be
+ * overridden in the configuration. The requests that wait too long for a slot are rejected by a scheduler shared by
+ * all limiters.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class AdmissionController implements Closeable {
+
+    /**
+     * Limits by class of operation
+     */
+    private final Map<OperationClass, AfasConfiguration.AdmissionLimit> limits;
+    /**
+     * Limits by tenant, then by class of operation
+     */
+    private final Map<String, Map<OperationClass, AfasConfiguration.AdmissionLimit>> tenantLimits = new HashMap<>();
+    /**
+     * Limiters by tenant, created on the first request of the tenant
+     */
+    private final Map<String, Map<OperationClass, AdaptiveLimiter>> limiters = new ConcurrentHashMap<>();
+    /**
+     * Reject the requests that waited too long
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Create the controller
+     *
+     * @param admission the configuration
+     */
+    public AdmissionController(AfasConfiguration.Admission admission) {
+        this.limits = toOperationClasses(admission.getLimits());
+        admission.getTenants().forEach((tenant, l) -> tenantLimits.put(tenant, toOperationClasses(l)));
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            var thread = new Thread(r, "afas-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the expiry of a request is cancelled when the request is admitted:
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Ask a slot for a request of the tenant
+     *
+     * @param tenant         the tenant
+     * @param operationClass the class of the operation
+     * @param task           the work to run when the request is admitted
+     * @param reject         called if the request is rejected
+     * @return the ticket of the request, to release when the request ends
+     */
+    public AdaptiveLimiter.Ticket submit(String tenant, OperationClass operationClass, Runnable task, Consumer<TooManyRequestsException> reject) {
+        var limiter = limiters.computeIfAbsent(Objects.requireNonNullElse(tenant, ""), this::createLimiters).get(operationClass);
+        if (limiter == null) {
+            task.run();
+            return AdaptiveLimiter.Ticket.UNLIMITED;
+        }
+        return limiter.submit(task, reject);
+    }
+
+    /**
+     * @return the limiters by tenant and class of operation (metrics)
+     */
+    public Map<String, Map<OperationClass, AdaptiveLimiter>> getLimiters() {
+        return Collections.unmodifiableMap(limiters);
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public int getQueued() {
+        return limiters.values().stream().flatMap(l -> l.values().stream()).mapToInt(AdaptiveLimiter::getQueued).sum();
+    }
+
+    /**
+     * @return the number of requests rejected
+     */
+    public long getRejected() {
+        return limiters.values().stream().flatMap(l -> l.values().stream()).mapToLong(AdaptiveLimiter::getRejected).sum();
+    }
+
+    /**
+     * Stop the scheduler
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private Map<OperationClass, AdaptiveLimiter> createLimiters(String tenant) {
+        var all = new EnumMap<OperationClass, AfasConfiguration.AdmissionLimit>(OperationClass.class);
+        all.putAll(limits);
+        all.putAll(tenantLimits.getOrDefault(tenant, Map.of()));
+        var tenantLimiters = new EnumMap<OperationClass, AdaptiveLimiter>(OperationClass.class);
+        all.forEach((operationClass, limit) -> tenantLimiters.put(operationClass, new AdaptiveLimiter(limit, scheduler)));
+        return Collections.unmodifiableMap(tenantLimiters);
+    }
+
+    private static Map<OperationClass, AfasConfiguration.AdmissionLimit> toOperationClasses(Map<String, AfasConfiguration.AdmissionLimit> limits) {
+        var map = new EnumMap<OperationClass, AfasConfiguration.AdmissionLimit>(OperationClass.class);
+        limits.forEach((name, limit) -> map.put(OperationClass.valueOf(name.toUpperCase(Locale.ROOT)), limit));
+        return map;
+    }
+}
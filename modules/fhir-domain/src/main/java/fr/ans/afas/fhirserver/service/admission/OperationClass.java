@@ -0,0 +1,33 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.admission;
+
+/**
+ * Classes of operations limited separately by the admission control
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public enum OperationClass {
+    /**
+     * Read of a resource by id
+     */
+    READ,
+    /**
+     * Search (first and next pages)
+     */
+    SEARCH,
+    /**
+     * Search that returns only the number of matches (_summary=count, _count=0)
+     */
+    COUNT,
+    /**
+     * Create, update, delete and transactions
+     */
+    WRITE,
+    /**
+     * The $index operation
+     */
+    INDEX
+}
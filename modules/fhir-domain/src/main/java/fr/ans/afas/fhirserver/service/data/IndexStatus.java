@@ -0,0 +1,81 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Progress of an indexing job
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@AllArgsConstructor
+@Builder
+@Getter
+public class IndexStatus {
+
+    /**
+     * True if the job is running
+     */
+    boolean running;
+
+    /**
+     * Start date of the job (ms)
+     */
+    long startDate;
+
+    /**
+     * End date of the job (ms), 0 if the job is running
+     */
+    long endDate;
+
+    /**
+     * Number of resources processed
+     */
+    long processed;
+
+    /**
+     * Estimated number of resources to process
+     */
+    long total;
+
+    /**
+     * Get the processing rate
+     *
+     * @return the number of resources processed per second
+     */
+    public double getRate() {
+        var end = running ? System.currentTimeMillis() : endDate;
+        var elapsed = Math.max(1, end - startDate);
+        return processed * 1000d / elapsed;
+    }
+
+    /**
+     * Get the estimated remaining time
+     *
+     * @return the remaining time in seconds or null if it can't be estimated
+     */
+    public Long getEta() {
+        var rate = getRate();
+        if (!running) {
+            return 0L;
+        }
+        if (rate <= 0) {
+            return null;
+        }
+        return (long) Math.ceil(Math.max(0, total - processed) / rate);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexStatus{" +
+                "running=" + running +
+                ", processed=" + processed +
+                ", total=" + total +
+                '}';
+    }
+}
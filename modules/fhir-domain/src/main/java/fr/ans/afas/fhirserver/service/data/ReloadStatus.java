@@ -0,0 +1,54 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Result of a reload of the search configuration
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@AllArgsConstructor
+@Builder
+@Getter
+public class ReloadStatus {
+
+    /**
+     * Start date of the reload (ms)
+     */
+    long startDate;
+
+    /**
+     * End date of the reload (ms)
+     */
+    long endDate;
+
+    /**
+     * True if the new configuration is used
+     */
+    boolean applied;
+
+    /**
+     * Number of indexes created for the new configuration
+     */
+    int createdIndexes;
+
+    /**
+     * The error if the configuration was not applied
+     */
+    String error;
+
+    @Override
+    public String toString() {
+        return "ReloadStatus{" +
+                "applied=" + applied +
+                ", createdIndexes=" + createdIndexes +
+                ", error=" + error +
+                '}';
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.exception;
+
+/**
+ * Exception when the deadline of a request is passed or when the request is cancelled: the remaining work is not done
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class RequestTimeoutException extends RuntimeException implements PublicException {
+
+    /**
+     * Construct the exception
+     *
+     * @param message the cause of the exception
+     */
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.exception;
+
+import lombok.Getter;
+
+/**
+ * Exception when a request is rejected because the server has too many requests to handle (load shedding)
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Getter
+public class TooManyRequestsException extends RuntimeException implements PublicException {
+
+    /**
+     * Number of seconds the client should wait before retrying
+     */
+    private final long retryAfter;
+
+    /**
+     * Construct the exception
+     *
+     * @param message    the cause of the exception
+     * @param retryAfter number of seconds the client should wait before retrying
+     */
+    public TooManyRequestsException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+}
@@ -4,7 +4,8 @@
 
 package fr.ans.afas.filter;
 
-import fr.ans.afas.exception.TenantNotFoundException;
+import fr.ans.afas.fhirserver.http.FhirRoute;
+import fr.ans.afas.fhirserver.http.FhirRouter;
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
 import fr.ans.afas.utils.TenantUtil;
@@ -13,49 +14,79 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
-import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Resolve the tenant of fhir requests ("/fhir/{version}/{tenant}/...").
+ * <p>
+ * Requests of versions served directly (e.g. "v2") go on with the resolved route in the request attribute
+ * {@link FhirRoute#REQUEST_ATTRIBUTE}. Requests of other versions are forwarded without the path of the tenant.
+ * </p>
+ */
 public class TenantFilter implements Filter {
 
     private final ServerSearchConfig serverSearchConfig;
-    Pattern pattern = Pattern.compile("/fhir/v\\d*/(.+?)(/.*)?");
+
+    /**
+     * Versions of the api that handle the tenant in the path without forward
+     */
+    private final Set<String> directVersions;
+
+    /**
+     * The router and the configuration used to build it
+     */
+    private volatile RouterHolder routerHolder;
 
     public TenantFilter(ServerSearchConfig serverSearchConfig) {
+        this(serverSearchConfig, Set.of());
+    }
+
+    public TenantFilter(ServerSearchConfig serverSearchConfig, Set<String> directVersions) {
         this.serverSearchConfig = serverSearchConfig;
+        this.directVersions = directVersions;
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws ServletException, IOException {
         var requestUri = ((HttpServletRequest) request).getRequestURI();
 
-        var matcherTenant = pattern.matcher(requestUri);
+        var route = router().route(requestUri);
 
-        if (!matcherTenant.matches()) {
+        if (route == null) {
             HttpServletResponse httpResponse = (HttpServletResponse) response;
             httpResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
-        var tenantUri = matcherTenant.group(1);
-
-        Optional<TenantSearchConfig> tenant = serverSearchConfig.getConfigs().values().stream()
-                .filter(t -> t.getTenantConfig().getName().equals(tenantUri)).findFirst();
-
-        if (tenant.isEmpty()) {
-            throw new TenantNotFoundException(requestUri);
+        TenantUtil.setCurrentTenant(route.getTenant());
+        if (directVersions.contains(route.getVersion())) {
+            request.setAttribute(FhirRoute.REQUEST_ATTRIBUTE, route);
+            chain.doFilter(request, response);
+        } else {
+            forward((HttpServletRequest) request, route.getTenantPath(), request, response);
         }
-        setCurrentTenantAndForward(tenant.get().getTenantConfig().getName(), tenant.get().getTenantConfig().getPath(), request, response);
-
     }
 
     private void forward(HttpServletRequest req, String tenantPath, ServletRequest request, ServletResponse response) throws IOException, ServletException {
         req.getRequestDispatcher(req.getRequestURI().replace(tenantPath, "")).forward(request, response);
     }
 
-    private void setCurrentTenantAndForward(String tenant, String tenantPath, ServletRequest request, ServletResponse response) throws ServletException, IOException {
-        HttpServletRequest req = (HttpServletRequest) request;
-        TenantUtil.setCurrentTenant(tenant);
-        forward(req, tenantPath, request, response);
+    /**
+     * Get the router of the current configuration. The router is built again if the configuration changes
+     *
+     * @return the router
+     */
+    private FhirRouter router() {
+        var configs = serverSearchConfig.getConfigs();
+        var holder = routerHolder;
+        if (holder == null || holder.configs != configs) {
+            holder = new RouterHolder(configs, new FhirRouter(serverSearchConfig));
+            routerHolder = holder;
+        }
+        return holder.router;
+    }
+
+    private record RouterHolder(Map<String, TenantSearchConfig> configs, FhirRouter router) {
     }
 }
@@ -16,7 +16,7 @@ import java.util.Arrays;
 import java.util.Base64;
 
 /**
- * Aes utility class to encrypt / decrypt strings
+ * Aes utility class to encrypt / decrypt strings and bytes
  *
  * @author Guillaume Poulériguen
  * @since 1.0.0
@@ -32,6 +32,22 @@ public class AesEncrypter {
      */
     private static final int GCM_TAG_LENGTH = 16;
 
+    /**
+     * Source of iv. SecureRandom is thread safe and costly to create so it's shared
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Ciphers are not thread safe and costly to get, so there is one per thread (re-initialized for each use)
+     */
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (Exception e) {
+            throw new SerializationException("Can't serialize parameters. Encryption (algo) error.");
+        }
+    });
+
     /**
      * The secret key
      */
@@ -72,41 +88,61 @@ public class AesEncrypter {
      * @return the encrypted string
      */
     public String encrypt(final String strToEncrypt) {
-        try {
-            var iv = new byte[GCM_IV_LENGTH];
-            new SecureRandom().nextBytes(iv);
-            var ivSpec = new GCMParameterSpec(GCM_TAG_LENGTH * Byte.SIZE, iv);
-            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
-
+        return Base64.getUrlEncoder().encodeToString(encryptBytes(strToEncrypt.getBytes(StandardCharsets.UTF_8)));
+    }
 
-            var ciphertext = cipher.doFinal(strToEncrypt.getBytes(StandardCharsets.UTF_8));
-            var encrypted = new byte[iv.length + ciphertext.length];
-            System.arraycopy(iv, 0, encrypted, 0, iv.length);
-            System.arraycopy(ciphertext, 0, encrypted, iv.length, ciphertext.length);
+    /**
+     * Decrypt a string with AES
+     *
+     * @param strToDecrypt the string to decrypt
+     * @return the decrypted string
+     */
+    public String decrypt(final String strToDecrypt) {
+        return new String(decryptBytes(decode(strToDecrypt)), StandardCharsets.UTF_8);
+    }
 
-            return Base64.getUrlEncoder().encodeToString(encrypted);
+    /**
+     * Encrypt bytes with AES
+     *
+     * @param toEncrypt the bytes to encrypt
+     * @return the iv followed by the encrypted bytes
+     */
+    public byte[] encryptBytes(final byte[] toEncrypt) {
+        try {
+            var iv = new byte[GCM_IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            var cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * Byte.SIZE, iv));
+            var encrypted = new byte[GCM_IV_LENGTH + cipher.getOutputSize(toEncrypt.length)];
+            System.arraycopy(iv, 0, encrypted, 0, GCM_IV_LENGTH);
+            var length = cipher.doFinal(toEncrypt, 0, toEncrypt.length, encrypted, GCM_IV_LENGTH);
+            return length + GCM_IV_LENGTH == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length + GCM_IV_LENGTH);
         } catch (Exception e) {
             throw new SerializationException("Can't serialize parameters.", e);
         }
     }
 
     /**
-     * Decrypt a string with AES
+     * Decrypt bytes with AES
      *
-     * @param strToDecrypt the string to decrypt
-     * @return the decrypted string
+     * @param toDecrypt the iv followed by the encrypted bytes
+     * @return the decrypted bytes
      */
-    public String decrypt(final String strToDecrypt) {
+    public byte[] decryptBytes(final byte[] toDecrypt) {
         try {
-            var decoded = Base64.getUrlDecoder().decode(strToDecrypt);
-            var iv = Arrays.copyOfRange(decoded, 0, GCM_IV_LENGTH);
-            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            var ivSpec = new GCMParameterSpec(GCM_TAG_LENGTH * Byte.SIZE, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
-            return new String(cipher.doFinal(decoded, GCM_IV_LENGTH, decoded.length - GCM_IV_LENGTH), StandardCharsets.UTF_8);
+            var cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * Byte.SIZE, toDecrypt, 0, GCM_IV_LENGTH));
+            return cipher.doFinal(toDecrypt, GCM_IV_LENGTH, toDecrypt.length - GCM_IV_LENGTH);
         } catch (Exception e) {
             throw new SerializationException("Can't deserialize parameters.", e);
         }
     }
+
+    private static byte[] decode(String value) {
+        try {
+            return Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Can't deserialize parameters.", e);
+        }
+    }
 }
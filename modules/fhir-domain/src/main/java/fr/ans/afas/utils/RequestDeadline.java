@@ -0,0 +1,109 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.utils;
+
+import fr.ans.afas.fhirserver.service.exception.RequestTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of a request: the time after which the work of the request is useless (the client gave up or the
+ * request timed out).
+ * <p>
+ * The deadline of the request handled by the current thread is set like the tenant ({@link TenantUtil}). The storage
+ * applies the remaining time as the max time of database queries, so the database stops working for requests that
+ * nobody waits. A deadline is cancelled when the request ends before the work (timeout, client disconnected).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public final class RequestDeadline {
+
+    private static final ThreadLocal<RequestDeadline> current = new ThreadLocal<>();
+
+    /**
+     * The deadline (see {@link System#nanoTime()})
+     */
+    private final long deadline;
+
+    private volatile boolean cancelled;
+
+    private RequestDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Create a deadline
+     *
+     * @param budget the time (ms) given to the request from now
+     * @return the deadline
+     */
+    public static RequestDeadline in(long budget) {
+        return new RequestDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget));
+    }
+
+    /**
+     * @return the deadline of the request of the current thread or null if the request has no deadline
+     */
+    public static RequestDeadline get() {
+        return current.get();
+    }
+
+    /**
+     * Set the deadline of the request of the current thread
+     *
+     * @param deadline the deadline or null
+     */
+    public static void set(RequestDeadline deadline) {
+        if (deadline == null) {
+            current.remove();
+        } else {
+            current.set(deadline);
+        }
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+
+    /**
+     * Get the time left to the request of the current thread
+     *
+     * @return the time left (ms, at least 1) or null if the request has no deadline
+     * @throws RequestTimeoutException if the deadline is passed or cancelled
+     */
+    public static Long remainingForCurrent() {
+        var deadline = current.get();
+        if (deadline == null) {
+            return null;
+        }
+        var remaining = deadline.remaining();
+        if (remaining <= 0) {
+            throw new RequestTimeoutException(deadline.cancelled ? "The request was cancelled" : "The request took too long");
+        }
+        return remaining;
+    }
+
+    /**
+     * @return the time left (ms), 0 if the deadline is passed or cancelled
+     */
+    public long remaining() {
+        if (cancelled) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Cancel the remaining work of the request
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -80,6 +80,16 @@ class FhirBundleBuilderTest {
         });
     }
 
+    @Test
+    void testBuildFooterWithTotal() {
+        var builder = new FhirBundleBuilder();
+        var header = builder.getHeader("123", null);
+        var footer = builder.getFooter("https://serverUrl", "https://currentUrl/path?abc", "123456", 42L);
+        var bundle = (org.hl7.fhir.r4.model.Bundle) parser.parseResource(header + footer);
+        Assertions.assertEquals(42, bundle.getTotal());
+        Assertions.assertEquals(2, bundle.getLink().size());
+    }
+
     @Test
     void testWrapBundleEntryWithValidContent() throws JsonProcessingException {
         // Configuration
@@ -0,0 +1,103 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.http;
+
+import fr.ans.afas.exception.TenantNotFoundException;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the routing of fhir requests
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class FhirRouterTest {
+
+    private static FhirRouter router() {
+        var organization = new FhirResourceSearchConfig();
+        organization.setName("Organization");
+        var tenant = new Tenant();
+        tenant.setName("tenant1");
+        tenant.setPath("/tenant1");
+        var tenantSearchConfig = new TenantSearchConfig();
+        tenantSearchConfig.setTenantConfig(tenant);
+        tenantSearchConfig.setResources(List.of(organization));
+        return new FhirRouter(new ServerSearchConfig(Map.of("tenant1", tenantSearchConfig)));
+    }
+
+    @Test
+    void testRoutes() {
+        var router = router();
+
+        var read = router.route("/fhir/v2/tenant1/Organization/123");
+        assertEquals("v2", read.getVersion());
+        assertEquals("tenant1", read.getTenant());
+        assertEquals("/tenant1", read.getTenantPath());
+        assertEquals(FhirRoute.Kind.READ, read.getKind());
+        assertEquals("Organization", read.getResourceType());
+        assertEquals("123", read.getId());
+        assertEquals("Organization/123", read.getFhirPath());
+
+        var search = router.route("/fhir/v2/tenant1/Organization/_search");
+        assertEquals(FhirRoute.Kind.SEARCH, search.getKind());
+        assertNull(search.getId());
+        assertEquals(FhirRoute.Kind.SEARCH, router.route("/fhir/v2/tenant1/Device").getKind());
+
+        assertEquals(FhirRoute.Kind.PAGE, router.route("/fhir/v2/tenant1/_page").getKind());
+        assertEquals(FhirRoute.Kind.METADATA, router.route("/fhir/v2/tenant1/metadata").getKind());
+        var operation = router.route("/fhir/v1/tenant1/$index");
+        assertEquals(FhirRoute.Kind.OPERATION, operation.getKind());
+        assertEquals("$index", operation.getFhirPath());
+        assertEquals("v1", operation.getVersion());
+        assertEquals(FhirRoute.Kind.ROOT, router.route("/fhir/v2/tenant1").getKind());
+        assertEquals(FhirRoute.Kind.ROOT, router.route("/fhir/v2/tenant1/").getKind());
+
+        // not fhir paths:
+        assertNull(router.route("/fhir/toto"));
+        assertNull(router.route("/fhir/va/tenant1"));
+        assertNull(router.route("/fhir/v2/"));
+        assertThrows(TenantNotFoundException.class, () -> router.route("/fhir/v2/tenant2/Organization"));
+        assertThrows(TenantNotFoundException.class, () -> router.route("/fhir/v2/tenant"));
+    }
+
+    /**
+     * Routes without tenant must follow the split of the path used before the router
+     */
+    @Test
+    void testSegmentsFollowTheSplit() {
+        for (var fhirPath : List.of("", "Organization", "Organization/", "Organization/1", "Organization/1/", "Organization/_history",
+                "Organization/1/_history/2", "Organization//1", "/", "///")) {
+            var route = FhirRoute.parse("/fhir/v2/" + fhirPath, "/fhir/v2".length());
+            var parts = route.getFhirPath().split("/");
+            assertEquals(parts.length, route.getSegmentCount(), fhirPath);
+            if (parts.length > 0) {
+                assertEquals(parts[0], route.getResourceType(), fhirPath);
+            }
+            var read = parts.length == 2 && !parts[1].startsWith("_");
+            assertEquals(read ? parts[1] : null, route.getId(), fhirPath);
+        }
+    }
+
+    @Test
+    void testTrie() {
+        var trie = new SegmentTrie<String>();
+        trie.put("Organization", "o");
+        trie.put("Organ", "p");
+        trie.put("Device", "d");
+        assertEquals("o", trie.get("/Organization/1", 1, 13));
+        assertEquals("p", trie.get("Organ", 0, 5));
+        assertEquals("d", trie.get("Device", 0, 6));
+        assertNull(trie.get("Organi", 0, 6));
+        assertNull(trie.get("Patient", 0, 7));
+    }
+}
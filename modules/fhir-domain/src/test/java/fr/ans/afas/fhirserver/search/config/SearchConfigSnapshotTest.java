@@ -0,0 +1,83 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.search.config;
+
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ResourcePathConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.utils.data.TestSearchConfigService;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the compiled search configuration
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class SearchConfigSnapshotTest {
+
+    @Test
+    void testLookups() {
+        var service = new TestSearchConfigService();
+
+        var config = service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, TestSearchConfigService.FHIR_RESOURCE_STRING_PATH);
+        assertTrue(config.isPresent());
+        assertEquals(TestSearchConfigService.FHIR_RESOURCE_DB_STRING_PATH, config.get().getIndexName());
+        assertSame(config.get(), service.getSearchConfigByPath(FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_STRING_PATH).build()).orElseThrow());
+        assertTrue(service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, "unknown").isEmpty());
+        assertTrue(service.getSearchConfigByResourceAndParamName("Unknown", TestSearchConfigService.FHIR_RESOURCE_STRING_PATH).isEmpty());
+
+        // parameters of joined resources:
+        var link = service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, "links.Organization.partof");
+        assertTrue(link.isPresent());
+        assertEquals("links.Organization." + TestSearchConfigService.FHIR_RESOURCE_DB_REFERENCE_PATH, link.get().getIndexName());
+        assertEquals("string", link.get().getSearchType());
+        assertSame(link.get(), service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, "links.Organization.partof").orElseThrow());
+        assertTrue(service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, "links.Organization").isEmpty());
+        assertTrue(service.getSearchConfigByResourceAndParamName(TestSearchConfigService.FHIR_RESOURCE_NAME, "links.Unknown.partof").isEmpty());
+    }
+
+    @Test
+    void testIndexesAndProjection() {
+        var service = new TestSearchConfigService();
+
+        var indexes = service.getIndexesByFhirResource(TestSearchConfigService.FHIR_RESOURCE_NAME);
+        assertSame(indexes, service.getIndexesByFhirResource(TestSearchConfigService.FHIR_RESOURCE_NAME));
+        assertTrue(indexes.contains(StorageConstants.INDEX_T_ID));
+        assertTrue(indexes.contains(TestSearchConfigService.FHIR_RESOURCE_DB_TOKEN_PATH + StorageConstants.SYSVAL_SUFFIX));
+        assertTrue(indexes.contains(TestSearchConfigService.FHIR_RESOURCE_DB_REFERENCE_PATH + StorageConstants.REFERENCE_SUFFIX));
+        assertTrue(indexes.contains(TestSearchConfigService.FHIR_RESOURCE_DB_STRING_PATH + StorageConstants.INSENSITIVE_SUFFIX));
+        assertThrows(UnsupportedOperationException.class, () -> indexes.add("t_other"));
+
+        var fields = service.getProjectionFields(TestSearchConfigService.FHIR_RESOURCE_NAME);
+        assertTrue(fields.containsAll(indexes));
+        assertFalse(fields.contains("fhir.stringPath"));
+    }
+
+    @Test
+    void testSnapshotIsRecompiledWhenTheConfigurationChanges() {
+        var service = new TestSearchConfigService();
+        var snapshot = service.getSnapshot();
+        assertSame(snapshot, service.getSnapshot());
+
+        service.configs.put("Other", FhirResourceSearchConfig.builder().name("Other").searchParams(List.of(SearchParamConfig.builder()
+                .urlParameter("name")
+                .name("name")
+                .searchType("string")
+                .indexName("t_name")
+                .isCompulsoryOrModifierElementsParam(true)
+                .resourcePaths(List.of(ResourcePathConfig.builder().path("name").build()))
+                .build())).build());
+
+        assertNotSame(snapshot, service.getSnapshot());
+        assertTrue(service.getSearchConfigByResourceAndParamName("Other", "name").isPresent());
+        assertTrue(service.getProjectionFields("Other").contains("fhir.name"));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.search.config;
+
+import fr.ans.afas.exception.CantLoadConfigurationException;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the check of search configurations
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class SearchConfigValidatorTest {
+
+    @Test
+    void testValidConfiguration() {
+        var config = ServerSearchConfig.of(List.of(tenantConfig("tenant-1", "/t1", "name"), tenantConfig("tenant-2", "/t2", "name")));
+        assertDoesNotThrow(() -> SearchConfigValidator.validate(config));
+    }
+
+    @Test
+    void testInvalidConfiguration() {
+        var samePath = ServerSearchConfig.of(List.of(tenantConfig("tenant-1", "/t1", "name"), tenantConfig("tenant-2", "/t1", "name")));
+        var e = assertThrows(CantLoadConfigurationException.class, () -> SearchConfigValidator.validate(samePath));
+        assertTrue(e.getMessage().contains("/t1"));
+
+        var noUrlParameter = ServerSearchConfig.of(List.of(tenantConfig("tenant-1", "/t1", null)));
+        assertThrows(CantLoadConfigurationException.class, () -> SearchConfigValidator.validate(noUrlParameter));
+
+        var empty = new ServerSearchConfig(Map.of());
+        assertThrows(CantLoadConfigurationException.class, () -> SearchConfigValidator.validate(empty));
+    }
+
+    @Test
+    void testFirstConfigurationOfATenantIsUsed() {
+        var first = tenantConfig("tenant-1", "/t1", "name");
+        var config = ServerSearchConfig.of(List.of(first, tenantConfig("tenant-1", "/other", "name")));
+        assertEquals(1, config.getConfigs().size());
+        assertSame(first, config.getConfigs().get("tenant-1"));
+    }
+
+    private static TenantSearchConfig tenantConfig(String name, String path, String urlParameter) {
+        return TenantSearchConfig.builder()
+                .tenantConfig(Tenant.builder().name(name).path(path).build())
+                .resources(List.of(FhirResourceSearchConfig.builder().name("Device").searchParams(List.of(SearchParamConfig.builder()
+                        .name("name")
+                        .urlParameter(urlParameter)
+                        .searchType("string")
+                        .indexName("t_name")
+                        .build())).build()))
+                .build();
+    }
+}
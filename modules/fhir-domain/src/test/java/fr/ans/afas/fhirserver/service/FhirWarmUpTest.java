@@ -0,0 +1,118 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ResourcePathConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
+import fr.ans.afas.utils.TenantUtil;
+import org.hl7.fhir.r4.model.Organization;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the parsers and the warm up
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class FhirWarmUpTest {
+
+    @AfterEach
+    void tearDown() {
+        TenantUtil.clear();
+    }
+
+    @Test
+    void testParsersAreSharedByThreads() throws ExecutionException, InterruptedException {
+        assertSame(FhirContext.forR4Cached(), FhirParserPool.forR4().getFhirContext());
+        var pool = new FhirParserPool(FhirContext.forR4Cached(), 1);
+        IParser parser;
+        try (var lease = pool.jsonParser()) {
+            parser = lease.get();
+        }
+        // the parser is reused by another thread:
+        var other = CompletableFuture.supplyAsync(() -> {
+            try (var lease = pool.jsonParser()) {
+                return lease.get();
+            }
+        }).get();
+        assertSame(parser, other);
+
+        // the pool is bounded:
+        var first = pool.jsonParser();
+        var second = pool.jsonParser();
+        assertNotSame(first.get(), second.get());
+        first.close();
+        second.close();
+        assertEquals(1, pool.getIdle());
+        assertThrows(IllegalStateException.class, first::get);
+    }
+
+    @Test
+    void testWarmUp() {
+        var organization = new FhirResourceSearchConfig();
+        organization.setName("Organization");
+        var unknown = new FhirResourceSearchConfig();
+        unknown.setName("NotAResource");
+        var tenantSearchConfig = new TenantSearchConfig();
+        tenantSearchConfig.setResources(List.of(organization, unknown));
+        var serverSearchConfig = new ServerSearchConfig(Map.of("tenant-1", tenantSearchConfig));
+
+        var warmUp = new FhirWarmUp<>(FhirParserPool.forR4(), serverSearchConfig, Mockito.mock(SearchConfigService.class), Mockito.mock(ExpressionFactory.class), 5);
+        var serialized = new AtomicInteger();
+        warmUp.setStorageRoundTrip(resource -> {
+            serialized.incrementAndGet();
+            assertEquals("tenant-1", TenantUtil.getCurrentTenant());
+            return resource;
+        });
+
+        // unknown resources are ignored:
+        assertEquals(10, warmUp.run());
+        assertEquals(5, serialized.get());
+        // no tenant is left in the thread:
+        assertNull(TenantUtil.getCurrentTenant());
+    }
+
+    @Test
+    void testSampleHasAValueOnEachSearchPath() {
+        var organization = new FhirResourceSearchConfig();
+        organization.setName("Organization");
+        organization.setSearchParams(List.of(
+                param("name", "string", "name"),
+                param("identifier", "token", "identifier"),
+                param("address-city", "string", "address|city"),
+                param("partof", "reference", "partOf"),
+                param("_lastUpdated", "date", "meta|lastUpdated")));
+        var warmUp = new FhirWarmUp<>(FhirParserPool.forR4(), new ServerSearchConfig(Map.of()), Mockito.mock(SearchConfigService.class), Mockito.mock(ExpressionFactory.class), 1);
+
+        var sample = (Organization) warmUp.sample(organization);
+
+        assertEquals("warm-up", sample.getName());
+        assertEquals("1", sample.getIdentifierFirstRep().getValue());
+        assertEquals("warm-up", sample.getAddressFirstRep().getCity());
+        assertEquals("Organization/warm-up", sample.getPartOf().getReference());
+        assertNotNull(sample.getMeta().getLastUpdated());
+    }
+
+    private static SearchParamConfig param(String name, String type, String path) {
+        return SearchParamConfig.builder().name(name).urlParameter(name).searchType(type)
+                .resourcePaths(List.of(ResourcePathConfig.builder().path(path).build())).build();
+    }
+}
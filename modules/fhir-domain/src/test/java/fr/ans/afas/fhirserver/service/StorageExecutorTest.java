@@ -0,0 +1,92 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service;
+
+import fr.ans.afas.audit.AuditInformation;
+import fr.ans.afas.audit.AuditUtils;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import fr.ans.afas.utils.TenantUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the executor of storage work
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class StorageExecutorTest {
+
+    @AfterEach
+    void tearDown() {
+        TenantUtil.clear();
+        AuditUtils.clean();
+    }
+
+    @Test
+    void testContextIsPropagated() throws ExecutionException, InterruptedException, TimeoutException {
+        try (var executor = new StorageExecutor(Executors.newSingleThreadExecutor())) {
+            TenantUtil.setCurrentTenant("tenant-1");
+            AuditUtils.store(AuditInformation.builder().ip("10.0.0.1").build());
+
+            var context = executor.supply(() -> TenantUtil.getCurrentTenant() + "/" + AuditUtils.get().getIp()).get(5, TimeUnit.SECONDS);
+            assertEquals("tenant-1/10.0.0.1", context);
+
+            // the context is cleaned after the work:
+            TenantUtil.clear();
+            AuditUtils.clean();
+            var cleaned = executor.supply(() -> TenantUtil.getCurrentTenant() + "/" + AuditUtils.get().getIp()).get(5, TimeUnit.SECONDS);
+            assertEquals("null/" + AuditUtils.EMPTY_IP, cleaned);
+            assertEquals(2, executor.getSubmitted());
+        }
+    }
+
+    @Test
+    void testFailures() throws InterruptedException {
+        try (var executor = StorageExecutor.create(true, 2)) {
+            var future = executor.supply(() -> {
+                throw new IllegalStateException("error");
+            });
+
+            var e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            // the failure is counted when the work ends:
+            for (var i = 0; i < 50 && executor.getFailures() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, executor.getFailures());
+        }
+    }
+
+    @Test
+    void testFullExecutorRejectsWork() throws InterruptedException {
+        try (var executor = StorageExecutor.create(false, 1, 1)) {
+            var release = new CountDownLatch(1);
+            Runnable blocking = () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+            // one running, one waiting:
+            executor.execute(blocking);
+            executor.execute(blocking);
+
+            var e = assertThrows(TooManyRequestsException.class, () -> executor.execute(blocking));
+            assertTrue(e.getRetryAfter() > 0);
+            assertThrows(TooManyRequestsException.class, () -> executor.supply(() -> "value"));
+            assertEquals(2, executor.getRejected());
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.fhirserver.service.admission;
+
+import fr.ans.afas.configuration.AfasConfiguration;
+import fr.ans.afas.fhirserver.service.exception.TooManyRequestsException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the admission control
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class AdaptiveLimiterTest {
+
+    final AtomicLong now = new AtomicLong();
+    final List<String> started = new ArrayList<>();
+    final List<TooManyRequestsException> rejected = new ArrayList<>();
+
+    @Test
+    void testQueueAndRejection() {
+        var limiter = new AdaptiveLimiter(limit(2, 1), now::get, null);
+
+        var t1 = limiter.submit(() -> started.add("1"), rejected::add);
+        limiter.submit(() -> started.add("2"), rejected::add);
+        // waits:
+        limiter.submit(() -> started.add("3"), rejected::add);
+        // the queue is full:
+        limiter.submit(() -> started.add("4"), rejected::add);
+
+        assertEquals(List.of("1", "2"), started);
+        assertEquals(1, rejected.size());
+        assertTrue(rejected.get(0).getRetryAfter() >= 1);
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getQueued());
+
+        // a slot is released, the waiting request is started:
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        t1.release(false);
+        t1.release(false);
+        assertEquals(List.of("1", "2", "3"), started);
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+        assertEquals(3, limiter.getAdmitted());
+        assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    void testWaitTooLong() {
+        var limiter = new AdaptiveLimiter(limit(1, 10), now::get, null);
+        var t1 = limiter.submit(() -> started.add("1"), rejected::add);
+        var t2 = limiter.submit(() -> started.add("2"), rejected::add);
+        limiter.submit(() -> started.add("3"), rejected::add);
+
+        // the request ends before it's admitted (timeout of the request):
+        t2.release(true);
+        assertEquals(1, rejected.size());
+
+        // the other waited more than the max wait:
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        t1.release(false);
+        assertEquals(List.of("1"), started);
+        assertEquals(2, rejected.size());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testWaitingRequestsExpireWithoutOtherCalls() throws Exception {
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var config = limit(1, 10);
+            config.setMaxWait(50);
+            var limiter = new AdaptiveLimiter(config, scheduler);
+            var rejection = new CompletableFuture<TooManyRequestsException>();
+            limiter.submit(() -> started.add("1"), rejected::add);
+            limiter.submit(() -> started.add("2"), rejection::complete);
+
+            // the request is rejected after the max wait while the first request still runs:
+            assertNotNull(rejection.get(5, TimeUnit.SECONDS));
+            assertEquals(0, limiter.getQueued());
+            assertEquals(1, limiter.getInFlight());
+            assertEquals(List.of("1"), started);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void testExpiryIsCancelledWhenTheRequestIsAdmitted() {
+        var scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            var limiter = new AdaptiveLimiter(limit(1, 10), now::get, scheduler);
+            var t1 = limiter.submit(() -> started.add("1"), rejected::add);
+            limiter.submit(() -> started.add("2"), rejected::add);
+            assertEquals(1, scheduler.getQueue().size());
+
+            t1.release(false);
+            assertEquals(List.of("1", "2"), started);
+            assertTrue(scheduler.getQueue().isEmpty());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void testAdaptiveLimit() {
+        var limiter = new AdaptiveLimiter(limit(4, 10), now::get, null);
+        assertEquals(4, limiter.getLimit());
+
+        // slow requests decrease the limit:
+        for (var i = 0; i < 10; i++) {
+            var t = limiter.submit(() -> started.add("slow"), rejected::add);
+            now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            t.release(false);
+        }
+        assertEquals(1, limiter.getLimit());
+        assertEquals(10, limiter.getDropped());
+
+        // fast requests that use the limit increase it:
+        for (var i = 0; i < 20; i++) {
+            var t = limiter.submit(() -> started.add("fast"), rejected::add);
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(5));
+            t.release(false);
+        }
+        assertTrue(limiter.getLimit() > 1);
+        assertTrue(limiter.getLimit() <= 8);
+    }
+
+    @Test
+    void testGivenLatency() {
+        var limiter = new AdaptiveLimiter(limit(4, 10), now::get, null);
+
+        // the time since the admission is not used (e.g. the client reads the response slowly):
+        var t1 = limiter.submit(() -> started.add("1"), rejected::add);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        t1.release(false, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(0, limiter.getDropped());
+        assertEquals(4, limiter.getLimit());
+
+        var t2 = limiter.submit(() -> started.add("2"), rejected::add);
+        t2.release(false, TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, limiter.getDropped());
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    void testLimitsByTenant() {
+        var admission = new AfasConfiguration.Admission();
+        admission.setLimits(Map.of("search", limit(1, 0)));
+        admission.setTenants(Map.of("tenant-2", Map.of("search", limit(2, 0))));
+        var controller = new AdmissionController(admission);
+
+        for (var tenant : List.of("tenant-1", "tenant-2")) {
+            for (var i = 0; i < 2; i++) {
+                controller.submit(tenant, OperationClass.SEARCH, () -> started.add(tenant), rejected::add);
+            }
+        }
+        // not limited:
+        controller.submit("tenant-1", OperationClass.WRITE, () -> started.add("write"), rejected::add);
+
+        assertEquals(List.of("tenant-1", "tenant-2", "tenant-2", "write"), started);
+        assertEquals(1, controller.getRejected());
+        assertEquals(0, controller.getQueued());
+        assertEquals(2, controller.getLimiters().get("tenant-2").get(OperationClass.SEARCH).getInFlight());
+    }
+
+    private static AfasConfiguration.AdmissionLimit limit(int limit, int queueSize) {
+        var config = new AfasConfiguration.AdmissionLimit();
+        config.setInitial(limit);
+        config.setMax(limit * 2);
+        config.setQueueSize(queueSize);
+        return config;
+    }
+}
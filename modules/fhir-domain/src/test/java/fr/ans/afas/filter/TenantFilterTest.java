@@ -1,9 +1,11 @@
 package fr.ans.afas.filter;
 
 import fr.ans.afas.exception.TenantNotFoundException;
+import fr.ans.afas.fhirserver.http.FhirRoute;
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.Tenant;
 import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.utils.TenantUtil;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.RequestDispatcher;
 import jakarta.servlet.ServletRequest;
@@ -19,6 +21,7 @@ import org.mockito.MockitoAnnotations;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -94,6 +97,29 @@ class TenantFilterTest {
         verify(requestDispatcher).forward(requestCaptor.capture(), responseCaptor.capture());
     }
 
+    @Test
+    void testDoFilter_DirectVersion() throws Exception {
+        Tenant tenant = new Tenant();
+        tenant.setName("tenant1");
+        tenant.setPath("/tenant1");
+        when(tenantSearchConfig.getTenantConfig()).thenReturn(tenant);
+        when(serverSearchConfig.getConfigs()).thenReturn(Map.of("tenant1", tenantSearchConfig));
+        when(request.getRequestURI()).thenReturn("/fhir/v2/tenant1/Organization/1");
+
+        new TenantFilter(serverSearchConfig, Set.of("v2")).doFilter(request, response, chain);
+
+        // no forward, the route is given to the servlet:
+        ArgumentCaptor<Object> routeCaptor = ArgumentCaptor.forClass(Object.class);
+        verify(request).setAttribute(eq(FhirRoute.REQUEST_ATTRIBUTE), routeCaptor.capture());
+        var route = (FhirRoute) routeCaptor.getValue();
+        assertEquals("tenant1", route.getTenant());
+        assertEquals("1", route.getId());
+        verify(chain).doFilter(request, response);
+        verify(request, never()).getRequestDispatcher(anyString());
+        assertEquals("tenant1", TenantUtil.getCurrentTenant());
+        TenantUtil.clear();
+    }
+
     @Test
     void testDoFilter_TenantNotFound() throws Exception {
         // Mock the serverSearchConfig to return an empty map
@@ -3,9 +3,12 @@
  */
 package fr.ans.afas.utils;
 
+import fr.ans.afas.exception.SerializationException;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 /**
  * Test the encrypter
  *
@@ -22,4 +25,17 @@ public class AesEncrypterTest {
         var decrypted = en.decrypt(encrypted);
         Assert.assertEquals(s, decrypted);
     }
+
+    @Test
+    public void testBytesEncryption() {
+        var bytes = new byte[]{1, 0, -1, 127, -128};
+        var en = new AesEncrypter("a");
+        var encrypted = en.encryptBytes(bytes);
+        Assert.assertArrayEquals(bytes, en.decryptBytes(encrypted));
+        // the iv is random:
+        Assert.assertFalse(Arrays.equals(encrypted, en.encryptBytes(bytes)));
+        // tampered data are rejected:
+        encrypted[encrypted.length - 1]++;
+        Assert.assertThrows(SerializationException.class, () -> en.decryptBytes(encrypted));
+    }
 }
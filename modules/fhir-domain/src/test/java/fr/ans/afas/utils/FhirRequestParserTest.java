@@ -10,6 +10,7 @@ import fr.ans.afas.exception.BadSelectExpression;
 import fr.ans.afas.fhirserver.http.FhirRequestParser;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.expression.*;
 import fr.ans.afas.fhirserver.search.expression.emptyimpl.EmptyAndExpression;
 import fr.ans.afas.fhirserver.search.expression.emptyimpl.EmptyDateExpression;
@@ -257,4 +258,41 @@ class FhirRequestParserTest {
                 () -> FhirRequestParser.parseSelectExpression("FhirResource?_count=49&not_exist_path=Patient/00001", expressionFactory, searchConfigService));
     }
 
+    @Test
+    void testSortParsing() throws BadSelectExpression, BadDataFormatException {
+        var expression = FhirRequestParser.parseSelectExpression("FhirResource?_sort=string_path,-date_path", expressionFactory, searchConfigService);
+        Assert.assertEquals(List.of(new SortField("string_path", false), new SortField("date_path", true)), expression.getSort());
+        Assert.assertEquals("-date_path", expression.getSort().get(1).toString());
+
+        Assert.assertThrows(BadSelectExpression.class,
+                () -> FhirRequestParser.parseSelectExpression("FhirResource?_sort=-not_exist_path", expressionFactory, searchConfigService));
+    }
+
+    @Test
+    void testSummaryParsing() throws BadSelectExpression, BadDataFormatException {
+        // count only:
+        var expression = FhirRequestParser.parseSelectExpression("FhirResource?_summary=count", expressionFactory, searchConfigService);
+        Assert.assertTrue(expression.isCountOnly());
+        Assert.assertTrue(FhirRequestParser.parseSelectExpression("FhirResource?_count=0", expressionFactory, searchConfigService).isCountOnly());
+        Assert.assertFalse(FhirRequestParser.parseSelectExpression("FhirResource?_summary=false", expressionFactory, searchConfigService).isCountOnly());
+
+        // summary elements of the resource, choice elements expanded:
+        expression = FhirRequestParser.parseSelectExpression("Organization?_summary=true", expressionFactory, searchConfigService);
+        Assert.assertTrue(expression.getElements().containsAll(List.of("identifier", "active", "name", "meta")));
+        Assert.assertFalse(expression.getElements().contains("contact"));
+        expression = FhirRequestParser.parseSelectExpression("Observation?_summary=true", expressionFactory, searchConfigService);
+        Assert.assertTrue(expression.getElements().containsAll(List.of("valueQuantity", "effectiveDateTime")));
+
+        // summary and _elements are merged whatever their order:
+        for (var query : List.of("Organization?_summary=true&_elements=contact", "Organization?_elements=contact&_summary=true")) {
+            expression = FhirRequestParser.parseSelectExpression(query, expressionFactory, searchConfigService);
+            Assert.assertTrue(query, expression.getElements().containsAll(List.of("identifier", "name", "contact")));
+        }
+
+        Assert.assertThrows(BadSelectExpression.class,
+                () -> FhirRequestParser.parseSelectExpression("FhirResource?_summary=text", expressionFactory, searchConfigService));
+        Assert.assertThrows(BadSelectExpression.class,
+                () -> FhirRequestParser.parseSelectExpression("FhirResource?_summary=true", expressionFactory, searchConfigService));
+    }
+
 }
@@ -0,0 +1,63 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.utils;
+
+import fr.ans.afas.fhirserver.service.StorageExecutor;
+import fr.ans.afas.fhirserver.service.exception.RequestTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the deadline of requests
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class RequestDeadlineTest {
+
+    @AfterEach
+    void clean() {
+        RequestDeadline.clear();
+    }
+
+    @Test
+    void testRemaining() {
+        // no deadline, no limit:
+        assertNull(RequestDeadline.remainingForCurrent());
+
+        var deadline = RequestDeadline.in(10_000);
+        RequestDeadline.set(deadline);
+        var remaining = RequestDeadline.remainingForCurrent();
+        assertTrue(remaining > 0 && remaining <= 10_000);
+
+        // cancelled when the client gave up:
+        deadline.cancel();
+        assertEquals(0, deadline.remaining());
+        assertThrows(RequestTimeoutException.class, RequestDeadline::remainingForCurrent);
+
+        // passed:
+        RequestDeadline.set(RequestDeadline.in(-1));
+        assertThrows(RequestTimeoutException.class, RequestDeadline::remainingForCurrent);
+
+        RequestDeadline.set(null);
+        assertNull(RequestDeadline.get());
+    }
+
+    @Test
+    void testPropagatedToStorageWork() throws Exception {
+        var deadline = RequestDeadline.in(10_000);
+        RequestDeadline.set(deadline);
+        try (var executor = new StorageExecutor(Executors.newSingleThreadExecutor())) {
+            assertSame(deadline, executor.supply(RequestDeadline::get).get(5, TimeUnit.SECONDS));
+            // cleaned after the work:
+            RequestDeadline.clear();
+            assertNull(executor.supply(RequestDeadline::get).get(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -16,7 +16,7 @@ import java.util.Date;
 
 /**
  * The configuration of the job that clean revision data no more used.
- * The service will clean paging data too.
+ * The service will clean paging data too (they are also deleted by mongodb with a TTL index, see {@link fr.ans.afas.rass.service.impl.MongoDbNextUrlManager}).
  *
  * @author Guillaume Poulériguen
  * @since 1.0.0
@@ -11,12 +11,18 @@ import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.mdbexpression.domain.fhir.MongoDbStringExpression;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.rass.service.impl.KeysetPagingUtils;
+import fr.ans.afas.rass.service.impl.MongoQueryUtils;
 import fr.ans.afas.utils.TenantUtil;
 import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
 import org.springframework.beans.factory.annotation.Value;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -25,6 +31,7 @@ import java.util.Set;
  * @author Guillaume Poulériguen
  * @since 1.0.0
  */
+@Slf4j
 public class MongoIndexConfiguration {
 
     /**
@@ -58,56 +65,84 @@ public class MongoIndexConfiguration {
     public void createIndexes() {
         serverSearchConfig.getConfigs().forEach((k, v) -> {
             TenantUtil.setCurrentTenant(k);
-            for (var resourceSearchConfig : searchConfigService.getResources()) {
-                Set<String> indexes = searchConfigService.getIndexesByFhirResource(resourceSearchConfig);
+            var tenantSearchConfigService = searchConfigService.forCurrentTenant();
+            for (var resourceSearchConfig : tenantSearchConfigService.getResources()) {
                 var collection = mongoMultiTenantService.getCollection(resourceSearchConfig);
-                // indexes:
-                indexes.forEach(index -> collection.createIndex(new Document(index, 1)));
-                // joins:
-                createJoins(resourceSearchConfig, collection);
+                var existingIndexes = new HashSet<List<String>>();
+                collection.listIndexes().forEach(index -> existingIndexes.add(List.copyOf(index.get("key", Document.class).keySet())));
+                indexesOf(tenantSearchConfigService, resourceSearchConfig).forEach(collection::createIndex);
+                backfillSortKeys(tenantSearchConfigService, resourceSearchConfig, collection, existingIndexes);
             }
         });
     }
 
-    private void createJoins(String resourceSearchConfig, MongoCollection<Document> collection) {
+    /**
+     * Write the sort keys of existing documents when a parameter becomes sortable (its sort index is new)
+     *
+     * @param searchConfigService  the search configuration of the tenant
+     * @param resourceSearchConfig the fhir resource
+     * @param collection           the collection of the resource
+     * @param existingIndexes      the fields of the indexes that existed before the startup
+     */
+    private static void backfillSortKeys(SearchConfigService searchConfigService, String resourceSearchConfig, MongoCollection<Document> collection, Set<List<String>> existingIndexes) {
+        for (var config : searchConfigService.getAllByFhirResource(resourceSearchConfig)) {
+            var sortKey = config.getIndexName() + StorageConstants.SORT_SUFFIX;
+            if (KeysetPagingUtils.hasSortKey(config) && !existingIndexes.contains(List.of(sortKey, MongoQueryUtils.ID_ATTRIBUTE))) {
+                var updated = KeysetPagingUtils.backfillSortKeys(collection, config);
+                log.info("Sort key {} written in {} documents of {}", sortKey, updated, resourceSearchConfig);
+            }
+        }
+    }
+
+    /**
+     * Get the indexes needed by a resource
+     *
+     * @param searchConfigService  the search configuration of the tenant
+     * @param resourceSearchConfig the fhir resource
+     * @return the keys of the indexes
+     */
+    public static List<Document> indexesOf(SearchConfigService searchConfigService, String resourceSearchConfig) {
+        var indexes = new ArrayList<Document>();
+        // indexes:
+        searchConfigService.getIndexesByFhirResource(resourceSearchConfig).forEach(index -> indexes.add(new Document(index, 1)));
+        // sort (the sort key then the _id):
+        indexes.addAll(KeysetPagingUtils.sortIndexes(searchConfigService, resourceSearchConfig));
+        // joins:
         var joins = searchConfigService.getJoinsByFhirResource(resourceSearchConfig);
         if (joins != null) {
             for (var j : joins) {
                 for (var config : searchConfigService.getAllByFhirResource(j.getResource())) {
                     if (config.isIndexInSubRequest()) {
-                        writeIndex(collection, config, "links." + j.getResource() + ".");
+                        indexes.addAll(joinIndexesOf(config, "links." + j.getResource() + "."));
                     }
                 }
             }
         }
+        return indexes;
     }
 
     /**
-     * Write an index for a search config. This method create specifics indexes for each type.
+     * Get the indexes of a search config of a joined resource. This method create specifics indexes for each type.
      *
-     * @param col    the database collection
      * @param config the configuration
      * @param prefix the prefix of the index
+     * @return the keys of the indexes
      * @see SearchParamConfig
      */
     //TODO Utiliser pour les joins seulement, voir si on peut utiliser directement searchConfigService.getIndexesByFhirResource(resourceSearchConfig) lorsqu'on abordera le _has
-    private void writeIndex(MongoCollection<Document> col, SearchParamConfig config, String prefix) {
-        switch (config.getSearchType()) {
-            case StorageConstants.INDEX_TYPE_TOKEN:
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.SYSTEM_SUFFIX, 1));
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.VALUE_SUFFIX, 1));
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.SYSVAL_SUFFIX, 1));
-                break;
-            case StorageConstants.INDEX_TYPE_REFERENCE:
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.REFERENCE_SUFFIX, 1));
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.TYPE_SUFFIX, 1));
-                col.createIndex(new Document(prefix + config.getIndexName() + StorageConstants.ID_SUFFIX, 1));
-                break;
-            case StorageConstants.INDEX_TYPE_STRING:
-            default:
-                col.createIndex(new Document(prefix + config.getIndexName(), 1));
-                col.createIndex(new Document(prefix + config.getIndexName() + MongoDbStringExpression.INSENSITIVE_SUFFIX, 1));
-                break;
-        }
+    private static List<Document> joinIndexesOf(SearchParamConfig config, String prefix) {
+        return switch (config.getSearchType()) {
+            case StorageConstants.INDEX_TYPE_TOKEN -> List.of(
+                    new Document(prefix + config.getIndexName() + StorageConstants.SYSTEM_SUFFIX, 1),
+                    new Document(prefix + config.getIndexName() + StorageConstants.VALUE_SUFFIX, 1),
+                    new Document(prefix + config.getIndexName() + StorageConstants.SYSVAL_SUFFIX, 1));
+            case StorageConstants.INDEX_TYPE_REFERENCE -> List.of(
+                    new Document(prefix + config.getIndexName() + StorageConstants.REFERENCE_SUFFIX, 1),
+                    new Document(prefix + config.getIndexName() + StorageConstants.TYPE_SUFFIX, 1),
+                    new Document(prefix + config.getIndexName() + StorageConstants.ID_SUFFIX, 1));
+            default -> List.of(
+                    new Document(prefix + config.getIndexName(), 1),
+                    new Document(prefix + config.getIndexName() + MongoDbStringExpression.INSENSITIVE_SUFFIX, 1));
+        };
     }
 }
@@ -3,15 +3,12 @@
  */
 package fr.ans.afas.mdbexpression.domain.fhir;
 
-import com.mongodb.client.model.Filters;
 import fr.ans.afas.fhirserver.search.expression.AndExpression;
 import fr.ans.afas.fhirserver.search.expression.Expression;
 import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import org.bson.conversions.Bson;
 
-import java.util.List;
-import java.util.Objects;
 
 /**
  * Implementation of the And operation for Mongodb
@@ -23,7 +20,7 @@ public class MongoDbAndExpression extends AndExpression<Bson> {
 
 
     /**
-     * Filter.and on all expressions
+     * Filter.and on all expressions, optimized with {@link MongoDbExpressionOptimizer}
      * If no expression are present, return null
      *
      * @param expressionContext the context of the expression
@@ -31,20 +28,7 @@ public class MongoDbAndExpression extends AndExpression<Bson> {
      */
     @Override
     public Bson interpreter(ExpressionContext expressionContext) {
-        List<Bson> expressionsBson = expressions.stream()
-                .map(e -> e.interpreter(expressionContext))
-                .filter(Objects::nonNull)
-                .toList();
-
-        if (!expressionsBson.isEmpty()) {
-            if (expressionsBson.size() == 1) {
-                return expressionsBson.get(0);
-            } else {
-                return Filters.and(expressionsBson);
-            }
-        } else {
-            return null;
-        }
+        return MongoDbExpressionOptimizer.interpretAnd(this, expressionContext);
     }
 
 
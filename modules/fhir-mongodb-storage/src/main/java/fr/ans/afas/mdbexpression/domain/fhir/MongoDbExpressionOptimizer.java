@@ -0,0 +1,278 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Filters;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.expression.AndExpression;
+import fr.ans.afas.fhirserver.search.expression.ContainerExpression;
+import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
+import fr.ans.afas.fhirserver.search.expression.OrExpression;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+/**
+ * Rule based optimizer used when AND / OR expressions are interpreted.
+ * <p>
+ * The following rules are applied on the expression tree:
+ * <ul>
+ *     <li>nested AND (or OR) are flattened: <code>a AND (b AND c)</code> becomes <code>a AND b AND c</code></li>
+ *     <li>identical predicates are removed</li>
+ *     <li>trivially true branches (empty filters) are removed from AND. An OR with a trivially true branch is trivially true</li>
+ *     <li>in an OR, equalities on the same path are folded in a <code>$in</code></li>
+ *     <li>conjuncts of an AND are ordered by their estimated selectivity (see {@link #selectivityRank(BsonDocument)})</li>
+ * </ul>
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class MongoDbExpressionOptimizer {
+
+    static final String MONGO_AND = "$and";
+    static final String MONGO_OR = "$or";
+    static final String MONGO_EQ = "$eq";
+    static final String MONGO_IN = "$in";
+
+    /**
+     * Operators that are evaluated on a range of the index
+     */
+    private static final Set<String> RANGE_OPERATORS = Set.of("$gt", "$gte", "$lt", "$lte");
+
+    /**
+     * Suffixes of indexes that are nearly unique (ids and references)
+     */
+    private static final List<String> UNIQUE_SUFFIXES = List.of(MongoDbReferenceExpression.ID_DB_SUFFIX, MongoDbReferenceExpression.REFERENCE_DB_SUFFIX, MongoDbTokenExpression.TOKEN_DB_PATH_SUFFIX_SYSVAL);
+
+    /**
+     * Nearly unique fields
+     */
+    private static final Set<String> UNIQUE_FIELDS = Set.of("_id", StorageConstants.INDEX_T_ID, StorageConstants.INDEX_T_FID);
+
+
+    /**
+     * Interpret and optimize an AND expression
+     *
+     * @param expression        the AND expression
+     * @param expressionContext the context
+     * @return the filter or null if there is no filter
+     */
+    public static Bson interpretAnd(AndExpression<Bson> expression, ExpressionContext expressionContext) {
+        var predicates = new ArrayList<Predicate>();
+        collect(expression, AndExpression.class, MONGO_AND, expressionContext, predicates);
+        predicates.removeIf(Predicate::isTriviallyTrue);
+        var distinct = distinct(predicates);
+        distinct.sort(Comparator.comparingInt(p -> selectivityRank(p.document)));
+        return build(distinct, MONGO_AND);
+    }
+
+    /**
+     * Interpret and optimize an OR expression
+     *
+     * @param expression        the OR expression
+     * @param expressionContext the context
+     * @return the filter or null if there is no filter
+     */
+    public static Bson interpretOr(OrExpression<Bson> expression, ExpressionContext expressionContext) {
+        var predicates = new ArrayList<Predicate>();
+        collect(expression, OrExpression.class, MONGO_OR, expressionContext, predicates);
+        if (predicates.stream().anyMatch(Predicate::isTriviallyTrue)) {
+            return new BsonDocument();
+        }
+        return build(foldEqualities(distinct(predicates)), MONGO_OR);
+    }
+
+    /**
+     * Interpret sub expressions of a container and flatten sub containers of the same kind
+     *
+     * @param expression        the expression
+     * @param containerType     the kind of container to flatten
+     * @param operator          the mongodb operator of the container
+     * @param expressionContext the context
+     * @param collector         where predicates are collected
+     */
+    private static void collect(ContainerExpression<Bson> expression, Class<?> containerType, String operator, ExpressionContext expressionContext, List<Predicate> collector) {
+        for (var e : expression.getExpressions()) {
+            if (containerType.isInstance(e)) {
+                collect((ContainerExpression<Bson>) e, containerType, operator, expressionContext, collector);
+            } else {
+                var bson = e.interpreter(expressionContext);
+                if (bson != null) {
+                    collectBson(bson, operator, collector);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a filter to predicates. Filters that are already a <code>$and</code> (or <code>$or</code>) are flattened
+     *
+     * @param bson      the filter
+     * @param operator  the operator of the container
+     * @param collector where predicates are collected
+     */
+    private static void collectBson(Bson bson, String operator, List<Predicate> collector) {
+        var document = bson instanceof BsonDocument d ? d : bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        if (document.size() == 1 && document.containsKey(operator) && document.get(operator).isArray()) {
+            for (var sub : document.getArray(operator)) {
+                if (sub.isDocument()) {
+                    collectBson(sub.asDocument(), operator, collector);
+                }
+            }
+        } else {
+            collector.add(new Predicate(bson, document));
+        }
+    }
+
+    /**
+     * Remove identical predicates (keep the first one)
+     *
+     * @param predicates the predicates
+     * @return distinct predicates
+     */
+    private static List<Predicate> distinct(List<Predicate> predicates) {
+        var seen = new HashSet<BsonDocument>();
+        var ret = new ArrayList<Predicate>();
+        for (var p : predicates) {
+            if (seen.add(p.document)) {
+                ret.add(p);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Fold equalities (and <code>$in</code>) on the same path in a single <code>$in</code>
+     *
+     * @param predicates predicates of an OR
+     * @return the folded predicates
+     */
+    private static List<Predicate> foldEqualities(List<Predicate> predicates) {
+        var valuesByField = new LinkedHashMap<String, LinkedHashSet<BsonValue>>();
+        for (var p : predicates) {
+            var field = equalityField(p.document);
+            if (field != null) {
+                valuesByField.computeIfAbsent(field, k -> new LinkedHashSet<>()).addAll(equalityValues(p.document));
+            }
+        }
+        var ret = new ArrayList<Predicate>();
+        var folded = new HashSet<String>();
+        for (var p : predicates) {
+            var field = equalityField(p.document);
+            if (field == null || valuesByField.get(field).size() == 1 && equalityValues(p.document).size() == 1) {
+                ret.add(p);
+            } else if (folded.add(field)) {
+                var in = new BsonDocument(field, new BsonDocument(MONGO_IN, new BsonArray(new ArrayList<>(valuesByField.get(field)))));
+                ret.add(new Predicate(in, in));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the field of a filter if the filter is an equality (<code>{f: v}</code>, <code>{f: {$eq: v}}</code> or <code>{f: {$in: [...]}}</code>)
+     *
+     * @param document the filter
+     * @return the field or null if the filter is not an equality
+     */
+    static String equalityField(BsonDocument document) {
+        if (document.size() != 1) {
+            return null;
+        }
+        var field = document.getFirstKey();
+        if (field.startsWith("$")) {
+            return null;
+        }
+        var value = document.get(field);
+        if (value.isDocument()) {
+            var op = value.asDocument();
+            if (op.size() == 1 && (op.containsKey(MONGO_EQ) && isScalar(op.get(MONGO_EQ)) || op.containsKey(MONGO_IN) && op.get(MONGO_IN).isArray())) {
+                return field;
+            }
+            return null;
+        }
+        return isScalar(value) ? field : null;
+    }
+
+    private static List<BsonValue> equalityValues(BsonDocument document) {
+        var value = document.get(document.getFirstKey());
+        if (value.isDocument()) {
+            var op = value.asDocument();
+            return op.containsKey(MONGO_IN) ? op.getArray(MONGO_IN).getValues() : List.of(op.get(MONGO_EQ));
+        }
+        return List.of(value);
+    }
+
+    private static boolean isScalar(BsonValue value) {
+        return !value.isDocument() && !value.isArray();
+    }
+
+    /**
+     * Estimate the selectivity of a filter. Lower is more selective:
+     * <ol start="0">
+     *     <li>equality on ids and references</li>
+     *     <li>other equalities</li>
+     *     <li>ranges</li>
+     *     <li>other filters (regex, sub OR...)</li>
+     *     <li>negations</li>
+     * </ol>
+     *
+     * @param document the filter
+     * @return the rank
+     */
+    static int selectivityRank(BsonDocument document) {
+        var field = equalityField(document);
+        if (field != null) {
+            return UNIQUE_FIELDS.contains(field) || UNIQUE_SUFFIXES.stream().anyMatch(field::endsWith) ? 0 : 1;
+        }
+        if (document.size() == 1 && !document.getFirstKey().startsWith("$") && document.get(document.getFirstKey()).isDocument()) {
+            var operators = document.get(document.getFirstKey()).asDocument().keySet();
+            if (!operators.isEmpty() && RANGE_OPERATORS.containsAll(operators)) {
+                return 2;
+            }
+            if (operators.contains("$not") || operators.contains("$ne") || operators.contains("$nin") || operators.contains("$exists")) {
+                return 4;
+            }
+        }
+        return 3;
+    }
+
+    /**
+     * Build the filter
+     *
+     * @param predicates the predicates
+     * @param operator   the operator ($and / $or)
+     * @return the filter, null if there is no predicate
+     */
+    private static Bson build(List<Predicate> predicates, String operator) {
+        if (predicates.isEmpty()) {
+            return null;
+        }
+        if (predicates.size() == 1) {
+            return predicates.get(0).bson;
+        }
+        var filters = predicates.stream().map(p -> p.bson).toList();
+        return MONGO_AND.equals(operator) ? Filters.and(filters) : Filters.or(filters);
+    }
+
+    /**
+     * A filter and its bson document representation
+     *
+     * @param bson     the original filter
+     * @param document the document of the filter
+     */
+    private record Predicate(Bson bson, BsonDocument document) {
+        boolean isTriviallyTrue() {
+            return document.isEmpty();
+        }
+    }
+}
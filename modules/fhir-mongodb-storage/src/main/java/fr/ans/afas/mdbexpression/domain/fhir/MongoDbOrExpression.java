@@ -3,14 +3,12 @@
  */
 package fr.ans.afas.mdbexpression.domain.fhir;
 
-import com.mongodb.client.model.Filters;
 import fr.ans.afas.fhirserver.search.expression.Expression;
 import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
 import fr.ans.afas.fhirserver.search.expression.OrExpression;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import org.bson.conversions.Bson;
 
-import java.util.Objects;
 
 /**
  * Implementation of the or expression for Mongodb
@@ -21,27 +19,14 @@ import java.util.Objects;
 public class MongoDbOrExpression extends OrExpression<Bson> {
 
     /**
-     * Create a OR expression in mongodb
+     * Create a OR expression in mongodb, optimized with {@link MongoDbExpressionOptimizer}
      *
      * @param expressionContext the context the expression context
      * @return the OR expression
      */
     @Override
     public Bson interpreter(ExpressionContext expressionContext) {
-        var expressionsBson = expressions.stream()
-                .map(e -> e.interpreter(expressionContext))
-                .filter(Objects::nonNull)
-                .toList();
-
-        if (!expressionsBson.isEmpty()) {
-            if (expressionsBson.size() == 1) {
-                return expressionsBson.get(0);
-            } else {
-                return Filters.or(expressionsBson);
-            }
-        } else {
-            return null;
-        }
+        return MongoDbExpressionOptimizer.interpretOr(this, expressionContext);
     }
 
 
@@ -5,6 +5,7 @@ package fr.ans.afas.mdbexpression.domain.fhir.serialization;
 
 import fr.ans.afas.exception.SerializationException;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.expression.*;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import fr.ans.afas.utils.ExpressionSerializationUtils;
@@ -17,6 +18,7 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 
 /**
@@ -44,6 +46,14 @@ public class MongoDbExpressionSerializer implements ExpressionSerializer<Bson> {
     }
 
 
+    public ExpressionFactory<Bson> getExpressionFactory() {
+        return expressionFactory;
+    }
+
+    public SearchConfigService getSearchConfigService() {
+        return searchConfigService;
+    }
+
     private static String encodeValue(String valueToEncode) {
         return URLEncoder.encode(valueToEncode, StandardCharsets.UTF_8);
     }
@@ -142,6 +152,11 @@ public class MongoDbExpressionSerializer implements ExpressionSerializer<Bson> {
                 .append(URLEncoder.encode(encodeInclude(selectExpression.getRevincludes()), StandardCharsets.UTF_8))
                 .append(Expression.SERIALIZE_VALUE_SEPARATOR);
         selectExpression.getHasConditions().forEach(h -> sb.append(URLEncoder.encode(h.serialize(this), StandardCharsets.UTF_8)));
+        // the sort is only written when present (links created without sort stay readable):
+        if (!selectExpression.getSort().isEmpty()) {
+            sb.append(Expression.SERIALIZE_VALUE_SEPARATOR)
+                    .append(URLEncoder.encode(selectExpression.getSort().stream().map(SortField::toString).collect(Collectors.joining(",")), StandardCharsets.UTF_8));
+        }
         return sb.toString();
     }
 
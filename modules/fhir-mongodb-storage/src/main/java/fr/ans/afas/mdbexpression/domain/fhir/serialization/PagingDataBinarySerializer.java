@@ -0,0 +1,628 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir.serialization;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import fr.ans.afas.exception.SerializationException;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.data.SortField;
+import fr.ans.afas.fhirserver.search.data.TotalMode;
+import fr.ans.afas.fhirserver.search.expression.*;
+import fr.ans.afas.fhirserver.service.data.CountResult;
+import fr.ans.afas.fhirserver.service.data.PagingData;
+import fr.ans.afas.mdbexpression.domain.fhir.*;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary serialization of paging data, used in next urls.
+ * <p>
+ * Format (version 2):
+ * <pre>
+ * magic (1 byte) | flags (1 byte: 1 = deflate) | payload (deflated or not)
+ * payload: dictionary fingerprint (8 bytes), page size, total, timestamp, type, last id, uuid, elements, select expression
+ * </pre>
+ * Numbers are varints, strings are prefixed by their length. Search paths are coded with their index in a dictionary
+ * built from the search configuration (the fingerprint of the dictionary, 64 bits of a SHA-256, is checked on reading).
+ * The dictionary is built once per configuration snapshot (see {@link SearchConfigService#forCurrentTenant()}). Last ids
+ * and uuids are stored as raw bytes when possible. The version 1 (16 bits fingerprint) is no more read.
+ * </p>
+ * <p>
+ * The first byte (magic) can't be the first byte of the old text format (that starts with a digit).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class PagingDataBinarySerializer {
+
+    /**
+     * First byte of binary paging data (version 1, no more read)
+     */
+    public static final byte MAGIC_V1 = 1;
+
+    /**
+     * First byte of binary paging data (version 2)
+     */
+    public static final byte MAGIC_V2 = 2;
+
+    /**
+     * Flag set when the payload is deflated
+     */
+    static final int FLAG_DEFLATE = 1;
+
+    /**
+     * Payloads smaller than this size are not compressed
+     */
+    static final int DEFLATE_MIN_SIZE = 64;
+
+    private static final int TAG_AND = 1;
+    private static final int TAG_OR = 2;
+    private static final int TAG_TOKEN = 3;
+    private static final int TAG_STRING = 4;
+    private static final int TAG_DATE = 5;
+    private static final int TAG_QUANTITY = 6;
+    private static final int TAG_REFERENCE = 7;
+    private static final int TAG_HAS = 8;
+
+    private static final int ID_STRING = 0;
+    private static final int ID_OBJECT_ID = 1;
+    private static final int ID_UUID = 2;
+
+    /**
+     * The expression factory
+     */
+    final ExpressionFactory<Bson> expressionFactory;
+
+    /**
+     * The search config
+     */
+    final SearchConfigService searchConfigService;
+
+    /**
+     * Set to false to never compress
+     */
+    boolean compress = true;
+
+    /**
+     * Dictionaries by configuration snapshot (snapshots are replaced when the configuration is reloaded)
+     */
+    private final Map<SearchConfigService, Dictionary> dictionaries = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public PagingDataBinarySerializer(ExpressionFactory<Bson> expressionFactory, SearchConfigService searchConfigService) {
+        this.expressionFactory = expressionFactory;
+        this.searchConfigService = searchConfigService;
+    }
+
+    /**
+     * Check if serialized paging data are in the binary format
+     *
+     * @param data the data
+     * @return true if the data are in the binary format
+     */
+    public static boolean isBinary(byte[] data) {
+        return data.length > 2 && (data[0] == MAGIC_V2 || data[0] == MAGIC_V1);
+    }
+
+    /**
+     * Serialize paging data
+     *
+     * @param pagingData the paging data
+     * @return the binary representation
+     * @throws SerializationException if an expression can't be serialized
+     */
+    public byte[] serialize(PagingData<Bson> pagingData) {
+        var dictionary = dictionary();
+        var out = new Writer(dictionary);
+        out.writeLong(dictionary.fingerprint);
+        out.writeVarLong(pagingData.getPageSize());
+        out.writeVarLong(pagingData.getSize().getTotal() == null ? 0 : pagingData.getSize().getTotal() + 1);
+        out.writeVarLong(pagingData.getTimestamp());
+        out.writeString(pagingData.getType());
+        out.writeId(pagingData.getLastId());
+        out.writeId(pagingData.getUuid());
+        var elements = pagingData.getElements() == null ? Set.<String>of() : pagingData.getElements();
+        out.writeVarLong(elements.size());
+        elements.forEach(out::writeString);
+        out.writeSelect(pagingData.getSelectExpression());
+
+        var payload = out.toByteArray();
+        var flags = 0;
+        if (compress && payload.length >= DEFLATE_MIN_SIZE) {
+            var deflated = deflate(payload);
+            if (deflated.length < payload.length) {
+                payload = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        var ret = new byte[payload.length + 2];
+        ret[0] = MAGIC_V2;
+        ret[1] = (byte) flags;
+        System.arraycopy(payload, 0, ret, 2, payload.length);
+        return ret;
+    }
+
+    /**
+     * Deserialize paging data
+     *
+     * @param data the binary representation
+     * @return the paging data
+     * @throws SerializationException if the data are not valid or if the search configuration changed
+     */
+    public PagingData<Bson> deserialize(byte[] data) {
+        return deserialize(data, null);
+    }
+
+    /**
+     * Deserialize paging data. The select expression is taken from the cache when it was already read
+     *
+     * @param data  the binary representation
+     * @param cache the cache of select expressions (null to always read the select expression)
+     * @return the paging data
+     * @throws SerializationException if the data are not valid or if the search configuration changed
+     */
+    public PagingData<Bson> deserialize(byte[] data, SelectExpressionCache cache) {
+        if (!isBinary(data)) {
+            throw new SerializationException("Can't deserialize parameters. Unknown format.");
+        }
+        if (data[0] != MAGIC_V2) {
+            throw new SerializationException("Can't deserialize parameters. Format no more supported.");
+        }
+        try {
+            var payload = Arrays.copyOfRange(data, 2, data.length);
+            if ((data[1] & FLAG_DEFLATE) != 0) {
+                payload = inflate(payload);
+            }
+            var dictionary = dictionary();
+            var in = new Reader(ByteBuffer.wrap(payload), dictionary);
+            if (in.readLong() != dictionary.fingerprint) {
+                throw new SerializationException("Can't deserialize parameters. The search configuration changed.");
+            }
+            var pageSize = (int) in.readVarLong();
+            var total = in.readVarLong();
+            var timestamp = in.readVarLong();
+            var type = in.readString();
+            var lastId = in.readId();
+            var uuid = in.readId();
+            var elementCount = (int) in.readVarLong();
+            var elements = new HashSet<String>();
+            for (var i = 0; i < elementCount; i++) {
+                elements.add(in.readString());
+            }
+            var selectExpression = cache == null ? in.readSelect() :
+                    cache.get(SelectExpressionCache.key(ByteBuffer.wrap(in.remainingBytes()), elements), in::readSelect);
+            return PagingData.<Bson>builder()
+                    .pageSize(pageSize)
+                    .size(CountResult.builder().total(total == 0 ? null : total - 1).build())
+                    .timestamp(timestamp)
+                    .type(type)
+                    .lastId(lastId)
+                    .uuid(uuid)
+                    .elements(elements)
+                    .selectExpression(selectExpression)
+                    .build();
+        } catch (RuntimeException | DataFormatException e) {
+            if (e instanceof SerializationException se) {
+                throw se;
+            }
+            throw new SerializationException("Can't deserialize parameters.", e);
+        }
+    }
+
+    /**
+     * Get the dictionary of the configuration of the current tenant
+     *
+     * @return the dictionary
+     */
+    Dictionary dictionary() {
+        return dictionaries.computeIfAbsent(searchConfigService.forCurrentTenant(), Dictionary::new);
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            var out = new ByteArrayOutputStream(data.length);
+            var buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            var out = new ByteArrayOutputStream(data.length * 4);
+            var buffer = new byte[512];
+            while (!inflater.finished()) {
+                var n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated data");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Dictionary of search paths (resource, url parameter) of the search configuration, sorted.
+     */
+    static class Dictionary {
+        final List<FhirSearchPath> paths = new ArrayList<>();
+        final Map<FhirSearchPath, Integer> indexes = new HashMap<>();
+        final long fingerprint;
+
+        Dictionary(SearchConfigService searchConfigService) {
+            var sorted = new TreeSet<String>();
+            for (var resource : searchConfigService.getResources()) {
+                var configs = searchConfigService.getAllByFhirResource(resource);
+                if (configs != null) {
+                    configs.forEach(c -> sorted.add(resource + "\u0000" + c.getUrlParameter()));
+                }
+            }
+            var digest = sha256();
+            for (var s : sorted) {
+                var parts = s.split("\u0000", 2);
+                var path = FhirSearchPath.builder().resource(parts[0]).path(parts[1]).build();
+                indexes.put(path, paths.size());
+                paths.add(path);
+                digest.update(s.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            fingerprint = ByteBuffer.wrap(digest.digest()).getLong();
+        }
+
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Write values
+     */
+    private static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        private final Dictionary dictionary;
+
+        Writer(Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        void writeLong(long value) {
+            writeBytes(ByteBuffer.allocate(8).putLong(value).array());
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        void writeBytes(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Write a nullable string (length + 1, 0 for null)
+         */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            writeBytes(bytes);
+        }
+
+        void writeId(String id) {
+            if (id != null && ObjectId.isValid(id)) {
+                out.write(ID_OBJECT_ID);
+                writeBytes(new ObjectId(id).toByteArray());
+                return;
+            }
+            var uuid = parseUuid(id);
+            if (uuid != null) {
+                out.write(ID_UUID);
+                writeBytes(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array());
+                return;
+            }
+            out.write(ID_STRING);
+            writeString(id);
+        }
+
+        void writePath(FhirSearchPath path) {
+            var index = dictionary.indexes.get(path);
+            if (index != null) {
+                writeVarLong(index + 1L);
+            } else {
+                writeVarLong(0);
+                writeString(path.getResource());
+                writeString(path.getPath());
+            }
+        }
+
+        void writeSelect(SelectExpression<Bson> selectExpression) {
+            writeString(selectExpression.getFhirResource());
+            writeVarLong(selectExpression.getCount());
+            writeVarLong(selectExpression.getTotalMode().ordinal());
+            writeVarLong(selectExpression.getSince() == null ? 0 : selectExpression.getSince().getTime() + 1);
+            writeExpression(selectExpression.getExpression());
+            writeIncludes(selectExpression.getIncludes());
+            writeIncludes(selectExpression.getRevincludes());
+            writeVarLong(selectExpression.getHasConditions().size());
+            selectExpression.getHasConditions().forEach(this::writeExpression);
+            // the sort is the last element and is only written when present:
+            if (!selectExpression.getSort().isEmpty()) {
+                writeVarLong(selectExpression.getSort().size());
+                for (var sortField : selectExpression.getSort()) {
+                    writeString(sortField.getParam());
+                    out.write(sortField.isDescending() ? 1 : 0);
+                }
+            }
+        }
+
+        void writeIncludes(Set<IncludeExpression<Bson>> includes) {
+            writeVarLong(includes.size());
+            for (var include : includes) {
+                writeString(include.getType());
+                writeString(include.getName());
+            }
+        }
+
+        void writeExpressions(List<Expression<Bson>> expressions) {
+            writeVarLong(expressions.size());
+            expressions.forEach(this::writeExpression);
+        }
+
+        void writeExpression(Expression<Bson> expression) {
+            if (expression instanceof AndExpression<Bson> and) {
+                out.write(TAG_AND);
+                writeExpressions(and.getExpressions());
+            } else if (expression instanceof OrExpression<Bson> or) {
+                out.write(TAG_OR);
+                writeExpressions(or.getExpressions());
+            } else if (expression instanceof TokenExpression<Bson> token) {
+                out.write(TAG_TOKEN);
+                writePath(token.getFhirPath());
+                writeString(token.getSystem());
+                writeString(token.getValue());
+                writeVarLong(token.getOperator().ordinal());
+            } else if (expression instanceof StringExpression<Bson> string) {
+                out.write(TAG_STRING);
+                writePath(string.getFhirPath());
+                writeString(string.getValue());
+                writeVarLong(string.getOperator().ordinal());
+            } else if (expression instanceof DateRangeExpression<Bson> date) {
+                out.write(TAG_DATE);
+                writePath(date.getFhirPath());
+                writeVarLong(date.getDate().getTime());
+                writeVarLong(date.getPrecision().ordinal());
+                writeVarLong(date.getPrefix().ordinal());
+            } else if (expression instanceof QuantityExpression<Bson> quantity) {
+                out.write(TAG_QUANTITY);
+                writePath(quantity.getFhirPath());
+                writeBytes(ByteBuffer.allocate(8).putDouble(quantity.getValue().doubleValue()).array());
+                writeVarLong(quantity.getOperator().ordinal());
+            } else if (expression instanceof ReferenceExpression<Bson> reference) {
+                out.write(TAG_REFERENCE);
+                writePath(reference.getFhirPath());
+                writeString(reference.getType());
+                writeString(reference.getId());
+            } else if (expression instanceof HasCondition<Bson> has) {
+                out.write(TAG_HAS);
+                writePath(has.getFhirPath());
+                writeExpressions(has.getExpressions());
+            } else {
+                throw new SerializationException("Expression not supported: " + expression.getClass().getSimpleName());
+            }
+        }
+
+        private static UUID parseUuid(String value) {
+            if (value == null || value.length() != 36) {
+                return null;
+            }
+            try {
+                var uuid = UUID.fromString(value);
+                return uuid.toString().equals(value) ? uuid : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read values
+     */
+    private class Reader {
+        private final ByteBuffer in;
+        private final Dictionary dictionary;
+
+        Reader(ByteBuffer in, Dictionary dictionary) {
+            this.in = in;
+            this.dictionary = dictionary;
+        }
+
+        long readLong() {
+            return in.getLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (var shift = 0; shift < 64; shift += 7) {
+                var b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SerializationException("Can't deserialize parameters. Bad number.");
+        }
+
+        /**
+         * Copy the remaining bytes without moving the position
+         */
+        byte[] remainingBytes() {
+            var bytes = new byte[in.remaining()];
+            in.duplicate().get(bytes);
+            return bytes;
+        }
+
+        byte[] readBytes(int length) {
+            var bytes = new byte[length];
+            in.get(bytes);
+            return bytes;
+        }
+
+        String readString() {
+            var length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            return new String(readBytes((int) (length - 1)), StandardCharsets.UTF_8);
+        }
+
+        String readId() {
+            return switch (in.get()) {
+                case ID_OBJECT_ID -> new ObjectId(readBytes(12)).toHexString();
+                case ID_UUID -> new UUID(in.getLong(), in.getLong()).toString();
+                default -> readString();
+            };
+        }
+
+        FhirSearchPath readPath() {
+            var index = (int) readVarLong();
+            if (index == 0) {
+                return FhirSearchPath.builder().resource(readString()).path(readString()).build();
+            }
+            if (index > dictionary.paths.size()) {
+                throw new SerializationException("Can't deserialize parameters. Unknown path.");
+            }
+            return dictionary.paths.get(index - 1);
+        }
+
+        SelectExpression<Bson> readSelect() {
+            var resource = readString();
+            var count = (int) readVarLong();
+            var totalMode = TotalMode.values()[(int) readVarLong()];
+            var since = readVarLong();
+            var root = readExpression();
+            if (!(root instanceof ContainerExpression<Bson> container)) {
+                throw new SerializationException("Can't deserialize parameters. Bad root expression.");
+            }
+            var selectExpression = new SelectExpression<>(resource, expressionFactory, container);
+            selectExpression.setCount(count);
+            selectExpression.setTotalMode(totalMode);
+            if (since != 0) {
+                selectExpression.setSince(new Date(since - 1));
+            }
+            selectExpression.getIncludes().addAll(readIncludes());
+            selectExpression.getRevincludes().addAll(readIncludes());
+            var hasCount = (int) readVarLong();
+            for (var i = 0; i < hasCount; i++) {
+                selectExpression.addHasCondition((HasCondition<Bson>) readExpression());
+            }
+            if (in.hasRemaining()) {
+                var sortCount = (int) readVarLong();
+                var sort = new ArrayList<SortField>();
+                for (var i = 0; i < sortCount; i++) {
+                    sort.add(new SortField(readString(), in.get() != 0));
+                }
+                selectExpression.setSort(sort);
+            }
+            return selectExpression;
+        }
+
+        Set<IncludeExpression<Bson>> readIncludes() {
+            var size = (int) readVarLong();
+            var includes = new HashSet<IncludeExpression<Bson>>();
+            for (var i = 0; i < size; i++) {
+                includes.add(new MongoDbIncludeExpression(searchConfigService, readString(), readString()));
+            }
+            return includes;
+        }
+
+        void readExpressions(ContainerExpression<Bson> container) {
+            var size = (int) readVarLong();
+            for (var i = 0; i < size; i++) {
+                container.addExpression(readExpression());
+            }
+        }
+
+        Expression<Bson> readExpression() {
+            var tag = in.get();
+            switch (tag) {
+                case TAG_AND -> {
+                    var and = expressionFactory.newAndExpression();
+                    readExpressions(and);
+                    return and;
+                }
+                case TAG_OR -> {
+                    var or = expressionFactory.newOrExpression();
+                    readExpressions(or);
+                    return or;
+                }
+                case TAG_TOKEN -> {
+                    return new MongoDbTokenExpression(searchConfigService, readPath(), readString(), readString(), TokenExpression.Operator.values()[(int) readVarLong()]);
+                }
+                case TAG_STRING -> {
+                    return new MongoDbStringExpression(searchConfigService, readPath(), readString(), StringExpression.Operator.values()[(int) readVarLong()]);
+                }
+                case TAG_DATE -> {
+                    return new MongoDbDateRangeExpression(searchConfigService, readPath(), new Date(readVarLong()), TemporalPrecisionEnum.values()[(int) readVarLong()], ParamPrefixEnum.values()[(int) readVarLong()]);
+                }
+                case TAG_QUANTITY -> {
+                    return new MongoDbQuantityExpression(searchConfigService, readPath(), in.getDouble(), QuantityExpression.Operator.values()[(int) readVarLong()]);
+                }
+                case TAG_REFERENCE -> {
+                    return new MongoDbReferenceExpression(searchConfigService, readPath(), readString(), readString());
+                }
+                case TAG_HAS -> {
+                    var has = new HasCondition<Bson>(readPath());
+                    var size = (int) readVarLong();
+                    for (var i = 0; i < size; i++) {
+                        has.addExpression(readExpression());
+                    }
+                    return has;
+                }
+                default -> throw new SerializationException("Can't deserialize parameters. Unknown expression.");
+            }
+        }
+    }
+}
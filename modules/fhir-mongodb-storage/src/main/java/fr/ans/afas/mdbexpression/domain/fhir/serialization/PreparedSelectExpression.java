@@ -0,0 +1,108 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir.serialization;
+
+import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import org.bson.conversions.Bson;
+import org.springframework.util.StringUtils;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A select expression read from paging data, with its query already interpreted.
+ * <p>
+ * The interpretation of the root expression (the mongodb filter) and the projection are computed once and shared by
+ * all pages of the search (see {@link SelectExpressionCache}). Each page gets its own copy (see {@link #copy()}), so
+ * the options of the select (count, elements...) can be changed without side effect on other pages. The expression
+ * tree is shared and must not be modified.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class PreparedSelectExpression extends SelectExpression<Bson> {
+
+    /**
+     * The interpreted expression
+     */
+    private final Bson filter;
+
+    /**
+     * The projection and the elements used to create it, shared by copies. Created on the first use
+     */
+    private final AtomicReference<Projection> projection;
+
+    /**
+     * Prepare a select expression
+     *
+     * @param source the select expression
+     */
+    public PreparedSelectExpression(SelectExpression<Bson> source) {
+        this(source, source.interpreter(), new AtomicReference<>());
+    }
+
+    private PreparedSelectExpression(SelectExpression<Bson> source, Bson filter, AtomicReference<Projection> projection) {
+        super(source.getFhirResource(), source.getExpressionFactory(), source.getExpression());
+        this.filter = filter;
+        this.projection = projection;
+        getIncludes().addAll(source.getIncludes());
+        getRevincludes().addAll(source.getRevincludes());
+        setHasConditions(source.getHasConditions());
+        setSort(source.getSort());
+        setCount(source.getCount());
+        setTotalMode(source.getTotalMode());
+        setSince(source.getSince());
+        setElements(source.getElements());
+        setSummaryCount(source.isSummaryCount());
+    }
+
+    /**
+     * Create a copy for a page. The interpreted query is shared
+     *
+     * @return the copy
+     */
+    public PreparedSelectExpression copy() {
+        return new PreparedSelectExpression(this, filter, projection);
+    }
+
+    /**
+     * Return the interpreted query for the root context, otherwise interpret the expression
+     *
+     * @param expressionContext the context
+     * @return the query
+     */
+    @Override
+    public Bson interpreter(ExpressionContext expressionContext) {
+        if (expressionContext.getDepth() == 0 && !StringUtils.hasLength(expressionContext.getPrefix())) {
+            return filter;
+        }
+        return super.interpreter(expressionContext);
+    }
+
+    /**
+     * Get the projection of the search and create it on the first use
+     *
+     * @param elements  the elements of the search (FHIR _elements)
+     * @param generator the generator of the projection
+     * @return the projection
+     */
+    public Bson getProjection(Set<String> elements, Supplier<Bson> generator) {
+        var found = projection.get();
+        if (found != null && Objects.equals(found.elements, elements)) {
+            return found.value;
+        }
+        var value = generator.get();
+        if (found == null) {
+            projection.compareAndSet(null, new Projection(elements, value));
+        }
+        return value;
+    }
+
+    private record Projection(Set<String> elements, Bson value) {
+    }
+}
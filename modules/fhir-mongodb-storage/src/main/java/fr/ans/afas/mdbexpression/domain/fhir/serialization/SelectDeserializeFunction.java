@@ -5,6 +5,7 @@ package fr.ans.afas.mdbexpression.domain.fhir.serialization;
 
 import fr.ans.afas.exception.SerializationException;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.expression.*;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import fr.ans.afas.mdbexpression.domain.fhir.MongoDbIncludeExpression;
@@ -13,6 +14,7 @@ import org.springframework.util.StringUtils;
 
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -21,8 +23,8 @@ public class SelectDeserializeFunction implements DeserializeFunction<Bson> {
     @Override
     public Expression<Bson> process(SearchConfigService searchConfigService, ExpressionFactory<Bson> expressionFactory, ExpressionSerializer<Bson> expressionDeserializer, String val) {
         var parts = val.split("\\$", -1);
-        if (parts.length != 6) {
-            throw new SerializationException("Error during the Select deserialization. 6 parameters wanted. " + parts.length + " found. Params: " + val);
+        if (parts.length != 6 && parts.length != 7) {
+            throw new SerializationException("Error during the Select deserialization. 6 or 7 parameters wanted. " + parts.length + " found. Params: " + val);
         }
         var resourceType = parts[0];
         var count = parts[1];
@@ -39,6 +41,9 @@ public class SelectDeserializeFunction implements DeserializeFunction<Bson> {
         if (has.length() > 0) {
             se.addHasCondition((HasCondition<Bson>) expressionDeserializer.deserialize(URLDecoder.decode(has, StandardCharsets.UTF_8)));
         }
+        if (parts.length == 7) {
+            se.setSort(Arrays.stream(URLDecoder.decode(parts[6], StandardCharsets.UTF_8).split(",")).map(SortField::parse).toList());
+        }
 
         return se;
     }
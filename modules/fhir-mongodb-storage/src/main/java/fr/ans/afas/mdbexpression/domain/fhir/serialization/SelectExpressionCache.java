@@ -0,0 +1,143 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir.serialization;
+
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.utils.TenantUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.conversions.Bson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of select expressions read from paging data.
+ * <p>
+ * All pages of a search carry the same serialized select expression. The first page read on the node deserializes and
+ * interprets it ({@link PreparedSelectExpression}). Next pages only get a copy of the prepared expression: the parsing
+ * and the interpretation are skipped. The key is the serialized select expression itself (text or binary) with the
+ * elements of the search, so there is no collision between searches.
+ * </p>
+ * <p>
+ * The time spent to parse and interpret expressions is tracked (see {@link #getPrepareTimeNanos()}).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class SelectExpressionCache {
+
+    /**
+     * Max number of entries
+     */
+    private final int maxSize;
+
+    /**
+     * Entries in access order
+     */
+    private final LinkedHashMap<Object, PreparedSelectExpression> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prepareTimeNanos = new LongAdder();
+
+    /**
+     * Create the cache
+     *
+     * @param maxSize the max number of entries. 0 disable the cache (expressions are still prepared)
+     */
+    public SelectExpressionCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, PreparedSelectExpression> eldest) {
+                return size() > SelectExpressionCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the prepared select expression of a serialized select expression
+     *
+     * @param key    the key (see {@link #key(Object, Set)})
+     * @param parser the parser of the select expression, called if the expression is not in the cache
+     * @return a copy of the prepared select expression
+     */
+    public SelectExpression<Bson> get(Object key, Supplier<SelectExpression<Bson>> parser) {
+        PreparedSelectExpression found;
+        synchronized (this) {
+            found = entries.get(key);
+        }
+        if (found != null) {
+            hits.increment();
+            return found.copy();
+        }
+        misses.increment();
+        var start = System.nanoTime();
+        var prepared = new PreparedSelectExpression(parser.get());
+        var duration = System.nanoTime() - start;
+        prepareTimeNanos.add(duration);
+        log.debug("Select expression of paging data prepared in {}µs", duration / 1000);
+        if (maxSize > 0) {
+            synchronized (this) {
+                entries.put(key, prepared);
+            }
+        }
+        return prepared.copy();
+    }
+
+    /**
+     * Remove all entries (e.g. when the search configuration changed)
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Create the key of a serialized select expression. The key contains the current tenant (the search configuration
+     * used to read expressions depends on the tenant)
+     *
+     * @param serialized the serialized select expression (a String or a ByteBuffer)
+     * @param elements   the elements of the search
+     * @return the key
+     */
+    public static Object key(Object serialized, Set<String> elements) {
+        return new Key(TenantUtil.getCurrentTenant(), serialized, elements);
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of pages served with a prepared expression
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of pages where the expression was parsed and interpreted
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the total time spent to parse and interpret expressions (ns)
+     */
+    public long getPrepareTimeNanos() {
+        return prepareTimeNanos.sum();
+    }
+
+    private record Key(String tenant, Object serialized, Set<String> elements) {
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import fr.ans.afas.exception.CantLoadConfigurationException;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The mongodb clients of the tenants.
+ * <p>
+ * A tenant without connection string and pool size uses the client of the server. Other tenants use a client created
+ * the first time it's needed and shared by all the tenants with the same connection string and pool size, so tenants
+ * can be placed on their own cluster or have a pool that other tenants can't exhaust. The metrics of the pool of each
+ * client are available by tenant (tenants of the configuration, see {@link #registerTenants(Collection)}) and can be
+ * logged periodically (see {@link #logMetrics(long)}).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class MongoClientRegistry implements AutoCloseable {
+
+    /**
+     * Logger
+     */
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ClientKey defaultKey;
+
+    private final Map<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * The client used by each tenant of the configuration
+     */
+    private volatile Map<String, ClientKey> tenantKeys = Map.of();
+
+    /**
+     * Log the metrics of the pools
+     */
+    private ScheduledExecutorService metricsLogger;
+
+    /**
+     * Construct the registry
+     *
+     * @param defaultUri the connection string of the server, used by tenants without connection string
+     */
+    public MongoClientRegistry(String defaultUri) {
+        this.defaultKey = new ClientKey(defaultUri, null, null);
+    }
+
+    /**
+     * @return the client of the server
+     */
+    public MongoClient getDefaultClient() {
+        return clientOf(defaultKey).client();
+    }
+
+    /**
+     * Get the client of a tenant
+     *
+     * @param tenant the tenant
+     * @return the client
+     * @throws CantLoadConfigurationException if the connection string of the tenant is not valid
+     */
+    public MongoClient getClient(Tenant tenant) {
+        return clientOf(keyOf(tenant)).client();
+    }
+
+    /**
+     * Set the tenants of the configuration, the metrics are given for these tenants
+     *
+     * @param tenants the tenants
+     */
+    public void registerTenants(Collection<Tenant> tenants) {
+        var keys = new HashMap<String, ClientKey>();
+        for (var tenant : tenants) {
+            if (tenant.getName() != null) {
+                keys.put(tenant.getName(), keyOf(tenant));
+            }
+        }
+        this.tenantKeys = Map.copyOf(keys);
+    }
+
+    /**
+     * @return the metrics of the connection pool used by each tenant of the configuration (clients already created)
+     */
+    public Map<String, MongoPoolMetrics> getMetricsByTenant() {
+        var metrics = new HashMap<String, MongoPoolMetrics>();
+        tenantKeys.forEach((tenant, key) -> {
+            var client = clients.get(key);
+            if (client != null) {
+                metrics.put(tenant, client.metrics());
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * @return the number of clients created
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Log the metrics of the pool of each tenant periodically, one line by tenant
+     *
+     * @param interval the time (ms) between two logs
+     */
+    public synchronized void logMetrics(long interval) {
+        if (metricsLogger != null) {
+            return;
+        }
+        metricsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "afas-mongodb-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsLogger.scheduleWithFixedDelay(this::logMetrics, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log the metrics of the pool of each tenant
+     */
+    void logMetrics() {
+        getMetricsByTenant().forEach((tenant, metrics) ->
+                logger.info("Mongodb pool metrics: tenant={} size={} inUse={} waiting={} checkOutFailures={} meanCheckOutTimeMs={}",
+                        tenant, metrics.getSize(), metrics.getInUse(), metrics.getWaiting(), metrics.getCheckOutFailures(),
+                        String.format(Locale.ROOT, "%.2f", metrics.getMeanCheckOutTime())));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (metricsLogger != null) {
+            metricsLogger.shutdownNow();
+            metricsLogger = null;
+        }
+        clients.values().forEach(c -> c.client().close());
+        clients.clear();
+    }
+
+    private ClientKey keyOf(Tenant tenant) {
+        if (StringUtils.isBlank(tenant.getMongoUri()) && tenant.getMaxPoolSize() == null && tenant.getMinPoolSize() == null) {
+            return defaultKey;
+        }
+        var uri = StringUtils.isBlank(tenant.getMongoUri()) ? defaultKey.uri() : tenant.getMongoUri();
+        return new ClientKey(uri, tenant.getMaxPoolSize(), tenant.getMinPoolSize());
+    }
+
+    private PooledClient clientOf(ClientKey key) {
+        var client = clients.get(key);
+        if (client != null) {
+            return client;
+        }
+        return clients.computeIfAbsent(key, this::create);
+    }
+
+    private PooledClient create(ClientKey key) {
+        ConnectionString connectionString;
+        try {
+            connectionString = new ConnectionString(key.uri());
+        } catch (IllegalArgumentException e) {
+            throw new CantLoadConfigurationException("Bad mongodb connection string: " + e.getMessage());
+        }
+        var metrics = new MongoPoolMetrics();
+        var settings = MongoClientSettings.builder()
+                .applyConnectionString(connectionString)
+                .applyToConnectionPoolSettings(pool -> {
+                    if (key.maxPoolSize() != null) {
+                        pool.maxSize(key.maxPoolSize());
+                    }
+                    if (key.minPoolSize() != null) {
+                        pool.minSize(key.minPoolSize());
+                    }
+                    pool.addConnectionPoolListener(metrics);
+                })
+                .build();
+        logger.info("Create a mongodb client for the hosts {} (pool max: {}, min: {})", connectionString.getHosts(), key.maxPoolSize(), key.minPoolSize());
+        return new PooledClient(MongoClients.create(settings), metrics);
+    }
+
+    /**
+     * The configuration of a client
+     *
+     * @param uri         the connection string
+     * @param maxPoolSize the max size of the pool, the one of the connection string if null
+     * @param minPoolSize the min size of the pool, the one of the connection string if null
+     */
+    private record ClientKey(String uri, Integer maxPoolSize, Integer minPoolSize) {
+    }
+
+    private record PooledClient(MongoClient client, MongoPoolMetrics metrics) {
+    }
+}
@@ -13,6 +13,7 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.CountOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReplaceOneModel;
 import fr.ans.afas.domain.FhirBundleBuilder;
 import fr.ans.afas.domain.ResourceAndSubResources;
@@ -23,6 +24,7 @@ import fr.ans.afas.fhirserver.hook.service.HookService;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.data.SearchContext;
+import fr.ans.afas.fhirserver.search.data.TotalMode;
 import fr.ans.afas.fhirserver.search.expression.IncludeExpression;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.service.FhirPage;
@@ -32,14 +34,20 @@ import fr.ans.afas.fhirserver.service.data.CountResult;
 import fr.ans.afas.fhirserver.service.exception.CantReadFhirResource;
 import fr.ans.afas.fhirserver.service.exception.CantWriteFhirResource;
 import fr.ans.afas.fhirserver.service.exception.TooManyElementToDeleteException;
+import fr.ans.afas.rass.service.impl.CursorRegistry;
 import fr.ans.afas.rass.service.impl.DefaultFhirPageIterator;
+import fr.ans.afas.rass.service.impl.JoinLinksUpdater;
+import fr.ans.afas.rass.service.impl.KeysetPagingUtils;
 import fr.ans.afas.rass.service.impl.MongoQueryUtils;
+import fr.ans.afas.rass.service.impl.SemiJoinPlanCache;
+import fr.ans.afas.rass.service.impl.SortIndexValidator;
 import fr.ans.afas.rass.service.json.FhirBaseResourceDeSerializer;
 import fr.ans.afas.rass.service.json.FhirBaseResourceSerializer;
+import fr.ans.afas.utils.RequestDeadline;
+import fr.ans.afas.utils.TenantUtil;
 import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.types.ObjectId;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.DomainResource;
@@ -50,7 +58,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -60,7 +75,7 @@ import java.util.stream.Stream;
  * @author Guillaume Poulériguen
  * @since 1.0.0
  */
-public class MongoDbFhirService implements FhirStoreService<Bson> {
+public class MongoDbFhirService implements FhirStoreService<Bson>, AutoCloseable {
 
 
     /**
@@ -68,6 +83,14 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
      */
     public static final String CAN_T_PROCESS_THE_REQUEST_RESOURCE_TYPE_NOT_SUPPORTED = "Can't process the request. Resource type not supported. Server knows how to handle: [Device, HealthcareService, Organization, Practitioner, PractitionerRole]";
     public static final float MAX_OLD_REVISION_DELETION_PERCENT = 0.15f;
+    /**
+     * Max number of counts running concurrently in the count executor
+     */
+    public static final int COUNT_THREADS = 16;
+    /**
+     * Max number of counts waiting for a thread of the count executor. Other counts run in the thread of the search
+     */
+    public static final int COUNT_QUEUE_SIZE = 64;
 
 
     /**
@@ -101,6 +124,42 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
     @Value("${afas.fhir.max-count-calculation-time:1000}")
     int maxCountCalculationTime;
 
+    /**
+     * If true, denormalized joins (links) are updated when resources are written
+     */
+    @Value("${afas.fhir.update-links-on-write:true}")
+    boolean updateLinksOnWrite = true;
+
+    /**
+     * Maintain denormalized joins
+     */
+    final JoinLinksUpdater joinLinksUpdater;
+
+    /**
+     * Executor used to calculate the total of searches concurrently with the fetch of the first page
+     */
+    Executor countExecutor = createCountExecutor();
+
+    /**
+     * True if the count executor is created by the service (and shut down with it)
+     */
+    boolean ownCountExecutor = true;
+
+    /**
+     * Check that sorts (_sort) are supported by indexes
+     */
+    final SortIndexValidator sortIndexValidator = new SortIndexValidator();
+
+    /**
+     * Registry of cursors parked between pages (server-side cursor continuation). Null if the continuation is disabled
+     */
+    CursorRegistry cursorRegistry;
+
+    /**
+     * Semi-join decisions of searches with _has conditions, reused by next pages
+     */
+    final SemiJoinPlanCache semiJoinPlanCache = new SemiJoinPlanCache();
+
 
     public MongoDbFhirService(
             List<FhirBaseResourceSerializer<ResourceAndSubResources>> serializers,
@@ -114,6 +173,7 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         this.fhirContext = fhirContext;
         this.mongoMultiTenantService = mongoMultiTenantService;
         this.hookService = hookService;
+        this.joinLinksUpdater = new JoinLinksUpdater(searchConfigService, mongoMultiTenantService);
 
         var module = new SimpleModule();
         for (var serializer : serializers) {
@@ -194,6 +254,10 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         var toFlagAsNotUpdated = prepareToUpdate(overrideLastUpdated, jsonWriter, now, toUpdate, forceUpdate);
 
 
+        if (updateLinksOnWrite) {
+            setLinks(resourceType, toInsert, toUpdate, now);
+        }
+
         if (!toInsert.values().isEmpty()) {
             collection.insertMany(toInsert.values().stream().map(IdResourceDocument::getNewDocument).toList());
         } else {
@@ -212,6 +276,11 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
             collection.bulkWrite(toFlagAsNotUpdated.values().stream().map(e -> new ReplaceOneModel<>(new Document(MongoQueryUtils.ID_ATTRIBUTE, e.getOldDocument().get(MongoQueryUtils.ID_ATTRIBUTE)), e.getOldDocument())).toList());
         }
 
+        // maintain denormalized joins:
+        if (updateLinksOnWrite) {
+            updateParentLinks(resourceType, toInsert, toUpdate);
+        }
+
 
         // call hooks:
         hookService.callHook(toInsert.values().stream().map(r -> AfterCreateResourceEvent.builder()
@@ -231,6 +300,44 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
     }
 
 
+    /**
+     * Update denormalized joins (links) of parents referenced by written resources. Only resources where the content of links
+     * really changed are processed.
+     *
+     * @param resourceType the type of written resources
+     * @param inserted     inserted resources
+     * @param updated      updated resources (with a new revision)
+     */
+    private void updateParentLinks(String resourceType, Map<String, IdResourceDocument> inserted, Map<String, IdResourceDocument> updated) {
+        var written = new ArrayList<Document>();
+        inserted.values().forEach(d -> written.add(d.getNewDocument()));
+        updated.values().stream()
+                .filter(d -> JoinLinksUpdater.linksChanged(d.getOldDocument(), d.getNewDocument()))
+                .forEach(d -> {
+                    written.add(d.getNewDocument());
+                    written.add(d.getOldDocument());
+                });
+        joinLinksUpdater.updateParentsOf(resourceType, written);
+    }
+
+    /**
+     * Calculate denormalized joins (links) of parents before they are written. Parents stored with their sub resources
+     * already have their links.
+     *
+     * @param resourceType the type of written resources
+     * @param inserted     inserted resources
+     * @param updated      updated resources (with a new revision)
+     * @param now          the date of the write
+     */
+    private void setLinks(String resourceType, Map<String, IdResourceDocument> inserted, Map<String, IdResourceDocument> updated, long now) {
+        var parents = Stream.concat(inserted.values().stream(), updated.values().stream())
+                .filter(d -> d.getResource().getSubResources() == null || d.getResource().getSubResources().isEmpty())
+                .map(IdResourceDocument::getNewDocument)
+                .toList();
+        // the revision just after the write:
+        joinLinksUpdater.setLinks(resourceType, parents, now + 1);
+    }
+
     /**
      * Prepare the resources that will be created
      *
@@ -356,6 +463,7 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         var collection = getCollection(selectExpression.getFhirResource());
         CloseableWrapper<MongoCursor<Document>> cursorWrapper;
         var savedLastId = searchContext.getFirstId();
+        var sortKeys = KeysetPagingUtils.resolveSort(searchConfigService, selectExpression.getFhirResource(), selectExpression.getSort());
         long searchRevision;
 
         // The search:
@@ -364,6 +472,7 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
             searchRevision = searchContext.getRevision();
         } else { // first page:
             searchRevision = new Date().getTime();
+            sortIndexValidator.validate(collection, sortKeys);
             cursorWrapper = MongoQueryUtils.searchFirstPage(this.searchConfigService, selectExpression.getCount(), selectExpression, collection, searchRevision, mongoMultiTenantService);
         }
 
@@ -397,7 +506,7 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
                 ids.add(selectExpression.getFhirResource() + "/" + domainResource.getIdElement().getIdPart());
                 // end revinclude
 
-                lastId = ((ObjectId) doc.get(MongoQueryUtils.ID_ATTRIBUTE)).toString();
+                lastId = KeysetPagingUtils.cursor(sortKeys, doc);
             }
 
             // Include:
@@ -438,39 +547,71 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
             throw new ResourceNotFoundException(CAN_T_PROCESS_THE_REQUEST_RESOURCE_TYPE_NOT_SUPPORTED);
         }
 
-        if (searchContext == null) {
-            var count = this.count(selectExpression);
-            searchContext = SearchContext.builder()
-                    .total(count.getTotal())
-                    .build();
-        }
-
         logger.debug("Search fhir resources in mongo with expression {}", selectExpression);
 
         var collection = getCollection(selectExpression.getFhirResource());
         CloseableWrapper<MongoCursor<Document>> cursorWrapper;
-        var savedLastId = searchContext.getFirstId();
         long searchRevision;
         Set<String> elements;
+        CompletableFuture<Long> total;
+        var continuablePages = cursorRegistry != null ? cursorRegistry.getMaxPages() : 0;
+        var remainingPages = continuablePages;
+        // the tenant is captured here, the page may be closed (and the cursor parked) on another thread:
+        var tenant = TenantUtil.getCurrentTenant();
+        String uuid = null;
 
-        final var total = new Long[1];
         // The search:
-        if (savedLastId != null) { // next page
-            cursorWrapper = MongoQueryUtils.searchNextPage(this.searchConfigService, selectExpression.getCount(), searchContext, selectExpression, collection, savedLastId, mongoMultiTenantService);
+        if (searchContext != null && searchContext.getFirstId() != null) { // next page
             searchRevision = searchContext.getRevision();
-            total[0] = searchContext.getTotal();
+            total = CompletableFuture.completedFuture(searchContext.getTotal());
             elements = searchContext.getElements();
+            uuid = searchContext.getUuid();
+            // continue the cursor of the previous page if it is parked on this node:
+            var parked = continuablePages > 0 && uuid != null ? cursorRegistry.take(CursorRegistry.key(tenant, uuid), searchContext.getFirstId()) : null;
+            if (parked != null) {
+                remainingPages = parked.remainingPages();
+                cursorWrapper = CloseableWrapper.<MongoCursor<Document>>builder().content(parked::cursor).build();
+            } else {
+                cursorWrapper = MongoQueryUtils.searchNextPage(this.searchConfigService, selectExpression.getCount(), searchContext, selectExpression, collection, searchContext.getFirstId(), mongoMultiTenantService, continuablePages, lookupJoins(uuid, selectExpression));
+            }
         } else { // first page:
             searchRevision = new Date().getTime();
-            total[0] = searchContext.getTotal();
+            uuid = UUID.randomUUID().toString();
             elements = selectExpression.getElements();
-            cursorWrapper = MongoQueryUtils.searchFirstPage(this.searchConfigService, selectExpression.getCount(), selectExpression, collection, searchRevision, mongoMultiTenantService);
+            if (searchContext == null) {
+                // the query is optimized before launching the count so the count and the search don't modify the expression concurrently:
+                MongoQueryUtils.optimizeQuery(this.searchConfigService, selectExpression);
+                total = countAsync(selectExpression);
+            } else {
+                total = CompletableFuture.completedFuture(searchContext.getTotal());
+            }
+            sortIndexValidator.validate(collection, KeysetPagingUtils.resolveSort(searchConfigService, selectExpression.getFhirResource(), selectExpression.getSort()));
+            cursorWrapper = MongoQueryUtils.searchFirstPage(this.searchConfigService, selectExpression.getCount(), selectExpression, collection, searchRevision, mongoMultiTenantService, continuablePages, lookupJoins(uuid, selectExpression));
         }
 
         //noinspection resource
         MongoCursor<Document> cursor = cursorWrapper.content();
 
-        return new DefaultFhirPageIterator(searchConfigService, cursor, selectExpression, total, searchRevision, elements);
+        var iterator = new DefaultFhirPageIterator(searchConfigService, cursor, selectExpression, total, searchRevision, elements);
+        iterator.setUuid(uuid);
+        if (continuablePages > 0) {
+            iterator.continueWith(cursorRegistry, tenant, uuid != null ? uuid : UUID.randomUUID().toString(), remainingPages);
+        }
+        return iterator;
+    }
+
+    /**
+     * Get the semi-join decisions of a search with _has conditions
+     *
+     * @param uuid             the paging id of the search
+     * @param selectExpression the query expression
+     * @return the decisions or null if the search has no _has condition (or no paging id)
+     */
+    private Set<FhirSearchPath> lookupJoins(String uuid, SelectExpression<Bson> selectExpression) {
+        if (uuid == null || selectExpression.getHasConditions().isEmpty()) {
+            return null;
+        }
+        return semiJoinPlanCache.get(Objects.toString(TenantUtil.getCurrentTenant(), ""), uuid);
     }
 
 
@@ -503,10 +644,10 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
             if (config.isEmpty()) {
                 throw new CantReadFhirResource("Search not supported on path: " + inclusion.getType() + "." + inclusion.getName());
             }
-            FindIterable<Document> inclusionResult = collectionIncluded
+            FindIterable<Document> inclusionResult = MongoQueryUtils.withDeadline(collectionIncluded
                     .find(MongoQueryUtils.wrapQueryWithRevisionDate(
                             searchRevision,
-                            Filters.in(config.get().getIndexName() + "-reference", ids)));
+                            Filters.in(config.get().getIndexName() + "-reference", ids))));
 
             try (MongoCursor<Document> cursor = inclusionResult.cursor()) {
                 while (cursor.hasNext()) {
@@ -533,10 +674,10 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
             if (config.isEmpty()) {
                 throw new CantReadFhirResource("Search not supported on path: " + inclusion.getType() + "." + inclusion.getName());
             }
-            FindIterable<Document> inclusionResult = collectionIncluded
+            FindIterable<Document> inclusionResult = MongoQueryUtils.withDeadline(collectionIncluded
                     .find(MongoQueryUtils.wrapQueryWithRevisionDate(
                             searchRevision,
-                            Filters.in(config.get().getIndexName() + "-reference", ids)));
+                            Filters.in(config.get().getIndexName() + "-reference", ids))));
 
             MongoCursor<Document> cursor = inclusionResult.cursor();
             while (cursor.hasNext()) {
@@ -557,10 +698,10 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
     public void addIncludes(long searchRevision, List<DomainResource> ret, Map<String, Set<String>> includesTypeReference) {
         for (var resourceTypeAndValue : includesTypeReference.entrySet()) {
             var collectionForInclude = getCollection(resourceTypeAndValue.getKey());
-            FindIterable<Document> inclusionResult = collectionForInclude
+            FindIterable<Document> inclusionResult = MongoQueryUtils.withDeadline(collectionForInclude
                     .find(MongoQueryUtils.wrapQueryWithRevisionDate(
                             searchRevision,
-                            Filters.in(StorageConstants.INDEX_T_FID, resourceTypeAndValue.getValue())));
+                            Filters.in(StorageConstants.INDEX_T_FID, resourceTypeAndValue.getValue()))));
             try (MongoCursor<Document> cursor = inclusionResult.cursor()) {
                 while (cursor.hasNext()) {
                     var doc = cursor.next();
@@ -583,10 +724,10 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
      */
     public Iterator<FhirBundleBuilder.BundleEntry> findByIds(long searchRevision, String resourceType, Set<String> ids) {
         var collectionForInclude = getCollection(resourceType);
-        var cursor = collectionForInclude.find(
+        var cursor = MongoQueryUtils.withDeadline(collectionForInclude.find(
                         MongoQueryUtils.wrapQueryWithRevisionDate(
                                 searchRevision,
-                                Filters.in(StorageConstants.INDEX_T_FID, ids)))
+                                Filters.in(StorageConstants.INDEX_T_FID, ids))))
                 .cursor();
         return new Iterator<>() {
             @Override
@@ -643,6 +784,54 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         return cr;
     }
 
+    /**
+     * Launch the count of a select in the count executor. The tenant and the deadline of the current thread are
+     * propagated, so the count stops when nobody waits for the request. If the executor is full, the count runs in the
+     * current thread.
+     *
+     * @param selectExpression the query expression
+     * @return the future total
+     */
+    CompletableFuture<Long> countAsync(SelectExpression<Bson> selectExpression) {
+        if (selectExpression.getTotalMode() == TotalMode.NONE) {
+            return CompletableFuture.completedFuture(this.count(selectExpression).getTotal());
+        }
+        var tenant = TenantUtil.getCurrentTenant();
+        var deadline = RequestDeadline.get();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                TenantUtil.setCurrentTenant(tenant);
+                RequestDeadline.set(deadline);
+                try {
+                    return this.count(selectExpression).getTotal();
+                } finally {
+                    TenantUtil.clear();
+                    RequestDeadline.clear();
+                }
+            }, countExecutor);
+        } catch (RejectedExecutionException e) {
+            logger.debug("The count executor is full, the count runs in the thread of the search");
+            return CompletableFuture.completedFuture(this.count(selectExpression).getTotal());
+        }
+    }
+
+    /**
+     * Create the default count executor: a bounded pool of threads with a bounded queue. The threads are stopped
+     * when they are idle.
+     *
+     * @return the executor
+     */
+    private static ExecutorService createCountExecutor() {
+        var count = new AtomicInteger();
+        var executor = new ThreadPoolExecutor(COUNT_THREADS, COUNT_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(COUNT_QUEUE_SIZE), r -> {
+            var thread = new Thread(r, "afas-count-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Find a resource by id
      *
@@ -661,9 +850,9 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
 
         var collection = getCollection(type);
         var searchRevision = new Date().getTime();
-        var doc = collection.find(
+        var doc = MongoQueryUtils.withDeadline(collection.find(
                 MongoQueryUtils.wrapQueryWithRevisionDate(searchRevision, Filters.eq(StorageConstants.INDEX_T_ID, theId.getIdPart()))
-        ).limit(1).first();
+        )).limit(1).first();
         if (doc == null) {
             return null;
         }
@@ -718,7 +907,11 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         hookService.callHook(BeforeDeleteEvent.builder().resourceId(theId).build());
 
         var collection = getCollection(type);
+        var deleted = currentDocuments(type, collection, theId);
         var result = collection.deleteOne(Filters.eq(StorageConstants.INDEX_T_ID, theId.getIdPart()));
+        if (updateLinksOnWrite) {
+            joinLinksUpdater.updateParentsOf(type, deleted);
+        }
 
         // call hooks:
         hookService.callHook(AfterDeleteEvent.builder().resourceId(theId).build());
@@ -735,9 +928,13 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         var collection = getCollection(type);
 
 
+        var deleted = currentDocuments(type, collection, theId);
         var now = new Date().getTime();
         var update = new Document("$set", new Document(MongoQueryUtils.VALID_TO_ATTRIBUTE, now));
         collection.updateMany(Filters.eq(StorageConstants.INDEX_T_ID, theId.getIdPart()), update);
+        if (updateLinksOnWrite) {
+            joinLinksUpdater.updateParentsOf(type, deleted);
+        }
 
         // call hooks:
         hookService.callHook(AfterDeleteEvent.builder().resourceId(theId).build());
@@ -746,6 +943,23 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
     }
 
 
+    /**
+     * Get the current revision of a resource (without the fhir content). Used to refresh links of its parents when it's deleted.
+     *
+     * @param type       the type of the resource
+     * @param collection the collection of the resource
+     * @param theId      the id of the resource
+     * @return the documents of the current revision (empty if the resource is not joined in a parent)
+     */
+    private List<Document> currentDocuments(String type, MongoCollection<Document> collection, IIdType theId) {
+        if (!updateLinksOnWrite || !joinLinksUpdater.isJoined(type)) {
+            return List.of();
+        }
+        return collection.find(MongoQueryUtils.wrapQueryWithRevisionDate(new Date().getTime(), Filters.eq(StorageConstants.INDEX_T_ID, theId.getIdPart())))
+                .projection(Projections.exclude("fhir"))
+                .into(new ArrayList<>());
+    }
+
     /**
      * Delete elements that have a validTo date before a timestamp (MongoDbFhirService.VALID_TO_ATTRIBUTE / _validTo).
      *
@@ -781,4 +995,71 @@ public class MongoDbFhirService implements FhirStoreService<Bson> {
         this.maxCountCalculationTime = maxCountCalculationTime;
     }
 
+    /**
+     * Get the service used to access the database
+     *
+     * @return the database service
+     */
+    public MongoMultiTenantService getMongoMultiTenantService() {
+        return mongoMultiTenantService;
+    }
+
+    /**
+     * Enable or disable the update of denormalized joins (links) when resources are written.
+     *
+     * @param updateLinksOnWrite true to update links on write
+     */
+    public void setUpdateLinksOnWrite(boolean updateLinksOnWrite) {
+        this.updateLinksOnWrite = updateLinksOnWrite;
+    }
+
+    /**
+     * Set the executor used to calculate the total of searches concurrently with the fetch of the first page.
+     *
+     * @param countExecutor the executor
+     */
+    public void setCountExecutor(Executor countExecutor) {
+        if (ownCountExecutor && this.countExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+        this.countExecutor = countExecutor;
+        this.ownCountExecutor = false;
+    }
+
+    /**
+     * Stop the count executor if it was created by the service. Counts that are running end.
+     */
+    @Override
+    public void close() {
+        if (ownCountExecutor && countExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Serialize a resource like it's stored (with its indexes) and read it back, without access to the database. Used
+     * to warm up the serializers
+     *
+     * @param resource the resource
+     * @return the resource read back
+     */
+    public DomainResource serializeAndRead(DomainResource resource) {
+        try {
+            var json = om.writer().writeValueAsString(ResourceAndSubResources.builder().resource(resource).build());
+            return om.readerFor(DomainResource.class).readValue(json);
+        } catch (JsonProcessingException e) {
+            throw new CantReadFhirResource("Error serializing the resource " + resource.getIdElement().getValue());
+        }
+    }
+
+    /**
+     * Enable the server-side cursor continuation: cursors of searches are parked in the registry between pages
+     * (see {@link CursorRegistry}). Only used by {@link #iterate(SearchContext, SelectExpression)}.
+     *
+     * @param cursorRegistry the registry or null to disable the continuation
+     */
+    public void setCursorRegistry(CursorRegistry cursorRegistry) {
+        this.cursorRegistry = cursorRegistry;
+    }
+
 }
@@ -3,17 +3,49 @@
  */
 package fr.ans.afas.rass.service;
 
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import fr.ans.afas.exception.CantLoadConfigurationException;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
 import fr.ans.afas.fhirserver.service.DefaultMultiTenantService;
+import fr.ans.afas.utils.TenantUtil;
+import jakarta.annotation.PostConstruct;
 import org.apache.commons.lang3.StringUtils;
 import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
+
+/**
+ * Access the mongodb collections of the current tenant.
+ * <p>
+ * The collections of the resources of each tenant are created once (with the read preference, read concern and write
+ * concern of the tenant) in an immutable registry. The registry is kept with the configuration of the server it was
+ * created from: a reload prepares the registry of the next configuration (see {@link #prepare(ServerSearchConfig)})
+ * before the configuration is replaced, and the registry is created again if the configuration is replaced without
+ * being prepared. Collections that are not in the registry are created on each call. If a
+ * {@link MongoClientRegistry} is available, the collections of a tenant use the client (cluster, pool) of the tenant.
+ * </p>
+ * <p>
+ * Only collections of {@link Document} are registered: the readers of the storage use the fields of each document
+ * (references of includes, sort keys, tags of <code>_elements</code>) before the resource is written, so no reader
+ * forwards the bytes of documents and collections of {@link org.bson.RawBsonDocument} would not be used.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
 public class MongoMultiTenantService {
 
     @Value("${afas.mongodb.dbname}")
@@ -22,24 +54,160 @@ public class MongoMultiTenantService {
     @Autowired
     private MongoClient mongoClient;
 
+    @Autowired(required = false)
+    private MongoClientRegistry mongoClientRegistry;
+
     @Autowired
     private DefaultMultiTenantService multiTenantService;
 
+    @Autowired
+    private ServerSearchConfig serverSearchConfig;
+
+    /**
+     * The collections of the current configuration
+     */
+    private volatile Registry registry = new Registry(null, Map.of());
+
+    /**
+     * The collections of the next configuration (reload)
+     */
+    private volatile Registry prepared;
+
+    /**
+     * Create the collections of the tenants of the configuration and replace the registry
+     */
+    @PostConstruct
+    public void refresh() {
+        this.registry = createRegistry(serverSearchConfig.getConfigs());
+    }
+
+    /**
+     * Create the collections of the tenants of the next configuration. The registry is used when the configuration of
+     * the server is replaced by the one given
+     *
+     * @param next the next configuration
+     */
+    public void prepare(ServerSearchConfig next) {
+        this.prepared = createRegistry(next.getConfigs());
+    }
+
+    private Registry createRegistry(Map<String, TenantSearchConfig> configs) {
+        if (mongoClientRegistry != null) {
+            // the metrics of the pools are given for the tenants of the configuration:
+            mongoClientRegistry.registerTenants(configs.values().stream().map(TenantSearchConfig::getTenantConfig).filter(Objects::nonNull).toList());
+        }
+        var tenants = new HashMap<String, TenantCollections>();
+        configs.forEach((name, config) -> {
+            var tenant = config.getTenantConfig();
+            if (tenant == null) {
+                return;
+            }
+            var collections = new HashMap<String, MongoCollection<Document>>();
+            for (var resource : config.getResources()) {
+                collections.put(resource.getName(), createCollection(tenant, resource.getName()));
+            }
+            tenants.put(name, new TenantCollections(tenant, Map.copyOf(collections)));
+        });
+        return new Registry(configs, Map.copyOf(tenants));
+    }
+
     public MongoCollection<Document> getCollection(String resourceType) {
-        var tenant = multiTenantService.getTenant();
+        var tenantCollections = currentTenantCollections();
+        if (tenantCollections != null) {
+            var collection = tenantCollections.collections().get(resourceType);
+            if (collection != null) {
+                return collection;
+            }
+            return createCollection(tenantCollections.tenant(), resourceType);
+        }
+        return createCollection(multiTenantService.getTenant(), resourceType);
+    }
 
-        var mongoDatabase = getDatabase(tenant);
-        return mongoDatabase.getCollection(getCollectionName(tenant, resourceType));
+    /**
+     * Get the collection of a resource type of a tenant, without the registry (the tenant may not be in the current
+     * configuration)
+     *
+     * @param tenant       the tenant
+     * @param resourceType the fhir resource type (Device, Patient...)
+     * @return the collection
+     */
+    public MongoCollection<Document> getCollection(Tenant tenant, String resourceType) {
+        return createCollection(tenant, resourceType);
+    }
+
+    private TenantCollections currentTenantCollections() {
+        var tenant = TenantUtil.getCurrentTenant();
+        return tenant == null ? null : currentRegistry().tenants().get(tenant);
+    }
+
+    /**
+     * Get the registry of the current configuration of the server
+     *
+     * @return the registry
+     */
+    private Registry currentRegistry() {
+        var configs = serverSearchConfig.getConfigs();
+        var current = registry;
+        if (current.configs() != configs) {
+            var next = prepared;
+            if (next != null && next.configs() == configs) {
+                current = next;
+            } else {
+                // the configuration was replaced without being prepared:
+                current = createRegistry(configs);
+            }
+            registry = current;
+        }
+        return current;
+    }
+
+    private MongoCollection<Document> createCollection(Tenant tenant, String resourceType) {
+        var collection = getDatabase(tenant).getCollection(getCollectionName(tenant, resourceType));
+        if (StringUtils.isNotBlank(tenant.getReadPreference())) {
+            collection = collection.withReadPreference(readPreference(tenant));
+        }
+        if (StringUtils.isNotBlank(tenant.getReadConcern())) {
+            collection = collection.withReadConcern(readConcern(tenant));
+        }
+        if (StringUtils.isNotBlank(tenant.getWriteConcern())) {
+            collection = collection.withWriteConcern(writeConcern(tenant));
+        }
+        return collection;
     }
 
     private MongoDatabase getDatabase(Tenant tenant) {
+        var client = mongoClientRegistry != null ? mongoClientRegistry.getClient(tenant) : mongoClient;
         if (StringUtils.isNotBlank(tenant.getDbname())) {
-            return mongoClient.getDatabase(tenant.getDbname());
+            return client.getDatabase(tenant.getDbname());
         } else {
-            return mongoClient.getDatabase(defaultDbName);
+            return client.getDatabase(defaultDbName);
+        }
+    }
+
+    private static ReadPreference readPreference(Tenant tenant) {
+        try {
+            return ReadPreference.valueOf(tenant.getReadPreference());
+        } catch (IllegalArgumentException e) {
+            throw new CantLoadConfigurationException("Bad read preference for the tenant " + tenant.getName() + ": " + tenant.getReadPreference());
+        }
+    }
+
+    private static ReadConcern readConcern(Tenant tenant) {
+        try {
+            return new ReadConcern(ReadConcernLevel.fromString(tenant.getReadConcern()));
+        } catch (IllegalArgumentException e) {
+            throw new CantLoadConfigurationException("Bad read concern for the tenant " + tenant.getName() + ": " + tenant.getReadConcern());
         }
     }
 
+    private static WriteConcern writeConcern(Tenant tenant) {
+        var writeConcern = WriteConcern.valueOf(tenant.getWriteConcern());
+        if (writeConcern == null) {
+            throw new CantLoadConfigurationException("Bad write concern for the tenant " + tenant.getName() + ": " + tenant.getWriteConcern());
+        }
+        return writeConcern;
+    }
+
 
     /**
      * Get the name of the collection based on the tenant and the fhir resource type.
@@ -59,9 +227,26 @@ public class MongoMultiTenantService {
      * @return The collection name that store the resource.
      */
     public String getCollectionName(String resourceType) {
-        var tenant = multiTenantService.getTenant();
+        var tenantCollections = currentTenantCollections();
+        var tenant = tenantCollections != null ? tenantCollections.tenant() : multiTenantService.getTenant();
         return getCollectionName(tenant, resourceType);
     }
 
+    /**
+     * The collections of a tenant
+     *
+     * @param tenant      the tenant
+     * @param collections the collections by resource type
+     */
+    private record TenantCollections(Tenant tenant, Map<String, MongoCollection<Document>> collections) {
+    }
 
+    /**
+     * The collections of the tenants of a configuration of the server
+     *
+     * @param configs the configuration of the server
+     * @param tenants the collections by tenant name
+     */
+    private record Registry(Map<String, TenantSearchConfig> configs, Map<String, TenantCollections> tenants) {
+    }
 }
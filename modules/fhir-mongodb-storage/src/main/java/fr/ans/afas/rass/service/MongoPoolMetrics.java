@@ -0,0 +1,101 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a connection pool of a mongodb client
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class MongoPoolMetrics implements ConnectionPoolListener {
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder checkOutFailures = new LongAdder();
+    private final LongAdder checkOutTimeNanos = new LongAdder();
+    private final LongAdder checkOuts = new LongAdder();
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        size.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        size.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        waiting.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        waiting.decrementAndGet();
+        inUse.incrementAndGet();
+        checkOuts.increment();
+        checkOutTimeNanos.add(event.getElapsedTime(java.util.concurrent.TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        waiting.decrementAndGet();
+        checkOutFailures.increment();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * @return the number of connections of the pool
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of connections used by a request
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of requests that didn't get a connection (timeout, pool closed...)
+     */
+    public long getCheckOutFailures() {
+        return checkOutFailures.sum();
+    }
+
+    /**
+     * @return the mean time (ms) to get a connection
+     */
+    public double getMeanCheckOutTime() {
+        var count = checkOuts.sum();
+        return count == 0 ? 0 : checkOutTimeNanos.sum() / 1_000_000d / count;
+    }
+}
@@ -3,7 +3,10 @@
  */
 package fr.ans.afas.rass.service.impl;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import fr.ans.afas.domain.StorageConstants;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
@@ -14,13 +17,9 @@ import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.types.ObjectId;
 import org.springframework.util.StringUtils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Utility class to generate aggregations
@@ -33,26 +32,70 @@ public class AggregationUtils {
     public static final String MONGO_MATCH = "$match";
     public static final String MONGO_SORT = "$sort";
     public static final String MONGO_LOOKUP = "$lookup";
+    public static final String MONGO_LIMIT = "$limit";
+    public static final String MONGO_PROJECT = "$project";
+
+    /**
+     * Max number of joined documents to evaluate a _has condition as a <code>$in</code> on the main query.
+     * Above this value, the condition is evaluated with a <code>$lookup</code>.
+     */
+    public static final int SEMI_JOIN_IN_THRESHOLD = 1000;
 
     private AggregationUtils() {
     }
 
+    /**
+     * Generate the aggregation of a select expression with _has conditions.
+     * <p>
+     * The main query is matched first (revision, since, paging) so the sort and the joins are only done on matching documents.
+     * Each _has condition is a semi-join: if the joined query is selective (less than {@link #SEMI_JOIN_IN_THRESHOLD} joined
+     * documents), the joined side is evaluated first and converted to a <code>$in</code> on the main query. Otherwise, a
+     * <code>$lookup</code> with a sub pipeline that stops at the first joined document is used (this form of
+     * <code>$lookup</code>, with <code>localField</code> and <code>pipeline</code>, needs MongoDB 5.0 or later).
+     * </p>
+     *
+     * @param config                  the search config
+     * @param selectExpression        the select expression
+     * @param searchRevision          the revision of the search
+     * @param lastId                  the cursor of the previous page (paging), null for the first page
+     * @param mongoMultiTenantService the service to access collections
+     * @return the aggregation
+     */
     public static List<Document> generateAggregation(SearchConfigService config, SelectExpression<Bson> selectExpression, Long searchRevision, String lastId, MongoMultiTenantService mongoMultiTenantService) {
+        return generateAggregation(config, selectExpression, searchRevision, lastId, mongoMultiTenantService, null);
+    }
+
+    /**
+     * Generate the aggregation of a select expression with _has conditions, with the semi-join decisions of the
+     * previous pages of the search.
+     *
+     * @param config                  the search config
+     * @param selectExpression        the select expression
+     * @param searchRevision          the revision of the search
+     * @param lastId                  the cursor of the previous page (paging), null for the first page
+     * @param mongoMultiTenantService the service to access collections
+     * @param lookupJoins             the joins of the search evaluated with a <code>$lookup</code>: they are not
+     *                                evaluated first. The joins that are not selective are added. Null to decide for
+     *                                each page
+     * @return the aggregation
+     * @see SemiJoinPlanCache
+     */
+    public static List<Document> generateAggregation(SearchConfigService config, SelectExpression<Bson> selectExpression, Long searchRevision, String lastId, MongoMultiTenantService mongoMultiTenantService, Set<FhirSearchPath> lookupJoins) {
         var aggrs = new ArrayList<Document>();
         // the main query:
         var interpreted = selectExpression.interpreter(new ExpressionContext(null));
         // the revision date:
         var wrappedQuery = MongoQueryUtils.addSinceParam(selectExpression, MongoQueryUtils.wrapQueryWithRevisionDate(searchRevision, interpreted));
 
-        // sort and paging:
-        aggrs.add(new Document(MONGO_SORT, new Document(MongoQueryUtils.ID_ATTRIBUTE, 1)));
+        var sortKeys = KeysetPagingUtils.resolveSort(config, selectExpression.getFhirResource(), selectExpression.getSort());
+        var matches = new ArrayList<Bson>();
+        matches.add(wrappedQuery);
         if (StringUtils.hasLength(lastId)) {
-            aggrs.add(new Document(MONGO_MATCH, Filters.gt(MongoQueryUtils.ID_ATTRIBUTE, new ObjectId(lastId))));
+            matches.add(KeysetPagingUtils.after(sortKeys, lastId));
         }
 
-        aggrs.add(new Document(MONGO_MATCH, wrappedQuery));
-
-        // _has conditions will be converted into lookup:
+        // _has conditions will be converted into semi-joins:
+        var lookups = new ArrayList<Document>();
         var allHas = mergeAggregations(selectExpression);
         for (var entries : allHas.entrySet()) {
 
@@ -63,22 +106,91 @@ public class AggregationUtils {
                 throw new BadParametersException("_has is only supported on references");
             }
 
-            var aggregation = new ArrayList<Document>();
-            var subObjName = "sub_r_" + fhirPath.getResource() + "_" + sc.getName();
-            aggregation.add(new Document(MONGO_LOOKUP,
-                    new Document("from", mongoMultiTenantService.getCollectionName(fhirPath.getResource()))
-                            .append("localField", "t_id")
-                            .append("foreignField", sc.getIndexName() + "-id")
-                            .append("as", subObjName)));
-            for (var ex : entries.getValue()) {
-                aggregation.add(new Document(MONGO_MATCH, ex.interpreter(new ExpressionContext(subObjName))));
-            }
+            var foreignField = sc.getIndexName() + StorageConstants.ID_SUFFIX;
+            var joinedQuery = joinedQuery(entries.getValue(), searchRevision);
 
-            aggrs.addAll(aggregation);
+            Set<String> joinedIds = null;
+            if (lookupJoins == null || !lookupJoins.contains(fhirPath)) {
+                joinedIds = findJoinedIds(mongoMultiTenantService.getCollection(fhirPath.getResource()), joinedQuery, foreignField);
+                if (joinedIds == null && lookupJoins != null) {
+                    lookupJoins.add(fhirPath);
+                }
+            }
+            if (joinedIds != null) {
+                // selective join, the joined side is evaluated first:
+                matches.add(Filters.in(StorageConstants.INDEX_T_ID, joinedIds));
+            } else {
+                var subObjName = "sub_r_" + fhirPath.getResource() + "_" + sc.getName();
+                lookups.add(new Document(MONGO_LOOKUP,
+                        new Document("from", mongoMultiTenantService.getCollectionName(fhirPath.getResource()))
+                                .append("localField", StorageConstants.INDEX_T_ID)
+                                .append("foreignField", foreignField)
+                                .append("pipeline", List.of(
+                                        new Document(MONGO_MATCH, joinedQuery),
+                                        new Document(MONGO_LIMIT, 1),
+                                        new Document(MONGO_PROJECT, new Document(MongoQueryUtils.ID_ATTRIBUTE, 1))))
+                                .append("as", subObjName)));
+                lookups.add(new Document(MONGO_MATCH, Filters.ne(subObjName, List.of())));
+                lookups.add(new Document(MONGO_PROJECT, new Document(subObjName, 0)));
+            }
         }
+
+        // match first, then sort (paging on the sort keys and the _id) and join only the matching documents:
+        aggrs.add(new Document(MONGO_MATCH, matches.size() == 1 ? matches.get(0) : Filters.and(matches)));
+        aggrs.add(new Document(MONGO_SORT, KeysetPagingUtils.sort(sortKeys).toBsonDocument()));
+        aggrs.addAll(lookups);
         return aggrs;
     }
 
+    /**
+     * Generate the query executed on the joined collection: all expressions of the join and the revision window.
+     *
+     * @param expressions    expressions of the joined resource
+     * @param searchRevision the revision of the search
+     * @return the query
+     */
+    private static Bson joinedQuery(List<Expression<Bson>> expressions, Long searchRevision) {
+        var filters = new ArrayList<Bson>();
+        for (var ex : expressions) {
+            var interpreted = ex.interpreter(new ExpressionContext(null));
+            if (interpreted != null) {
+                filters.add(interpreted);
+            }
+        }
+        var query = filters.isEmpty() ? new Document() : filters.size() == 1 ? filters.get(0) : Filters.and(filters);
+        return MongoQueryUtils.wrapQueryWithRevisionDate(searchRevision, query);
+    }
+
+    /**
+     * Evaluate the joined side of a semi-join if it's selective.
+     *
+     * @param joinedCollection the joined collection
+     * @param joinedQuery      the query on the joined collection
+     * @param foreignField     the field of the joined collection that contains the id of the main resource
+     * @return ids of main resources referenced by the joined documents or null if the join is not selective
+     */
+    static Set<String> findJoinedIds(MongoCollection<Document> joinedCollection, Bson joinedQuery, String foreignField) {
+        var ids = new HashSet<String>();
+        var found = 0;
+        try (var cursor = MongoQueryUtils.withDeadline(joinedCollection.find(joinedQuery))
+                .projection(Projections.include(foreignField))
+                .limit(SEMI_JOIN_IN_THRESHOLD + 1)
+                .cursor()) {
+            while (cursor.hasNext()) {
+                if (++found > SEMI_JOIN_IN_THRESHOLD) {
+                    return null;
+                }
+                var value = cursor.next().get(foreignField);
+                if (value instanceof Collection<?> values) {
+                    values.forEach(v -> ids.add(String.valueOf(v)));
+                } else if (value != null) {
+                    ids.add(String.valueOf(value));
+                }
+            }
+        }
+        return ids;
+    }
+
     /**
      * Utility method to merge multiple aggregations on the same relation
      */
@@ -0,0 +1,262 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCursor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, node-local registry of open mongodb cursors of searches (server-side cursor continuation).
+ * <p>
+ * When a page of a search is written and the search has a next page, the cursor is parked here with the paging id of
+ * the search and its position (the cursor of the last document, see {@link KeysetPagingUtils#cursor}). If the next
+ * page request lands on the same node with the same position, the cursor is continued and the query is not planned
+ * and executed again. Otherwise (other node, evicted or expired cursor, same page read twice...) the next page is
+ * fetched with the keyset query.
+ * </p>
+ * <p>
+ * The query of a continuable cursor is limited to a number of pages, so a cursor never reads more documents than the
+ * pages it can serve. Cursors not continued after the idle timeout are closed. The least recently parked cursor is closed when the
+ * registry is full. The idle timeout must be lower than the cursor timeout of mongodb (10 minutes by default).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class CursorRegistry implements Closeable {
+
+    /**
+     * Default max number of pages read by a cursor
+     */
+    public static final int DEFAULT_MAX_PAGES = 10;
+
+    /**
+     * Max number of parked cursors
+     */
+    private final int maxSize;
+
+    /**
+     * Max number of pages read by a cursor (the query of a continuable cursor is limited to these pages)
+     */
+    private final int maxPages;
+
+    /**
+     * Idle timeout of parked cursors in ms
+     */
+    private final long idleTimeoutMs;
+
+    /**
+     * Parked cursors in insertion order
+     */
+    private final LinkedHashMap<String, Parked> parked = new LinkedHashMap<>();
+
+    /**
+     * Close idle cursors
+     */
+    private final ScheduledExecutorService cleaner;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create the registry
+     *
+     * @param maxSize       the max number of parked cursors
+     * @param idleTimeoutMs the idle timeout of parked cursors in ms
+     */
+    public CursorRegistry(int maxSize, long idleTimeoutMs) {
+        this(maxSize, idleTimeoutMs, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Create the registry
+     *
+     * @param maxSize       the max number of parked cursors
+     * @param idleTimeoutMs the idle timeout of parked cursors in ms
+     * @param maxPages      the max number of pages read by a cursor
+     */
+    public CursorRegistry(int maxSize, long idleTimeoutMs, int maxPages) {
+        if (maxPages < 1) {
+            throw new IllegalArgumentException("A cursor must read at least one page");
+        }
+        this.maxSize = maxSize;
+        this.maxPages = maxPages;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "afas-cursor-registry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var period = Math.max(1000, idleTimeoutMs / 2);
+        this.cleaner.scheduleWithFixedDelay(this::closeIdleCursors, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Park a cursor
+     *
+     * @param key            the key (tenant and paging id of the search)
+     * @param position       the position of the cursor (cursor of the last document read)
+     * @param cursor         the cursor
+     * @param remainingPages the number of pages the cursor can still read
+     */
+    public void park(String key, String position, MongoCursor<Document> cursor, int remainingPages) {
+        var toClose = new ArrayList<MongoCursor<Document>>();
+        synchronized (this) {
+            var previous = parked.remove(key);
+            if (previous != null) {
+                toClose.add(previous.cursor);
+            }
+            parked.put(key, new Parked(cursor, position, System.currentTimeMillis(), remainingPages));
+            for (var it = parked.values().iterator(); parked.size() > maxSize && it.hasNext(); ) {
+                toClose.add(it.next().cursor);
+                it.remove();
+                evictions.increment();
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Take a parked cursor. The cursor is removed from the registry
+     *
+     * @param key      the key (tenant and paging id of the search)
+     * @param position the position expected
+     * @return the cursor and the number of pages it can still read or null if there is no cursor at this position
+     */
+    public Continuation take(String key, String position) {
+        Parked found;
+        synchronized (this) {
+            found = parked.remove(key);
+        }
+        if (found != null && found.position.equals(position) && !isIdle(found, System.currentTimeMillis())) {
+            hits.increment();
+            return new Continuation(found.cursor, found.remainingPages);
+        }
+        misses.increment();
+        if (found != null) {
+            closeAll(List.of(found.cursor));
+        }
+        return null;
+    }
+
+    /**
+     * Close cursors not continued after the idle timeout
+     */
+    void closeIdleCursors() {
+        var toClose = new ArrayList<MongoCursor<Document>>();
+        var now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<Parked> it = parked.values().iterator(); it.hasNext(); ) {
+                var p = it.next();
+                if (isIdle(p, now)) {
+                    toClose.add(p.cursor);
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return the max number of pages read by a cursor
+     */
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * @return the number of parked cursors
+     */
+    public synchronized int size() {
+        return parked.size();
+    }
+
+    /**
+     * @return the number of next pages served by a parked cursor
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of next pages served by the keyset query
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of cursors closed because the registry was full or the cursor was idle
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Close all parked cursors
+     */
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        List<MongoCursor<Document>> toClose;
+        synchronized (this) {
+            toClose = parked.values().stream().map(Parked::cursor).toList();
+            parked.clear();
+        }
+        closeAll(toClose);
+    }
+
+    private boolean isIdle(Parked p, long now) {
+        return p.parkedAt + idleTimeoutMs < now;
+    }
+
+    private static void closeAll(List<MongoCursor<Document>> cursors) {
+        for (var cursor : cursors) {
+            try {
+                cursor.close();
+            } catch (RuntimeException e) {
+                // the cursor may be already killed by the server:
+                log.debug("Error closing a parked cursor", e);
+            }
+        }
+    }
+
+    /**
+     * Build the key of a search
+     *
+     * @param tenant   the tenant
+     * @param pagingId the paging id of the search
+     * @return the key
+     */
+    public static String key(String tenant, String pagingId) {
+        return Objects.toString(tenant, "") + "/" + pagingId;
+    }
+
+    /**
+     * A parked cursor taken to read the next page
+     *
+     * @param cursor         the cursor
+     * @param remainingPages the number of pages the cursor can still read
+     */
+    public record Continuation(MongoCursor<Document> cursor, int remainingPages) {
+    }
+
+    private record Parked(MongoCursor<Document> cursor, String position, long parkedAt, int remainingPages) {
+    }
+}
@@ -9,17 +9,24 @@ import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.data.SearchContext;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.service.FhirPageIterator;
+import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.types.ObjectId;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+@Slf4j
 public class DefaultFhirPageIterator implements FhirPageIterator {
 
     private final MongoCursor<Document> cursor;
     private final SelectExpression<Bson> selectExpression;
-    private final Long[] total;
+    /**
+     * The total of the search. The total can be calculated concurrently with the first page
+     */
+    private final CompletableFuture<Long> total;
     private final long searchRevision;
     private final Set<String> elements;
     boolean hasNextPage;
@@ -35,9 +42,35 @@ public class DefaultFhirPageIterator implements FhirPageIterator {
     private final Map<String, Set<String>> includesTypeReference;
     private final Set<String> revIncludeIds;
     private String lastId;
+    /**
+     * Sort keys of the search (used to create the cursor of the next page)
+     */
+    private final List<KeysetPagingUtils.SortKey> sortKeys;
+    /**
+     * Registry where the cursor is parked at the end of the page (null if the continuation is disabled)
+     */
+    private CursorRegistry cursorRegistry;
+    /**
+     * The paging id of the search
+     */
+    private String uuid;
+    /**
+     * The tenant of the search, captured when the iterator is built (the cursor may be parked from another thread)
+     */
+    private String tenant;
+    /**
+     * The number of pages the cursor can read, this page included
+     */
+    private int remainingPages;
+    private boolean closed;
 
     public DefaultFhirPageIterator(SearchConfigService searchConfigService, MongoCursor<Document> cursor, SelectExpression<Bson> selectExpression, Long[] total, long searchRevision, Set<String> elements) {
-        this.searchConfigService = searchConfigService;
+        this(searchConfigService, cursor, selectExpression, CompletableFuture.completedFuture(total[0]), searchRevision, elements);
+    }
+
+    public DefaultFhirPageIterator(SearchConfigService searchConfigService, MongoCursor<Document> cursor, SelectExpression<Bson> selectExpression, CompletableFuture<Long> total, long searchRevision, Set<String> elements) {
+        // the configuration of the tenant is resolved once for all the documents:
+        this.searchConfigService = searchConfigService.forCurrentTenant();
         this.cursor = cursor;
         this.selectExpression = selectExpression;
         this.total = total;
@@ -47,6 +80,7 @@ public class DefaultFhirPageIterator implements FhirPageIterator {
         includesTypeReference = new HashMap<>();
         revIncludeIds = new LinkedHashSet<>();
         lastId = "";
+        sortKeys = KeysetPagingUtils.resolveSort(this.searchConfigService, selectExpression.getFhirResource(), selectExpression.getSort());
     }
 
     @Override
@@ -55,15 +89,41 @@ public class DefaultFhirPageIterator implements FhirPageIterator {
     }
 
 
+    /**
+     * Get the search context. The total is only set if the count is already calculated. Use {@link #awaitTotal()} to wait for it.
+     *
+     * @return the search context
+     */
     @Override
     public SearchContext searchContext() {
         return SearchContext.builder()
-                .total(total[0])
+                .total(isTotalCalculated() ? awaitTotal() : null)
                 .firstId(lastId)
                 .revision(searchRevision)
+                .uuid(uuid)
                 .build();
     }
 
+    @Override
+    public boolean isTotalCalculated() {
+        return total.isDone();
+    }
+
+    @Override
+    public Long awaitTotal() {
+        try {
+            return total.join();
+        } catch (CompletionException | CancellationException e) {
+            log.warn("Error calculating the total of the search. The total will not be returned.", e);
+            return null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> totalFuture() {
+        return total;
+    }
+
     @Override
     public FhirBundleBuilder.BundleEntry next() {
         index++;
@@ -76,7 +136,7 @@ public class DefaultFhirPageIterator implements FhirPageIterator {
             revIncludeIds.add(doc.getString("t_fid"));
         }
         // end revinclude
-        lastId = ((ObjectId) doc.get(MongoQueryUtils.ID_ATTRIBUTE)).toString();
+        lastId = KeysetPagingUtils.cursor(sortKeys, doc);
 
         hasNextPage = cursor.hasNext();
 
@@ -88,9 +148,44 @@ public class DefaultFhirPageIterator implements FhirPageIterator {
         return new FhirBundleBuilder.BundleEntry(selectExpression.getFhirResource(), doc.getString("t_id"), ((Document) doc.get("fhir")).toJson());
     }
 
+    /**
+     * Park the cursor in a registry when the page is closed, so the next page can continue it
+     *
+     * @param cursorRegistry the registry
+     * @param tenant         the tenant of the search
+     * @param uuid           the paging id of the search
+     * @param remainingPages the number of pages the cursor can read, this page included
+     */
+    public void continueWith(CursorRegistry cursorRegistry, String tenant, String uuid, int remainingPages) {
+        this.cursorRegistry = cursorRegistry;
+        this.tenant = tenant;
+        this.uuid = uuid;
+        this.remainingPages = remainingPages;
+    }
+
+    /**
+     * Set the paging id of the search, returned in the search context
+     *
+     * @param uuid the paging id of the search
+     */
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    /**
+     * Close the cursor, or park it if the whole page is read, the search has a next page and the cursor can read it
+     */
     @Override
     public void close() {
-        cursor.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cursorRegistry != null && hasNextPage && index >= selectExpression.getCount() && remainingPages > 1) {
+            cursorRegistry.park(CursorRegistry.key(tenant, uuid), lastId, cursor, remainingPages - 1);
+        } else {
+            cursor.close();
+        }
     }
 
     public Map<String, Set<String>> getIncludesTypeReference() {
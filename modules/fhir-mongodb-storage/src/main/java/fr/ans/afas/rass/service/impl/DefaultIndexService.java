@@ -3,156 +3,332 @@
  */
 package fr.ans.afas.rass.service.impl;
 
-import ca.uhn.fhir.model.api.Include;
-import fr.ans.afas.domain.ResourceAndSubResources;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import fr.ans.afas.domain.StorageConstants;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
 import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
-import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.service.FhirStoreService;
 import fr.ans.afas.fhirserver.service.IndexService;
+import fr.ans.afas.fhirserver.service.StorageExecutor;
+import fr.ans.afas.fhirserver.service.data.IndexStatus;
 import fr.ans.afas.fhirserver.service.exception.IndexingException;
+import fr.ans.afas.rass.service.MongoDbFhirService;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
 import fr.ans.afas.rass.service.impl.exception.AlreadyRunningTaskException;
 import fr.ans.afas.rass.service.json.GenericSerializer;
 import fr.ans.afas.utils.TenantUtil;
+import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.DomainResource;
-import org.hl7.fhir.r4.model.Reference;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.expression.spel.SpelEvaluationException;
 
 import javax.inject.Inject;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DefaultIndexService implements IndexService {
+/**
+ * Refresh denormalized joins (links) of resources.
+ * <p>
+ * Resource types are processed in parallel. Each type is read by batch in the order of the <code>_id</code> and links
+ * are calculated with a hash join on the reference index (see {@link JoinLinksUpdater}). After each batch, a checkpoint
+ * (tenant, type, last <code>_id</code>) is stored in mongodb so a job that was stopped resumes where it stopped when it's
+ * launched again with the same date.
+ * </p>
+ * <p>
+ * Only one job can run at a time for a tenant. Jobs and the processing of types run on threads of the service with the
+ * tenant and the deadline of the caller (see {@link StorageExecutor}). Parents where links change get a new revision.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class DefaultIndexService implements IndexService, AutoCloseable {
+
+    /**
+     * Name of the collection that store checkpoints
+     */
+    public static final String CHECKPOINT_COLLECTION = "IndexCheckpoint";
+
+    /**
+     * Number of resources processed in a batch
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Key used for the default tenant
+     */
+    private static final String DEFAULT_TENANT = "default";
 
     /**
-     * A boolean to ensure that only one job is launched at a time
+     * Jobs by tenant. Used to ensure that only one job is launched at a time for a tenant
      */
-    @SuppressWarnings("java:S3077") // AtomicBoolean is thread safe
-    static volatile AtomicBoolean isRunning = new AtomicBoolean(false);
+    final Map<String, IndexJob> jobs = new ConcurrentHashMap<>();
+
     /**
      * Logger
      */
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
-    FhirStoreService<Bson> fhirStoreService;
 
-    ExpressionFactory<Bson> expressionFactory;
+    final SearchConfigService searchConfigService;
+
+    final MongoMultiTenantService mongoMultiTenantService;
 
-    SearchConfigService searchConfigService;
+    final JoinLinksUpdater joinLinksUpdater;
+
+    /**
+     * Number of resource types processed in parallel
+     */
+    int parallelism = 4;
 
-    GenericSerializer genericSerializer;
+    /**
+     * Executor of jobs launched asynchronously (one thread by running job, so one by tenant at most)
+     */
+    final StorageExecutor jobExecutor = new StorageExecutor(Executors.newCachedThreadPool(threadFactory("afas-index-job-")));
 
 
     @Inject
-    public DefaultIndexService(FhirStoreService<Bson> fhirStoreService, ExpressionFactory<Bson> expressionFactory, SearchConfigService searchConfigService, GenericSerializer genericSerializer) {
-        this.fhirStoreService = fhirStoreService;
-        this.expressionFactory = expressionFactory;
+    public DefaultIndexService(SearchConfigService searchConfigService, MongoMultiTenantService mongoMultiTenantService) {
         this.searchConfigService = searchConfigService;
-        this.genericSerializer = genericSerializer;
+        this.mongoMultiTenantService = mongoMultiTenantService;
+        this.joinLinksUpdater = new JoinLinksUpdater(searchConfigService, mongoMultiTenantService);
+    }
+
+    /**
+     * Create the service from the services used by the previous implementation of the indexing.
+     *
+     * @param fhirStoreService    the storage service (must be a {@link MongoDbFhirService})
+     * @param expressionFactory   not used anymore
+     * @param searchConfigService the search configuration
+     * @param genericSerializer   not used anymore
+     * @deprecated use {@link #DefaultIndexService(SearchConfigService, MongoMultiTenantService)}
+     */
+    @Deprecated(since = "1.0.0")
+    public DefaultIndexService(FhirStoreService<Bson> fhirStoreService, ExpressionFactory<Bson> expressionFactory, SearchConfigService searchConfigService, GenericSerializer genericSerializer) {
+        this(searchConfigService, mongoMultiTenantServiceOf(fhirStoreService));
     }
 
 
     @Override
     public void refreshIndexes(long fromDate) throws IndexingException {
-        var tenant = TenantUtil.getCurrentTenant();
-        if (isRunning.compareAndSet(false, true)) {
-            CompletableFuture.runAsync(() -> {
-                        TenantUtil.setCurrentTenant(tenant);
-                        refreshIndexesSync(fromDate);
-                    }
-            );
-        } else {
-            throw new AlreadyRunningTaskException("Indexing already running");
-        }
-
+        var job = startJob();
+        jobExecutor.bindContext().execute(() -> {
+            try {
+                runJob(job, fromDate);
+            } catch (Exception e) {
+                logger.error("Error during the indexing process", e);
+            }
+        });
     }
 
     @Override
     public boolean isRunning() {
-        return isRunning.get();
+        var job = jobs.get(tenantKey());
+        return job != null && job.running;
+    }
+
+    @Override
+    public Optional<IndexStatus> getStatus() {
+        return Optional.ofNullable(jobs.get(tenantKey())).map(IndexJob::toStatus);
     }
 
 
     @Override
     public void refreshIndexesSync(long fromDate) {
+        runJob(startJob(), fromDate);
+    }
+
+    /**
+     * Set the number of resource types processed in parallel
+     *
+     * @param parallelism the number of types processed in parallel
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public void close() {
+        jobExecutor.close();
+    }
+
+    /**
+     * Register a new job for the current tenant
+     *
+     * @return the job
+     * @throws AlreadyRunningTaskException if a job is running for the tenant
+     */
+    private IndexJob startJob() {
+        var job = new IndexJob();
+        var current = jobs.compute(tenantKey(), (k, old) -> old == null || !old.running ? job : old);
+        if (current != job) {
+            throw new AlreadyRunningTaskException("Indexing already running");
+        }
+        return job;
+    }
+
+    /**
+     * Run the job: process all resource types that have joins
+     *
+     * @param job      the job
+     * @param fromDate only resources written after this date are processed
+     */
+    private void runJob(IndexJob job, long fromDate) {
+        var tenant = TenantUtil.getCurrentTenant();
+        var typeExecutor = new StorageExecutor(Executors.newFixedThreadPool(parallelism, threadFactory("afas-index-")));
+        // types are processed with the tenant and the deadline of the job:
+        var executor = typeExecutor.bindContext();
         try {
-            for (var targetResource : searchConfigService.getResources()) {
-                var toInclude = new HashSet<Include>();
-                var joins = searchConfigService.getJoinsByFhirResource(targetResource);
-                if (joins != null) {
-                    var referenceFields = new HashMap<String, String>();
-                    for (var j : joins) {
-                        toInclude.add(new Include(j.getResource() + ":" + j.getPath()));
-                        referenceFields.put(j.getResource(), j.getField());
-                    }
-                    try {
-                        var se = new SelectExpression<>(targetResource, expressionFactory);
-                        se.setCount(1000);
-                        se.setSince(new Date(fromDate));
-                        se.fromFhirParamsRevInclude(toInclude);
-                        var pageResult = this.fhirStoreService.search(null, se);
-                        do {
-                            var page = pageResult.getPage();
-
-                            // reindex resources:
-                            index(targetResource, page, referenceFields);
-
-                            // and paginate:
-                            pageResult = this.fhirStoreService.search(pageResult.getContext(), se);
-                        } while (pageResult.isHasNext());
-
-
-                    } catch (Exception e) {
-                        throw new IndexingException(e);
-                    }
+            var types = new ArrayList<String>();
+            for (var type : searchConfigService.getResources()) {
+                var joins = searchConfigService.getJoinsByFhirResource(type);
+                if (joins != null && !joins.isEmpty()) {
+                    // validate the configuration before doing anything:
+                    joins.forEach(joinLinksUpdater::referenceField);
+                    types.add(type);
                 }
             }
+
+            job.total = types.stream().mapToLong(t -> mongoMultiTenantService.getCollection(t).countDocuments(parentsFilter(new Date().getTime(), fromDate, null))).sum();
+
+            var futures = types.stream().map(type -> CompletableFuture.runAsync(() -> indexType(job, tenant, type, fromDate), executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            throw new IndexingException(e.getCause());
+        } catch (Exception e) {
+            throw new IndexingException(e);
         } finally {
-            isRunning.set(false);
+            typeExecutor.close();
+            job.finish();
         }
     }
 
+    /**
+     * Refresh links of a resource type, by batch, from the last checkpoint
+     *
+     * @param job      the job
+     * @param tenant   the tenant
+     * @param type     the resource type
+     * @param fromDate only resources written after this date are processed
+     */
+    private void indexType(IndexJob job, String tenant, String type, long fromDate) {
+        var checkpoints = mongoMultiTenantService.getCollection(CHECKPOINT_COLLECTION);
+        var checkpoint = checkpoints.find(Filters.eq(MongoQueryUtils.ID_ATTRIBUTE, type)).first();
+        ObjectId lastId = null;
+        if (checkpoint != null && Objects.equals(checkpoint.getLong("fromDate"), fromDate)) {
+            lastId = checkpoint.getObjectId("lastId");
+            logger.info("Resume the indexing of {} after {}", type, lastId);
+        }
 
-    private void index(String mainResource, List<DomainResource> resources, Map<String, String> referenceFields) {
-        var mainResources = resources.stream()
-                .collect(Collectors.partitioningBy(r -> r.getIdElement().getResourceType().equalsIgnoreCase(mainResource)));
+        var collection = mongoMultiTenantService.getCollection(type);
+        var revision = new Date().getTime();
+        List<Document> batch;
+        do {
+            batch = collection.find(parentsFilter(revision, fromDate, lastId))
+                    .projection(Projections.include(MongoQueryUtils.ID_ATTRIBUTE, StorageConstants.INDEX_T_ID))
+                    .sort(Sorts.ascending(MongoQueryUtils.ID_ATTRIBUTE))
+                    .limit(BATCH_SIZE)
+                    .into(new ArrayList<>());
+            if (!batch.isEmpty()) {
+                joinLinksUpdater.updateLinksOf(type, batch.stream().map(d -> d.getString(StorageConstants.INDEX_T_ID)).toList());
+                lastId = batch.get(batch.size() - 1).getObjectId(MongoQueryUtils.ID_ATTRIBUTE);
+                job.processed.addAndGet(batch.size());
+                checkpoints.replaceOne(Filters.eq(MongoQueryUtils.ID_ATTRIBUTE, type), new Document(MongoQueryUtils.ID_ATTRIBUTE, type)
+                                .append("tenant", tenant)
+                                .append("type", type)
+                                .append("fromDate", fromDate)
+                                .append("lastId", lastId)
+                                .append("updateDate", new Date().getTime()),
+                        new ReplaceOptions().upsert(true));
+            }
+        } while (batch.size() == BATCH_SIZE);
 
-        var targets = mainResources.get(Boolean.FALSE);
-        var joins = mainResources.get(Boolean.TRUE);
-        var workspace = new ArrayList<ResourceAndSubResources>();
+        checkpoints.deleteOne(Filters.eq(MongoQueryUtils.ID_ATTRIBUTE, type));
+        logger.debug("Indexing of {} done", type);
+    }
 
-        for (var t : targets) {
-            var sub = joins.stream().filter(f -> hasSameId(f, t, referenceFields.get(t.fhirType()))).toList();
-            for (var s : sub) {
-                var resourceAndSubResources = new ResourceAndSubResources(s, List.of(t));
-                workspace.add(resourceAndSubResources);
-            }
+    /**
+     * Filter of resources to process
+     *
+     * @param revision the revision
+     * @param fromDate only resources written after this date are processed
+     * @param lastId   the last processed id or null
+     * @return the filter
+     */
+    private static Bson parentsFilter(long revision, long fromDate, ObjectId lastId) {
+        Bson filter = Filters.gte(MongoQueryUtils.LAST_WRITE_DATE, fromDate);
+        if (lastId != null) {
+            filter = Filters.and(filter, Filters.gt(MongoQueryUtils.ID_ATTRIBUTE, lastId));
         }
-        this.fhirStoreService.storeWithDependencies(workspace, false, true);
+        return MongoQueryUtils.wrapQueryWithRevisionDate(revision, filter);
     }
 
-    private boolean hasSameId(IBaseResource main, IBaseResource sub, String referenceField) {
-        try {
-            var vals = genericSerializer.extractValues(sub, referenceField);
-            for (var val : vals) {
-                if (val != null) {
-                    if (!(val instanceof Reference)) {
-                        throw new BadConfigurationException("Join can only be configured on reference fields. Not a reference: " + sub.getClass().getName() + "." + referenceField);
-                    }
-                    return (((Reference) val).getReference().equals(main.getIdElement().getResourceType() + "/" + main.getIdElement().getIdPart()));
-                }
-            }
-        } catch (SpelEvaluationException e) {
-            // notion to do the field is not found
-            logger.debug("field not found in the resource");
+    /**
+     * Get the database service of a storage service
+     *
+     * @param fhirStoreService the storage service
+     * @return the database service
+     */
+    private static MongoMultiTenantService mongoMultiTenantServiceOf(FhirStoreService<Bson> fhirStoreService) {
+        if (fhirStoreService instanceof MongoDbFhirService mongoDbFhirService) {
+            return mongoDbFhirService.getMongoMultiTenantService();
         }
-        return false;
+        throw new BadConfigurationException("The indexing is only supported with the MongoDbFhirService");
+    }
+
+    /**
+     * Create a factory of daemon threads
+     *
+     * @param prefix the prefix of the name of threads
+     * @return the factory
+     */
+    private static ThreadFactory threadFactory(String prefix) {
+        var count = new AtomicInteger();
+        return r -> {
+            var thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
+    private static String tenantKey() {
+        return Optional.ofNullable(TenantUtil.getCurrentTenant()).orElse(DEFAULT_TENANT);
+    }
+
+    /**
+     * Progress of a job
+     */
+    static class IndexJob {
+        final long startDate = new Date().getTime();
+        final AtomicLong processed = new AtomicLong();
+        volatile long total;
+        volatile long endDate;
+        volatile boolean running = true;
+
+        void finish() {
+            endDate = new Date().getTime();
+            running = false;
+        }
+
+        IndexStatus toStatus() {
+            return IndexStatus.builder()
+                    .running(running)
+                    .startDate(startDate)
+                    .endDate(endDate)
+                    .processed(processed.get())
+                    .total(total)
+                    .build();
+        }
+    }
 }
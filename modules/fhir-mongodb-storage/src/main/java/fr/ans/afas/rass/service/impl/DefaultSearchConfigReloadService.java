@@ -0,0 +1,326 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCollection;
+import fr.ans.afas.config.MongoIndexConfiguration;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.config.BaseSearchConfigService;
+import fr.ans.afas.fhirserver.search.config.MultiTenantSearchConfigService;
+import fr.ans.afas.fhirserver.search.config.SearchConfigValidator;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.fhirserver.service.SearchConfigReloadService;
+import fr.ans.afas.fhirserver.service.data.ReloadStatus;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.rass.service.impl.exception.AlreadyRunningTaskException;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reload the search configuration while the server is running.
+ * <p>
+ * The new configuration is loaded and checked, then the indexes it needs that the current configuration doesn't have
+ * are created, and the sort keys of the parameters that become sortable are written in the stored documents, like at
+ * the startup. The configuration is replaced only when the indexes are ready: the search configuration and the
+ * collections of the new configuration are prepared, then the configuration of the server is replaced in one write, so
+ * a request sees all the new configuration (routes, search configuration, collections) or all the previous one.
+ * Searches that already started end with the previous configuration. If the new configuration is not valid, the
+ * current one is kept.
+ * </p>
+ * <p>
+ * If the files change while a reload is running, another reload is run when the current one ends.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class DefaultSearchConfigReloadService implements SearchConfigReloadService, AutoCloseable {
+
+    /**
+     * Time (ms) to wait after a change of a file before the reload, so a copy of many files triggers one reload
+     */
+    private static final long WATCH_DELAY = 1000;
+
+    /**
+     * Logger
+     */
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Callable<Collection<TenantSearchConfig>> loader;
+    private final ServerSearchConfig serverSearchConfig;
+    private final MultiTenantSearchConfigService searchConfigService;
+    private final MongoMultiTenantService mongoMultiTenantService;
+    /**
+     * Called after the configuration is replaced (clear caches...)
+     */
+    private final List<Runnable> reloadListeners = new ArrayList<>();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "afas-config-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * True if the configuration changed and is not reloaded yet
+     */
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private volatile ReloadStatus status;
+
+    private WatchService watchService;
+
+    /**
+     * Construct the service
+     *
+     * @param loader                  load the new configuration
+     * @param serverSearchConfig      the configuration of the server, updated on reload
+     * @param searchConfigService     the search configuration, updated on reload
+     * @param mongoMultiTenantService the collections of tenants, updated on reload
+     */
+    public DefaultSearchConfigReloadService(Callable<Collection<TenantSearchConfig>> loader, ServerSearchConfig serverSearchConfig,
+                                            MultiTenantSearchConfigService searchConfigService, MongoMultiTenantService mongoMultiTenantService) {
+        this.loader = loader;
+        this.serverSearchConfig = serverSearchConfig;
+        this.searchConfigService = searchConfigService;
+        this.mongoMultiTenantService = mongoMultiTenantService;
+    }
+
+    /**
+     * Add an action to run after the configuration is replaced
+     *
+     * @param listener the action
+     */
+    public void addReloadListener(Runnable listener) {
+        this.reloadListeners.add(listener);
+    }
+
+    @Override
+    public boolean reload() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        dirty.set(true);
+        executor.execute(this::reloadWhileDirty);
+        return true;
+    }
+
+    @Override
+    public ReloadStatus reloadSync() {
+        if (!running.compareAndSet(false, true)) {
+            throw new AlreadyRunningTaskException("The configuration is already being reloaded");
+        }
+        try {
+            return doReload();
+        } finally {
+            running.set(false);
+            reloadIfDirty();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public Optional<ReloadStatus> getStatus() {
+        return Optional.ofNullable(status);
+    }
+
+    /**
+     * Reload the configuration when a yaml file of the folder changes
+     *
+     * @param folder the folder of the configuration
+     * @throws IOException if the folder can't be watched
+     */
+    public synchronized void watch(Path folder) throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        var ws = watchService;
+        var thread = new Thread(() -> watchLoop(ws), "afas-config-watch");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching the search configuration in {}", folder);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private void watchLoop(WatchService ws) {
+        try {
+            while (true) {
+                var key = ws.take();
+                // wait the end of the copy of the files:
+                Thread.sleep(WATCH_DELAY);
+                key.pollEvents();
+                for (var other = ws.poll(); other != null; other = ws.poll()) {
+                    other.pollEvents();
+                    other.reset();
+                }
+                key.reset();
+                changed();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // the service is closed
+        }
+    }
+
+    /**
+     * The configuration changed: reload it now, or when the running reload ends
+     */
+    void changed() {
+        dirty.set(true);
+        if (!reloadIfDirty()) {
+            logger.info("The search configuration changed while a reload is running, it will be reloaded again");
+        }
+    }
+
+    /**
+     * Start a reload if the configuration changed and no reload is running
+     *
+     * @return false if a reload is running
+     */
+    private boolean reloadIfDirty() {
+        if (!dirty.get()) {
+            return true;
+        }
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            executor.execute(this::reloadWhileDirty);
+        } catch (RejectedExecutionException e) {
+            // the service is closed
+            running.set(false);
+        }
+        return true;
+    }
+
+    private void reloadWhileDirty() {
+        do {
+            try {
+                while (dirty.getAndSet(false)) {
+                    doReload();
+                }
+            } finally {
+                running.set(false);
+            }
+            // the configuration changed after the last check:
+        } while (dirty.get() && running.compareAndSet(false, true));
+    }
+
+    private ReloadStatus doReload() {
+        var start = System.currentTimeMillis();
+        ReloadStatus result;
+        try {
+            var next = ServerSearchConfig.of(loader.call());
+            SearchConfigValidator.validate(next);
+            var nextServices = MultiTenantSearchConfigService.compile(next);
+            var createdIndexes = createNewIndexes(next, nextServices);
+
+            // the search configuration and the collections are ready before the configuration is replaced:
+            searchConfigService.prepare(next, nextServices);
+            mongoMultiTenantService.prepare(next);
+            serverSearchConfig.setConfigs(next.getConfigs());
+            reloadListeners.forEach(Runnable::run);
+
+            result = ReloadStatus.builder().startDate(start).endDate(System.currentTimeMillis()).applied(true).createdIndexes(createdIndexes).build();
+            logger.info("Search configuration reloaded: {} tenants, {} indexes created", nextServices.size(), createdIndexes);
+        } catch (Exception e) {
+            logger.error("The search configuration was not reloaded", e);
+            result = ReloadStatus.builder().startDate(start).endDate(System.currentTimeMillis()).applied(false).error(e.getMessage()).build();
+        }
+        this.status = result;
+        return result;
+    }
+
+    /**
+     * Create the indexes of the new configuration that are not in the current configuration
+     *
+     * @return the number of indexes created
+     */
+    private int createNewIndexes(ServerSearchConfig next, Map<String, BaseSearchConfigService> nextServices) {
+        var current = searchConfigService.getTenantConfigServices();
+        var created = 0;
+        for (var entry : next.getConfigs().entrySet()) {
+            var tenant = entry.getValue().getTenantConfig();
+            var nextService = nextServices.get(entry.getKey());
+            var currentService = current.get(entry.getKey());
+            if (currentService != null && !sameStorage(tenant, currentService.getServerSearchConfig().getTenantConfig())) {
+                currentService = null;
+            }
+            for (var resource : nextService.getResources()) {
+                var indexes = new ArrayList<Document>(MongoIndexConfiguration.indexesOf(nextService, resource));
+                if (currentService != null && currentService.getResources().contains(resource)) {
+                    indexes.removeAll(MongoIndexConfiguration.indexesOf(currentService, resource));
+                }
+                if (!indexes.isEmpty()) {
+                    var collection = mongoMultiTenantService.getCollection(tenant, resource);
+                    indexes.forEach(collection::createIndex);
+                    created += indexes.size();
+                    backfillSortKeys(nextService, resource, collection, indexes);
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Write the sort keys of stored documents for the parameters that become sortable (their sort index is new)
+     *
+     * @param nextService    the new search configuration of the tenant
+     * @param resource       the fhir resource
+     * @param collection     the collection of the resource
+     * @param createdIndexes the indexes created for the resource
+     */
+    private void backfillSortKeys(BaseSearchConfigService nextService, String resource, MongoCollection<Document> collection, List<Document> createdIndexes) {
+        for (var config : nextService.getAllByFhirResource(resource)) {
+            var sortKey = config.getIndexName() + StorageConstants.SORT_SUFFIX;
+            if (KeysetPagingUtils.hasSortKey(config) && createdIndexes.contains(new Document(sortKey, 1).append(MongoQueryUtils.ID_ATTRIBUTE, 1))) {
+                var updated = KeysetPagingUtils.backfillSortKeys(collection, config);
+                logger.info("Sort key {} written in {} documents of {}", sortKey, updated, resource);
+            }
+        }
+    }
+
+    private static boolean sameStorage(Tenant tenant, Tenant other) {
+        return other != null && Objects.equals(tenant.getMongoUri(), other.getMongoUri()) && Objects.equals(tenant.getDbname(), other.getDbname())
+                && Objects.equals(tenant.getSuffixCollection(), other.getSuffixCollection());
+    }
+}
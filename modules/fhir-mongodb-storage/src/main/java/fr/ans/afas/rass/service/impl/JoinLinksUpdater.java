@@ -0,0 +1,330 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
+import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Maintain the denormalized joins (<code>links.&lt;Type&gt;</code> sub documents) when resources are written.
+ * <p>
+ * When a joined resource is stored or deleted (for example a PractitionerRole), the parents that it references (for example Practitioners)
+ * get their <code>links.PractitionerRole</code> recalculated from the current revision of the joined collection. When a parent
+ * is stored, its links are calculated before the insert of its new revision.
+ * </p>
+ * <p>
+ * Links contain the same fields as the ones written by the serializer for sub resources (indexes only). When the links of a parent change,
+ * a new revision of the parent is written (the fhir content doesn't change, its version follows the revision as when the resource is stored)
+ * so searches on an older revision still see the links of this revision. The revision of a parent is closed only if it's still the current
+ * one: if the parent is written at the same time, its links are calculated by the other write.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@Slf4j
+public class JoinLinksUpdater {
+
+    /**
+     * Prefix of the denormalized joins
+     */
+    public static final String LINKS = "links";
+
+    /**
+     * Fields of the stored documents that are not copied in links (fhir content and revision fields)
+     */
+    private static final List<String> NOT_LINKED_FIELDS = List.of("fhir", MongoQueryUtils.ID_ATTRIBUTE, "_hash", "_version",
+            MongoQueryUtils.REVISION_ATTRIBUTE, MongoQueryUtils.VALID_FROM_ATTRIBUTE, MongoQueryUtils.VALID_TO_ATTRIBUTE,
+            MongoQueryUtils.LAST_WRITE_DATE, LINKS);
+
+    /**
+     * The search configuration
+     */
+    final SearchConfigService searchConfigService;
+
+    /**
+     * Service to access the database
+     */
+    final MongoMultiTenantService mongoMultiTenantService;
+
+    public JoinLinksUpdater(SearchConfigService searchConfigService, MongoMultiTenantService mongoMultiTenantService) {
+        this.searchConfigService = searchConfigService;
+        this.mongoMultiTenantService = mongoMultiTenantService;
+    }
+
+    /**
+     * Get the content of a document as stored in the links of its parents
+     *
+     * @param document the stored document
+     * @return the content of the link
+     */
+    public static Document linkContent(Document document) {
+        var content = new Document(document);
+        NOT_LINKED_FIELDS.forEach(content::remove);
+        return content;
+    }
+
+    /**
+     * Test if the new revision of a joined document changes the links of its parents
+     *
+     * @param oldDocument the old revision
+     * @param newDocument the new revision
+     * @return true if parents must be refreshed
+     */
+    public static boolean linksChanged(Document oldDocument, Document newDocument) {
+        return !linkContent(oldDocument).equals(linkContent(newDocument));
+    }
+
+    /**
+     * Update links of parents referenced by joined resources that were written or deleted.
+     *
+     * @param joinedResourceType the type of the written resources (the joined resource of the join)
+     * @param documents          written documents: new documents and old documents (to detect removed references)
+     */
+    public void updateParentsOf(String joinedResourceType, Collection<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        for (var parentJoin : joinsTo(joinedResourceType)) {
+            var referenceField = referenceField(parentJoin.join());
+            var parentFids = new HashSet<String>();
+            for (var document : documents) {
+                collectReferences(document.get(referenceField), parentJoin.parentType(), parentFids);
+            }
+            refreshLinks(parentJoin.parentType(), parentJoin.join(), parentFids);
+        }
+    }
+
+    /**
+     * Recalculate links of stored parents and write a new revision of parents where links changed.
+     *
+     * @param parentType the type of the parents
+     * @param parentIds  ids of the parents
+     */
+    public void updateLinksOf(String parentType, Collection<String> parentIds) {
+        var joins = searchConfigService.getJoinsByFhirResource(parentType);
+        if (joins == null || parentIds.isEmpty()) {
+            return;
+        }
+        var parentFids = new HashSet<String>();
+        parentIds.forEach(id -> parentFids.add(parentType + "/" + id));
+        for (var join : joins) {
+            refreshLinks(parentType, join, parentFids);
+        }
+    }
+
+    /**
+     * Calculate the links of parents that will be inserted. Documents are modified.
+     *
+     * @param parentType the type of the parents
+     * @param parents    documents of the parents (not stored yet)
+     * @param revision   the revision used to read joined resources
+     */
+    public void setLinks(String parentType, Collection<Document> parents, long revision) {
+        var joins = searchConfigService.getJoinsByFhirResource(parentType);
+        if (joins == null || parents.isEmpty()) {
+            return;
+        }
+        var parentFids = new HashSet<String>();
+        parents.forEach(p -> parentFids.add(p.getString(StorageConstants.INDEX_T_FID)));
+        for (var join : joins) {
+            var linksByParent = findLinks(parentType, join, parentFids, revision);
+            for (var parent : parents) {
+                var newLinks = linksByParent.getOrDefault(parent.getString(StorageConstants.INDEX_T_FID), List.of());
+                if (!newLinks.isEmpty()) {
+                    parent.put(LINKS, withLinks(parent.get(LINKS, Document.class), join.getResource(), newLinks));
+                }
+            }
+        }
+    }
+
+    /**
+     * Recalculate the links of a join for some parents and write a new revision of parents where links changed.
+     *
+     * @param parentType the type of parents
+     * @param join       the join
+     * @param parentFids the fhir ids of parents (Type/id)
+     */
+    void refreshLinks(String parentType, JoinPath join, Set<String> parentFids) {
+        if (parentFids.isEmpty()) {
+            return;
+        }
+        var now = new Date().getTime();
+        // the revision just after the write:
+        var revision = now + 1;
+        var linksByParent = findLinks(parentType, join, parentFids, revision);
+
+        // new revisions of parents where links changed:
+        var parentCollection = mongoMultiTenantService.getCollection(parentType);
+        var newRevisions = new ArrayList<Document>();
+        var parents = parentCollection.find(MongoQueryUtils.wrapQueryWithRevisionDate(revision, Filters.in(StorageConstants.INDEX_T_FID, parentFids)));
+        for (var parent : parents) {
+            var newLinks = linksByParent.getOrDefault(parent.getString(StorageConstants.INDEX_T_FID), List.of());
+            var oldLinks = parent.get(LINKS, Document.class);
+            var oldValue = oldLinks == null ? null : oldLinks.getList(join.getResource(), Document.class);
+            var changed = newLinks.isEmpty() ? oldValue != null : (oldValue == null || !new HashSet<>(newLinks).equals(new HashSet<>(oldValue)));
+            if (changed) {
+                var newRevision = newRevision(parent, withLinks(oldLinks, join.getResource(), newLinks), now);
+                // close the revision only if it was not closed by another write since it was read:
+                var closed = parentCollection.updateOne(
+                        Filters.and(Filters.eq(MongoQueryUtils.ID_ATTRIBUTE, parent.get(MongoQueryUtils.ID_ATTRIBUTE)),
+                                Filters.eq(MongoQueryUtils.VALID_TO_ATTRIBUTE, parent.get(MongoQueryUtils.VALID_TO_ATTRIBUTE))),
+                        Updates.combine(Updates.set(MongoQueryUtils.VALID_TO_ATTRIBUTE, now), Updates.set(MongoQueryUtils.LAST_WRITE_DATE, now)));
+                if (closed.getMatchedCount() > 0) {
+                    newRevisions.add(newRevision);
+                }
+            }
+        }
+        if (!newRevisions.isEmpty()) {
+            parentCollection.insertMany(newRevisions);
+        }
+        log.debug("{} {} updated with links {}.{}", newRevisions.size(), parentType, LINKS, join.getResource());
+    }
+
+    /**
+     * Create the next revision of a parent with new links. The version of the fhir content is the new revision
+     *
+     * @param parent the current revision of the parent
+     * @param links  the new links of the parent
+     * @param now    the date of the write
+     * @return the new revision
+     */
+    private static Document newRevision(Document parent, Document links, long now) {
+        var newRevision = new Document(parent);
+        newRevision.remove(MongoQueryUtils.ID_ATTRIBUTE);
+        if (links.isEmpty()) {
+            newRevision.remove(LINKS);
+        } else {
+            newRevision.put(LINKS, links);
+        }
+        var nextRevision = parent.getInteger(MongoQueryUtils.REVISION_ATTRIBUTE) + 1;
+        newRevision.put(MongoQueryUtils.VALID_FROM_ATTRIBUTE, now);
+        newRevision.put(MongoQueryUtils.REVISION_ATTRIBUTE, nextRevision);
+        newRevision.put(MongoQueryUtils.LAST_WRITE_DATE, now);
+        var fhir = parent.get("fhir", Document.class);
+        if (fhir != null && fhir.get("meta") instanceof Document meta) {
+            var newFhir = new Document(fhir);
+            newFhir.put("meta", new Document(meta).append("versionId", nextRevision));
+            newRevision.put("fhir", newFhir);
+        }
+        return newRevision;
+    }
+
+    /**
+     * Read the joined documents of a join, grouped by parent
+     *
+     * @param parentType the type of parents
+     * @param join       the join
+     * @param parentFids the fhir ids of parents (Type/id)
+     * @param revision   the revision to read
+     * @return the links of each parent
+     */
+    private Map<String, List<Document>> findLinks(String parentType, JoinPath join, Set<String> parentFids, long revision) {
+        var referenceField = referenceField(join);
+        var linksByParent = new HashMap<String, List<Document>>();
+        var joined = mongoMultiTenantService.getCollection(join.getResource())
+                .find(MongoQueryUtils.wrapQueryWithRevisionDate(revision, Filters.in(referenceField, parentFids)))
+                .projection(Projections.exclude(NOT_LINKED_FIELDS));
+        for (var joinedDocument : joined) {
+            var references = new HashSet<String>();
+            collectReferences(joinedDocument.get(referenceField), parentType, references);
+            for (var reference : references) {
+                linksByParent.computeIfAbsent(reference, k -> new ArrayList<>()).add(joinedDocument);
+            }
+        }
+        return linksByParent;
+    }
+
+    /**
+     * Copy the links of a parent with new links for a joined resource
+     *
+     * @param links     the current links (can be null)
+     * @param resource  the joined resource
+     * @param newLinks  the new links of the joined resource (empty to remove them)
+     * @return the new links
+     */
+    private static Document withLinks(Document links, String resource, List<Document> newLinks) {
+        var copy = links == null ? new Document() : new Document(links);
+        if (newLinks.isEmpty()) {
+            copy.remove(resource);
+        } else {
+            copy.put(resource, newLinks);
+        }
+        return copy;
+    }
+
+    /**
+     * Test if a resource type is the joined resource of a join
+     *
+     * @param resourceType the resource type
+     * @return true if the resource type is joined in a parent
+     */
+    public boolean isJoined(String resourceType) {
+        return !joinsTo(resourceType).isEmpty();
+    }
+
+    /**
+     * Get the joins (and their parent type) where a resource type is the joined resource
+     *
+     * @param joinedResourceType the joined resource type
+     * @return the joins
+     */
+    private List<ParentJoin> joinsTo(String joinedResourceType) {
+        var parentJoins = new ArrayList<ParentJoin>();
+        for (var parentType : searchConfigService.getResources()) {
+            var joins = searchConfigService.getJoinsByFhirResource(parentType);
+            if (joins != null) {
+                joins.stream().filter(j -> joinedResourceType.equals(j.getResource())).forEach(j -> parentJoins.add(new ParentJoin(parentType, j)));
+            }
+        }
+        return parentJoins;
+    }
+
+    /**
+     * Get the reference index field of a join (the field of the joined resource that contains the parent reference)
+     *
+     * @param join the join
+     * @return the name of the field
+     */
+    String referenceField(JoinPath join) {
+        var config = searchConfigService.getSearchConfigByPath(FhirSearchPath.builder().resource(join.getResource()).path(join.getPath()).build())
+                .orElseThrow(() -> new BadConfigurationException("Search not supported on path: " + join.getResource() + "." + join.getPath()));
+        return config.getIndexName() + StorageConstants.REFERENCE_SUFFIX;
+    }
+
+    /**
+     * Collect references (Type/id) of a reference index value that point to a type
+     *
+     * @param value      the reference index value (a string or a list of strings)
+     * @param parentType the type of the referenced resource
+     * @param collector  where to collect references
+     */
+    private static void collectReferences(Object value, String parentType, Set<String> collector) {
+        if (value instanceof Collection<?> values) {
+            values.forEach(v -> collectReferences(v, parentType, collector));
+        } else if (value instanceof String reference && reference.startsWith(parentType + "/")) {
+            collector.add(reference);
+        }
+    }
+
+    /**
+     * A join and the type of its parent
+     *
+     * @param parentType the type of the parent
+     * @param join       the join
+     */
+    private record ParentJoin(String parentType, JoinPath join) {
+    }
+}
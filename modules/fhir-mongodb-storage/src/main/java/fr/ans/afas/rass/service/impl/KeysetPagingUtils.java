@@ -0,0 +1,299 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.data.SortField;
+import fr.ans.afas.fhirserver.search.exception.BadParametersException;
+import fr.ans.afas.fhirserver.service.exception.BadRequestException;
+import fr.ans.afas.mdbexpression.domain.fhir.MongoDbStringExpression;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Keyset pagination: sort of the search (FHIR _sort) and position of the next page.
+ * <p>
+ * Results are sorted by the sort keys then by the <code>_id</code> (tie break). The position of a page is the values
+ * of the sort keys and the <code>_id</code> of the last document (the cursor). The next page is the documents after the
+ * cursor in the sort order. Without sort keys, the cursor is the <code>_id</code> of the last document.
+ * </p>
+ * <p>
+ * Only <code>_id</code>, <code>_lastUpdated</code> and string parameters (a scalar sort key is written for them) can
+ * be used. Each sort must be supported by an index (see {@link SortIndexValidator}): indexes are only created for
+ * parameters configured as sortable.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class KeysetPagingUtils {
+
+    /**
+     * First char of cursors with sort values (ObjectId cursors are in hexadecimal)
+     */
+    static final String CURSOR_PREFIX = "k";
+
+    private static final String CURSOR_VALUES = "v";
+
+    private static final String CURSOR_ID = "i";
+
+    private static final String ID_PARAM = "_id";
+
+    private static final String LAST_UPDATED_PARAM = "_lastUpdated";
+
+    /**
+     * Get the database sort keys of a sort
+     *
+     * @param searchConfigService the search config
+     * @param fhirResource        the fhir resource
+     * @param sort                the sort (FHIR _sort)
+     * @return the sort keys
+     * @throws BadParametersException if a parameter is not sortable
+     */
+    public static List<SortKey> resolveSort(SearchConfigService searchConfigService, String fhirResource, List<SortField> sort) {
+        var keys = new ArrayList<SortKey>();
+        for (var field : sort) {
+            var attribute = sortAttribute(searchConfigService, fhirResource, field.getParam());
+            if (keys.stream().anyMatch(k -> k.field().equals(attribute))) {
+                throw new BadParametersException("The parameter " + field.getParam() + " is used twice in _sort");
+            }
+            keys.add(new SortKey(attribute, field.isDescending()));
+        }
+        return keys;
+    }
+
+    /**
+     * Get the database attribute used to sort on a parameter
+     *
+     * @param searchConfigService the search config
+     * @param fhirResource        the fhir resource
+     * @param param               the parameter
+     * @return the attribute
+     */
+    static String sortAttribute(SearchConfigService searchConfigService, String fhirResource, String param) {
+        if (ID_PARAM.equals(param)) {
+            return StorageConstants.INDEX_T_ID;
+        }
+        if (LAST_UPDATED_PARAM.equals(param)) {
+            return StorageConstants.INDEX_T_LASTUPDATED;
+        }
+        return searchConfigService.getSearchConfigByResourceAndParamName(fhirResource, param)
+                .filter(KeysetPagingUtils::hasSortKey)
+                .map(c -> c.getIndexName() + StorageConstants.SORT_SUFFIX)
+                .orElseThrow(() -> new BadParametersException("Sort not supported on the parameter " + param + ". Only _id, _lastUpdated and sortable string parameters can be used in _sort"));
+    }
+
+    /**
+     * Indexes that support the sort on each parameter of a resource configured as sortable (the sort key and the
+     * <code>_id</code>). <code>_id</code> and <code>_lastUpdated</code> get an index only if they are configured as
+     * sortable
+     *
+     * @param searchConfigService the search config
+     * @param fhirResource        the fhir resource
+     * @return the keys of indexes
+     */
+    public static List<Document> sortIndexes(SearchConfigService searchConfigService, String fhirResource) {
+        var indexes = new ArrayList<Document>();
+        for (var config : searchConfigService.getAllByFhirResource(fhirResource)) {
+            if (!config.isSortable()) {
+                continue;
+            }
+            if (ID_PARAM.equals(config.getUrlParameter())) {
+                indexes.add(sortIndex(StorageConstants.INDEX_T_ID));
+            } else if (LAST_UPDATED_PARAM.equals(config.getUrlParameter())) {
+                indexes.add(sortIndex(StorageConstants.INDEX_T_LASTUPDATED));
+            } else if (hasSortKey(config)) {
+                indexes.add(sortIndex(config.getIndexName() + StorageConstants.SORT_SUFFIX));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Check if a sort key is written for a parameter
+     *
+     * @param config the parameter
+     * @return true if the parameter is a sortable string parameter
+     */
+    public static boolean hasSortKey(SearchParamConfig config) {
+        return config.isSortable() && StorageConstants.INDEX_TYPE_STRING.equals(config.getSearchType());
+    }
+
+    /**
+     * Write the sort key of documents stored before the parameter was sortable. The sort key is the lowest value of
+     * the normalized values of the parameter (<code>&lt;index&gt;-i</code>), like {@link fr.ans.afas.rass.service.json.GenericSerializer}
+     * does for strings. Parameters without normalized values (human names) are not updated: resources must be stored
+     * again to get their sort key.
+     *
+     * @param collection the collection
+     * @param config     the sortable string parameter
+     * @return the number of updated documents
+     */
+    public static long backfillSortKeys(MongoCollection<Document> collection, SearchParamConfig config) {
+        var sortKey = config.getIndexName() + StorageConstants.SORT_SUFFIX;
+        var values = config.getIndexName() + MongoDbStringExpression.INSENSITIVE_SUFFIX;
+        var notEmpty = new Document("$filter", new Document("input", "$" + values)
+                .append("cond", new Document("$ne", List.of("$$this", ""))));
+        var lowest = new Document("$ifNull", List.of(new Document("$min", notEmpty), "$$REMOVE"));
+        return collection.updateMany(
+                Filters.and(Filters.exists(sortKey, false), Filters.exists(values)),
+                List.of(new Document("$set", new Document(sortKey, lowest)))).getModifiedCount();
+    }
+
+    private static Document sortIndex(String field) {
+        return new Document(field, 1).append(MongoQueryUtils.ID_ATTRIBUTE, 1);
+    }
+
+    /**
+     * Get the sort of the query: the sort keys then the <code>_id</code>
+     *
+     * @param keys the sort keys
+     * @return the sort
+     */
+    public static Bson sort(List<SortKey> keys) {
+        var sorts = new ArrayList<Bson>();
+        for (var key : keys) {
+            sorts.add(key.descending() ? Sorts.descending(key.field()) : Sorts.ascending(key.field()));
+        }
+        sorts.add(isTieBreakDescending(keys) ? Sorts.descending(MongoQueryUtils.ID_ATTRIBUTE) : Sorts.ascending(MongoQueryUtils.ID_ATTRIBUTE));
+        return sorts.size() == 1 ? sorts.get(0) : Sorts.orderBy(sorts);
+    }
+
+    /**
+     * The <code>_id</code> has the direction of the last sort key, so a sort with a single key is supported by an
+     * index <code>{key: 1, _id: 1}</code> in both directions
+     *
+     * @param keys the sort keys
+     * @return true if the tie break is descending
+     */
+    static boolean isTieBreakDescending(List<SortKey> keys) {
+        return !keys.isEmpty() && keys.get(keys.size() - 1).descending();
+    }
+
+    /**
+     * Get the filter that select documents after a cursor
+     *
+     * @param keys   the sort keys
+     * @param cursor the cursor (see {@link #cursor(List, Document)})
+     * @return the filter
+     */
+    public static Bson after(List<SortKey> keys, String cursor) {
+        if (!cursor.startsWith(CURSOR_PREFIX)) {
+            if (!keys.isEmpty()) {
+                throw new BadRequestException("The paging cursor doesn't match the sort of the search");
+            }
+            return Filters.gt(MongoQueryUtils.ID_ATTRIBUTE, new ObjectId(cursor));
+        }
+        var decoded = decodeCursor(cursor);
+        var values = decoded.getArray(CURSOR_VALUES);
+        if (values.size() != keys.size()) {
+            throw new BadRequestException("The paging cursor doesn't match the sort of the search");
+        }
+        var id = decoded.getObjectId(CURSOR_ID).getValue();
+
+        // (k0 after v0) or (k0 = v0 and k1 after v1) or ... or (k0 = v0 and ... and _id after id):
+        var branches = new ArrayList<Bson>();
+        var equalities = new ArrayList<Bson>();
+        for (var i = 0; i < keys.size(); i++) {
+            var key = keys.get(i);
+            var value = values.get(i);
+            var beyond = beyond(key, value);
+            if (beyond != null) {
+                branches.add(and(equalities, beyond));
+            }
+            equalities.add(Filters.eq(key.field(), value));
+        }
+        branches.add(and(equalities, isTieBreakDescending(keys) ? Filters.lt(MongoQueryUtils.ID_ATTRIBUTE, id) : Filters.gt(MongoQueryUtils.ID_ATTRIBUTE, id)));
+        return branches.size() == 1 ? branches.get(0) : Filters.or(branches);
+    }
+
+    /**
+     * Filter of values strictly after a value in the sort order. Missing values (null) are the lowest values
+     *
+     * @param key   the sort key
+     * @param value the value
+     * @return the filter or null if there is no value after
+     */
+    private static Bson beyond(SortKey key, BsonValue value) {
+        if (value.isNull()) {
+            return key.descending() ? null : Filters.ne(key.field(), null);
+        }
+        return key.descending() ? Filters.or(Filters.lt(key.field(), value), Filters.eq(key.field(), null)) : Filters.gt(key.field(), value);
+    }
+
+    private static Bson and(List<Bson> equalities, Bson last) {
+        if (equalities.isEmpty()) {
+            return last;
+        }
+        var all = new ArrayList<>(equalities);
+        all.add(last);
+        return Filters.and(all);
+    }
+
+    /**
+     * Create the cursor of a document
+     *
+     * @param keys     the sort keys
+     * @param document the document (the last one of the page)
+     * @return the cursor: the <code>_id</code> if there is no sort key, otherwise an hexadecimal bson document with
+     * sort values and the <code>_id</code> prefixed by {@link #CURSOR_PREFIX}
+     */
+    public static String cursor(List<SortKey> keys, Document document) {
+        var id = document.getObjectId(MongoQueryUtils.ID_ATTRIBUTE);
+        if (keys.isEmpty()) {
+            return id.toString();
+        }
+        var values = new ArrayList<>();
+        for (var key : keys) {
+            values.add(document.get(key.field()));
+        }
+        var raw = new RawBsonDocument(new Document(CURSOR_VALUES, values).append(CURSOR_ID, id), new DocumentCodec());
+        var buffer = raw.getByteBuffer().asNIO();
+        var bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return CURSOR_PREFIX + HexFormat.of().formatHex(bytes);
+    }
+
+    private static BsonDocument decodeCursor(String cursor) {
+        try {
+            var bytes = HexFormat.of().parseHex(cursor, CURSOR_PREFIX.length(), cursor.length());
+            var decoded = new RawBsonDocument(bytes);
+            if (!decoded.isArray(CURSOR_VALUES) || !decoded.isObjectId(CURSOR_ID)) {
+                throw new BadRequestException("Bad paging cursor");
+            }
+            return decoded;
+        } catch (RuntimeException e) {
+            if (e instanceof BadRequestException) {
+                throw e;
+            }
+            throw new BadRequestException("Bad paging cursor");
+        }
+    }
+
+    /**
+     * A database sort key
+     *
+     * @param field      the attribute in the database
+     * @param descending true for a descending sort
+     */
+    public record SortKey(String field, boolean descending) {
+    }
+}
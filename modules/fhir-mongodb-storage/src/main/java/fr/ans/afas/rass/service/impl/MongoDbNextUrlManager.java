@@ -3,8 +3,14 @@
  */
 package fr.ans.afas.rass.service.impl;
 
+import com.mongodb.MongoCommandException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import fr.ans.afas.exception.SerializationException;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import fr.ans.afas.fhirserver.search.expression.serialization.SerializeUrlEncrypter;
@@ -12,18 +18,39 @@ import fr.ans.afas.fhirserver.service.NextUrlManager;
 import fr.ans.afas.fhirserver.service.data.CountResult;
 import fr.ans.afas.fhirserver.service.data.PagingData;
 import fr.ans.afas.fhirserver.service.exception.BadLinkException;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.MongoDbExpressionSerializer;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.PagingDataBinarySerializer;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.SelectExpressionCache;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.utils.TenantUtil;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.types.ObjectId;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.mongodb.client.model.Filters.eq;
 
 /**
  * Manage next urls. Store and retrieve them from the database (or the url)
+ * <p>
+ * When paging data are too long to be in the url, they are stored in the <code>NextPages</code> collection. The stored
+ * value doesn't contain the last id of the page (it's in the url) so all pages of a search share the same document: it's
+ * written once (with an upsert) for the whole search. The key of the document is a hash of the value and of the uuid of
+ * the search (random), so two identical searches don't share their document (and their parked cursors). The key and the
+ * last id are encrypted together in the url (the encryption is authenticated, so the last id can't be changed). An
+ * in-process cache is used in front of the collection. Documents are deleted by a TTL index on the creation date and by
+ * the scheduled cleaning of {@link #cleanOldPagingData(long)}.
+ * </p>
+ * <p>
+ * Paging data stored in the url use a compact binary format (see {@link PagingDataBinarySerializer}) when the expression
+ * serializer is the mongodb one. Urls in the old text format are still read.
+ * </p>
  *
  * @author Guillaume Poulériguen
  * @since 1.0.0
@@ -36,8 +63,33 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
     public static final String FIRST_CHAR_IN_DB = "d";
     public static final String FIRST_CHAR_IN_URL = "u";
 
+    /**
+     * Default number of paging data in the in-process cache
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Default validity of paging data (ms)
+     */
+    public static final long DEFAULT_VALIDITY_MS = 3600000;
+
+    /**
+     * Separator between the key of the stored paging data and the last id in the id of db paging data
+     */
+    static final String LAST_ID_SEPARATOR = ".";
 
-    private static final String CREATED_AT_ATTRIBUTE = "ca";
+    static final String CREATED_AT_ATTRIBUTE = "ca";
+
+    static final String ID_ATTRIBUTE = "id";
+
+    static final String VALUE_ATTRIBUTE = "value";
+
+    /**
+     * Mongodb error code when an index already exist with other options
+     */
+    private static final int INDEX_OPTIONS_CONFLICT = 85;
+
+    private static final String BAD_LINK_MESSAGE = "The url can't be processed. Maybe it is too old or corrupted.";
 
     /**
      * The db name
@@ -53,8 +105,33 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
      * The url encrypter
      */
     final SerializeUrlEncrypter serializeUrlEncrypter;
+    /**
+     * The binary serializer of paging data stored in urls (null if the text format is used)
+     */
+    final PagingDataBinarySerializer binarySerializer;
     protected int maxNextUrlLength;
 
+    /**
+     * In-process cache of paging data stored in database (by tenant and key)
+     */
+    final NextPagesCache cache;
+
+    /**
+     * In-process cache of select expressions read from paging data (parsed and interpreted once for all pages). Null
+     * to parse expressions for each page
+     */
+    SelectExpressionCache selectExpressionCache;
+
+    /**
+     * Validity of paging data (ms)
+     */
+    final long validityMs;
+
+    /**
+     * Tenants where indexes of the collection are created
+     */
+    private final Set<String> indexedTenants = ConcurrentHashMap.newKeySet();
+
 
     /**
      * Create the service
@@ -65,30 +142,74 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
      * @param serializeUrlEncrypter   The url encrypter
      */
     public MongoDbNextUrlManager(MongoMultiTenantService mongoMultiTenantService, int maxNextUrlLength, ExpressionSerializer<Bson> expressionSerializer, SerializeUrlEncrypter serializeUrlEncrypter, String dbName) {
+        this(mongoMultiTenantService, maxNextUrlLength, expressionSerializer, serializeUrlEncrypter, dbName, DEFAULT_CACHE_SIZE, DEFAULT_VALIDITY_MS);
+    }
+
+    /**
+     * Create the service
+     *
+     * @param mongoMultiTenantService the mongoMultiTenantService
+     * @param maxNextUrlLength        the max size of the next url (paging data).
+     * @param expressionSerializer    The expression serializer
+     * @param serializeUrlEncrypter   The url encrypter
+     * @param cacheSize               the number of paging data in the in-process cache (0 to disable the cache)
+     * @param validityMs              the validity of paging data stored in database (ms)
+     */
+    public MongoDbNextUrlManager(MongoMultiTenantService mongoMultiTenantService, int maxNextUrlLength, ExpressionSerializer<Bson> expressionSerializer, SerializeUrlEncrypter serializeUrlEncrypter, String dbName, int cacheSize, long validityMs) {
         this.mongoMultiTenantService = mongoMultiTenantService;
         this.maxNextUrlLength = maxNextUrlLength;
         this.expressionSerializer = expressionSerializer;
         this.serializeUrlEncrypter = serializeUrlEncrypter;
         this.dbName = dbName;
+        this.validityMs = validityMs;
+        this.cache = new NextPagesCache(cacheSize, validityMs);
+        this.binarySerializer = expressionSerializer instanceof MongoDbExpressionSerializer mongoDbExpressionSerializer ?
+                new PagingDataBinarySerializer(mongoDbExpressionSerializer.getExpressionFactory(), mongoDbExpressionSerializer.getSearchConfigService()) : null;
     }
 
     @Override
     public Optional<PagingData<Bson>> find(String id) throws BadLinkException {
 
         String theSearchId;
+        String key = null;
+        String lastIdFromUrl = null;
 
         var typeId = id.substring(0, 1);
         var realId = id.substring(1);
 
         if (FIRST_CHAR_IN_URL.equals(typeId)) {
-            theSearchId = serializeUrlEncrypter.decrypt(realId);
+            if (binarySerializer != null) {
+                // decrypted once, the text format is read from the same bytes:
+                var decrypted = serializeUrlEncrypter.decryptBytes(realId);
+                if (PagingDataBinarySerializer.isBinary(decrypted)) {
+                    return Optional.of(deserializeBinary(decrypted));
+                }
+                theSearchId = new String(decrypted, StandardCharsets.UTF_8);
+            } else {
+                theSearchId = serializeUrlEncrypter.decrypt(realId);
+            }
         } else if (FIRST_CHAR_IN_DB.equals(typeId)) {
-            theSearchId = this.findFromDb(realId);
+            // ids of paging data shared by all pages contain the key and the last id (encrypted):
+            var keyAndLastId = decryptKeyAndLastId(realId);
+            if (keyAndLastId != null) {
+                var separator = keyAndLastId.indexOf(LAST_ID_SEPARATOR);
+                if (separator < 0) {
+                    throw new BadLinkException(BAD_LINK_MESSAGE);
+                }
+                key = keyAndLastId.substring(0, separator);
+                lastIdFromUrl = keyAndLastId.substring(separator + 1);
+            } else if (!realId.contains(LAST_ID_SEPARATOR)) {
+                // paging data of old versions (stored with the last id):
+                key = realId;
+            } else {
+                throw new BadLinkException(BAD_LINK_MESSAGE);
+            }
+            theSearchId = this.findFromDb(key);
             if (theSearchId == null) {
-                throw new BadLinkException("The url can't be processed. Maybe it is too old or corrupted.");
+                throw new BadLinkException(BAD_LINK_MESSAGE);
             }
         } else {
-            throw new BadLinkException("The url can't be processed. Maybe it is too old or corrupted.");
+            throw new BadLinkException(BAD_LINK_MESSAGE);
         }
 
         var parts = theSearchId.split("_", 8);
@@ -103,13 +224,14 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
         var timestamp = Long.parseLong(parts[2]);
         var type = parts[3];
 
-        var lastId = parts[4];
-        var uuid = parts[5];
+        var lastId = lastIdFromUrl != null ? lastIdFromUrl : parts[4];
+        var uuid = lastIdFromUrl != null && parts[5].isEmpty() ? key : parts[5];
         var elements = !parts[6].isEmpty() ? Arrays.stream(parts[6].substring(1, parts[6].length() - 1).split(","))
                 .map(String::trim).collect(Collectors.toSet()) : new HashSet<String>();
         var exp = parts[7];
 
-        var selectExpression = (SelectExpression<Bson>) expressionSerializer.deserialize(exp);
+        var selectExpression = selectExpressionCache == null ? (SelectExpression<Bson>) expressionSerializer.deserialize(exp) :
+                selectExpressionCache.get(SelectExpressionCache.key(exp, elements), () -> (SelectExpression<Bson>) expressionSerializer.deserialize(exp));
 
         return Optional.of(PagingData.<Bson>builder()
                 .uuid(uuid)
@@ -125,58 +247,106 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
 
     @Override
     public String store(PagingData<Bson> pagingData) {
-        var serialized = pagingData.getPageSize() +
-                "_" +
-                (pagingData.getSize().getTotal() != null ? pagingData.getSize().getTotal().longValue() : "-1") +
-                "_" +
-                pagingData.getTimestamp() +
-                "_" +
-                pagingData.getType() +
-                "_" +
-                pagingData.getLastId() +
-                "_" +
-                pagingData.getUuid() +
-                "_" +
-                //This can be true only for V2, because V1 (Hapi) is not using this field elements
-                (pagingData.getElements() != null && !pagingData.getElements().isEmpty() ? pagingData.getElements() : "") +
-                "_" +
-                pagingData.getSelectExpression().serialize(expressionSerializer);
+        if (binarySerializer != null) {
+            var inUrl = storeBinaryInUrl(pagingData);
+            if (inUrl != null) {
+                return inUrl;
+            }
+        }
+        var serialized = serialize(pagingData, pagingData.getLastId(), pagingData.getUuid());
 
         if (serialized.length() > maxNextUrlLength) {
-            this.storeInDb(pagingData.getUuid(), pagingData.getTimestamp(), serialized);
-            return FIRST_CHAR_IN_DB + pagingData.getUuid();
+            // the value stored in db is the same for all pages of the search (no last id, the key is the hash of the value
+            // and of the uuid of the search, so identical searches don't share the document):
+            var uuid = pagingData.getUuid() != null && !pagingData.getUuid().isEmpty() ? pagingData.getUuid() : UUID.randomUUID().toString();
+            var shared = serialize(pagingData, "", uuid);
+            var key = hash(shared);
+            this.storeInDb(key, pagingData.getTimestamp(), shared);
+            return FIRST_CHAR_IN_DB + serializeUrlEncrypter.encryptBytes((key + LAST_ID_SEPARATOR + pagingData.getLastId()).getBytes(StandardCharsets.UTF_8));
         } else {
             return FIRST_CHAR_IN_URL + serializeUrlEncrypter.encrypt(serialized);
         }
     }
 
     /**
-     * delete paging data older than a date
+     * Create the id of paging data stored in the url with the binary format
+     *
+     * @param pagingData the paging data
+     * @return the id or null if the paging data can't be stored in the url with the binary format (too long or not supported)
+     */
+    private String storeBinaryInUrl(PagingData<Bson> pagingData) {
+        try {
+            var id = FIRST_CHAR_IN_URL + serializeUrlEncrypter.encryptBytes(binarySerializer.serialize(pagingData));
+            return id.length() <= maxNextUrlLength ? id : null;
+        } catch (SerializationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decrypt the key and the last id of paging data stored in database
+     *
+     * @param value the encrypted value
+     * @return the key and the last id (separated by {@link #LAST_ID_SEPARATOR}) or null if the value is not encrypted (old versions) or altered
+     */
+    private String decryptKeyAndLastId(String value) {
+        try {
+            var decrypted = serializeUrlEncrypter.decryptBytes(value);
+            return decrypted != null ? new String(decrypted, StandardCharsets.UTF_8) : null;
+        } catch (SerializationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read paging data in the binary format
+     *
+     * @param data the decrypted data
+     * @return the paging data
+     * @throws BadLinkException if the data can't be read (e.g. the search configuration changed)
+     */
+    private PagingData<Bson> deserializeBinary(byte[] data) throws BadLinkException {
+        try {
+            return binarySerializer.deserialize(data, selectExpressionCache);
+        } catch (SerializationException e) {
+            throw new BadLinkException(BAD_LINK_MESSAGE);
+        }
+    }
+
+    /**
+     * delete paging data older than a date.
+     * Paging data are also deleted by mongodb with a TTL index (created the first time the collection of a tenant is used).
      *
      * @param timestamp the utc timestamp in ms
      */
     @Override
     public void cleanOldPagingData(long timestamp) {
-        var validTo = Filters.lt(CREATED_AT_ATTRIBUTE, timestamp);
-        var r = getCollection().deleteMany(validTo);
-        r.toString();
+        cache.removeOlderThan(timestamp);
+        // paging data stored with a date (TTL) or with a timestamp (old versions):
+        getCollection().deleteMany(Filters.or(
+                Filters.lt(CREATED_AT_ATTRIBUTE, new Date(timestamp)),
+                Filters.lt(CREATED_AT_ATTRIBUTE, timestamp)));
     }
 
 
     /**
-     * Store next url data
+     * Store next url data. Nothing is done if the data is already stored
      *
      * @param id                   the id
      * @param timestamp            the date of the stored nexturl
      * @param pagingDataSerialized the value (as a serialized string)
      */
     protected void storeInDb(String id, long timestamp, String pagingDataSerialized) {
-        var col = getCollection();
-        col.insertOne(new Document()
-                .append("_id", new ObjectId())
-                .append("id", id)
-                .append(CREATED_AT_ATTRIBUTE, timestamp)
-                .append("value", pagingDataSerialized));
+        var cacheKey = cacheKey(id);
+        if (cache.get(cacheKey) != null) {
+            return;
+        }
+        getCollection().updateOne(eq(ID_ATTRIBUTE, id),
+                Updates.combine(
+                        Updates.setOnInsert(CREATED_AT_ATTRIBUTE, new Date(timestamp)),
+                        Updates.setOnInsert(VALUE_ATTRIBUTE, pagingDataSerialized)),
+                new UpdateOptions().upsert(true));
+        cache.put(cacheKey, pagingDataSerialized, timestamp);
     }
 
 
@@ -187,27 +357,122 @@ public class MongoDbNextUrlManager implements NextUrlManager<Bson> {
      * @return the value
      */
     protected String findFromDb(String id) {
-        var col = getCollection();
-        var doc = col.find(eq("id", id)).first();
+        var cacheKey = cacheKey(id);
+        var cached = cache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        var doc = getCollection().find(eq(ID_ATTRIBUTE, id)).first();
         if (doc == null) {
             return null;
-        } else {
-            return doc.getString("value");
         }
+        var value = doc.getString(VALUE_ATTRIBUTE);
+        var createdAt = doc.get(CREATED_AT_ATTRIBUTE);
+        cache.put(cacheKey, value, createdAt instanceof Date d ? d.getTime() : ((Number) createdAt).longValue());
+        return value;
     }
 
 
     /**
-     * Get the mongodb collection that store next pages
+     * Get the mongodb collection that store next pages. Indexes are created the first time the collection of a tenant is used
      *
      * @return the collection
      */
     protected MongoCollection<Document> getCollection() {
-        return mongoMultiTenantService.getCollection(MONGO_COLLECTION_NAME);
+        var collection = mongoMultiTenantService.getCollection(MONGO_COLLECTION_NAME);
+        if (indexedTenants.add(tenantKey())) {
+            createIndexes(collection);
+        }
+        return collection;
+    }
+
+    /**
+     * Create indexes of the collection: an index on the id and a TTL index on the creation date
+     *
+     * @param collection the collection
+     */
+    void createIndexes(MongoCollection<Document> collection) {
+        collection.createIndex(Indexes.ascending(ID_ATTRIBUTE));
+        var ttlSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(validityMs));
+        try {
+            collection.createIndex(Indexes.ascending(CREATED_AT_ATTRIBUTE), new IndexOptions().expireAfter(ttlSeconds, TimeUnit.SECONDS));
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() != INDEX_OPTIONS_CONFLICT) {
+                throw e;
+            }
+            // the validity changed:
+            collection.dropIndex(Indexes.ascending(CREATED_AT_ATTRIBUTE));
+            collection.createIndex(Indexes.ascending(CREATED_AT_ATTRIBUTE), new IndexOptions().expireAfter(ttlSeconds, TimeUnit.SECONDS));
+        }
+        // paging data of old versions (stored with a timestamp) are not deleted by the TTL index:
+        collection.deleteMany(Filters.lt(CREATED_AT_ATTRIBUTE, new Date().getTime() - validityMs));
+    }
+
+    /**
+     * Serialize paging data
+     *
+     * @param pagingData the paging data
+     * @param lastId     the last id
+     * @param uuid       the uuid
+     * @return the serialized paging data
+     */
+    private String serialize(PagingData<Bson> pagingData, String lastId, String uuid) {
+        return pagingData.getPageSize() +
+                "_" +
+                (pagingData.getSize().getTotal() != null ? pagingData.getSize().getTotal().longValue() : "-1") +
+                "_" +
+                pagingData.getTimestamp() +
+                "_" +
+                pagingData.getType() +
+                "_" +
+                lastId +
+                "_" +
+                uuid +
+                "_" +
+                //This can be true only for V2, because V1 (Hapi) is not using this field elements
+                (pagingData.getElements() != null && !pagingData.getElements().isEmpty() ? pagingData.getElements() : "") +
+                "_" +
+                pagingData.getSelectExpression().serialize(expressionSerializer);
+    }
+
+    /**
+     * Hash a serialized paging data to create the key of the stored document
+     *
+     * @param value the serialized paging data
+     * @return the hash (url safe)
+     */
+    static String hash(String value) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 18));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String cacheKey(String id) {
+        return tenantKey() + "/" + id;
+    }
+
+    private static String tenantKey() {
+        return Optional.ofNullable(TenantUtil.getCurrentTenant()).orElse("");
     }
 
 
     public void setMaxNextUrlLength(int maxNextUrlLength) {
         this.maxNextUrlLength = maxNextUrlLength;
     }
+
+    /**
+     * Set the cache of select expressions read from paging data
+     *
+     * @param selectExpressionCache the cache or null to parse expressions for each page
+     */
+    public void setSelectExpressionCache(SelectExpressionCache selectExpressionCache) {
+        this.selectExpressionCache = selectExpressionCache;
+    }
+
+    public SelectExpressionCache getSelectExpressionCache() {
+        return selectExpressionCache;
+    }
 }
@@ -11,7 +11,6 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.CountOptions;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Sorts;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
@@ -20,14 +19,15 @@ import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
 import fr.ans.afas.fhirserver.search.expression.*;
 import fr.ans.afas.fhirserver.service.data.CountResult;
 import fr.ans.afas.fhirserver.service.exception.BadRequestException;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.PreparedSelectExpression;
 import fr.ans.afas.rass.service.CloseableWrapper;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.utils.RequestDeadline;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.types.ObjectId;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
@@ -76,6 +76,11 @@ public class MongoQueryUtils {
      */
     public static CountResult count(SearchConfigService searchConfigService, MongoCollection<Document> collection, SelectExpression<Bson> selectExpression, CountOptions c, MongoMultiTenantService mongoMultiTenantService) {
         var searchRevision = new Date().getTime();
+        // the count stops at the deadline of the request:
+        var remaining = RequestDeadline.remainingForCurrent();
+        if (remaining != null && (c.getMaxTime(TimeUnit.MILLISECONDS) == 0 || remaining < c.getMaxTime(TimeUnit.MILLISECONDS))) {
+            c.maxTime(remaining, TimeUnit.MILLISECONDS);
+        }
         try {
             optimizeQuery(searchConfigService, selectExpression);
             if (hasAggregation(selectExpression)) {
@@ -101,6 +106,31 @@ public class MongoQueryUtils {
         }
     }
 
+    /**
+     * Apply the deadline of the current request ({@link RequestDeadline}) as the max time of a find. The max time of a
+     * find also limits the getMore of its cursor
+     *
+     * @param find the find
+     * @return the find
+     * @throws fr.ans.afas.fhirserver.service.exception.RequestTimeoutException if the deadline is passed
+     */
+    public static <D> FindIterable<D> withDeadline(FindIterable<D> find) {
+        var remaining = RequestDeadline.remainingForCurrent();
+        return remaining == null ? find : find.maxTime(remaining, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply the deadline of the current request ({@link RequestDeadline}) as the max time of an aggregation
+     *
+     * @param aggregate the aggregation
+     * @return the aggregation
+     * @throws fr.ans.afas.fhirserver.service.exception.RequestTimeoutException if the deadline is passed
+     */
+    public static <D> AggregateIterable<D> withDeadline(AggregateIterable<D> aggregate) {
+        var remaining = RequestDeadline.remainingForCurrent();
+        return remaining == null ? aggregate : aggregate.maxTime(remaining, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Search the first page and get the mongodb cursor
      *
@@ -113,17 +143,46 @@ public class MongoQueryUtils {
      */
     @NotNull
     public static CloseableWrapper<MongoCursor<Document>> searchFirstPage(SearchConfigService searchConfigService, int pageSize, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, Long searchRevision, MongoMultiTenantService mongoMultiTenantService) {
+        return searchFirstPage(searchConfigService, pageSize, selectExpression, collection, searchRevision, mongoMultiTenantService, 0);
+    }
+
+    /**
+     * Search the first page and get the mongodb cursor
+     *
+     * @param searchConfigService the search config
+     * @param pageSize            the page size
+     * @param selectExpression    the select expression
+     * @param collection          the mongo collection where to search
+     * @param searchRevision      the searchRevision
+     * @param continuablePages    if greater than 0, the cursor is limited to this number of pages (it can be continued
+     *                            for next pages) and documents are fetched by batches of one page. 0 to read one page
+     * @return the mongodb cursor
+     */
+    @NotNull
+    public static CloseableWrapper<MongoCursor<Document>> searchFirstPage(SearchConfigService searchConfigService, int pageSize, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, Long searchRevision, MongoMultiTenantService mongoMultiTenantService, int continuablePages) {
+        return searchFirstPage(searchConfigService, pageSize, selectExpression, collection, searchRevision, mongoMultiTenantService, continuablePages, null);
+    }
+
+    /**
+     * Search the first page and get the mongodb cursor
+     *
+     * @param searchConfigService the search config
+     * @param pageSize            the page size
+     * @param selectExpression    the select expression
+     * @param collection          the mongo collection where to search
+     * @param searchRevision      the searchRevision
+     * @param continuablePages    the number of pages the cursor can read (0 to read one page)
+     * @param lookupJoins         the semi-join decisions of the search, shared by all pages (see {@link SemiJoinPlanCache}). Null to decide for each page
+     * @return the mongodb cursor
+     */
+    @NotNull
+    public static CloseableWrapper<MongoCursor<Document>> searchFirstPage(SearchConfigService searchConfigService, int pageSize, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, Long searchRevision, MongoMultiTenantService mongoMultiTenantService, int continuablePages, Set<FhirSearchPath> lookupJoins) {
         optimizeQuery(searchConfigService, selectExpression);
         if (hasAggregation(selectExpression)) {
-            var documentList = AggregationUtils.generateAggregation(searchConfigService, selectExpression, searchRevision, null, mongoMultiTenantService);
-            documentList.add(new Document("$limit", pageSize + 1));
-            AggregateIterable<Document> aggregate = collection.aggregate(documentList);
-
-            return CloseableWrapper.<MongoCursor<Document>>builder()
-                    .content(aggregate::cursor)
-                    .build();
+            var documentList = AggregationUtils.generateAggregation(searchConfigService, selectExpression, searchRevision, null, mongoMultiTenantService, lookupJoins);
+            return aggregatePage(collection, documentList, pageSize, continuablePages);
         } else {
-            return findFirstPageWithSearch(pageSize, selectExpression, collection, searchRevision, searchConfigService);
+            return findFirstPageWithSearch(pageSize, selectExpression, collection, searchRevision, searchConfigService, continuablePages);
         }
     }
 
@@ -139,18 +198,80 @@ public class MongoQueryUtils {
      */
     @NotNull
     public static CloseableWrapper<MongoCursor<Document>> searchNextPage(SearchConfigService searchConfigService, int pageSize, SearchContext searchContext, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, String savedLastId, MongoMultiTenantService mongoMultiTenantService) {
+        return searchNextPage(searchConfigService, pageSize, searchContext, selectExpression, collection, savedLastId, mongoMultiTenantService, 0);
+    }
+
+    /**
+     * Search the next page and get the mongodb cursor
+     *
+     * @param pageSize         the page size
+     * @param searchContext    the context of the search
+     * @param selectExpression the select expression
+     * @param collection       the mongo collection where to search
+     * @param savedLastId      the last id
+     * @param continuablePages if greater than 0, the cursor is limited to this number of pages (it can be continued
+     *                         for next pages). 0 to read one page
+     * @return the mongodb cursor
+     */
+    @NotNull
+    public static CloseableWrapper<MongoCursor<Document>> searchNextPage(SearchConfigService searchConfigService, int pageSize, SearchContext searchContext, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, String savedLastId, MongoMultiTenantService mongoMultiTenantService, int continuablePages) {
+        return searchNextPage(searchConfigService, pageSize, searchContext, selectExpression, collection, savedLastId, mongoMultiTenantService, continuablePages, null);
+    }
+
+    /**
+     * Search the next page and get the mongodb cursor
+     *
+     * @param pageSize         the page size
+     * @param searchContext    the context of the search
+     * @param selectExpression the select expression
+     * @param collection       the mongo collection where to search
+     * @param savedLastId      the last id
+     * @param continuablePages the number of pages the cursor can read (0 to read one page)
+     * @param lookupJoins      the semi-join decisions of the search, shared by all pages (see {@link SemiJoinPlanCache}). Null to decide for each page
+     * @return the mongodb cursor
+     */
+    @NotNull
+    public static CloseableWrapper<MongoCursor<Document>> searchNextPage(SearchConfigService searchConfigService, int pageSize, SearchContext searchContext, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, String savedLastId, MongoMultiTenantService mongoMultiTenantService, int continuablePages, Set<FhirSearchPath> lookupJoins) {
         var searchRevision = searchContext.getRevision();
         if (hasAggregation(selectExpression)) {
-            var documentList = AggregationUtils.generateAggregation(searchConfigService, selectExpression, searchRevision, savedLastId, mongoMultiTenantService);
-            documentList.add(new Document("$limit", pageSize + 1));
-            AggregateIterable<Document> aggregate = collection.aggregate(documentList);
+            var documentList = AggregationUtils.generateAggregation(searchConfigService, selectExpression, searchRevision, savedLastId, mongoMultiTenantService, lookupJoins);
+            return aggregatePage(collection, documentList, pageSize, continuablePages);
+        }
+        return findNextPageWithSearch(pageSize, searchContext, selectExpression, collection, savedLastId, searchConfigService, continuablePages);
 
-            return CloseableWrapper.<MongoCursor<Document>>builder()
-                    .content(aggregate::cursor)
-                    .build();
+    }
+
+    /**
+     * Run an aggregation for a page: limited to the page (and one more document to know if there is a next page) or,
+     * for continuable cursors, limited to the pages that can be continued and fetched by batches of one page
+     */
+    private static CloseableWrapper<MongoCursor<Document>> aggregatePage(MongoCollection<Document> collection, List<Document> documentList, int pageSize, int continuablePages) {
+        documentList.add(new Document("$limit", limit(pageSize, continuablePages)));
+        AggregateIterable<Document> aggregate = withDeadline(collection.aggregate(documentList));
+        if (continuablePages > 0) {
+            aggregate = aggregate.batchSize(pageSize + 1);
         }
-        return findNextPageWithSearch(pageSize, searchContext, selectExpression, collection, savedLastId, searchConfigService);
+        var finalAggregate = aggregate;
+        return CloseableWrapper.<MongoCursor<Document>>builder()
+                .content(finalAggregate::cursor)
+                .build();
+    }
+
+    /**
+     * Limit a find to a page (and one more document to know if there is a next page) or, for continuable cursors, to
+     * the pages that can be continued and fetch it by batches of one page
+     */
+    private static FindIterable<Document> page(FindIterable<Document> documents, int pageSize, int continuablePages) {
+        var page = documents.limit(limit(pageSize, continuablePages));
+        return continuablePages > 0 ? page.batchSize(pageSize + 1) : page;
+    }
 
+    /**
+     * The max number of documents read by a cursor: the pages (one page if the cursor is not continuable) and one more
+     * document to know if there is a next page
+     */
+    private static int limit(int pageSize, int continuablePages) {
+        return pageSize * Math.max(1, continuablePages) + 1;
     }
 
 
@@ -163,32 +284,37 @@ public class MongoQueryUtils {
      * @param collection          the mongo collection where to search
      * @param savedLastId         the last id
      * @param searchConfigService
+     * @param continuablePages    the number of pages the cursor can read (0 to read one page)
      * @return the mongodb cursor
      */
     @NotNull
-    private static CloseableWrapper<MongoCursor<Document>> findNextPageWithSearch(int pageSize, SearchContext searchContext, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, String savedLastId, SearchConfigService searchConfigService) {
+    private static CloseableWrapper<MongoCursor<Document>> findNextPageWithSearch(int pageSize, SearchContext searchContext, SelectExpression<Bson> selectExpression, MongoCollection<Document> collection, String savedLastId, SearchConfigService searchConfigService, int continuablePages) {
         try {
             var searchRevision = searchContext.getRevision();
+            var sortKeys = KeysetPagingUtils.resolveSort(searchConfigService, selectExpression.getFhirResource(), selectExpression.getSort());
+            var after = KeysetPagingUtils.after(sortKeys, savedLastId);
             Bson filters = Optional.ofNullable(selectExpression.interpreter())
                     .map(r -> Filters.and(
                             Filters.lt(VALID_FROM_ATTRIBUTE, searchRevision),
                             Filters.gte(VALID_TO_ATTRIBUTE, searchRevision),
-                            Filters.gt(ID_ATTRIBUTE, new ObjectId(savedLastId)),
+                            after,
                             r))
                     .orElseGet(() -> Filters.and(
                             Filters.lt(VALID_FROM_ATTRIBUTE, searchRevision),
                             Filters.gte(VALID_TO_ATTRIBUTE, searchRevision),
-                            Filters.gt(ID_ATTRIBUTE, new ObjectId(savedLastId))));
+                            after));
 
             addSinceParam(selectExpression, filters);
 
-            var projection = generateProjection(searchConfigService, selectExpression.getFhirResource(), searchContext.getElements());
+            // the projection of a select expression read from paging data is created once for all pages:
+            var projection = selectExpression instanceof PreparedSelectExpression prepared ?
+                    prepared.getProjection(searchContext.getElements(), () -> generateProjection(searchConfigService, selectExpression.getFhirResource(), searchContext.getElements(), sortKeys)) :
+                    generateProjection(searchConfigService, selectExpression.getFhirResource(), searchContext.getElements(), sortKeys);
 
-            FindIterable<Document> documents = collection
-                    .find(filters)
+            FindIterable<Document> documents = page(withDeadline(collection
+                    .find(filters))
                     .projection(projection)
-                    .sort(Sorts.ascending(ID_ATTRIBUTE))
-                    .limit(pageSize + 1);
+                    .sort(KeysetPagingUtils.sort(sortKeys)), pageSize, continuablePages);
 
             return CloseableWrapper.<MongoCursor<Document>>builder()
                     .content(documents::iterator)
@@ -209,6 +335,7 @@ public class MongoQueryUtils {
      * @param collection          the mongo collection where to search
      * @param searchRevision      the searchRevision
      * @param searchConfigService
+     * @param continuablePages    the number of pages the cursor can read (0 to read one page)
      * @return the mongodb cursor
      */
     @NotNull
@@ -216,18 +343,19 @@ public class MongoQueryUtils {
                                                                                    SelectExpression<Bson> selectExpression,
                                                                                    MongoCollection<Document> collection,
                                                                                    Long searchRevision,
-                                                                                   SearchConfigService searchConfigService) {
+                                                                                   SearchConfigService searchConfigService,
+                                                                                   int continuablePages) {
 
         var bson = Optional.ofNullable(selectExpression.interpreter())
                 .map(r -> Filters.and(Filters.gte(VALID_TO_ATTRIBUTE, searchRevision), r))
                 .orElseGet(() -> Filters.gte(VALID_TO_ATTRIBUTE, searchRevision));
 
-        var projection = generateProjection(searchConfigService, selectExpression.getFhirResource(), selectExpression.getElements());
+        var sortKeys = KeysetPagingUtils.resolveSort(searchConfigService, selectExpression.getFhirResource(), selectExpression.getSort());
+        var projection = generateProjection(searchConfigService, selectExpression.getFhirResource(), selectExpression.getElements(), sortKeys);
 
-        var documents = collection.find(addSinceParam(selectExpression, bson))
+        var documents = page(withDeadline(collection.find(addSinceParam(selectExpression, bson)))
                 .projection(projection)
-                .sort(Sorts.ascending(ID_ATTRIBUTE))
-                .limit(pageSize + 1);
+                .sort(KeysetPagingUtils.sort(sortKeys)), pageSize, continuablePages);
 
         return CloseableWrapper.<MongoCursor<Document>>builder()
                 .content(documents::iterator)
@@ -320,7 +448,10 @@ public class MongoQueryUtils {
                 return;
             }
             optimizeQueryConditions(selectExpression, newHasConditions, joins);
-            selectExpression.setHasConditions(newHasConditions);
+            // only replace the conditions when something was translated, so an already optimized query is never modified (the count can run concurrently with the search):
+            if (newHasConditions.size() != selectExpression.getHasConditions().size()) {
+                selectExpression.setHasConditions(newHasConditions);
+            }
         }
     }
 
@@ -366,7 +497,7 @@ public class MongoQueryUtils {
 
     }
 
-    private static Document generateProjection(SearchConfigService searchConfigService, String fhirResourceName, Set<String> elements) {
+    private static Document generateProjection(SearchConfigService searchConfigService, String fhirResourceName, Set<String> elements, List<KeysetPagingUtils.SortKey> sortKeys) {
         if (elements != null && !elements.isEmpty()) {
             Document document = new Document();
 
@@ -374,21 +505,20 @@ public class MongoQueryUtils {
             //We get always the intern attributes mongo, indexes and resourceType, id and meta of the resource, because we can need it to use some attributes for correct jsonconstruction (example: t_id for fullUrl)
             Arrays.asList(ID_ATTRIBUTE, "_hash", REVISION_ATTRIBUTE, VALID_FROM_ATTRIBUTE, VALID_TO_ATTRIBUTE, LAST_WRITE_DATE, "fhir.resourceType", "fhir.id", "fhir.meta").forEach(a -> document.append(a, 1));
 
-            // INDEX FIELDS
+            // INDEX FIELDS AND COMPULSORY AND MODIFIERS FIELDS
             //TODO t_status-i for device is not getting in response because we are based on indexes and in this case the status is saved as string for every resource even if index is in token. We have to see this later when we will do RASS-1461
             //We have as well to get the indexes because is used for other purposes (ex: include)
-            searchConfigService.getIndexesByFhirResource(fhirResourceName).forEach(i -> document.append(i, 1));
+            //Fields that are compusory (cardinality min=1) or modifier (?!) in interop profile have to be included. The list is computed once by resource
+            searchConfigService.getProjectionFields(fhirResourceName).forEach(i -> document.append(i, 1));
             //t_profile is only applied in save but there is not index created except for HealthcareService
             document.append("t_profile", 1);
 
-            // COMPULSORY AND MODIFIERS FIELDS, fields that are compusory (cardinality min=1) or modifier (?!) in interop profile have to be included
-            searchConfigService.getAllByFhirResource(fhirResourceName)
-                    .stream().filter(s -> s.getIsCompulsoryOrModifierElementsParam() != null && s.getIsCompulsoryOrModifierElementsParam())
-                    .forEach(i -> document.append("fhir.".concat(i.getName()), 1));
-
             // ELEMENTS FIELDS (from search param _elements)
             elements.forEach(e -> document.append("fhir.".concat(e), 1));
 
+            // SORT FIELDS, used to create the cursor of the next page
+            sortKeys.forEach(k -> document.append(k.field(), 1));
+
             return document;
         }
         return null;
@@ -0,0 +1,103 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-process cache of paging data stored in database. Used in front of the <code>NextPages</code> collection so
+ * clients that read all pages of a search don't do a database lookup for each page.
+ * <p>
+ * The least recently used entries are evicted when the cache is full. An entry expire at the same time than the
+ * document in the collection (its creation date + the validity).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class NextPagesCache {
+
+    /**
+     * Max number of entries
+     */
+    private final int maxSize;
+
+    /**
+     * Validity of entries in ms
+     */
+    private final long validityMs;
+
+    /**
+     * Entries in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Create the cache
+     *
+     * @param maxSize    the max number of entries. 0 disable the cache
+     * @param validityMs the validity of entries in ms
+     */
+    public NextPagesCache(int maxSize, long validityMs) {
+        this.maxSize = maxSize;
+        this.validityMs = validityMs;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > NextPagesCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key the key
+     * @return the value or null if the value is not in the cache or expired
+     */
+    public synchronized String get(String key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.createdAt + validityMs < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Put a value
+     *
+     * @param key       the key
+     * @param value     the value
+     * @param createdAt the creation date (utc timestamp in ms)
+     */
+    public synchronized void put(String key, String value, long createdAt) {
+        if (maxSize > 0) {
+            entries.put(key, new Entry(value, createdAt));
+        }
+    }
+
+    /**
+     * Remove entries created before a date
+     *
+     * @param timestamp the utc timestamp in ms
+     */
+    public synchronized void removeOlderThan(long timestamp) {
+        entries.values().removeIf(e -> e.createdAt < timestamp);
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private record Entry(String value, long createdAt) {
+    }
+}
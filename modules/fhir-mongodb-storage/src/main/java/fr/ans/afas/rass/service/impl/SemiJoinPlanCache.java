@@ -0,0 +1,94 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded in-process cache of the semi-join decisions of searches (see {@link AggregationUtils}).
+ * <p>
+ * The first page of a search with _has conditions decides, for each join, if the joined side is evaluated first (a
+ * <code>$in</code>) or with a <code>$lookup</code>. The joins evaluated with a <code>$lookup</code> are kept by search
+ * (paging id), so next pages don't read the joined documents again to take the same decision. If the next page is
+ * served by another node, the decision is taken again.
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class SemiJoinPlanCache {
+
+    /**
+     * Default number of searches in the cache
+     */
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * Default validity of the decisions (ms), the validity of paging data
+     */
+    public static final long DEFAULT_VALIDITY_MS = MongoDbNextUrlManager.DEFAULT_VALIDITY_MS;
+
+    private final int maxSize;
+
+    private final long validityMs;
+
+    /**
+     * Entries in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    public SemiJoinPlanCache() {
+        this(DEFAULT_SIZE, DEFAULT_VALIDITY_MS);
+    }
+
+    /**
+     * Create the cache
+     *
+     * @param maxSize    the max number of searches
+     * @param validityMs the validity of the decisions of a search (ms)
+     */
+    public SemiJoinPlanCache(int maxSize, long validityMs) {
+        this.maxSize = maxSize;
+        this.validityMs = validityMs;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > SemiJoinPlanCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the joins of a search evaluated with a <code>$lookup</code>. The set is shared by all the pages of the
+     * search and is updated by {@link AggregationUtils}
+     *
+     * @param tenant the tenant
+     * @param uuid   the paging id of the search
+     * @return the joins (thread safe)
+     */
+    public synchronized Set<FhirSearchPath> get(String tenant, String uuid) {
+        var key = tenant + "/" + uuid;
+        var entry = entries.get(key);
+        if (entry == null || entry.createdAt + validityMs < System.currentTimeMillis()) {
+            entry = new Entry(ConcurrentHashMap.newKeySet(), System.currentTimeMillis());
+            entries.put(key, entry);
+        }
+        return entry.lookupJoins;
+    }
+
+    /**
+     * @return the number of searches in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private record Entry(Set<FhirSearchPath> lookupJoins, long createdAt) {
+    }
+}
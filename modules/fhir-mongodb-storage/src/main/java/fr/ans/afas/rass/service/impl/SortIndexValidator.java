@@ -0,0 +1,127 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCollection;
+import fr.ans.afas.fhirserver.search.exception.BadParametersException;
+import org.bson.Document;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Check that a sort is supported by an index of the collection, so a sort is never done in memory by mongodb.
+ * <p>
+ * A sort is supported by an index if the keys of the index start with the sort keys followed by the <code>_id</code>,
+ * with the same directions (or all directions reversed). Supported sorts are cached by collection. Unsupported sorts
+ * are cached for a short time only (an index can be created while the server is running).
+ * </p>
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class SortIndexValidator {
+
+    /**
+     * Default time (ms) before an unsupported sort is checked again
+     */
+    public static final long DEFAULT_UNSUPPORTED_SORT_TTL = 60_000;
+
+    /**
+     * Supported sorts by collection namespace
+     */
+    private final Map<String, Set<List<KeysetPagingUtils.SortKey>>> supportedSorts = new ConcurrentHashMap<>();
+
+    /**
+     * Unsupported sorts by collection namespace, with the time (ms) when the sort must be checked again
+     */
+    private final Map<String, Map<List<KeysetPagingUtils.SortKey>, Long>> unsupportedSorts = new ConcurrentHashMap<>();
+
+    /**
+     * Time (ms) before an unsupported sort is checked again
+     */
+    private final long unsupportedSortTtl;
+
+    public SortIndexValidator() {
+        this(DEFAULT_UNSUPPORTED_SORT_TTL);
+    }
+
+    /**
+     * Construct the validator
+     *
+     * @param unsupportedSortTtl time (ms) before an unsupported sort is checked again
+     */
+    public SortIndexValidator(long unsupportedSortTtl) {
+        this.unsupportedSortTtl = unsupportedSortTtl;
+    }
+
+    /**
+     * Check that a sort is supported by an index
+     *
+     * @param collection the collection
+     * @param keys       the sort keys
+     * @throws BadParametersException if no index supports the sort
+     */
+    public void validate(MongoCollection<Document> collection, List<KeysetPagingUtils.SortKey> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        var namespace = collection.getNamespace().getFullName();
+        var supported = supportedSorts.computeIfAbsent(namespace, k -> ConcurrentHashMap.newKeySet());
+        if (supported.contains(keys)) {
+            return;
+        }
+        var unsupported = unsupportedSorts.computeIfAbsent(namespace, k -> new ConcurrentHashMap<>());
+        var checkAfter = unsupported.get(keys);
+        if (checkAfter != null && checkAfter > System.currentTimeMillis()) {
+            throw notSupported();
+        }
+        for (var index : collection.listIndexes()) {
+            var indexKeys = index.get("key", Document.class);
+            if (indexKeys != null && supports(indexKeys, keys)) {
+                supported.add(List.copyOf(keys));
+                unsupported.remove(keys);
+                return;
+            }
+        }
+        unsupported.put(List.copyOf(keys), System.currentTimeMillis() + unsupportedSortTtl);
+        throw notSupported();
+    }
+
+    private static BadParametersException notSupported() {
+        return new BadParametersException("The sort is not supported by an index. Only sort on indexed parameters are allowed.");
+    }
+
+    /**
+     * Check if an index supports a sort
+     *
+     * @param indexKeys the keys of the index
+     * @param keys      the sort keys
+     * @return true if the index supports the sort
+     */
+    static boolean supports(Document indexKeys, List<KeysetPagingUtils.SortKey> keys) {
+        var fields = List.copyOf(indexKeys.entrySet());
+        if (fields.size() < keys.size() + 1) {
+            return false;
+        }
+        Boolean reversed = null;
+        for (var i = 0; i <= keys.size(); i++) {
+            var expectedField = i < keys.size() ? keys.get(i).field() : MongoQueryUtils.ID_ATTRIBUTE;
+            var descending = i < keys.size() ? keys.get(i).descending() : KeysetPagingUtils.isTieBreakDescending(keys);
+            var field = fields.get(i);
+            if (!expectedField.equals(field.getKey()) || !(field.getValue() instanceof Number direction)) {
+                return false;
+            }
+            var sameDirection = direction.intValue() < 0 == descending;
+            if (reversed == null) {
+                reversed = !sameDirection;
+            } else if (reversed == sameDirection) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -86,22 +86,21 @@ public abstract class FhirBaseResourceSerializer<T> extends JsonSerializer<T> {
      * @throws IOException if an error occur during the storage of the element
      */
     protected void writeFhirResource(DomainResource value, JsonGenerator gen, SerializerProvider provider, boolean onlyIndexes) throws IOException {
-        var fhirResourceAsString = fhirContext.newJsonParser().encodeResourceToString(value);
-
+        // the fhir content and revision related fields (links are not versioned, they follow the revision of their parent):
         if (!onlyIndexes) {
+            var fhirResourceAsString = fhirContext.newJsonParser().encodeResourceToString(value);
             gen.writeFieldName("fhir");
             gen.writeRawValue(fhirResourceAsString);
-        }
 
-        // revision related fields:
-        var clone = fhirContext.newJsonParser().parseResource(fhirResourceAsString);
-        clone.getMeta().setLastUpdated(null);
-        clone.getMeta().setVersionId(null);
-        var cloneString = fhirContext.newJsonParser().encodeResourceToString(clone);
-        gen.writeNumberField("_hash", cloneString.hashCode());
-        gen.writeNumberField("_revision", 1);
-        gen.writeNumberField("_validTo", 4099676400000L);// year 2100
-        gen.writeNumberField("_validFrom", new Date().getTime());
+            var clone = fhirContext.newJsonParser().parseResource(fhirResourceAsString);
+            clone.getMeta().setLastUpdated(null);
+            clone.getMeta().setVersionId(null);
+            var cloneString = fhirContext.newJsonParser().encodeResourceToString(clone);
+            gen.writeNumberField("_hash", cloneString.hashCode());
+            gen.writeNumberField("_revision", 1);
+            gen.writeNumberField("_validTo", 4099676400000L);// year 2100
+            gen.writeNumberField("_validFrom", new Date().getTime());
+        }
 
         // write some technical fields:
         gen.writeStringField(StorageConstants.INDEX_T_FID, value.getResourceType().name() + "/" + value.getIdElement().getIdPart());
@@ -8,9 +8,11 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.google.common.collect.Lists;
 import fr.ans.afas.domain.ResourceAndSubResources;
+import fr.ans.afas.domain.StorageConstants;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
 import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
+import fr.ans.afas.utils.MongoDbUtils;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.expression.Expression;
 import org.springframework.expression.ExpressionParser;
@@ -104,6 +106,9 @@ public class GenericSerializer extends FhirBaseResourceSerializer<ResourceAndSub
 
                 var theType = types.stream().iterator().next();
                 writeValue(value, gen, oneConfig, extracts, theType);
+                if (oneConfig.isSortable()) {
+                    writeSortKey(gen, oneConfig, extracts);
+                }
             }
 
         }
@@ -161,6 +166,36 @@ public class GenericSerializer extends FhirBaseResourceSerializer<ResourceAndSub
         }
     }
 
+    /**
+     * Write the sort key of a sortable parameter: a single value (the lowest normalized value), so the sort and the
+     * keyset pagination don't depend on the order of values in arrays
+     *
+     * @param gen      the json generator
+     * @param config   the configuration of the parameter
+     * @param extracts values of the parameter
+     * @throws IOException if an error occur writing the key
+     */
+    private void writeSortKey(JsonGenerator gen, SearchParamConfig config, List<Object> extracts) throws IOException {
+        var sortKey = extracts.stream()
+                .map(GenericSerializer::sortValue)
+                .filter(StringUtils::hasLength)
+                .map(MongoDbUtils::removeAccentsAndLowerCase)
+                .min(Comparator.naturalOrder());
+        if (sortKey.isPresent()) {
+            gen.writeStringField(config.getIndexName() + StorageConstants.SORT_SUFFIX, sortKey.get());
+        }
+    }
+
+    private static String sortValue(Object extract) {
+        if (extract instanceof String s) {
+            return s;
+        } else if (extract instanceof HumanName humanName) {
+            return humanName.getNameAsSingleString();
+        } else if (extract instanceof PrimitiveType<?> primitiveType) {
+            return primitiveType.getValueAsString();
+        }
+        return null;
+    }
 
     public Collection<Object> extractValues(Object value, String stringPath) {
         if (StringUtils.hasLength(stringPath)) {
@@ -0,0 +1,125 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir;
+
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.expression.Expression;
+import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
+import fr.ans.afas.fhirserver.search.expression.QuantityExpression;
+import fr.ans.afas.fhirserver.search.expression.TokenExpression;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Golden tests of the optimization of AND / OR expressions: check the generated mongodb query
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class ExpressionOptimizerTest {
+
+    final MongoDbExpressionFactory expressionFactory = new MongoDbExpressionFactory(new TestSearchConfigService().applyTestSearchConfigComplete());
+
+    final FhirSearchPath tokenPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_TOKEN_PATH).build();
+    final FhirSearchPath referencePath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_REFERENCE_PATH).build();
+    final FhirSearchPath quantityPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_QUANTITY_PATH).build();
+
+    /**
+     * Equalities on the same path in a OR are folded in a $in (nested OR are flattened and duplicates removed)
+     */
+    @Test
+    public void testOrOfEqualitiesIsFoldedInIn() {
+        var subOr = expressionFactory.newOrExpression();
+        subOr.addExpression(token("b")).addExpression(token("a"));
+        var or = expressionFactory.newOrExpression();
+        or.addExpression(token("a")).addExpression(subOr).addExpression(token("c"));
+
+        assertJson("{\"t_token_path-value\": {\"$in\": [\"a\", \"b\", \"c\"]}}", or.interpreter(new ExpressionContext()));
+    }
+
+    /**
+     * Equalities on different paths are not folded
+     */
+    @Test
+    public void testOrOnDifferentPathsIsNotFolded() {
+        var or = expressionFactory.newOrExpression();
+        or.addExpression(token("a")).addExpression(expressionFactory.newReferenceExpression(referencePath, "Organization/1")).addExpression(token("b"));
+
+        assertJson("{\"$or\": [{\"t_token_path-value\": {\"$in\": [\"a\", \"b\"]}}, {\"t_reference_path-reference\": \"Organization/1\"}]}", or.interpreter(new ExpressionContext()));
+    }
+
+    /**
+     * Nested AND are flattened, duplicates removed and conjuncts ordered by selectivity
+     */
+    @Test
+    public void testAndIsFlattenedAndOrdered() {
+        var subAnd = expressionFactory.newAndExpression();
+        subAnd.addExpression(expressionFactory.newQuantityExpression(quantityPath, 1, QuantityExpression.Operator.LT));
+        subAnd.addExpression(token("a"));
+        var and = expressionFactory.newAndExpression();
+        and.addExpression(token("a"))
+                .addExpression(subAnd)
+                .addExpression(expressionFactory.newTokenExpression(tokenPath, null, "z", TokenExpression.Operator.NOT))
+                .addExpression(expressionFactory.newReferenceExpression(referencePath, "Organization/1"));
+
+        assertJson("{\"$and\": [" +
+                "{\"t_reference_path-reference\": \"Organization/1\"}, " +
+                "{\"t_token_path-value\": \"a\"}, " +
+                "{\"t_quantity_path\": {\"$lt\": 1}}, " +
+                "{\"t_token_path-value\": {\"$not\": {\"$eq\": \"z\"}}}]}", and.interpreter(new ExpressionContext()));
+    }
+
+    /**
+     * Trivially true branches are removed from AND and make OR trivially true
+     */
+    @Test
+    public void testTriviallyTrueBranches() {
+        var alwaysTrue = Mockito.mock(Expression.class);
+        Mockito.when(alwaysTrue.interpreter(Mockito.any())).thenReturn(new BsonDocument());
+        var or = expressionFactory.newOrExpression();
+        or.addExpression(token("b")).addExpression(alwaysTrue);
+        var and = expressionFactory.newAndExpression();
+        and.addExpression(token("a")).addExpression(or).addExpression(expressionFactory.newAndExpression());
+
+        assertJson("{\"t_token_path-value\": \"a\"}", and.interpreter(new ExpressionContext()));
+        assertJson("{}", or.interpreter(new ExpressionContext()));
+    }
+
+    /**
+     * Containers with a single expression are removed and empty containers are ignored
+     */
+    @Test
+    public void testSingleExpressionContainers() {
+        var subAnd = expressionFactory.newAndExpression();
+        subAnd.addExpression(token("a"));
+        var or = expressionFactory.newOrExpression();
+        or.addExpression(subAnd).addExpression(expressionFactory.newOrExpression());
+        var and = expressionFactory.newAndExpression();
+        and.addExpression(or);
+
+        assertJson("{\"t_token_path-value\": \"a\"}", and.interpreter(new ExpressionContext()));
+        Assert.assertNull(expressionFactory.newAndExpression().interpreter(new ExpressionContext()));
+    }
+
+    @Test
+    public void testSelectivityRank() {
+        Assert.assertEquals(0, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_id\": \"1\"}")));
+        Assert.assertEquals(0, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_org-reference\": {\"$in\": [\"Organization/1\"]}}")));
+        Assert.assertEquals(1, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_name\": {\"$eq\": \"n\"}}")));
+        Assert.assertEquals(2, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_date\": {\"$gt\": 1, \"$lte\": 3}}")));
+        Assert.assertEquals(3, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_name\": {\"$regex\": \"^n\"}}")));
+        Assert.assertEquals(4, MongoDbExpressionOptimizer.selectivityRank(BsonDocument.parse("{\"t_name\": {\"$ne\": \"n\"}}")));
+    }
+
+    private Expression<Bson> token(String value) {
+        return expressionFactory.newTokenExpression(tokenPath, null, value, TokenExpression.Operator.EQUALS);
+    }
+
+    private static void assertJson(String expected, Bson bson) {
+        Assert.assertEquals(expected, bson.toBsonDocument().toJson());
+    }
+}
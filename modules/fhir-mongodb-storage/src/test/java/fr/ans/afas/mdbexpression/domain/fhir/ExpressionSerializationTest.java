@@ -9,6 +9,7 @@ import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 import fr.ans.afas.exception.BadDataFormatException;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.FhirServerConstants;
+import fr.ans.afas.fhirserver.search.data.SortField;
 import fr.ans.afas.fhirserver.search.expression.*;
 import fr.ans.afas.fhirserver.service.exception.ReferenceTypeNotFoundException;
 import fr.ans.afas.mdbexpression.domain.fhir.serialization.MongoDbExpressionSerializer;
@@ -255,4 +256,18 @@ public class ExpressionSerializationTest {
 
     }
 
+    @Test
+    public void testSortSerialization() {
+        var selectExpression = new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory);
+        selectExpression.getExpression().addExpression(mongoDbStringExpression);
+        var withoutSort = mongoDbExpressionSerializer.serialize(selectExpression);
+        selectExpression.setSort(List.of(SortField.parse("-" + TestSearchConfigService.FHIR_RESOURCE_STRING_PATH), SortField.parse("_id")));
+
+        var deserialized = (SelectExpression<Bson>) mongoDbExpressionSerializer.deserialize(mongoDbExpressionSerializer.serialize(selectExpression));
+
+        Assert.assertEquals(selectExpression.getSort(), deserialized.getSort());
+        // links created without sort are still readable:
+        Assert.assertTrue(((SelectExpression<Bson>) mongoDbExpressionSerializer.deserialize(withoutSort)).getSort().isEmpty());
+    }
+
 }
@@ -0,0 +1,193 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import fr.ans.afas.exception.BadDataFormatException;
+import fr.ans.afas.exception.SerializationException;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.data.SortField;
+import fr.ans.afas.fhirserver.search.data.TotalMode;
+import fr.ans.afas.fhirserver.search.expression.*;
+import fr.ans.afas.fhirserver.search.expression.serialization.DefaultSerializeUrlEncrypter;
+import fr.ans.afas.fhirserver.service.data.CountResult;
+import fr.ans.afas.fhirserver.service.data.PagingData;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.MongoDbExpressionSerializer;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.PagingDataBinarySerializer;
+import org.bson.conversions.Bson;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test the binary format of paging data
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class PagingDataBinarySerializerTest {
+
+    final TestSearchConfigService testSearchConfig = new TestSearchConfigService().applyTestSearchConfigComplete();
+    final MongoDbExpressionFactory expressionFactory = new MongoDbExpressionFactory(testSearchConfig);
+    final MongoDbExpressionSerializer expressionSerializer = new MongoDbExpressionSerializer(expressionFactory, testSearchConfig);
+    final PagingDataBinarySerializer binarySerializer = new PagingDataBinarySerializer(expressionFactory, testSearchConfig);
+
+    final FhirSearchPath tokenPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_TOKEN_PATH).build();
+    final FhirSearchPath stringPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_STRING_PATH).build();
+    final FhirSearchPath datePath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_DATE_PATH).build();
+    final FhirSearchPath quantityPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_QUANTITY_PATH).build();
+    final FhirSearchPath referencePath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_REFERENCE_PATH).build();
+
+    @Test
+    public void testRoundTrip() throws BadDataFormatException {
+        var pagingData = pagingData(selectExpression());
+
+        var serialized = binarySerializer.serialize(pagingData);
+        Assert.assertTrue(PagingDataBinarySerializer.isBinary(serialized));
+        var deserialized = binarySerializer.deserialize(serialized);
+
+        Assert.assertEquals(pagingData.getPageSize(), deserialized.getPageSize());
+        Assert.assertEquals(pagingData.getSize().getTotal(), deserialized.getSize().getTotal());
+        Assert.assertEquals(pagingData.getTimestamp(), deserialized.getTimestamp());
+        Assert.assertEquals(pagingData.getType(), deserialized.getType());
+        Assert.assertEquals(pagingData.getLastId(), deserialized.getLastId());
+        Assert.assertEquals(pagingData.getUuid(), deserialized.getUuid());
+        Assert.assertEquals(pagingData.getElements(), deserialized.getElements());
+
+        var expected = pagingData.getSelectExpression();
+        var found = deserialized.getSelectExpression();
+        Assert.assertEquals(expected.getFhirResource(), found.getFhirResource());
+        Assert.assertEquals(expected.getCount(), found.getCount());
+        Assert.assertEquals(expected.getTotalMode(), found.getTotalMode());
+        Assert.assertEquals(expected.getSince(), found.getSince());
+        Assert.assertEquals(2, found.getIncludes().size());
+        Assert.assertEquals(1, found.getHasConditions().size());
+        Assert.assertEquals(expected.getSort(), found.getSort());
+        Assert.assertEquals(expected.getExpression().interpreter(new ExpressionContext()).toBsonDocument().toJson(),
+                found.getExpression().interpreter(new ExpressionContext()).toBsonDocument().toJson());
+    }
+
+    @Test
+    public void testIdsThatAreNotObjectIds() {
+        var pagingData = PagingData.<Bson>builder()
+                .pageSize(10)
+                .size(CountResult.builder().build())
+                .timestamp(1)
+                .type("Organization")
+                .lastId("not-an-object-id")
+                .uuid("some-uuid")
+                .selectExpression(new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory))
+                .build();
+
+        var deserialized = binarySerializer.deserialize(binarySerializer.serialize(pagingData));
+
+        Assert.assertEquals("not-an-object-id", deserialized.getLastId());
+        Assert.assertEquals("some-uuid", deserialized.getUuid());
+        Assert.assertNull(deserialized.getSize().getTotal());
+    }
+
+    /**
+     * The binary token (encrypted) must be smaller than the text token (encrypted)
+     */
+    @Test
+    public void testBinaryTokenIsSmallerThanTextToken() throws BadDataFormatException {
+        var encrypter = new DefaultSerializeUrlEncrypter("secret");
+        var pagingData = pagingData(selectExpression());
+
+        var binaryToken = encrypter.encryptBytes(binarySerializer.serialize(pagingData));
+        var textToken = encrypter.encrypt(pagingData.getPageSize() + "_" + pagingData.getSize().getTotal() + "_" + pagingData.getTimestamp() + "_" +
+                pagingData.getType() + "_" + pagingData.getLastId() + "_" + pagingData.getUuid() + "_" + pagingData.getElements() + "_" +
+                pagingData.getSelectExpression().serialize(expressionSerializer));
+
+        Assert.assertTrue("Binary: " + binaryToken.length() + ", text: " + textToken.length(), binaryToken.length() * 2 < textToken.length());
+        Assert.assertNotNull(binarySerializer.deserialize(encrypter.decryptBytes(binaryToken)));
+    }
+
+    @Test
+    public void testCompressionIsOnlyUsedWhenSmaller() throws BadDataFormatException {
+        var pagingData = pagingData(selectExpression());
+        var compressed = binarySerializer.serialize(pagingData);
+        binarySerializer.setCompress(false);
+        var notCompressed = binarySerializer.serialize(pagingData);
+
+        Assert.assertTrue(compressed.length <= notCompressed.length);
+        Assert.assertEquals(0, notCompressed[1]);
+        Assert.assertEquals(pagingData.getLastId(), binarySerializer.deserialize(notCompressed).getLastId());
+    }
+
+    @Test
+    public void testBadData() {
+        var otherConfig = new TestSearchConfigService().applyTestSearchConfigReferencePathWithoutReferenceType();
+        var otherSerializer = new PagingDataBinarySerializer(new MongoDbExpressionFactory(otherConfig), otherConfig);
+        var serialized = binarySerializer.serialize(pagingData(new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory)));
+
+        // the search configuration changed:
+        Assert.assertThrows(SerializationException.class, () -> otherSerializer.deserialize(serialized));
+        // not binary:
+        Assert.assertFalse(PagingDataBinarySerializer.isBinary("50_-1_1".getBytes()));
+        Assert.assertThrows(SerializationException.class, () -> binarySerializer.deserialize("50_-1_1".getBytes()));
+        // truncated:
+        Assert.assertThrows(SerializationException.class, () -> binarySerializer.deserialize(new byte[]{PagingDataBinarySerializer.MAGIC_V1, 0, 1}));
+    }
+
+    @Test
+    public void testDictionaryIsBuiltOncePerConfiguration() {
+        var config = Mockito.spy(new TestSearchConfigService().applyTestSearchConfigComplete());
+        var serializer = new PagingDataBinarySerializer(new MongoDbExpressionFactory(config), config);
+        var pagingData = pagingData(new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory));
+
+        serializer.deserialize(serializer.serialize(pagingData));
+        serializer.deserialize(serializer.serialize(pagingData));
+
+        Mockito.verify(config, Mockito.times(1)).getResources();
+    }
+
+    @Test
+    public void testOldFormatIsRejected() {
+        var serialized = binarySerializer.serialize(pagingData(new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory)));
+        Assert.assertEquals(PagingDataBinarySerializer.MAGIC_V2, serialized[0]);
+        serialized[0] = PagingDataBinarySerializer.MAGIC_V1;
+        Assert.assertThrows(SerializationException.class, () -> binarySerializer.deserialize(serialized));
+    }
+
+    private SelectExpression<Bson> selectExpression() throws BadDataFormatException {
+        var selectExpression = new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory);
+        var or = expressionFactory.newOrExpression();
+        or.addExpression(new MongoDbTokenExpression(testSearchConfig, tokenPath, "https://system", "value1", TokenExpression.Operator.EQUALS));
+        or.addExpression(new MongoDbTokenExpression(testSearchConfig, tokenPath, null, "value2", TokenExpression.Operator.EQUALS));
+        selectExpression.getExpression().addExpression(or);
+        selectExpression.getExpression().addExpression(new MongoDbStringExpression(testSearchConfig, stringPath, "Name é", StringExpression.Operator.CONTAINS));
+        selectExpression.getExpression().addExpression(new MongoDbDateRangeExpression(testSearchConfig, datePath, new Date(1700000000000L), TemporalPrecisionEnum.DAY, ParamPrefixEnum.GREATERTHAN));
+        selectExpression.getExpression().addExpression(new MongoDbQuantityExpression(testSearchConfig, quantityPath, 12.5, QuantityExpression.Operator.LT));
+        selectExpression.getExpression().addExpression(new MongoDbReferenceExpression(testSearchConfig, referencePath, TestSearchConfigService.REFERENCE_PATH_REFERENCE_TYPE, "123"));
+        selectExpression.fromFhirParams(Set.of(new Include("Organization:a"), new Include("Organization:b")));
+        var has = new HasCondition<Bson>(FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_SUB_NAME).path(TestSearchConfigService.FHIR_RESOURCE_SUB_REFERENCE_PATH).build());
+        has.addExpression(new MongoDbStringExpression(testSearchConfig, FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_SUB_NAME).path(TestSearchConfigService.FHIR_RESOURCE_SUB_STRING_PATH).build(), "sub", StringExpression.Operator.EQUALS));
+        selectExpression.addHasCondition(has);
+        selectExpression.setCount(20);
+        selectExpression.setTotalMode(TotalMode.ALWAYS);
+        selectExpression.setSince(new Date(1600000000000L));
+        selectExpression.setSort(List.of(SortField.parse("-" + TestSearchConfigService.FHIR_RESOURCE_STRING_PATH), SortField.parse("_id")));
+        return selectExpression;
+    }
+
+    private PagingData<Bson> pagingData(SelectExpression<Bson> selectExpression) {
+        return PagingData.<Bson>builder()
+                .pageSize(20)
+                .size(CountResult.builder().total(1234L).build())
+                .timestamp(1700000000123L)
+                .type(TestSearchConfigService.FHIR_RESOURCE_NAME)
+                .lastId("62d4841b269c580bb67c5c8f")
+                .uuid("2f1c1c0e-8a5b-4c5e-9d2f-1a2b3c4d5e6f")
+                .elements(Set.of("name", "identifier"))
+                .selectExpression(selectExpression)
+                .build();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.mdbexpression.domain.fhir;
+
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.expression.ExpressionContext;
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.fhirserver.search.expression.StringExpression;
+import fr.ans.afas.fhirserver.service.data.CountResult;
+import fr.ans.afas.fhirserver.service.data.PagingData;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.PagingDataBinarySerializer;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.PreparedSelectExpression;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.SelectExpressionCache;
+import fr.ans.afas.utils.TenantUtil;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the cache of select expressions read from paging data
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+public class SelectExpressionCacheTest {
+
+    final TestSearchConfigService testSearchConfig = new TestSearchConfigService().applyTestSearchConfigComplete();
+    final MongoDbExpressionFactory expressionFactory = new MongoDbExpressionFactory(testSearchConfig);
+    final FhirSearchPath stringPath = FhirSearchPath.builder().resource(TestSearchConfigService.FHIR_RESOURCE_NAME).path(TestSearchConfigService.FHIR_RESOURCE_STRING_PATH).build();
+
+    @After
+    public void tearDown() {
+        TenantUtil.clear();
+    }
+
+    @Test
+    public void testExpressionsArePreparedOnce() {
+        var cache = new SelectExpressionCache(10);
+        var parsed = new AtomicInteger();
+
+        var first = cache.get(SelectExpressionCache.key("serialized", Set.of()), () -> {
+            parsed.incrementAndGet();
+            return selectExpression();
+        });
+        first.setCount(5);
+        var second = cache.get(SelectExpressionCache.key("serialized", Set.of()), () -> {
+            parsed.incrementAndGet();
+            return selectExpression();
+        });
+
+        Assert.assertEquals(1, parsed.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertTrue(cache.getPrepareTimeNanos() > 0);
+        // the query is interpreted once:
+        Assert.assertSame(first.interpreter(), second.interpreter());
+        // each page has its own options:
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(Integer.valueOf(20), second.getCount());
+        // sub contexts are interpreted:
+        Assert.assertNotSame(first.interpreter(), first.interpreter(new ExpressionContext("sub")));
+    }
+
+    @Test
+    public void testKeysDependOnTenantAndElements() {
+        var cache = new SelectExpressionCache(10);
+        TenantUtil.setCurrentTenant("tenant-1");
+        cache.get(SelectExpressionCache.key("serialized", Set.of()), this::selectExpression);
+        cache.get(SelectExpressionCache.key("serialized", Set.of("name")), this::selectExpression);
+        TenantUtil.setCurrentTenant("tenant-2");
+        cache.get(SelectExpressionCache.key("serialized", Set.of()), this::selectExpression);
+
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        var cache = new SelectExpressionCache(1);
+        cache.get(SelectExpressionCache.key("a", Set.of()), this::selectExpression);
+        cache.get(SelectExpressionCache.key("b", Set.of()), this::selectExpression);
+        Assert.assertEquals(1, cache.size());
+
+        var disabled = new SelectExpressionCache(0);
+        Assert.assertTrue(disabled.get(SelectExpressionCache.key("a", Set.of()), this::selectExpression) instanceof PreparedSelectExpression);
+        Assert.assertEquals(0, disabled.size());
+    }
+
+    @Test
+    public void testProjectionIsCreatedOnce() {
+        var cache = new SelectExpressionCache(10);
+        var first = (PreparedSelectExpression) cache.get(SelectExpressionCache.key("a", Set.of()), this::selectExpression);
+        var second = (PreparedSelectExpression) cache.get(SelectExpressionCache.key("a", Set.of()), this::selectExpression);
+        Bson projection = new Document("fhir", 1);
+
+        Assert.assertSame(projection, first.getProjection(Set.of(), () -> projection));
+        Assert.assertSame(projection, second.getProjection(Set.of(), () -> new Document()));
+        // other elements:
+        Assert.assertNotSame(projection, second.getProjection(Set.of("name"), Document::new));
+    }
+
+    @Test
+    public void testBinaryPagingData() {
+        var cache = new SelectExpressionCache(10);
+        var binarySerializer = new PagingDataBinarySerializer(expressionFactory, testSearchConfig);
+        var serialized1 = binarySerializer.serialize(pagingData("62d4841b269c580bb67c5c8f"));
+        var serialized2 = binarySerializer.serialize(pagingData("62d4841b269c580bb67c5c90"));
+
+        var page1 = binarySerializer.deserialize(serialized1, cache);
+        var page2 = binarySerializer.deserialize(serialized2, cache);
+
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals("62d4841b269c580bb67c5c90", page2.getLastId());
+        Assert.assertEquals(page1.getSelectExpression().interpreter().toBsonDocument().toJson(), page2.getSelectExpression().interpreter().toBsonDocument().toJson());
+    }
+
+    private SelectExpression<Bson> selectExpression() {
+        var selectExpression = new SelectExpression<>(TestSearchConfigService.FHIR_RESOURCE_NAME, expressionFactory);
+        selectExpression.getExpression().addExpression(new MongoDbStringExpression(testSearchConfig, stringPath, "name", StringExpression.Operator.EQUALS));
+        selectExpression.setCount(20);
+        return selectExpression;
+    }
+
+    private PagingData<Bson> pagingData(String lastId) {
+        return PagingData.<Bson>builder()
+                .pageSize(20)
+                .size(CountResult.builder().total(100L).build())
+                .timestamp(1700000000123L)
+                .type(TestSearchConfigService.FHIR_RESOURCE_NAME)
+                .lastId(lastId)
+                .uuid("2f1c1c0e-8a5b-4c5e-9d2f-1a2b3c4d5e6f")
+                .selectExpression(selectExpression())
+                .build();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service;
+
+import fr.ans.afas.exception.CantLoadConfigurationException;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test the registry of the mongodb clients of the tenants. Clients connect in background, so no server is needed.
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class MongoClientRegistryTest {
+
+    private static Tenant tenant(String name, String mongoUri, Integer maxPoolSize) {
+        var tenant = new Tenant();
+        tenant.setName(name);
+        tenant.setMongoUri(mongoUri);
+        tenant.setMaxPoolSize(maxPoolSize);
+        return tenant;
+    }
+
+    @Test
+    void clientsAreSharedByConfiguration() {
+        try (var registry = new MongoClientRegistry("mongodb://localhost:27017")) {
+            var tenants = List.of(tenant("t1", null, null), tenant("t2", "mongodb://other:27017", 10), tenant("t3", "mongodb://other:27017", 10),
+                    tenant("t4", "mongodb://other:27017", null), tenant("t5", null, 5));
+            var defaultClient = registry.getDefaultClient();
+            Assertions.assertSame(defaultClient, registry.getClient(tenants.get(0)));
+
+            var dedicated = registry.getClient(tenants.get(1));
+            Assertions.assertNotSame(defaultClient, dedicated);
+            Assertions.assertSame(dedicated, registry.getClient(tenants.get(2)));
+            Assertions.assertNotSame(dedicated, registry.getClient(tenants.get(3)));
+            // own pool on the cluster of the server:
+            Assertions.assertNotSame(defaultClient, registry.getClient(tenants.get(4)));
+            Assertions.assertEquals(4, registry.size());
+
+            // metrics are given for the tenants of the configuration:
+            Assertions.assertTrue(registry.getMetricsByTenant().isEmpty());
+            registry.registerTenants(tenants);
+            var metrics = registry.getMetricsByTenant();
+            Assertions.assertEquals(5, metrics.size());
+            Assertions.assertSame(metrics.get("t2"), metrics.get("t3"));
+            Assertions.assertNotSame(metrics.get("t1"), metrics.get("t2"));
+            Assertions.assertEquals(0, metrics.get("t2").getCheckOutFailures());
+        }
+    }
+
+    @Test
+    void metricsOfTenantsWithoutClient() {
+        try (var registry = new MongoClientRegistry("mongodb://localhost:27017")) {
+            registry.registerTenants(List.of(tenant("t1", null, null), tenant("t2", "mongodb://other:27017", 10)));
+            registry.getDefaultClient();
+            // the client of t2 is not created yet:
+            Assertions.assertEquals(Set.of("t1"), registry.getMetricsByTenant().keySet());
+            Assertions.assertEquals(1, registry.size());
+            Assertions.assertDoesNotThrow(() -> registry.logMetrics());
+
+            // the previous tenants are replaced:
+            registry.registerTenants(List.of(tenant("t3", null, null)));
+            Assertions.assertEquals(Set.of("t3"), registry.getMetricsByTenant().keySet());
+        }
+    }
+
+    @Test
+    void badConnectionString() {
+        try (var registry = new MongoClientRegistry("mongodb://localhost:27017")) {
+            var tenant = tenant("t1", "http://localhost", null);
+            Assertions.assertThrows(CantLoadConfigurationException.class, () -> registry.getClient(tenant));
+            Assertions.assertEquals(0, registry.size());
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.mongodb.client.result.DeleteResult;
 import fr.ans.afas.domain.FhirBundleBuilder;
 import fr.ans.afas.domain.ResourceAndSubResources;
 import fr.ans.afas.exception.ResourceNotFoundException;
+import fr.ans.afas.fhirserver.hook.event.BeforeCountEvent;
 import fr.ans.afas.fhirserver.hook.service.HookService;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
@@ -24,6 +25,8 @@ import fr.ans.afas.rass.service.impl.MongoQueryUtils;
 import fr.ans.afas.rass.service.json.FhirBaseResourceDeSerializer;
 import fr.ans.afas.rass.service.json.FhirBaseResourceSerializer;
 import fr.ans.afas.rass.service.json.GenericSerializer;
+import fr.ans.afas.utils.RequestDeadline;
+import fr.ans.afas.utils.TenantUtil;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -39,6 +42,9 @@ import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -156,6 +162,38 @@ class MongoDbFhirServiceTest {
         mongoQueryUtils.close();
     }
 
+    @Test
+    void testCountAsync_PropagatesTenantAndDeadline() {
+        SelectExpression<Bson> selectExpression = mock(SelectExpression.class);
+        when(selectExpression.getTotalMode()).thenReturn(TotalMode.BEST_EFFORT);
+        var executor = Executors.newSingleThreadExecutor();
+        mongoDbFhirService.setCountExecutor(executor);
+        var tenant = new AtomicReference<String>();
+        var countDeadline = new AtomicReference<RequestDeadline>();
+        doAnswer(i -> {
+            tenant.set(TenantUtil.getCurrentTenant());
+            countDeadline.set(RequestDeadline.get());
+            return null;
+        }).when(hookService).callHook(any(BeforeCountEvent.class));
+        var deadline = RequestDeadline.in(10_000);
+        try {
+            TenantUtil.setCurrentTenant("tenant-1");
+            RequestDeadline.set(deadline);
+            var total = mongoDbFhirService.countAsync(selectExpression);
+
+            // the resource is not supported, the count fails after the hook:
+            assertThrows(CompletionException.class, total::join);
+            assertEquals("tenant-1", tenant.get());
+            assertSame(deadline, countDeadline.get());
+            // the thread of the count is cleaned:
+            assertDoesNotThrow(() -> executor.submit(() -> assertNull(RequestDeadline.get())).get());
+        } finally {
+            TenantUtil.clear();
+            RequestDeadline.clear();
+            executor.shutdownNow();
+        }
+    }
+
     /*@Test
     public void testDelete_ValidId() {
         MongoCollection<Document> collection = mock(MongoCollection.class);
@@ -1,10 +1,15 @@
 package fr.ans.afas.rass.service;
 
+import com.mongodb.ReadPreference;
 import com.mongodb.client.*;
+import fr.ans.afas.exception.CantLoadConfigurationException;
 import fr.ans.afas.exception.TenantNotFoundException;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
 import fr.ans.afas.fhirserver.service.DefaultMultiTenantService;
+import fr.ans.afas.utils.TenantUtil;
 import org.bson.Document;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,7 +18,11 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import static org.mockito.Mockito.when;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
 
 class MongoMultiTenantServiceTest {
 
@@ -43,6 +52,9 @@ class MongoMultiTenantServiceTest {
     @Mock
     private MongoCollection<Document> mongoCollection;
 
+    @Mock
+    private MongoCollection<Document> configuredCollection;
+
     @Mock
     private FindIterable<Document> findIterable;
 
@@ -77,6 +89,47 @@ class MongoMultiTenantServiceTest {
         Assertions.assertEquals(document, collection.find().iterator().next());
     }
 
+    @Test
+    void getCollectionFromTheRegistry() {
+        var tenant = Tenant.builder().name(TEST_TENANT_1).dbname("dbtest").suffixCollection("_0.1").readPreference("secondaryPreferred").build();
+        var tenantSearchConfig = TenantSearchConfig.builder().tenantConfig(tenant)
+                .resources(List.of(FhirResourceSearchConfig.builder().name("Device").searchParams(List.of()).build())).build();
+        when(serverSearchConfig.getConfigs()).thenReturn(Map.of(TEST_TENANT_1, tenantSearchConfig));
+        when(mongoClient.getDatabase("dbtest")).thenReturn(mongoDatabase);
+        when(mongoDatabase.getCollection("Device_0.1")).thenReturn(mongoCollection);
+        when(mongoCollection.withReadPreference(ReadPreference.secondaryPreferred())).thenReturn(configuredCollection);
+        mongoMultiTenantService.refresh();
+
+        try {
+            TenantUtil.setCurrentTenant(TEST_TENANT_1);
+            Assertions.assertSame(configuredCollection, mongoMultiTenantService.getCollection("Device"));
+            Assertions.assertSame(configuredCollection, mongoMultiTenantService.getCollection("Device"));
+            Assertions.assertEquals("Device_0.1", mongoMultiTenantService.getCollectionName("Device"));
+            // the collections are created once:
+            verify(mongoDatabase, times(1)).getCollection("Device_0.1");
+            verify(defaultMultiTenantService, never()).getTenant();
+
+            // the registry is replaced when the configuration changes:
+            when(serverSearchConfig.getConfigs()).thenReturn(Map.of());
+            mongoMultiTenantService.refresh();
+            when(defaultMultiTenantService.getTenant()).thenThrow(TenantNotFoundException.class);
+            Assertions.assertThrows(TenantNotFoundException.class, () -> mongoMultiTenantService.getCollection("Device"));
+        } finally {
+            TenantUtil.clear();
+        }
+    }
+
+    @Test
+    void refreshWithABadConfiguration() {
+        var tenant = Tenant.builder().name(TEST_TENANT_1).writeConcern("not-a-write-concern").build();
+        var tenantSearchConfig = TenantSearchConfig.builder().tenantConfig(tenant)
+                .resources(List.of(FhirResourceSearchConfig.builder().name("Device").searchParams(List.of()).build())).build();
+        when(serverSearchConfig.getConfigs()).thenReturn(Map.of(TEST_TENANT_1, tenantSearchConfig));
+        when(mongoClient.getDatabase(any())).thenReturn(mongoDatabase);
+        when(mongoDatabase.getCollection(any())).thenReturn(mongoCollection);
+        Assertions.assertThrows(CantLoadConfigurationException.class, () -> mongoMultiTenantService.refresh());
+    }
+
     @Test
     void getCollectionThrowException() {
         when(defaultMultiTenantService.getTenant()).thenThrow(TenantNotFoundException.class);
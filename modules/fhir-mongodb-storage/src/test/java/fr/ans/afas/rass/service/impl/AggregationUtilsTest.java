@@ -0,0 +1,161 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.exception.BadParametersException;
+import fr.ans.afas.fhirserver.search.expression.Expression;
+import fr.ans.afas.fhirserver.search.expression.HasCondition;
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the generation of the _has aggregations
+ */
+@ExtendWith(MockitoExtension.class)
+class AggregationUtilsTest {
+
+    private static final FhirSearchPath ROLE_PRACTITIONER = FhirSearchPath.builder().resource("PractitionerRole").path("practitioner").build();
+
+    @Mock
+    SearchConfigService searchConfigService;
+
+    @Mock
+    MongoMultiTenantService mongoMultiTenantService;
+
+    @Mock
+    MongoCollection<Document> joinedCollection;
+
+    @Mock
+    FindIterable<Document> findIterable;
+
+    @Mock
+    MongoCursor<Document> cursor;
+
+    @Mock
+    SelectExpression<Bson> selectExpression;
+
+    void mockSelectExpression(String searchType) {
+        var has = new HasCondition<Bson>(ROLE_PRACTITIONER);
+        Expression<Bson> joinedExpression = mock(Expression.class);
+        has.addExpression(joinedExpression);
+        if ("reference".equals(searchType)) {
+            when(joinedExpression.interpreter(any())).thenReturn(Filters.eq("t_active", true));
+        }
+        when(selectExpression.interpreter(any())).thenReturn(Filters.eq("t_name", "n"));
+        when(selectExpression.getHasConditions()).thenReturn(List.of(has));
+        when(searchConfigService.getSearchConfigByPath(ROLE_PRACTITIONER)).thenReturn(Optional.of(SearchParamConfig.builder()
+                .name("practitioner")
+                .searchType(searchType)
+                .indexName("t_practitioner")
+                .build()));
+    }
+
+    void mockJoinedCollection() {
+        when(mongoMultiTenantService.getCollection("PractitionerRole")).thenReturn(joinedCollection);
+        when(joinedCollection.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.projection(any())).thenReturn(findIterable);
+        when(findIterable.limit(anyInt())).thenReturn(findIterable);
+        when(findIterable.cursor()).thenReturn(cursor);
+    }
+
+    @Test
+    void testSelectiveJoinIsConvertedToIn() {
+        mockSelectExpression("reference");
+        mockJoinedCollection();
+        when(cursor.hasNext()).thenReturn(true, true, false);
+        when(cursor.next()).thenReturn(
+                new Document("t_practitioner-id", List.of("p1", "p2")),
+                new Document("t_practitioner-id", List.of("p2")));
+
+        var aggregation = AggregationUtils.generateAggregation(searchConfigService, selectExpression, 10L, null, mongoMultiTenantService);
+
+        assertEquals(2, aggregation.size());
+        assertTrue(aggregation.get(0).containsKey(AggregationUtils.MONGO_MATCH));
+        assertTrue(aggregation.get(1).containsKey(AggregationUtils.MONGO_SORT));
+        var match = aggregation.get(0).get(AggregationUtils.MONGO_MATCH, Bson.class).toBsonDocument().toJson();
+        assertTrue(match.contains("\"t_id\": {\"$in\": [\"p1\", \"p2\"]}"), match);
+    }
+
+    @Test
+    void testNonSelectiveJoinUsesALimitedLookup() {
+        mockSelectExpression("reference");
+        mockJoinedCollection();
+        var next = new Document("t_practitioner-id", List.of("p1"));
+        when(cursor.hasNext()).thenReturn(true);
+        when(cursor.next()).thenReturn(next);
+        when(mongoMultiTenantService.getCollectionName("PractitionerRole")).thenReturn("PractitionerRole");
+
+        var aggregation = AggregationUtils.generateAggregation(searchConfigService, selectExpression, 10L, "62d4841b269c580bb67c5c8f", mongoMultiTenantService);
+
+        verify(cursor, times(AggregationUtils.SEMI_JOIN_IN_THRESHOLD)).next();
+        assertEquals(5, aggregation.size());
+        // match first (with the paging), then sort, then the join:
+        var match = aggregation.get(0).get(AggregationUtils.MONGO_MATCH, Bson.class).toBsonDocument().toJson();
+        assertTrue(match.contains("\"_id\": {\"$gt\""), match);
+        assertTrue(aggregation.get(1).containsKey(AggregationUtils.MONGO_SORT));
+        var lookup = aggregation.get(2).get(AggregationUtils.MONGO_LOOKUP, Document.class);
+        assertEquals("t_id", lookup.getString("localField"));
+        assertEquals("t_practitioner-id", lookup.getString("foreignField"));
+        var pipeline = lookup.getList("pipeline", Document.class);
+        assertEquals(new Document(AggregationUtils.MONGO_LIMIT, 1), pipeline.get(1));
+        assertTrue(aggregation.get(3).containsKey(AggregationUtils.MONGO_MATCH));
+        assertTrue(aggregation.get(4).containsKey(AggregationUtils.MONGO_PROJECT));
+    }
+
+    @Test
+    void testLookupDecisionIsReusedByNextPages() {
+        mockSelectExpression("reference");
+        mockJoinedCollection();
+        when(cursor.hasNext()).thenReturn(true);
+        when(cursor.next()).thenReturn(new Document("t_practitioner-id", List.of("p1")));
+        when(mongoMultiTenantService.getCollectionName("PractitionerRole")).thenReturn("PractitionerRole");
+        var lookupJoins = new SemiJoinPlanCache().get("t1", "search-1");
+
+        AggregationUtils.generateAggregation(searchConfigService, selectExpression, 10L, null, mongoMultiTenantService, lookupJoins);
+        assertEquals(Set.of(ROLE_PRACTITIONER), lookupJoins);
+
+        // the next page doesn't read the joined documents again:
+        var aggregation = AggregationUtils.generateAggregation(searchConfigService, selectExpression, 10L, "62d4841b269c580bb67c5c8f", mongoMultiTenantService, lookupJoins);
+        verify(joinedCollection, times(1)).find(any(Bson.class));
+        assertTrue(aggregation.get(2).containsKey(AggregationUtils.MONGO_LOOKUP));
+    }
+
+    @Test
+    void testFindJoinedIdsWithoutResult() {
+        when(joinedCollection.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.projection(any())).thenReturn(findIterable);
+        when(findIterable.limit(anyInt())).thenReturn(findIterable);
+        when(findIterable.cursor()).thenReturn(cursor);
+        when(cursor.hasNext()).thenReturn(false);
+        assertEquals(Set.of(), AggregationUtils.findJoinedIds(joinedCollection, new Document(), "t_practitioner-id"));
+    }
+
+    @Test
+    void testHasOnNonReferenceIsRefused() {
+        mockSelectExpression("string");
+        assertThrows(BadParametersException.class, () -> AggregationUtils.generateAggregation(searchConfigService, selectExpression, 10L, null, mongoMultiTenantService));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the registry of parked cursors
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@ExtendWith(MockitoExtension.class)
+class CursorRegistryTest {
+
+    @Mock
+    private MongoCursor<Document> cursor1;
+
+    @Mock
+    private MongoCursor<Document> cursor2;
+
+    private CursorRegistry registry;
+
+    @AfterEach
+    void tearDown() {
+        registry.close();
+    }
+
+    @Test
+    void testContinueAtTheSamePosition() {
+        registry = new CursorRegistry(10, 60000);
+        registry.park(CursorRegistry.key("t1", "a"), "pos1", cursor1, 2);
+
+        // other tenant:
+        assertNull(registry.take(CursorRegistry.key("t2", "a"), "pos1"));
+        var continuation = registry.take(CursorRegistry.key("t1", "a"), "pos1");
+        assertSame(cursor1, continuation.cursor());
+        assertEquals(2, continuation.remainingPages());
+        // a cursor is continued once:
+        assertNull(registry.take(CursorRegistry.key("t1", "a"), "pos1"));
+
+        assertEquals(1, registry.getHits());
+        assertEquals(2, registry.getMisses());
+        verify(cursor1, never()).close();
+    }
+
+    @Test
+    void testOtherPositionClosesTheCursor() {
+        registry = new CursorRegistry(10, 60000);
+        registry.park(CursorRegistry.key("t1", "a"), "pos1", cursor1, 2);
+
+        assertNull(registry.take(CursorRegistry.key("t1", "a"), "pos0"));
+
+        verify(cursor1).close();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void testRegistryIsBounded() {
+        registry = new CursorRegistry(1, 60000);
+        registry.park(CursorRegistry.key("t1", "a"), "pos1", cursor1, 2);
+        registry.park(CursorRegistry.key("t1", "b"), "pos1", cursor2, 2);
+
+        verify(cursor1).close();
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.getEvictions());
+        assertSame(cursor2, registry.take(CursorRegistry.key("t1", "b"), "pos1").cursor());
+    }
+
+    @Test
+    void testIdleCursorsAreClosed() throws InterruptedException {
+        registry = new CursorRegistry(10, 1);
+        registry.park(CursorRegistry.key("t1", "a"), "pos1", cursor1, 2);
+        Thread.sleep(5);
+
+        registry.closeIdleCursors();
+
+        verify(cursor1).close();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void testCloseClosesParkedCursors() {
+        registry = new CursorRegistry(10, 60000);
+        registry.park(CursorRegistry.key("t1", "a"), "pos1", cursor1, 2);
+
+        registry.close();
+
+        verify(cursor1).close();
+    }
+}
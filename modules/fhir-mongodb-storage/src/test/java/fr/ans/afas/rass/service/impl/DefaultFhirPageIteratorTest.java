@@ -7,6 +7,7 @@ import fr.ans.afas.fhirserver.search.data.SearchContext;
 import fr.ans.afas.fhirserver.search.expression.IncludeExpression;
 import fr.ans.afas.fhirserver.search.expression.SelectExpression;
 import fr.ans.afas.mdbexpression.domain.fhir.MongoDbIncludeExpression;
+import fr.ans.afas.utils.TenantUtil;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
@@ -18,6 +19,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -109,6 +111,66 @@ class DefaultFhirPageIteratorTest {
         verify(cursor).close();
     }
 
+    @Test
+    void testClose_WithContinuation_ParksCursorAtTheEndOfThePage() {
+        var registry = mock(CursorRegistry.class);
+        var id = new ObjectId();
+        Document document = new Document().append("t_id", "testId")
+                .append(MongoQueryUtils.ID_ATTRIBUTE, id)
+                .append("fhir", new Document("meta", new Document()));
+        when(cursor.next()).thenReturn(document);
+        when(cursor.hasNext()).thenReturn(true);
+        when(selectExpression.getFhirResource()).thenReturn("resource");
+        when(selectExpression.getRevincludes()).thenReturn(new HashSet<>());
+        when(selectExpression.getCount()).thenReturn(1);
+        fhirPageIterator.continueWith(registry, "tenant-1", "uuid", 2);
+
+        fhirPageIterator.next();
+        TenantUtil.setCurrentTenant("tenant-2");
+        try {
+            fhirPageIterator.close();
+            fhirPageIterator.close();
+        } finally {
+            TenantUtil.clear();
+        }
+
+        assertEquals("uuid", fhirPageIterator.searchContext().getUuid());
+        verify(registry, times(1)).park(CursorRegistry.key("tenant-1", "uuid"), id.toString(), cursor, 1);
+        verify(cursor, never()).close();
+    }
+
+    @Test
+    void testClose_WithContinuation_ClosesCursorAfterTheLastPage() {
+        var registry = mock(CursorRegistry.class);
+        Document document = new Document().append("t_id", "testId")
+                .append(MongoQueryUtils.ID_ATTRIBUTE, new ObjectId())
+                .append("fhir", new Document("meta", new Document()));
+        when(cursor.next()).thenReturn(document);
+        when(cursor.hasNext()).thenReturn(true);
+        when(selectExpression.getFhirResource()).thenReturn("resource");
+        when(selectExpression.getRevincludes()).thenReturn(new HashSet<>());
+        when(selectExpression.getCount()).thenReturn(1);
+        fhirPageIterator.continueWith(registry, "tenant-1", "uuid", 1);
+
+        fhirPageIterator.next();
+        fhirPageIterator.close();
+
+        // the query of the cursor is limited, it can't read the next page:
+        verify(cursor).close();
+        verifyNoInteractions(registry);
+    }
+
+    @Test
+    void testClose_WithContinuation_ClosesCursorWithoutNextPage() {
+        var registry = mock(CursorRegistry.class);
+        fhirPageIterator.continueWith(registry, "tenant-1", "uuid", 2);
+
+        fhirPageIterator.close();
+
+        verify(cursor).close();
+        verifyNoInteractions(registry);
+    }
+
     @Test
     void testHasNextPage_WhenHasNextPageIsTrue_ReturnsTrue() {
         fhirPageIterator.hasNextPage = true;
@@ -151,4 +213,27 @@ class DefaultFhirPageIteratorTest {
 
         assertNull(document.get("meta"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSearchContext_WhenTotalIsNotCalculated_DoesNotWait() {
+        var futureTotal = new CompletableFuture<Long>();
+        fhirPageIterator = new DefaultFhirPageIterator(searchConfigService, cursor, selectExpression, futureTotal, searchRevision, elements);
+
+        assertFalse(fhirPageIterator.isTotalCalculated());
+        assertNull(fhirPageIterator.searchContext().getTotal());
+
+        futureTotal.complete(12L);
+        assertTrue(fhirPageIterator.isTotalCalculated());
+        assertEquals(12L, fhirPageIterator.searchContext().getTotal());
+        assertEquals(12L, fhirPageIterator.awaitTotal());
+    }
+
+    @Test
+    void testAwaitTotal_WhenCountFails_ReturnsNull() {
+        fhirPageIterator = new DefaultFhirPageIterator(searchConfigService, cursor, selectExpression, CompletableFuture.failedFuture(new IllegalStateException("error")), searchRevision, elements);
+
+        assertTrue(fhirPageIterator.isTotalCalculated());
+        assertNull(fhirPageIterator.awaitTotal());
+        assertNull(fhirPageIterator.searchContext().getTotal());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
+import fr.ans.afas.fhirserver.service.FhirStoreService;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.utils.TenantUtil;
+import org.awaitility.Awaitility;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the jobs of the index service
+ */
+@ExtendWith(MockitoExtension.class)
+class DefaultIndexServiceTest {
+
+    @Mock
+    SearchConfigService searchConfigService;
+
+    @Mock
+    MongoMultiTenantService mongoMultiTenantService;
+
+    @AfterEach
+    void clean() {
+        TenantUtil.clear();
+    }
+
+    @Test
+    void testJobsAreKeptByServiceAndTenant() {
+        when(searchConfigService.getResources()).thenReturn(Set.of());
+        try (var indexService = new DefaultIndexService(searchConfigService, mongoMultiTenantService);
+             var otherIndexService = new DefaultIndexService(searchConfigService, mongoMultiTenantService)) {
+            TenantUtil.setCurrentTenant("tenant-1");
+            indexService.refreshIndexesSync(0);
+            assertTrue(indexService.getStatus().isPresent());
+            assertTrue(otherIndexService.getStatus().isEmpty());
+
+            TenantUtil.setCurrentTenant("tenant-2");
+            assertTrue(indexService.getStatus().isEmpty());
+        }
+    }
+
+    @Test
+    void testAsyncJobRunsWithTheTenantOfTheCaller() {
+        var tenant = new AtomicReference<String>();
+        when(searchConfigService.getResources()).thenAnswer(i -> {
+            tenant.set(TenantUtil.getCurrentTenant());
+            return Set.of();
+        });
+        try (var indexService = new DefaultIndexService(searchConfigService, mongoMultiTenantService)) {
+            TenantUtil.setCurrentTenant("tenant-1");
+            indexService.refreshIndexes(0);
+            Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> !indexService.isRunning());
+            assertEquals("tenant-1", tenant.get());
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"deprecation", "unchecked"})
+    void testCompatibleConstructorNeedsTheMongoDbStorage() {
+        FhirStoreService<Bson> fhirStoreService = mock(FhirStoreService.class);
+        assertThrows(BadConfigurationException.class, () -> new DefaultIndexService(fhirStoreService, null, searchConfigService, null));
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.result.UpdateResult;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.config.MultiTenantSearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ResourcePathConfig;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.config.domain.ServerSearchConfig;
+import fr.ans.afas.fhirserver.search.config.domain.Tenant;
+import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.utils.TenantUtil;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the reload of the search configuration
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+class DefaultSearchConfigReloadServiceTest {
+
+    private static final String TENANT = "tenant-1";
+
+    @AfterEach
+    void tearDown() {
+        TenantUtil.clear();
+    }
+
+    @Test
+    void testReloadCreatesNewIndexesThenReplacesTheConfiguration() throws Exception {
+        var serverSearchConfig = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier"))));
+        var searchConfigService = new MultiTenantSearchConfigService(serverSearchConfig);
+        var mongoMultiTenantService = Mockito.mock(MongoMultiTenantService.class);
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> collection = Mockito.mock(MongoCollection.class);
+        when(mongoMultiTenantService.getCollection(any(Tenant.class), eq("Device"))).thenReturn(collection);
+        var next = new ArrayList<TenantSearchConfig>();
+        var reloadService = new DefaultSearchConfigReloadService(() -> next, serverSearchConfig, searchConfigService, mongoMultiTenantService);
+        var reloaded = new AtomicInteger();
+        reloadService.addReloadListener(reloaded::incrementAndGet);
+        var previousConfigs = serverSearchConfig.getConfigs();
+        // the collections are prepared before the configuration is replaced:
+        doAnswer(i -> {
+            assertSame(previousConfigs, serverSearchConfig.getConfigs());
+            return null;
+        }).when(mongoMultiTenantService).prepare(any());
+
+        next.add(tenantConfig("/t1", param("identifier", "token", "t_identifier"), param("name", "string", "t_name")));
+        var status = reloadService.reloadSync();
+
+        assertTrue(status.isApplied());
+        // only the indexes of the new parameter are created:
+        assertEquals(2, status.getCreatedIndexes());
+        verify(collection).createIndex(new Document("t_name", 1));
+        verify(collection).createIndex(new Document("t_name" + StorageConstants.INSENSITIVE_SUFFIX, 1));
+        verifyNoMoreInteractions(collection);
+        // the configuration is replaced:
+        assertNotSame(previousConfigs, serverSearchConfig.getConfigs());
+        TenantUtil.setCurrentTenant(TENANT);
+        assertTrue(searchConfigService.getSearchConfigByResourceAndParamName("Device", "name").isPresent());
+        verify(mongoMultiTenantService).prepare(argThat(c -> c.getConfigs() == serverSearchConfig.getConfigs()));
+        assertEquals(1, reloaded.get());
+        assertSame(status, reloadService.getStatus().orElseThrow());
+        assertFalse(reloadService.isRunning());
+        reloadService.close();
+    }
+
+    @Test
+    void testReloadWritesTheSortKeysBeforeTheConfigurationIsReplaced() throws Exception {
+        var serverSearchConfig = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("name", "string", "t_name"))));
+        var searchConfigService = new MultiTenantSearchConfigService(serverSearchConfig);
+        var mongoMultiTenantService = Mockito.mock(MongoMultiTenantService.class);
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> collection = Mockito.mock(MongoCollection.class);
+        when(mongoMultiTenantService.getCollection(any(Tenant.class), eq("Device"))).thenReturn(collection);
+        var previousConfigs = serverSearchConfig.getConfigs();
+        // the sort keys are written while the previous configuration is used:
+        when(collection.updateMany(any(Bson.class), anyList())).thenAnswer(i -> {
+            assertSame(previousConfigs, serverSearchConfig.getConfigs());
+            return UpdateResult.acknowledged(3, 3L, null);
+        });
+        var sortableName = param("name", "string", "t_name");
+        sortableName.setSortable(true);
+        var reloadService = new DefaultSearchConfigReloadService(() -> List.of(tenantConfig("/t1", sortableName)), serverSearchConfig, searchConfigService, mongoMultiTenantService);
+
+        var status = reloadService.reloadSync();
+
+        assertTrue(status.isApplied());
+        assertEquals(1, status.getCreatedIndexes());
+        // the sort index, then the sort keys, then the configuration:
+        var inOrder = inOrder(collection, mongoMultiTenantService);
+        inOrder.verify(collection).createIndex(new Document("t_name" + StorageConstants.SORT_SUFFIX, 1).append("_id", 1));
+        inOrder.verify(collection).updateMany(any(Bson.class), anyList());
+        inOrder.verify(mongoMultiTenantService).prepare(any());
+        assertNotSame(previousConfigs, serverSearchConfig.getConfigs());
+
+        // already sortable: no more sort keys to write
+        reloadService.reloadSync();
+        verify(collection, times(1)).updateMany(any(Bson.class), anyList());
+        reloadService.close();
+    }
+
+    @Test
+    void testABadConfigurationIsNotApplied() throws Exception {
+        var serverSearchConfig = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier"))));
+        var searchConfigService = new MultiTenantSearchConfigService(serverSearchConfig);
+        var mongoMultiTenantService = Mockito.mock(MongoMultiTenantService.class);
+        var previousServices = searchConfigService.getTenantConfigServices();
+        var previousConfigs = serverSearchConfig.getConfigs();
+        var reloadService = new DefaultSearchConfigReloadService(() -> List.of(tenantConfig(null, param("name", "string", "t_name"))), serverSearchConfig, searchConfigService, mongoMultiTenantService);
+
+        var status = reloadService.reloadSync();
+
+        assertFalse(status.isApplied());
+        assertTrue(status.getError().contains("path"));
+        assertSame(previousServices, searchConfigService.getTenantConfigServices());
+        assertSame(previousConfigs, serverSearchConfig.getConfigs());
+        verifyNoInteractions(mongoMultiTenantService);
+        reloadService.close();
+    }
+
+    @Test
+    void testSearchConfigurationFollowsTheConfigurationOfTheServer() {
+        var serverSearchConfig = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier"))));
+        var searchConfigService = new MultiTenantSearchConfigService(serverSearchConfig);
+        var next = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("name", "string", "t_name"))));
+        var nextServices = MultiTenantSearchConfigService.compile(next);
+        TenantUtil.setCurrentTenant(TENANT);
+
+        // prepared but not applied:
+        searchConfigService.prepare(next, nextServices);
+        assertTrue(searchConfigService.getSearchConfigByResourceAndParamName("Device", "name").isEmpty());
+
+        // the compiled configuration is used when the configuration of the server is replaced:
+        serverSearchConfig.setConfigs(next.getConfigs());
+        assertSame(nextServices, searchConfigService.getTenantConfigServices());
+        assertTrue(searchConfigService.getSearchConfigByResourceAndParamName("Device", "name").isPresent());
+
+        // replaced without being prepared:
+        serverSearchConfig.setConfigs(ServerSearchConfig.of(List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier")))).getConfigs());
+        assertTrue(searchConfigService.getSearchConfigByResourceAndParamName("Device", "identifier").isPresent());
+    }
+
+    @Test
+    void testChangesDuringAReloadAreReloadedAfter() throws Exception {
+        var serverSearchConfig = ServerSearchConfig.of(List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier"))));
+        var searchConfigService = new MultiTenantSearchConfigService(serverSearchConfig);
+        var mongoMultiTenantService = Mockito.mock(MongoMultiTenantService.class);
+        var loads = new AtomicInteger();
+        var loading = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var reloadService = new DefaultSearchConfigReloadService(() -> {
+            if (loads.incrementAndGet() == 1) {
+                loading.countDown();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+            }
+            return List.of(tenantConfig("/t1", param("identifier", "token", "t_identifier")));
+        }, serverSearchConfig, searchConfigService, mongoMultiTenantService);
+
+        reloadService.changed();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        // the files change twice while the configuration is loaded:
+        reloadService.changed();
+        reloadService.changed();
+        release.countDown();
+
+        var end = System.currentTimeMillis() + 5000;
+        while ((reloadService.isRunning() || loads.get() < 2) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        // one more reload with the last files:
+        assertEquals(2, loads.get());
+        assertFalse(reloadService.isRunning());
+        reloadService.close();
+    }
+
+    private static TenantSearchConfig tenantConfig(String path, SearchParamConfig... params) {
+        Collection<FhirResourceSearchConfig> resources = List.of(FhirResourceSearchConfig.builder().name("Device").searchParams(List.of(params)).build());
+        return TenantSearchConfig.builder()
+                .tenantConfig(Tenant.builder().name(TENANT).path(path).build())
+                .resources(resources)
+                .build();
+    }
+
+    private static SearchParamConfig param(String name, String searchType, String indexName) {
+        return SearchParamConfig.builder()
+                .name(name)
+                .urlParameter(name)
+                .searchType(searchType)
+                .indexName(indexName)
+                .resourcePaths(List.of(ResourcePathConfig.builder().path(name).build()))
+                .build();
+    }
+}
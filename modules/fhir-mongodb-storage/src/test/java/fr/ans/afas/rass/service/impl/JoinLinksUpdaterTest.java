@@ -0,0 +1,187 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.result.UpdateResult;
+import fr.ans.afas.fhirserver.search.FhirSearchPath;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the update of denormalized joins on write
+ */
+@ExtendWith(MockitoExtension.class)
+class JoinLinksUpdaterTest {
+
+    @Mock
+    SearchConfigService searchConfigService;
+
+    @Mock
+    MongoMultiTenantService mongoMultiTenantService;
+
+    @Mock
+    MongoCollection<Document> roleCollection;
+
+    @Mock
+    MongoCollection<Document> practitionerCollection;
+
+    /**
+     * The end of validity of the current revision
+     */
+    static final long OPEN = 4099676400000L;
+
+    JoinLinksUpdater joinLinksUpdater;
+
+    @BeforeEach
+    void setUp() {
+        var join = new JoinPath();
+        join.setResource("PractitionerRole");
+        join.setPath("practitioner");
+        join.setField("practitioner");
+        lenient().when(searchConfigService.getJoinsByFhirResource("Practitioner")).thenReturn(List.of(join));
+        lenient().when(searchConfigService.getSearchConfigByPath(FhirSearchPath.builder().resource("PractitionerRole").path("practitioner").build()))
+                .thenReturn(Optional.of(SearchParamConfig.builder().indexName("t_practitioner").searchType("reference").build()));
+        joinLinksUpdater = new JoinLinksUpdater(searchConfigService, mongoMultiTenantService);
+    }
+
+    @Test
+    void testOnlyChangedParentsGetANewRevision() {
+        when(searchConfigService.getResources()).thenReturn(Set.of("Practitioner"));
+        var role1 = new Document("t_id", "r1").append("t_practitioner-reference", List.of("Practitioner/p1"));
+        var role2 = new Document("t_id", "r2").append("t_practitioner-reference", List.of("Practitioner/p2", "Organization/o1"));
+        mockFind(roleCollection, "PractitionerRole", List.of(role1, role2));
+        // p1 already has the right links, p2 has no links:
+        mockFind(practitionerCollection, "Practitioner", List.of(
+                new Document("_id", 1).append("t_fid", "Practitioner/p1").append("_revision", 1).append("links", new Document("PractitionerRole", List.of(role1))),
+                new Document("_id", 2).append("t_fid", "Practitioner/p2").append("_revision", 1).append("_validTo", OPEN)
+                        .append("fhir", new Document("id", "p2").append("meta", new Document("versionId", "1")))));
+        mockClose(1);
+
+        joinLinksUpdater.updateParentsOf("PractitionerRole", List.of(role1, role2));
+
+        // the old revision is closed if it's still the current one:
+        ArgumentCaptor<Bson> filterCaptor = ArgumentCaptor.forClass(Bson.class);
+        verify(practitionerCollection, times(1)).updateOne(filterCaptor.capture(), any(Bson.class));
+        var filter = filterCaptor.getValue().toBsonDocument().toJson();
+        assertTrue(filter.contains("\"_id\": 2"), filter);
+        assertTrue(filter.contains("\"_validTo\": " + OPEN), filter);
+
+        // a new revision is written with the links:
+        ArgumentCaptor<List<Document>> insertCaptor = ArgumentCaptor.forClass(List.class);
+        verify(practitionerCollection).insertMany(insertCaptor.capture());
+        assertEquals(1, insertCaptor.getValue().size());
+        var newRevision = insertCaptor.getValue().get(0);
+        assertFalse(newRevision.containsKey("_id"));
+        assertEquals(2, newRevision.getInteger("_revision"));
+        assertEquals(List.of(role2), newRevision.get("links", Document.class).get("PractitionerRole"));
+        // the version follows the revision:
+        assertEquals(2, newRevision.get("fhir", Document.class).get("meta", Document.class).get("versionId"));
+    }
+
+    @Test
+    void testNoNewRevisionWhenTheParentWasWrittenConcurrently() {
+        var role1 = new Document("t_id", "r1").append("t_practitioner-reference", List.of("Practitioner/p1"));
+        mockFind(roleCollection, "PractitionerRole", List.of(role1));
+        mockFind(practitionerCollection, "Practitioner", List.of(
+                new Document("_id", 1).append("t_fid", "Practitioner/p1").append("_revision", 1).append("_validTo", OPEN)));
+        // another write closed the revision:
+        mockClose(0);
+
+        joinLinksUpdater.updateLinksOf("Practitioner", List.of("p1"));
+
+        verify(practitionerCollection).updateOne(any(Bson.class), any(Bson.class));
+        verify(practitionerCollection, never()).insertMany(any());
+    }
+
+    @Test
+    void testNoWriteWhenLinksDoNotChange() {
+        var role1 = new Document("t_id", "r1").append("t_practitioner-reference", List.of("Practitioner/p1"));
+        mockFind(roleCollection, "PractitionerRole", List.of(role1));
+        mockFind(practitionerCollection, "Practitioner", List.of(
+                new Document("_id", 1).append("t_fid", "Practitioner/p1").append("links", new Document("PractitionerRole", List.of(role1)))));
+
+        joinLinksUpdater.updateLinksOf("Practitioner", List.of("p1"));
+
+        verify(practitionerCollection, never()).updateOne(any(Bson.class), any(Bson.class));
+        verify(practitionerCollection, never()).insertMany(any());
+    }
+
+    @Test
+    void testRemovedReferenceRemoveLinksInANewRevision() {
+        mockFind(roleCollection, "PractitionerRole", List.of());
+        mockFind(practitionerCollection, "Practitioner", List.of(
+                new Document("_id", 1).append("t_fid", "Practitioner/p1").append("_revision", 3).append("links", new Document("PractitionerRole", List.of(new Document("t_id", "r1"))))));
+        mockClose(1);
+
+        joinLinksUpdater.updateLinksOf("Practitioner", List.of("p1"));
+
+        ArgumentCaptor<List<Document>> insertCaptor = ArgumentCaptor.forClass(List.class);
+        verify(practitionerCollection).insertMany(insertCaptor.capture());
+        var newRevision = insertCaptor.getValue().get(0);
+        assertFalse(newRevision.containsKey("links"));
+        assertEquals(4, newRevision.getInteger("_revision"));
+    }
+
+    @Test
+    void testLinksOfNewParents() {
+        var role1 = new Document("t_id", "r1").append("t_practitioner-reference", List.of("Practitioner/p1"));
+        mockFind(roleCollection, "PractitionerRole", List.of(role1));
+        var p1 = new Document("t_fid", "Practitioner/p1");
+        var p2 = new Document("t_fid", "Practitioner/p2");
+
+        joinLinksUpdater.setLinks("Practitioner", List.of(p1, p2), 10L);
+
+        assertEquals(List.of(role1), p1.get("links", Document.class).get("PractitionerRole"));
+        assertFalse(p2.containsKey("links"));
+    }
+
+    @Test
+    void testLinkContentIgnoresRevisionFields() {
+        var oldRevision = new Document("_id", 1).append("t_id", "r1").append("_revision", 1).append("_validTo", 5L).append("fhir", new Document("id", "r1"));
+        var newRevision = new Document("t_id", "r1").append("_revision", 2).append("_validFrom", 5L).append("fhir", new Document("id", "r1").append("text", "changed"));
+        assertFalse(JoinLinksUpdater.linksChanged(oldRevision, newRevision));
+        newRevision.append("t_name", "new name");
+        assertTrue(JoinLinksUpdater.linksChanged(oldRevision, newRevision));
+    }
+
+    private void mockClose(long matched) {
+        when(practitionerCollection.updateOne(any(Bson.class), any(Bson.class))).thenReturn(UpdateResult.acknowledged(matched, matched, null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockFind(MongoCollection<Document> collection, String type, List<Document> documents) {
+        when(mongoMultiTenantService.getCollection(type)).thenReturn(collection);
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        MongoCursor<Document> cursor = mock(MongoCursor.class);
+        var iterator = documents.iterator();
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+        lenient().when(findIterable.projection(any())).thenReturn(findIterable);
+        when(findIterable.iterator()).thenReturn(cursor);
+        when(cursor.hasNext()).thenAnswer(i -> iterator.hasNext());
+        lenient().when(cursor.next()).thenAnswer(i -> iterator.next());
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.search.config.SearchConfigService;
+import fr.ans.afas.fhirserver.search.config.domain.SearchParamConfig;
+import fr.ans.afas.fhirserver.search.data.SortField;
+import fr.ans.afas.fhirserver.search.exception.BadParametersException;
+import fr.ans.afas.fhirserver.service.exception.BadRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the keyset pagination (sort and cursors)
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@ExtendWith(MockitoExtension.class)
+class KeysetPagingUtilsTest {
+
+    private static final String RESOURCE = "Organization";
+
+    private static final String NAME_SORT = "t_name" + StorageConstants.SORT_SUFFIX;
+
+    private static final ObjectId ID = new ObjectId("62d4841b269c580bb67c5c8f");
+
+    @Mock
+    private SearchConfigService searchConfigService;
+
+    @Test
+    void testResolveSort() {
+        when(searchConfigService.getSearchConfigByResourceAndParamName(RESOURCE, "name")).thenReturn(Optional.of(nameConfig(true)));
+
+        var keys = KeysetPagingUtils.resolveSort(searchConfigService, RESOURCE, List.of(SortField.parse("-name"), SortField.parse("_lastUpdated")));
+
+        assertEquals(List.of(new KeysetPagingUtils.SortKey(NAME_SORT, true), new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_LASTUPDATED, false)), keys);
+    }
+
+    @Test
+    void testResolveSortOnNotSortableParameters() {
+        when(searchConfigService.getSearchConfigByResourceAndParamName(RESOURCE, "name")).thenReturn(Optional.of(nameConfig(false)));
+        var notSortable = List.of(SortField.parse("name"));
+        var twice = List.of(SortField.parse("_id"), SortField.parse("-_id"));
+
+        assertThrows(BadParametersException.class, () -> KeysetPagingUtils.resolveSort(searchConfigService, RESOURCE, notSortable));
+        assertThrows(BadParametersException.class, () -> KeysetPagingUtils.resolveSort(searchConfigService, RESOURCE, twice));
+    }
+
+    @Test
+    void testSortIndexes() {
+        when(searchConfigService.getAllByFhirResource(RESOURCE)).thenReturn(List.of(nameConfig(true)));
+
+        var indexes = KeysetPagingUtils.sortIndexes(searchConfigService, RESOURCE);
+
+        assertEquals(List.of(new Document(NAME_SORT, 1).append("_id", 1)), indexes);
+    }
+
+    @Test
+    void testSortIndexesOnlyForSortableParameters() {
+        var id = SearchParamConfig.builder().name("_id").urlParameter("_id").searchType(StorageConstants.INDEX_TYPE_TOKEN).indexName(StorageConstants.INDEX_T_ID).build();
+        var lastUpdated = SearchParamConfig.builder().name("_lastUpdated").urlParameter("_lastUpdated").searchType(StorageConstants.INDEX_TYPE_DATE_RANGE).indexName(StorageConstants.INDEX_T_LASTUPDATED).sortable(true).build();
+        when(searchConfigService.getAllByFhirResource(RESOURCE)).thenReturn(List.of(id, lastUpdated, nameConfig(false)));
+
+        var indexes = KeysetPagingUtils.sortIndexes(searchConfigService, RESOURCE);
+
+        assertEquals(List.of(new Document(StorageConstants.INDEX_T_LASTUPDATED, 1).append("_id", 1)), indexes);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testUnsupportedSortsAreCached() {
+        var collection = (MongoCollection<Document>) mock(MongoCollection.class);
+        var indexes = (ListIndexesIterable<Document>) mock(ListIndexesIterable.class);
+        when(collection.getNamespace()).thenReturn(new MongoNamespace("db.Organization"));
+        when(collection.listIndexes()).thenReturn(indexes);
+        when(indexes.iterator()).thenReturn(mock(MongoCursor.class));
+        var keys = List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false));
+
+        var validator = new SortIndexValidator();
+        assertThrows(BadParametersException.class, () -> validator.validate(collection, keys));
+        assertThrows(BadParametersException.class, () -> validator.validate(collection, keys));
+        verify(collection, times(1)).listIndexes();
+
+        // checked again after the ttl:
+        var noCache = new SortIndexValidator(0);
+        assertThrows(BadParametersException.class, () -> noCache.validate(collection, keys));
+        assertThrows(BadParametersException.class, () -> noCache.validate(collection, keys));
+        verify(collection, times(3)).listIndexes();
+    }
+
+    @Test
+    void testWithoutSort() {
+        var document = new Document("_id", ID);
+
+        var cursor = KeysetPagingUtils.cursor(List.of(), document);
+
+        assertEquals(ID.toString(), cursor);
+        assertEquals("{\"_id\": 1}", KeysetPagingUtils.sort(List.of()).toBsonDocument().toJson());
+        assertEquals("{\"_id\": {\"$gt\": {\"$oid\": \"62d4841b269c580bb67c5c8f\"}}}", KeysetPagingUtils.after(List.of(), cursor).toBsonDocument().toJson());
+    }
+
+    @Test
+    void testAscendingSort() {
+        var keys = List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false));
+        var cursor = KeysetPagingUtils.cursor(keys, new Document("_id", ID).append(NAME_SORT, "dupont"));
+
+        assertTrue(cursor.startsWith(KeysetPagingUtils.CURSOR_PREFIX));
+        assertEquals("{\"t_name-sort\": 1, \"_id\": 1}", KeysetPagingUtils.sort(keys).toBsonDocument().toJson());
+        assertEquals("{\"$or\": [{\"t_name-sort\": {\"$gt\": \"dupont\"}}, {\"$and\": [{\"t_name-sort\": \"dupont\"}, {\"_id\": {\"$gt\": {\"$oid\": \"62d4841b269c580bb67c5c8f\"}}}]}]}",
+                KeysetPagingUtils.after(keys, cursor).toBsonDocument().toJson());
+    }
+
+    @Test
+    void testDescendingSortWithMissingValues() {
+        var keys = List.of(new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_LASTUPDATED, false), new KeysetPagingUtils.SortKey(NAME_SORT, true));
+        var cursor = KeysetPagingUtils.cursor(keys, new Document("_id", ID).append(StorageConstants.INDEX_T_LASTUPDATED, 10L));
+
+        assertEquals("{\"t_lastupdated\": 1, \"t_name-sort\": -1, \"_id\": -1}", KeysetPagingUtils.sort(keys).toBsonDocument().toJson());
+        // nothing is lower than a missing value, so only the _id is used after the equalities:
+        assertEquals("{\"$or\": [{\"t_lastupdated\": {\"$gt\": 10}}, {\"$and\": [{\"t_lastupdated\": 10}, {\"t_name-sort\": null}, {\"_id\": {\"$lt\": {\"$oid\": \"62d4841b269c580bb67c5c8f\"}}}]}]}",
+                KeysetPagingUtils.after(keys, cursor).toBsonDocument().toJson());
+    }
+
+    @Test
+    void testBadCursors() {
+        var keys = List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false));
+        var otherKeys = List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false), new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_ID, false));
+        var cursor = KeysetPagingUtils.cursor(keys, new Document("_id", ID).append(NAME_SORT, "dupont"));
+        var idCursor = ID.toString();
+
+        assertThrows(BadRequestException.class, () -> KeysetPagingUtils.after(keys, idCursor));
+        assertThrows(BadRequestException.class, () -> KeysetPagingUtils.after(otherKeys, cursor));
+        assertThrows(BadRequestException.class, () -> KeysetPagingUtils.after(keys, "kzz"));
+        assertThrows(BadRequestException.class, () -> KeysetPagingUtils.after(keys, "k0500000000"));
+    }
+
+    @Test
+    void testIndexSupportsSort() {
+        var index = new Document(NAME_SORT, 1).append("_id", 1);
+
+        assertTrue(SortIndexValidator.supports(index, List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false))));
+        assertTrue(SortIndexValidator.supports(index, List.of(new KeysetPagingUtils.SortKey(NAME_SORT, true))));
+        assertFalse(SortIndexValidator.supports(new Document(NAME_SORT, 1), List.of(new KeysetPagingUtils.SortKey(NAME_SORT, false))));
+        assertFalse(SortIndexValidator.supports(index, List.of(new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_ID, false))));
+
+        var compound = new Document(StorageConstants.INDEX_T_LASTUPDATED, 1).append(NAME_SORT, -1).append("_id", -1);
+        assertTrue(SortIndexValidator.supports(compound, List.of(new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_LASTUPDATED, false), new KeysetPagingUtils.SortKey(NAME_SORT, true))));
+        assertTrue(SortIndexValidator.supports(compound, List.of(new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_LASTUPDATED, true), new KeysetPagingUtils.SortKey(NAME_SORT, false))));
+        assertFalse(SortIndexValidator.supports(compound, List.of(new KeysetPagingUtils.SortKey(StorageConstants.INDEX_T_LASTUPDATED, false), new KeysetPagingUtils.SortKey(NAME_SORT, false))));
+    }
+
+    private SearchParamConfig nameConfig(boolean sortable) {
+        return SearchParamConfig.builder().name("name").urlParameter("name").searchType(StorageConstants.INDEX_TYPE_STRING).indexName("t_name").sortable(sortable).build();
+    }
+}
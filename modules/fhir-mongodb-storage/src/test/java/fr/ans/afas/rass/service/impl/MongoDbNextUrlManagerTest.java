@@ -0,0 +1,221 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.rass.service.impl;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import fr.ans.afas.fhirserver.search.expression.ContainerExpression;
+import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
+import fr.ans.afas.fhirserver.search.expression.SelectExpression;
+import fr.ans.afas.fhirserver.search.expression.serialization.DefaultSerializeUrlEncrypter;
+import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
+import fr.ans.afas.fhirserver.search.expression.serialization.SerializeUrlEncrypter;
+import fr.ans.afas.fhirserver.service.data.CountResult;
+import fr.ans.afas.fhirserver.service.data.PagingData;
+import fr.ans.afas.fhirserver.service.exception.BadLinkException;
+import fr.ans.afas.mdbexpression.domain.fhir.serialization.SelectExpressionCache;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test the storage of paging data in database (coalescing of writes and cache)
+ */
+@ExtendWith(MockitoExtension.class)
+class MongoDbNextUrlManagerTest {
+
+    @Mock
+    MongoMultiTenantService mongoMultiTenantService;
+
+    @Mock
+    MongoCollection<Document> collection;
+
+    @Mock
+    ExpressionSerializer<Bson> expressionSerializer;
+
+    @Mock
+    SerializeUrlEncrypter serializeUrlEncrypter;
+
+    @Mock
+    SelectExpression<Bson> selectExpression;
+
+    MongoDbNextUrlManager nextUrlManager;
+
+    @BeforeEach
+    void setUp() {
+        nextUrlManager = new MongoDbNextUrlManager(mongoMultiTenantService, 0, expressionSerializer, serializeUrlEncrypter, "db", 10, 60000);
+        lenient().when(serializeUrlEncrypter.encryptBytes(any())).thenAnswer(i -> Base64.getUrlEncoder().encodeToString(i.getArgument(0)));
+        lenient().when(serializeUrlEncrypter.decryptBytes(any())).thenAnswer(i -> Base64.getUrlDecoder().decode((String) i.getArgument(0)));
+    }
+
+    @Test
+    void testPagingDataIsStoredOnceForAllPages() throws BadLinkException {
+        mockCollection();
+        mockExpression();
+        var timestamp = new Date().getTime();
+        var page1 = nextUrlManager.store(pagingData("62d4841b269c580bb67c5c8f", "uuid1", timestamp));
+        var page2 = nextUrlManager.store(pagingData("62d4841b269c580bb67c5c90", "uuid1", timestamp));
+
+        verify(collection, times(1)).updateOne(any(Bson.class), any(Bson.class), any(UpdateOptions.class));
+        assertTrue(page1.startsWith(MongoDbNextUrlManager.FIRST_CHAR_IN_DB));
+        assertEquals(key(page1), key(page2));
+
+        // found from the cache, with the last id of the url:
+        var found = nextUrlManager.find(page2).orElseThrow();
+        verify(collection, never()).find(any(Bson.class));
+        assertEquals("62d4841b269c580bb67c5c90", found.getLastId());
+        assertEquals("uuid1", found.getUuid());
+        assertEquals(timestamp, found.getTimestamp());
+        assertEquals(12L, found.getSize().getTotal());
+        assertEquals("Organization", found.getType());
+    }
+
+    @Test
+    void testIdenticalSearchesDontShareTheirPagingData() throws BadLinkException {
+        mockCollection();
+        mockExpression();
+        var timestamp = new Date().getTime();
+        var search1 = nextUrlManager.store(pagingData("62d4841b269c580bb67c5c8f", "uuid1", timestamp));
+        var search2 = nextUrlManager.store(pagingData("62d4841b269c580bb67c5c8f", "uuid2", timestamp));
+
+        verify(collection, times(2)).updateOne(any(Bson.class), any(Bson.class), any(UpdateOptions.class));
+        assertNotEquals(key(search1), key(search2));
+        assertEquals("uuid1", nextUrlManager.find(search1).orElseThrow().getUuid());
+        assertEquals("uuid2", nextUrlManager.find(search2).orElseThrow().getUuid());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testLastIdCantBeChanged() {
+        mockCollection();
+        mockExpression();
+        var manager = new MongoDbNextUrlManager(mongoMultiTenantService, 0, expressionSerializer, new DefaultSerializeUrlEncrypter("secret"), "db", 10, 60000);
+        var id = manager.store(pagingData("62d4841b269c580bb67c5c8f", "uuid1", new Date().getTime()));
+        var altered = id.substring(0, id.length() - 2) + (id.endsWith("A") ? "BB" : "AA");
+        // not decrypted, so read as the key of an old version:
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+
+        assertThrows(BadLinkException.class, () -> manager.find(altered));
+        // links with a clear last id are not accepted:
+        assertThrows(BadLinkException.class, () -> manager.find("dkey.62d4841b269c580bb67c5c90"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testOldPagingDataAreFoundInDb() throws BadLinkException {
+        mockCollection();
+        when(expressionSerializer.deserialize("exp")).thenReturn((SelectExpression) selectExpression);
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.first()).thenReturn(new Document("id", "uuid1")
+                .append("ca", 1000L)
+                .append("value", "50_-1_1000_Organization_62d4841b269c580bb67c5c8f_uuid1__exp"));
+
+        var found = nextUrlManager.find("duuid1").orElseThrow();
+
+        assertEquals("62d4841b269c580bb67c5c8f", found.getLastId());
+        assertEquals("uuid1", found.getUuid());
+        assertNull(found.getSize().getTotal());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSelectExpressionIsParsedOnceForAllPages() throws BadLinkException {
+        mockCollection();
+        nextUrlManager.setSelectExpressionCache(new SelectExpressionCache(10));
+        var parsed = new SelectExpression<Bson>("Organization", mock(ExpressionFactory.class), mock(ContainerExpression.class));
+        when(expressionSerializer.deserialize("exp")).thenReturn((SelectExpression) parsed);
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.first()).thenReturn(new Document("id", "key")
+                .append("ca", 1000L)
+                .append("value", "50_-1_1000_Organization___[]_exp"));
+
+        var page1 = nextUrlManager.find(dbId("key.62d4841b269c580bb67c5c8f")).orElseThrow();
+        var page2 = nextUrlManager.find(dbId("key.62d4841b269c580bb67c5c90")).orElseThrow();
+
+        verify(expressionSerializer, times(1)).deserialize("exp");
+        assertEquals("62d4841b269c580bb67c5c90", page2.getLastId());
+        assertNotSame(page1.getSelectExpression(), page2.getSelectExpression());
+        assertEquals(1, nextUrlManager.getSelectExpressionCache().getHits());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testCleanRemovesCachedPagingData() {
+        mockCollection();
+        mockExpression();
+        var timestamp = new Date().getTime();
+        var id = nextUrlManager.store(pagingData("62d4841b269c580bb67c5c8f", "uuid1", timestamp));
+        nextUrlManager.cleanOldPagingData(timestamp + 1);
+
+        assertEquals(0, nextUrlManager.cache.size());
+        // deleted in db (the legacy cleaning on the creation of indexes, then the clean):
+        verify(collection, times(2)).deleteMany(any(Bson.class));
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+        assertThrows(BadLinkException.class, () -> nextUrlManager.find(id));
+    }
+
+    @Test
+    void testCacheIsBounded() {
+        var cache = new NextPagesCache(2, 60000);
+        var now = new Date().getTime();
+        cache.put("a", "1", now);
+        cache.put("b", "2", now);
+        cache.get("a");
+        cache.put("c", "3", now);
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        // expired:
+        cache.put("d", "4", now - 120000);
+        assertNull(cache.get("d"));
+    }
+
+    private static String dbId(String keyAndLastId) {
+        return MongoDbNextUrlManager.FIRST_CHAR_IN_DB + Base64.getUrlEncoder().encodeToString(keyAndLastId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String key(String id) {
+        var keyAndLastId = new String(Base64.getUrlDecoder().decode(id.substring(1)), StandardCharsets.UTF_8);
+        return keyAndLastId.substring(0, keyAndLastId.indexOf('.'));
+    }
+
+    private void mockCollection() {
+        when(mongoMultiTenantService.getCollection(MongoDbNextUrlManager.MONGO_COLLECTION_NAME)).thenReturn(collection);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockExpression() {
+        when(selectExpression.serialize(expressionSerializer)).thenReturn("exp");
+        lenient().when(expressionSerializer.deserialize("exp")).thenReturn((SelectExpression) selectExpression);
+    }
+
+    private PagingData<Bson> pagingData(String lastId, String uuid, long timestamp) {
+        return PagingData.<Bson>builder()
+                .lastId(lastId)
+                .uuid(uuid)
+                .timestamp(timestamp)
+                .type("Organization")
+                .pageSize(50)
+                .selectExpression(selectExpression)
+                .size(CountResult.builder().total(12L).build())
+                .build();
+    }
+}
@@ -162,6 +162,27 @@ class MongoQueryUtilsTest {
         verify(collection).find(any(Bson.class));
     }
 
+    @Test
+    void testSearchFirstPage_ContinuableCursorIsLimited() {
+        FindIterable<Document> findIterable = mock(FindIterable.class);
+        FindIterable<Document> projectionIterable = mock(FindIterable.class);
+        FindIterable<Document> sortIterable = mock(FindIterable.class);
+        FindIterable<Document> limitIterable = mock(FindIterable.class);
+        when(selectExpression.getHasConditions()).thenReturn(Collections.emptyList());
+        when(selectExpression.interpreter()).thenReturn(mock(Bson.class));
+        when(collection.find(any(Bson.class))).thenReturn(findIterable);
+        when(findIterable.projection(null)).thenReturn(projectionIterable);
+        when(projectionIterable.sort(any(Bson.class))).thenReturn(sortIterable);
+        when(sortIterable.limit(anyInt())).thenReturn(limitIterable);
+        when(limitIterable.batchSize(anyInt())).thenReturn(limitIterable);
+
+        MongoQueryUtils.searchFirstPage(searchConfigService, 10, selectExpression, collection, 1L, mongoMultiTenantService, 3);
+
+        // 3 pages and one more document to know if there is a next page:
+        verify(sortIterable).limit(31);
+        verify(limitIterable).batchSize(11);
+    }
+
     @Test
     void testSearchNextPage_WithAggregation() {
         List<Document> documents = new ArrayList<>();
@@ -279,6 +300,7 @@ class MongoQueryUtilsTest {
 
         when(selectExpression.getElements()).thenReturn(Set.of("identifier"));
         when(selectExpression.getFhirResource()).thenReturn("Device");
+        when(searchConfigService.getProjectionFields(anyString())).thenCallRealMethod();
         when(searchConfigService.getAllByFhirResource(anyString())).thenReturn(List.of(searchParamConfigActive));
         when(collection.find(any(Bson.class))).thenReturn(findIterable);
         when(findIterable.projection(projectionExpected)).thenReturn(projectionIterable);
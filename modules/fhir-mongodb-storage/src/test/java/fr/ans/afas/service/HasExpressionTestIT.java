@@ -4,7 +4,6 @@
 package fr.ans.afas.service;
 
 
-import ca.uhn.fhir.context.FhirContext;
 import fr.ans.afas.fhirserver.search.FhirSearchPath;
 import fr.ans.afas.fhirserver.search.config.SearchConfigService;
 import fr.ans.afas.fhirserver.search.exception.BadConfigurationException;
@@ -17,7 +16,6 @@ import fr.ans.afas.mdbexpression.domain.fhir.MongoDbTokenExpression;
 import fr.ans.afas.rass.service.MongoDbFhirService;
 import fr.ans.afas.rass.service.MongoMultiTenantService;
 import fr.ans.afas.rass.service.impl.DefaultIndexService;
-import fr.ans.afas.rass.service.json.GenericSerializer;
 import org.bson.conversions.Bson;
 import org.hl7.fhir.r4.model.*;
 import org.junit.AfterClass;
@@ -264,8 +262,7 @@ public class HasExpressionTestIT {
      * Trigger the join indexation
      */
     private void indexJoins() {
-        var genericSerializer = new GenericSerializer(searchConfigService, FhirContext.forR4());
-        var defaultIndexService = new DefaultIndexService(mongoDbFhirService, expressionFactory, searchConfigService, genericSerializer);
+        var defaultIndexService = new DefaultIndexService(searchConfigService, multiTenantService);
         defaultIndexService.refreshIndexesSync(1);
     }
 }
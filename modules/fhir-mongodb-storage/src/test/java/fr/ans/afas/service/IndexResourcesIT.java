@@ -10,7 +10,6 @@ import fr.ans.afas.fhirserver.search.config.CompositeSearchConfigService;
 import fr.ans.afas.fhirserver.search.config.domain.FhirResourceSearchConfig;
 import fr.ans.afas.fhirserver.search.config.domain.JoinPath;
 import fr.ans.afas.fhirserver.search.config.domain.TenantSearchConfig;
-import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
 import fr.ans.afas.fhirserver.service.IndexService;
 import fr.ans.afas.fhirserver.service.exception.IndexingException;
 import fr.ans.afas.fhirserver.test.unit.WithMongoTest;
@@ -19,10 +18,8 @@ import fr.ans.afas.rass.service.MongoMultiTenantService;
 import fr.ans.afas.rass.service.impl.DefaultIndexService;
 import fr.ans.afas.rass.service.impl.MongoQueryUtils;
 import fr.ans.afas.rass.service.impl.exception.AlreadyRunningTaskException;
-import fr.ans.afas.rass.service.json.GenericSerializer;
 import org.awaitility.Awaitility;
 import org.bson.Document;
-import org.bson.conversions.Bson;
 import org.hl7.fhir.r4.model.Device;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Reference;
@@ -67,19 +64,9 @@ public class IndexResourcesIT {
     @Value("${spring.data.mongodb.database}")
     String dbName;
 
-    /**
-     * The expression factory
-     */
-    @Inject
-    ExpressionFactory<Bson> expressionFactory;
-
-
     @Inject
     IndexService indexService;
 
-    @Inject
-    GenericSerializer genericSerializer;
-
     @Inject
     MongoClient mongoClient;
 
@@ -120,7 +107,7 @@ public class IndexResourcesIT {
         }}));
 
 
-        var defaultIndexService = new DefaultIndexService(mongoDbFhirService, expressionFactory, badSearchConfig, genericSerializer);
+        var defaultIndexService = new DefaultIndexService(badSearchConfig, multiTenantService);
         var ex = Assert.assertThrows(IndexingException.class, () -> defaultIndexService.refreshIndexesSync(1));
         Assert.assertEquals("Search not supported on path: Device.badPath", ex.getCause().getMessage());
     }
@@ -0,0 +1,145 @@
+/**
+ * (c) Copyright 1998-2024, ANS. All rights reserved.
+ */
+package fr.ans.afas.service;
+
+import com.mongodb.client.model.Filters;
+import fr.ans.afas.domain.StorageConstants;
+import fr.ans.afas.fhirserver.test.unit.WithMongoTest;
+import fr.ans.afas.rass.service.MongoDbFhirService;
+import fr.ans.afas.rass.service.MongoMultiTenantService;
+import fr.ans.afas.rass.service.impl.MongoQueryUtils;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.inject.Inject;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test the maintenance of denormalized joins (links) when joined resources are written and deleted
+ *
+ * @author Guillaume Poulériguen
+ * @since 1.0.0
+ */
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_CLASS)
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = TestFhirApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ContextConfiguration(initializers = {WithMongoTest.PropertyOverrideContextInitializer.class})
+public class JoinLinksIT {
+
+    @Inject
+    MongoDbFhirService mongoDbFhirService;
+
+    @Inject
+    MongoMultiTenantService multiTenantService;
+
+    /**
+     * Stop docker
+     */
+    @AfterClass
+    public static void shutdown() {
+        WithMongoTest.clean();
+    }
+
+    @Before
+    public void init() {
+        mongoDbFhirService.deleteAll();
+        var org1 = new Organization();
+        org1.setId("org1");
+        mongoDbFhirService.store(List.of(org1), false);
+    }
+
+    /**
+     * Given a stored organization
+     * When a device that references the organization is stored
+     * Then a new revision (and version) of the organization is written with the links and the old revision keeps its links
+     */
+    @Test
+    public void linksAreWrittenInANewRevisionTest() throws InterruptedException {
+        var beforeDevice = nextRevision();
+        mongoDbFhirService.store(List.of(device("1234")), false);
+
+        var current = organization(nextRevision());
+        Assert.assertEquals(2, (int) current.getInteger(MongoQueryUtils.REVISION_ATTRIBUTE));
+        var devices = current.get("links", Document.class).getList("Device", Document.class);
+        Assert.assertEquals(1, devices.size());
+        Assert.assertEquals("Device/i1", devices.get(0).get(StorageConstants.INDEX_T_FID));
+        // links only contain indexes:
+        Assert.assertFalse(devices.get(0).containsKey("fhir"));
+        Assert.assertFalse(devices.get(0).containsKey(MongoQueryUtils.REVISION_ATTRIBUTE));
+        // the fhir version follows the revision, as for a write of the resource:
+        Assert.assertEquals(2, current.get("fhir", Document.class).get("meta", Document.class).get("versionId"));
+
+        var old = organization(beforeDevice);
+        Assert.assertEquals(1, (int) old.getInteger(MongoQueryUtils.REVISION_ATTRIBUTE));
+        Assert.assertNull(old.get("links"));
+    }
+
+    /**
+     * Given an organization with links
+     * When the device is stored with a change that is not indexed
+     * Then no new revision of the organization is written
+     */
+    @Test
+    public void unchangedLinksTest() throws InterruptedException {
+        mongoDbFhirService.store(List.of(device("1234")), false);
+        var device = device("1234");
+        device.setSerialNumber("not indexed");
+        mongoDbFhirService.store(List.of(device), false);
+
+        Assert.assertEquals(2, (int) organization(nextRevision()).getInteger(MongoQueryUtils.REVISION_ATTRIBUTE));
+    }
+
+    /**
+     * Given an organization with links
+     * When the device is deleted
+     * Then the links of the organization are removed in a new revision
+     */
+    @Test
+    public void deleteRefreshLinksTest() throws InterruptedException {
+        mongoDbFhirService.store(List.of(device("1234")), false);
+        nextRevision();
+        mongoDbFhirService.businessDelete("Device", new IdType("Device", "i1"));
+
+        var current = organization(nextRevision());
+        Assert.assertEquals(3, (int) current.getInteger(MongoQueryUtils.REVISION_ATTRIBUTE));
+        Assert.assertNull(current.get("links"));
+    }
+
+    private Device device(String name) {
+        var device = new Device();
+        device.setId("i1");
+        device.addDeviceName().setName(name);
+        device.setOwner(new Reference("Organization/org1"));
+        return device;
+    }
+
+    private Document organization(long revision) {
+        return multiTenantService.getCollection("Organization")
+                .find(MongoQueryUtils.wrapQueryWithRevisionDate(revision, Filters.eq(StorageConstants.INDEX_T_ID, "org1")))
+                .first();
+    }
+
+    /**
+     * Revisions are in ms, wait to be sure that the next write is in a new revision
+     *
+     * @return the revision after the previous writes
+     */
+    private static long nextRevision() throws InterruptedException {
+        Thread.sleep(5);
+        return new Date().getTime();
+    }
+}
@@ -17,7 +17,6 @@ import fr.ans.afas.fhirserver.search.expression.ExpressionFactory;
 import fr.ans.afas.fhirserver.search.expression.serialization.DefaultSerializeUrlEncrypter;
 import fr.ans.afas.fhirserver.search.expression.serialization.ExpressionSerializer;
 import fr.ans.afas.fhirserver.search.expression.serialization.SerializeUrlEncrypter;
-import fr.ans.afas.fhirserver.service.FhirStoreService;
 import fr.ans.afas.fhirserver.service.IndexService;
 import fr.ans.afas.fhirserver.service.NextUrlManager;
 import fr.ans.afas.mdbexpression.domain.fhir.MongoDbExpressionFactory;
@@ -176,8 +175,8 @@ public class TestFhirApplication {
 
     @Bean
     @Inject
-    IndexService indexService(FhirStoreService<Bson> fhirStoreService, ExpressionFactory<Bson> expressionFactory, SearchConfigService searchConfigService, GenericSerializer genericSerializer) {
-        return new DefaultIndexService(fhirStoreService, expressionFactory, searchConfigService, genericSerializer);
+    IndexService indexService(SearchConfigService searchConfigService, MongoMultiTenantService mongoMultiTenantService) {
+        return new DefaultIndexService(searchConfigService, mongoMultiTenantService);
     }
 
 
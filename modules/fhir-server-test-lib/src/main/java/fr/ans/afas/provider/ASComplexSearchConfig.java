@@ -66,10 +66,10 @@ public class ASComplexSearchConfig extends TenantSearchConfig {
         params.add(SearchParamConfig.builder().name(Organization.SP_ADDRESS_USE).urlParameter(Organization.SP_ADDRESS_USE).searchType(StorageConstants.INDEX_TYPE_TOKEN).description("").indexName(StorageConstants.INDEX_ORGANIZATION_ADDRESS_USE).resourcePaths(List.of(ResourcePathConfig.builder().path("address|use?.toCode()").build())).build());
         params.add(SearchParamConfig.builder().name(Organization.SP_ENDPOINT).urlParameter(Organization.SP_ENDPOINT).searchType(StorageConstants.INDEX_TYPE_REFERENCE).description("").indexName(StorageConstants.INDEX_ORGANIZATION_ENDPOINT).resourcePaths(List.of(ResourcePathConfig.builder().path("endpoint").build())).build());
         params.add(SearchParamConfig.builder().name(Organization.SP_IDENTIFIER).urlParameter(Organization.SP_IDENTIFIER).searchType(StorageConstants.INDEX_TYPE_TOKEN).description("").indexName(StorageConstants.INDEX_ORGANIZATION_IDENTIFIER).resourcePaths(List.of(ResourcePathConfig.builder().path("identifier").build())).build());
-        params.add(SearchParamConfig.builder().name(Organization.SP_NAME).urlParameter(Organization.SP_NAME).searchType(StorageConstants.INDEX_TYPE_STRING).description("").indexName(StorageConstants.INDEX_ORGANIZATION_NAME).resourcePaths(List.of(ResourcePathConfig.builder().path("name").build())).build());
+        params.add(SearchParamConfig.builder().name(Organization.SP_NAME).urlParameter(Organization.SP_NAME).searchType(StorageConstants.INDEX_TYPE_STRING).description("").indexName(StorageConstants.INDEX_ORGANIZATION_NAME).sortable(true).resourcePaths(List.of(ResourcePathConfig.builder().path("name").build())).build());
         params.add(SearchParamConfig.builder().name(Organization.SP_PARTOF).urlParameter(Organization.SP_PARTOF).searchType(StorageConstants.INDEX_TYPE_REFERENCE).description("").indexName(StorageConstants.INDEX_ORGANIZATION_PARTOF).resourcePaths(List.of(ResourcePathConfig.builder().path("partOf").build())).build());
         params.add(SearchParamConfig.builder().name(Organization.SP_TYPE).urlParameter(Organization.SP_TYPE).searchType(StorageConstants.INDEX_TYPE_TOKEN).description("").indexName(StorageConstants.INDEX_ORGANIZATION_TYPE).resourcePaths(List.of(ResourcePathConfig.builder().path("type").build())).build());
-        params.add(SearchParamConfig.builder().name(LAST_UPDATED).urlParameter(LAST_UPDATED).searchType(StorageConstants.INDEX_TYPE_DATE_RANGE).description("").indexName(StorageConstants.INDEX_T_LASTUPDATED).resourcePaths(List.of(ResourcePathConfig.builder().path("meta|lastUpdated").build())).build());
+        params.add(SearchParamConfig.builder().name(LAST_UPDATED).urlParameter(LAST_UPDATED).searchType(StorageConstants.INDEX_TYPE_DATE_RANGE).description("").indexName(StorageConstants.INDEX_T_LASTUPDATED).sortable(true).resourcePaths(List.of(ResourcePathConfig.builder().path("meta|lastUpdated").build())).build());
         params.add(SearchParamConfig.builder().name("pharmacy-licence").urlParameter("pharmacy-licence").searchType(StorageConstants.INDEX_TYPE_STRING).description("").indexName("t_pharmacy-licence").resourcePaths(List.of(ResourcePathConfig.builder().path("extension.?[#this.url=='https://annuaire.sante.gouv.fr/fhir/StructureDefinition/Organization-PharmacyLicence']|value").build())).build());
         params.add(SearchParamConfig.builder().name("mailbox-mss").urlParameter("mailbox-mss").searchType(StorageConstants.INDEX_TYPE_STRING).description("").indexName(StorageConstants.INDEX_ORGANIZATION_MAILBOX_MSS).resourcePaths(List.of(ResourcePathConfig.builder().path("extension.?[#this.url=='https://annuaire.sante.gouv.fr/fhir/StructureDefinition/MailboxMSS']|extension.?[#this.url=='value']|value").build())).build());
         params.add(SearchParamConfig.builder().name("address-line").urlParameter("address-line").searchType(StorageConstants.INDEX_TYPE_STRING).description("").indexName(StorageConstants.INDEX_ORGANIZATION_ADDRESS_LINE).resourcePaths(List.of(ResourcePathConfig.builder().path("address|line").build())).build());
@@ -5,6 +5,7 @@ package fr.ans.afas.provider;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.StringAndListParam;
@@ -64,13 +65,15 @@ public class OrganizationProvider<T> extends AsBaseResourceProvider<T> implement
                                   @OptionalParam(name = "_lastUpdated")
                                       DateRangeParam theLastUpdated,
                                   @OptionalParam(name = Organization.SP_NAME)
-                                      StringAndListParam theName) throws BadDataFormatException {//
+                                      StringAndListParam theName,
+                                  @Sort SortSpec theSort) throws BadDataFormatException {//
         var selectExpression = new SelectExpression<>(FhirServerConstants.ORGANIZATION_FHIR_RESOURCE_NAME, expressionFactory);
         selectExpression.setCount(theCount);
         selectExpression.fromFhirParams(FhirSearchPath.builder().resource(FhirServerConstants.ORGANIZATION_FHIR_RESOURCE_NAME).path(IAnyResource.SP_RES_ID).build(), theId);
         selectExpression.fromFhirParams(FhirSearchPath.builder().resource(FhirServerConstants.ORGANIZATION_FHIR_RESOURCE_NAME).path(Organization.SP_IDENTIFIER).build(), theIdentifier);
         selectExpression.fromFhirParams(FhirSearchPath.builder().resource(FhirServerConstants.ORGANIZATION_FHIR_RESOURCE_NAME).path(Organization.SP_NAME).build(), theName);
         selectExpression.fromFhirParams(FhirSearchPath.builder().resource(FhirServerConstants.ORGANIZATION_FHIR_RESOURCE_NAME).path("_lastUpdated").build(), theLastUpdated);
+        selectExpression.fromFhirParams(theSort);
 
         return new AfasBundleProvider<>(fhirStoreService, selectExpression, nextUrlManager);
     }